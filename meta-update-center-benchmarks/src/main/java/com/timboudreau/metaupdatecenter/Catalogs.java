@@ -0,0 +1,211 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.util.Providers;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.server.PathFactory;
+import com.mastfrog.acteur.util.RequestID;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.url.Path;
+import com.mastfrog.url.Protocol;
+import com.mastfrog.url.Protocols;
+import com.mastfrog.url.URL;
+import com.timboudreau.metaupdatecenter.ModuleSet.StagedModule;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Builds the synthetic catalogs the benchmarks run against. Every module is
+ * a copy of the metadata of a real NBM with its code name base, version and
+ * hash changed, so the maps are the size and shape the server really holds.
+ *
+ * @author Tim Boudreau
+ */
+final class Catalogs {
+
+    /**
+     * The NBMs copied into the benchmark jar by the build.
+     */
+    static final String[] NBMS = {"first-test-module-v1.nbm", "second-test-module-v2.nbm"};
+    static final Logs LOGS = Logs.named("benchmarks");
+
+    private Catalogs() {
+        throw new AssertionError();
+    }
+
+    static byte[] nbm(String name) throws IOException {
+        try (InputStream in = Catalogs.class.getResourceAsStream("/nbms/" + name)) {
+            if (in == null) {
+                throw new IOException("No /nbms/" + name + " on the classpath - build with Maven "
+                        + "so the test modules are copied in");
+            }
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Parse a real NBM's Info/info.xml the way the server does.
+     */
+    static InfoFile info(byte[] nbm) throws IOException {
+        InfoFile[] result = new InfoFile[1];
+        Throwable[] failure = new Throwable[1];
+        new NbmDownloader(null, null, LOGS).handleDownloadedNBM(Unpooled.wrappedBuffer(nbm),
+                new NbmDownloader.DownloadHandler() {
+            @Override
+            public boolean onResponse(HttpResponseStatus status, HttpHeaders headers) {
+                return true;
+            }
+
+            @Override
+            public void onModuleDownload(InfoFile module, InputStream bytes, String hash, String url) {
+                result[0] = module;
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                failure[0] = t;
+            }
+        }, "file:/benchmark.nbm");
+        if (result[0] == null) {
+            throw new IOException("Could not parse NBM", failure[0]);
+        }
+        return result[0];
+    }
+
+    /**
+     * Create a catalog of distinct modules, deterministically for a given
+     * size.
+     *
+     * @param size The number of modules
+     * @return A list of modules in no particular order
+     */
+    @SuppressWarnings("unchecked")
+    static List<ModuleItem> modules(int size) throws Exception {
+        Map<String, Object> template = info(nbm(NBMS[0])).toMap();
+        Random rnd = new Random(size);
+        ZonedDateTime base = ZonedDateTime.parse("2020-01-01T00:00:00Z");
+        List<ModuleItem> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String cnb = "org.bench.module" + i;
+            Map<String, Object> metadata = new HashMap<>(template);
+            Map<String, Object> manifest = new HashMap<>((Map<String, Object>) template.get("manifest"));
+            manifest.put("OpenIDE-Module", cnb + "/1");
+            manifest.put("OpenIDE-Module-Name", "Benchmark Module " + i);
+            manifest.put("OpenIDE-Module-Specification-Version", version(rnd));
+            metadata.put("manifest", manifest);
+            metadata.put("codenamebase", cnb);
+            result.add(new ModuleItem(cnb, hash(rnd), metadata, base.plusMinutes(rnd.nextInt(500_000)),
+                    false, null, "https://example.com/nbms/" + cnb + ".nbm"));
+        }
+        return result;
+    }
+
+    static String version(Random rnd) {
+        StringBuilder sb = new StringBuilder().append(rnd.nextInt(20));
+        for (int i = 0, parts = 1 + rnd.nextInt(4); i < parts; i++) {
+            sb.append('.').append(rnd.nextInt(150));
+        }
+        return sb.toString();
+    }
+
+    static String hash(Random rnd) {
+        byte[] bytes = new byte[20];
+        rnd.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(40);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A ModuleSet holding the passed modules in memory, as if they had been
+     * scanned from disk.
+     */
+    static ModuleSet moduleSet(List<ModuleItem> modules) throws IOException {
+        ModuleSet set = new ModuleSet(Files.createTempDirectory("bench").toFile(),
+                Providers.of(new ObjectMapper()),
+                Providers.of(new Stats(LOGS, LOGS, LOGS, Providers.of(new RequestID.Factory().next()))),
+                () -> LOGS);
+        List<StagedModule> staged = new ArrayList<>(modules.size());
+        for (ModuleItem item : modules) {
+            staged.add(new StagedModule(item));
+        }
+        set.publish(staged);
+        return set;
+    }
+
+    /**
+     * A copy of a module which has not cached its XML.
+     */
+    static ModuleItem uncached(ModuleItem item) {
+        return new ModuleItem(item.getCodeNameBase(), item.getHash(), item.getMetadata(),
+                item.getDownloaded(), item.isUseOriginalURL(), item.getLastModified(), item.getFrom());
+    }
+
+    /**
+     * Builds catalog URLs for a server on localhost:8080.
+     */
+    static final class Paths implements PathFactory {
+
+        @Override
+        public Path toPath(String uri) {
+            return Path.parse(uri);
+        }
+
+        @Override
+        public URL constructURL(Path path, boolean secure) {
+            return constructURL(secure ? Protocols.HTTPS : Protocols.HTTP, path);
+        }
+
+        @Override
+        public URL constructURL(Protocol protocol, Path path) {
+            return constructURL(protocol, path, portForProtocol(protocol));
+        }
+
+        @Override
+        public URL constructURL(Protocol protocol, Path path, boolean secure) {
+            return constructURL(secure ? Protocols.HTTPS : protocol, path);
+        }
+
+        @Override
+        public URL constructURL(Protocol protocol, Path path, int port) {
+            return URL.builder(protocol).setHost("localhost").setPort(port).setPath(path).create();
+        }
+
+        @Override
+        public Path toExternalPath(Path path) {
+            return path;
+        }
+
+        @Override
+        public Path toExternalPath(String path) {
+            return Path.parse(path);
+        }
+
+        @Override
+        public URL constructURL(Path path) {
+            return constructURL(Protocols.HTTP, path);
+        }
+
+        @Override
+        public int portForProtocol(Protocol protocol) {
+            return protocol.isSecure() ? 8443 : 8080;
+        }
+
+        @Override
+        public URL constructURL(String path, HttpEvent evt) {
+            return constructURL(Path.parse(path));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.mastfrog.acteur.ResponseWriter;
+import com.mastfrog.acteur.headers.HeaderValueType;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.FileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpContent;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Rendering the whole updates.xml catalog, the way ModuleCatalogPage writes
+ * it, into an output which encodes it as UTF-8 and discards it. The warm
+ * case is the usual one, where each module has already cached its XML; the
+ * cold case is the first request after modules were loaded.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModuleCatalogBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int modules;
+    private List<ModuleItem> warm;
+    private final Catalogs.Paths paths = new Catalogs.Paths();
+    private final ZonedDateTime lastModified = ZonedDateTime.parse("2020-01-01T00:00:00Z");
+    private DiscardingOutput output;
+
+    @Setup
+    public void setup() throws Exception {
+        warm = Catalogs.modules(modules);
+        output = new DiscardingOutput();
+        render(warm);
+    }
+
+    @TearDown
+    public void tearDown() {
+        output.channel.finishAndReleaseAll();
+    }
+
+    private long render(List<ModuleItem> items) throws Exception {
+        ModuleCatalogPage.CatalogXmlWriter writer = new ModuleCatalogPage.CatalogXmlWriter(
+                lastModified, items.iterator(), paths, false);
+        long before = output.bytes;
+        int iteration = 0;
+        while (writer.write(null, output, iteration++) == ResponseWriter.Status.NOT_DONE) {
+            // keep writing
+        }
+        return output.bytes - before;
+    }
+
+    @Benchmark
+    public long renderCached() throws Exception {
+        return render(warm);
+    }
+
+    @Benchmark
+    public long renderUncached() throws Exception {
+        List<ModuleItem> cold = new ArrayList<>(warm.size());
+        for (ModuleItem item : warm) {
+            cold.add(Catalogs.uncached(item));
+        }
+        return render(cold);
+    }
+
+    static final class DiscardingOutput implements ResponseWriter.Output {
+
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        long bytes;
+
+        @Override
+        public ResponseWriter.Output writeObject(Object o) {
+            return write(String.valueOf(o));
+        }
+
+        @Override
+        public ResponseWriter.Output writeObjectIf(Object o, boolean condition) {
+            return condition ? writeObject(o) : this;
+        }
+
+        @Override
+        public ResponseWriter.Output writeIf(boolean condition, String string) {
+            return condition ? write(string) : this;
+        }
+
+        @Override
+        public ResponseWriter.Output write(String string) {
+            return write(string.getBytes(UTF_8));
+        }
+
+        @Override
+        public ResponseWriter.Output write(byte[] bytes) {
+            this.bytes += bytes.length;
+            return this;
+        }
+
+        @Override
+        public ResponseWriter.Output write(InputStream in) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ResponseWriter.Output write(ByteBuffer buffer) {
+            bytes += buffer.remaining();
+            return this;
+        }
+
+        @Override
+        public ResponseWriter.Output write(ByteBuf buffer) {
+            bytes += buffer.readableBytes();
+            buffer.release();
+            return this;
+        }
+
+        @Override
+        public ResponseWriter.Output write(FileRegion region) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ResponseWriter.Output write(HttpContent chunk) {
+            return write(chunk.content());
+        }
+
+        @Override
+        public <T> ResponseWriter.Output trailer(HeaderValueType<T> type, T value) {
+            return this;
+        }
+
+        @Override
+        public Channel channel() {
+            return channel;
+        }
+
+        @Override
+        public ChannelFuture future() {
+            return channel.newSucceededFuture();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.timboudreau.metaupdatecenter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Comparing modules - which sorting the catalog does n log n times - and
+ * rendering one module's catalog XML.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModuleItemBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int modules;
+    private List<ModuleItem> items;
+    private final Catalogs.Paths paths = new Catalogs.Paths();
+    private int index;
+
+    @Setup
+    public void setup() throws Exception {
+        items = Catalogs.modules(modules);
+    }
+
+    private ModuleItem next() {
+        if (++index >= items.size()) {
+            index = 0;
+        }
+        return items.get(index);
+    }
+
+    @Benchmark
+    public int compareTo() {
+        ModuleItem a = next();
+        return a.compareTo(next());
+    }
+
+    @Benchmark
+    public List<ModuleItem> sortCatalog() {
+        List<ModuleItem> copy = new ArrayList<>(items);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    @Benchmark
+    public String toXML() throws Exception {
+        // A module caches its XML, so measure rendering it the first time
+        return Catalogs.uncached(next()).toXML(paths, "download");
+    }
+}
@@ -0,0 +1,60 @@
+package com.timboudreau.metaupdatecenter;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The ModuleSet lookups done on every download and catalog request.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModuleSetBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int modules;
+    private ModuleSet set;
+    private List<ModuleItem> items;
+    private int index;
+
+    @Setup
+    public void setup() throws Exception {
+        items = Catalogs.modules(modules);
+        set = Catalogs.moduleSet(items);
+    }
+
+    @Benchmark
+    public ModuleItem find() {
+        if (++index >= items.size()) {
+            index = 0;
+        }
+        ModuleItem item = items.get(index);
+        return set.find(item.getCodeNameBase(), item.getHash() + ".nbm");
+    }
+
+    @Benchmark
+    public List<ModuleItem> sorted() {
+        return set.sorted();
+    }
+
+    @Benchmark
+    public String combinedHash() {
+        return set.getCombinedHash();
+    }
+}
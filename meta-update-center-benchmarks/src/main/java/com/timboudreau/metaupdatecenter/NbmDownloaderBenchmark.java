@@ -0,0 +1,66 @@
+package com.timboudreau.metaupdatecenter;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Hashing a downloaded NBM and parsing its Info/info.xml, which the poller
+ * does for every module that has changed.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NbmDownloaderBenchmark {
+
+    @Param({"first-test-module-v1.nbm", "second-test-module-v2.nbm"})
+    public String nbm;
+    private byte[] bytes;
+    private NbmDownloader downloader;
+
+    @Setup
+    public void setup() throws Exception {
+        bytes = Catalogs.nbm(nbm);
+        downloader = new NbmDownloader(null, null, Catalogs.LOGS);
+    }
+
+    @Benchmark
+    public void handleDownloadedNBM(Blackhole bh) {
+        downloader.handleDownloadedNBM(Unpooled.wrappedBuffer(bytes), new NbmDownloader.DownloadHandler() {
+            @Override
+            public boolean onResponse(HttpResponseStatus status, HttpHeaders headers) {
+                return true;
+            }
+
+            @Override
+            public void onModuleDownload(InfoFile module, InputStream in, String hash, String url) {
+                bh.consume(module);
+                bh.consume(hash);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                throw new IllegalStateException(t);
+            }
+        }, nbm);
+    }
+}
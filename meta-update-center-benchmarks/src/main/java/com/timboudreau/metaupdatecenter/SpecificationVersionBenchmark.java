@@ -0,0 +1,69 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.timboudreau.metaupdatecenter.borrowed.SpecificationVersion;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing and comparing specification versions, which happens every time
+ * modules are compared.
+ *
+ * @author Tim Boudreau
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpecificationVersionBenchmark {
+
+    private static final int COUNT = 1024;
+    private String[] strings;
+    private SpecificationVersion[] versions;
+    private int index;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(COUNT);
+        strings = new String[COUNT];
+        versions = new SpecificationVersion[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            strings[i] = Catalogs.version(rnd);
+            versions[i] = new SpecificationVersion(strings[i]);
+        }
+    }
+
+    private int next() {
+        return index = (index + 1) & (COUNT - 1);
+    }
+
+    @Benchmark
+    public SpecificationVersion parse() {
+        return new SpecificationVersion(strings[next()]);
+    }
+
+    @Benchmark
+    public int compare() {
+        int i = next();
+        return versions[i].compareTo(versions[(i + 1) & (COUNT - 1)]);
+    }
+
+    @Benchmark
+    public void parseAndCompare(Blackhole bh) {
+        int i = next();
+        bh.consume(new SpecificationVersion(strings[i])
+                .compareTo(new SpecificationVersion(strings[(i + 1) & (COUNT - 1)])));
+    }
+}
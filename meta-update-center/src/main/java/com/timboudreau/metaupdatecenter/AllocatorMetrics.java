@@ -0,0 +1,181 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.bunyan.java.v2.Log;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.settings.Settings;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.GUICE_BINDING_POLLER_THREAD_POOL;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_ALLOCATOR_METRICS_LOG_MINUTES;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.STATS_LOGGER;
+import com.timboudreau.metaupdatecenter.UpdateCenterServer.NbmInfoModule.HttpClientProvider;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PoolChunkListMetric;
+import io.netty.buffer.PoolChunkMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.util.internal.PlatformDependent;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Named;
+
+/**
+ * Metrics for the ByteBuf allocators used by the server and by the HTTP
+ * client which polls upstreams - per-arena allocations, chunks and the bytes
+ * they reserve, thread caches - and for the JVM's direct and mapped buffer
+ * pools, so <code>-XX:MaxDirectMemorySize</code> can be sized from what the
+ * server actually uses. Served by <code>/allocator</code>, and logged every
+ * <code>allocator.metrics.log.minutes</code>.
+ * <p>
+ * Netty counts an allocation against an arena only when the thread cache
+ * could not satisfy it, so an arena's allocation counts are thread cache
+ * misses; if they climb steadily under a steady load, the caches are too
+ * small for it. Buffers returned to a thread cache still count as active.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class AllocatorMetrics {
+
+    private final ByteBufAllocator serverAllocator;
+    private final ByteBufAllocator clientAllocator;
+    private final Logs logs;
+
+    @Inject
+    AllocatorMetrics(ByteBufAllocator alloc, HttpClientProvider client, Settings settings,
+            @Named(STATS_LOGGER) Logs logs,
+            @Named(GUICE_BINDING_POLLER_THREAD_POOL) ScheduledExecutorService pool) {
+        this.serverAllocator = alloc;
+        this.clientAllocator = client.allocator();
+        this.logs = logs;
+        long minutes = settings.getLong(SETTINGS_KEY_ALLOCATOR_METRICS_LOG_MINUTES, 15);
+        if (minutes > 0) {
+            pool.scheduleWithFixedDelay(this::log, minutes, minutes, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Metrics for both allocators (or one, if the client shares the
+     * server's) and the JVM's buffer pools.
+     *
+     * @param includeChunks If true, include the usage of every chunk
+     * @return A map to serialize as JSON
+     */
+    Map<String, Object> snapshot(boolean includeChunks) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("server", describe(serverAllocator, includeChunks));
+        result.put("httpClient", clientAllocator == serverAllocator
+                ? "server" : describe(clientAllocator, includeChunks));
+        result.put("directMemory", directMemory());
+        return result;
+    }
+
+    void log() {
+        Log log = logs.info("allocator");
+        snapshot(false).forEach(log::add);
+        log.close();
+    }
+
+    private static Map<String, Object> describe(ByteBufAllocator alloc, boolean includeChunks) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("type", alloc.getClass().getSimpleName());
+        result.put("directBuffersPooled", alloc.isDirectBufferPooled());
+        if (alloc instanceof PooledByteBufAllocator) {
+            PooledByteBufAllocatorMetric metric = ((PooledByteBufAllocator) alloc).metric();
+            result.put("usedHeapMemory", metric.usedHeapMemory());
+            result.put("usedDirectMemory", metric.usedDirectMemory());
+            result.put("chunkSize", metric.chunkSize());
+            result.put("threadLocalCaches", metric.numThreadLocalCaches());
+            result.put("smallCacheSize", metric.smallCacheSize());
+            result.put("normalCacheSize", metric.normalCacheSize());
+            result.put("heapArenas", arenas(metric.heapArenas(), includeChunks));
+            result.put("directArenas", arenas(metric.directArenas(), includeChunks));
+        } else if (alloc instanceof ByteBufAllocatorMetricProvider) {
+            ByteBufAllocatorMetric metric = ((ByteBufAllocatorMetricProvider) alloc).metric();
+            result.put("usedHeapMemory", metric.usedHeapMemory());
+            result.put("usedDirectMemory", metric.usedDirectMemory());
+        }
+        return result;
+    }
+
+    private static Map<String, Object> arenas(List<PoolArenaMetric> arenas, boolean includeChunks) {
+        long allocations = 0;
+        long activeAllocations = 0;
+        long activeBytes = 0;
+        long chunks = 0;
+        long reservedBytes = 0;
+        long freeBytes = 0;
+        List<Object> details = new ArrayList<>(arenas.size());
+        for (PoolArenaMetric arena : arenas) {
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("threadCaches", arena.numThreadCaches());
+            info.put("allocations", arena.numAllocations());
+            info.put("smallAllocations", arena.numSmallAllocations());
+            info.put("normalAllocations", arena.numNormalAllocations());
+            info.put("hugeAllocations", arena.numHugeAllocations());
+            info.put("deallocations", arena.numDeallocations());
+            info.put("activeAllocations", arena.numActiveAllocations());
+            info.put("activeBytes", arena.numActiveBytes());
+            int arenaChunks = 0;
+            long arenaReserved = 0;
+            long arenaFree = 0;
+            List<Object> chunkUsage = new ArrayList<>();
+            for (PoolChunkListMetric list : arena.chunkLists()) {
+                for (PoolChunkMetric chunk : list) {
+                    arenaChunks++;
+                    arenaReserved += chunk.chunkSize();
+                    arenaFree += chunk.freeBytes();
+                    chunkUsage.add(chunk.usage());
+                }
+            }
+            info.put("chunks", arenaChunks);
+            info.put("reservedBytes", arenaReserved);
+            info.put("freeBytes", arenaFree);
+            if (includeChunks) {
+                info.put("chunkUsagePercent", chunkUsage);
+            }
+            details.add(info);
+            allocations += arena.numAllocations();
+            activeAllocations += arena.numActiveAllocations();
+            activeBytes += arena.numActiveBytes();
+            chunks += arenaChunks;
+            reservedBytes += arenaReserved;
+            freeBytes += arenaFree;
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", arenas.size());
+        result.put("allocations", allocations);
+        result.put("activeAllocations", activeAllocations);
+        result.put("activeBytes", activeBytes);
+        result.put("chunks", chunks);
+        result.put("reservedBytes", reservedBytes);
+        result.put("freeBytes", freeBytes);
+        result.put("arenas", details);
+        return result;
+    }
+
+    private static Map<String, Object> directMemory() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        // -1 if Netty is not counting, which it only does when it frees
+        // direct buffers itself rather than leaving it to the GC
+        result.put("nettyUsed", PlatformDependent.usedDirectMemory());
+        result.put("max", PlatformDependent.maxDirectMemory());
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("count", pool.getCount());
+            info.put("memoryUsed", pool.getMemoryUsed());
+            info.put("totalCapacity", pool.getTotalCapacity());
+            result.put(pool.getName(), info);
+        }
+        return result;
+    }
+}
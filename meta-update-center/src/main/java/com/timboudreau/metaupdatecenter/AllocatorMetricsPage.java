@@ -0,0 +1,36 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.annotations.HttpCall;
+import com.mastfrog.acteur.header.entities.CacheControl;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Method.GET;
+import com.mastfrog.acteur.preconditions.Authenticated;
+import com.mastfrog.acteur.preconditions.Description;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.Path;
+import com.mastfrog.mime.MimeType;
+
+/**
+ * Metrics for the server's and HTTP client's ByteBuf allocators and the
+ * JVM's direct memory.
+ *
+ * @author Tim Boudreau
+ */
+@HttpCall
+@Path("/allocator")
+@Authenticated
+@Methods(GET)
+@Description("Get ByteBuf allocator metrics - arenas, chunks, thread caches - and direct "
+        + "memory use; pass ?chunks=true for the usage of every chunk")
+public class AllocatorMetricsPage extends Acteur {
+
+    @Inject
+    AllocatorMetricsPage(AllocatorMetrics metrics, HttpEvent evt) {
+        add(Headers.CONTENT_TYPE, MimeType.JSON_UTF_8);
+        add(Headers.CACHE_CONTROL, CacheControl.PRIVATE_NO_CACHE_NO_STORE);
+        ok(metrics.snapshot("true".equals(evt.urlParameter("chunks"))));
+    }
+}
@@ -58,4 +58,14 @@ class AuthenticatorImpl implements Authenticator {
             return null;
         }
     }
+
+    /**
+     * Check credentials outside of any request scope and without logging
+     * failures, for code which needs to decide before the request reaches
+     * an acteur (which will then authenticate it normally).
+     */
+    boolean checkCredentials(BasicCredentials credentials) {
+        return credentials != null && userName.equals(credentials.username)
+                && hasher.checkPassword(credentials.password, hashedPassword);
+    }
 }
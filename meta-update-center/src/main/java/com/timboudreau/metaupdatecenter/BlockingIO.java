@@ -0,0 +1,85 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_BLOCKING_IO_QUEUE_SIZE;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_BLOCKING_IO_THREADS;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small pool which disk reads and writes are handed to, so that event loop
+ * threads - the server's and the HTTP client's - never wait on the disk, and
+ * one slow disk cannot stall every connection sharing a loop. The queue is
+ * bounded: once it is full, work is refused with a
+ * RejectedExecutionException rather than piling up.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class BlockingIO {
+
+    static final int DEFAULT_THREADS = 4;
+    static final int DEFAULT_QUEUE_SIZE = 256;
+    private final ThreadPoolExecutor pool;
+
+    @Inject
+    BlockingIO(Settings settings, ShutdownHookRegistry reg) {
+        int threads = Math.max(1, settings.getInt(SETTINGS_KEY_BLOCKING_IO_THREADS, DEFAULT_THREADS));
+        int queueSize = Math.max(1, settings.getInt(SETTINGS_KEY_BLOCKING_IO_QUEUE_SIZE, DEFAULT_QUEUE_SIZE));
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), new DaemonThreadFactory("blocking-io-"));
+        pool.allowCoreThreadTimeOut(true);
+        reg.add(pool);
+    }
+
+    /**
+     * Run some blocking work on the pool.
+     *
+     * @param work The work
+     * @throws RejectedExecutionException if the queue is full or the pool has
+     * been shut down
+     */
+    void execute(Runnable work) {
+        pool.execute(work);
+    }
+
+    /**
+     * Run some blocking work on the pool, completing the returned future with
+     * its result on the pool thread; the future is completed exceptionally
+     * with a RejectedExecutionException if the queue is full.
+     *
+     * @param <T> The result type
+     * @param work The work
+     * @return A future
+     */
+    <T> CompletableFuture<T> submit(Callable<T> work) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            pool.execute(() -> {
+                try {
+                    result.complete(work.call());
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    int threads() {
+        return pool.getMaximumPoolSize();
+    }
+
+    int queued() {
+        return pool.getQueue().size();
+    }
+}
@@ -0,0 +1,34 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.annotations.HttpCall;
+import com.mastfrog.acteur.header.entities.CacheControl;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Method.GET;
+import com.mastfrog.acteur.preconditions.Authenticated;
+import com.mastfrog.acteur.preconditions.Description;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.Path;
+import com.mastfrog.mime.MimeType;
+
+/**
+ * Shows the poller's circuit breakers - which upstream URLs and hosts have
+ * been failing, and which are being skipped until when.
+ *
+ * @author Tim Boudreau
+ */
+@HttpCall
+@Path("/breakers")
+@Authenticated
+@Methods(GET)
+@Description("Get the state of the circuit breakers for failing upstream URLs and hosts")
+public class BreakersPage extends Acteur {
+
+    @Inject
+    BreakersPage(CircuitBreakers breakers) {
+        add(Headers.CONTENT_TYPE, MimeType.JSON_UTF_8);
+        add(Headers.CACHE_CONTROL, CacheControl.PRIVATE_NO_CACHE_NO_STORE);
+        ok(breakers.snapshot());
+    }
+}
@@ -0,0 +1,380 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Inject;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.Event;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.ResponseWriter;
+import com.mastfrog.acteur.annotations.HttpCall;
+import com.mastfrog.acteur.annotations.Precursors;
+import com.mastfrog.acteur.header.entities.CacheControl;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Method.POST;
+import static com.mastfrog.acteur.headers.Method.PUT;
+import com.mastfrog.acteur.preconditions.Authenticated;
+import com.mastfrog.acteur.preconditions.Description;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.PathRegex;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.mime.MimeType;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.url.URL;
+import com.mastfrog.util.collections.StringObjectMap;
+import com.mastfrog.util.preconditions.Exceptions;
+import com.mastfrog.util.time.TimeUtil;
+import static com.timboudreau.metaupdatecenter.BulkAddPage.BULK_ADD_PAGE_REGEX;
+import com.timboudreau.metaupdatecenter.ModuleSet.StagedModule;
+import com.timboudreau.metaupdatecenter.NbmDownloader.DownloadHandler;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.DOWNLOAD_LOGGER;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_BULK_ADD_CONCURRENCY;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Named;
+
+/**
+ * Add many modules in one request. The body is either a JSON array whose
+ * elements are URL strings or objects with <code>url</code> and optional
+ * <code>useOriginalURL</code> and <code>mirrors</code> (an array of alternate
+ * URLs to poll) properties, or plain text with one URL per line,
+ * optionally followed by whitespace and <code>true</code> to use the original
+ * URL. Progress is streamed back as newline-delimited JSON, and everything
+ * that downloaded successfully is added to the catalog in one step at the end.
+ *
+ * @author Tim Boudreau
+ */
+@HttpCall
+@PathRegex(BULK_ADD_PAGE_REGEX)
+@Methods({PUT, POST})
+@Authenticated
+@Precursors(CheckIngestAllowed.class)
+@Description("Add a list of modules to be downloaded and served, supplied as a "
+        + "JSON array or one URL per line, streaming progress as newline-delimited JSON")
+public class BulkAddPage extends Acteur {
+
+    public static final String BULK_ADD_PAGE_REGEX = "^add\\/bulk$";
+    static final MimeType NDJSON = MimeType.parse("application/x-ndjson;charset=utf-8");
+
+    @Inject
+    BulkAddPage(ModuleSet set, HttpEvent evt, NbmDownloader downloader, ObjectMapper mapper,
+            Settings settings, @Named(DOWNLOAD_LOGGER) Logs logs) throws Exception {
+        boolean defaultUseOriginalUrl = "true".equals(evt.urlParameter("useOriginalUrl"));
+        List<Entry> entries;
+        try {
+            entries = parse(evt.stringContent(), defaultUseOriginalUrl, mapper);
+        } catch (IOException ex) {
+            badRequest("Could not parse body: " + ex.getMessage() + "\n");
+            return;
+        }
+        if (entries.isEmpty()) {
+            badRequest("No URLs in request body\n");
+            return;
+        }
+        for (Entry e : entries) {
+            for (String url : e.sources()) {
+                URL u = URL.parse(url);
+                if (!u.isValid()) {
+                    setState(new RespondWith(BAD_REQUEST, "URL " + u + " has problems: " + u.getProblems() + "\n"));
+                    return;
+                }
+            }
+        }
+        add(Headers.CONTENT_TYPE, NDJSON);
+        add(Headers.EXPIRES, ZonedDateTime.now().minus(Duration.ofDays(30)));
+        add(Headers.CACHE_CONTROL, CacheControl.PRIVATE_NO_CACHE_NO_STORE);
+        setChunked(true);
+        ok();
+        int concurrency = Math.max(1, settings.getInt(SETTINGS_KEY_BULK_ADD_CONCURRENCY, 4));
+        BulkFetch fetch = new BulkFetch(entries, set, downloader, mapper, logs);
+        setResponseWriter(fetch);
+        fetch.start(concurrency);
+    }
+
+    static List<Entry> parse(String body, boolean defaultUseOriginalUrl, ObjectMapper mapper) throws IOException {
+        List<Entry> result = new ArrayList<>();
+        if (body == null) {
+            return result;
+        }
+        String trimmed = body.trim();
+        if (trimmed.startsWith("[")) {
+            JsonNode array = mapper.readTree(trimmed);
+            for (JsonNode node : array) {
+                if (node.isTextual()) {
+                    result.add(new Entry(node.asText().trim(), defaultUseOriginalUrl));
+                } else if (node.isObject() && node.hasNonNull("url")) {
+                    JsonNode orig = node.has("useOriginalURL") ? node.get("useOriginalURL") : node.get("useOriginalUrl");
+                    List<String> mirrors = new ArrayList<>();
+                    if (node.hasNonNull("mirrors")) {
+                        for (JsonNode m : node.get("mirrors")) {
+                            mirrors.add(m.asText().trim());
+                        }
+                    }
+                    result.add(new Entry(node.get("url").asText().trim(),
+                            orig == null ? defaultUseOriginalUrl : orig.asBoolean(), mirrors));
+                } else {
+                    throw new IOException("Not a URL or {url, useOriginalURL} object: " + node);
+                }
+            }
+        } else {
+            for (String line : trimmed.split("\r?\n")) {
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if (parts.length > 2) {
+                    throw new IOException("Expected 'url [true|false]' but got '" + line + "'");
+                }
+                result.add(new Entry(parts[0], parts.length == 2
+                        ? Boolean.parseBoolean(parts[1]) : defaultUseOriginalUrl));
+            }
+        }
+        return result;
+    }
+
+    static final class Entry {
+
+        final String url;
+        final boolean useOriginalUrl;
+        final List<String> mirrors;
+
+        Entry(String url, boolean useOriginalUrl) {
+            this(url, useOriginalUrl, Collections.emptyList());
+        }
+
+        Entry(String url, boolean useOriginalUrl, List<String> mirrors) {
+            this.url = url;
+            this.useOriginalUrl = useOriginalUrl;
+            this.mirrors = mirrors;
+        }
+
+        List<String> sources() {
+            List<String> result = new ArrayList<>(mirrors);
+            result.add(0, url);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return url + (useOriginalUrl ? " (original url)" : "");
+        }
+    }
+
+    /**
+     * Runs at most <i>concurrency</i> downloads at a time, staging each one
+     * as it arrives, and publishes them all once the last one finishes.
+     */
+    private static final class BulkFetch extends ResponseWriter {
+
+        private final Queue<Entry> queue;
+        private final ModuleSet set;
+        private final NbmDownloader downloader;
+        private final ObjectMapper mapper;
+        private final Logs logs;
+        private final AtomicInteger remaining;
+        private final List<StagedModule> staged = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicInteger failures = new AtomicInteger();
+        private final List<String> messages = new ArrayList<>();
+        private Output out;
+        private boolean finished;
+
+        BulkFetch(List<Entry> entries, ModuleSet set, NbmDownloader downloader, ObjectMapper mapper, Logs logs) {
+            this.queue = new ConcurrentLinkedQueue<>(entries);
+            this.remaining = new AtomicInteger(entries.size());
+            this.set = set;
+            this.downloader = downloader;
+            this.mapper = mapper;
+            this.logs = logs;
+        }
+
+        void start(int concurrency) {
+            for (int i = 0; i < concurrency; i++) {
+                if (!next()) {
+                    break;
+                }
+            }
+        }
+
+        private boolean next() {
+            Entry entry = queue.poll();
+            if (entry == null) {
+                return false;
+            }
+            Progress progress = new Progress(entry);
+            emit(progress.event("started"));
+            try {
+                downloader.download(TimeUtil.fromUnixTimestamp(0), entry.url, progress);
+            } catch (Exception ex) {
+                progress.onError(ex);
+            }
+            return true;
+        }
+
+        private void entryDone() {
+            if (remaining.decrementAndGet() == 0) {
+                finish();
+            } else {
+                next();
+            }
+        }
+
+        private void finish() {
+            List<ModuleItem> published = Collections.emptyList();
+            StringObjectMap summary = new StringObjectMap();
+            try {
+                synchronized (staged) {
+                    published = set.publish(staged);
+                }
+            } catch (Exception ex) {
+                summary.put("error", ex.toString());
+                Exceptions.printStackTrace(ex);
+            }
+            List<String> cnbs = new ArrayList<>(published.size());
+            for (ModuleItem item : published) {
+                cnbs.add(item.getCodeNameBase());
+            }
+            summary.put("event", "published");
+            summary.put("generation", set.generation());
+            summary.put("published", cnbs);
+            summary.put("failed", failures.get());
+            logs.info("bulkAdd").add("published", cnbs).add("failed", failures.get()).close();
+            emit(summary);
+            synchronized (this) {
+                finished = true;
+                if (out != null) {
+                    try {
+                        out.write(LastHttpContent.EMPTY_LAST_CONTENT);
+                    } catch (IOException ex) {
+                        Exceptions.printStackTrace(ex);
+                    }
+                }
+            }
+        }
+
+        private void emit(StringObjectMap event) {
+            String line;
+            try {
+                line = mapper.writeValueAsString(event) + "\n";
+            } catch (JsonProcessingException ex) {
+                line = "{\"event\":\"error\"}\n";
+                Exceptions.printStackTrace(ex);
+            }
+            synchronized (this) {
+                if (out == null) {
+                    messages.add(line);
+                    return;
+                }
+                try {
+                    out.write(line);
+                    out.channel().flush();
+                } catch (IOException ex) {
+                    // Client went away; keep going so what was fetched still
+                    // gets published
+                    Exceptions.printStackTrace(ex);
+                }
+            }
+        }
+
+        @Override
+        public synchronized Status write(Event<?> evt, Output out, int iteration) throws Exception {
+            this.out = out;
+            for (String msg : messages) {
+                out.write(msg);
+            }
+            messages.clear();
+            return finished ? Status.DONE : Status.DEFERRED;
+        }
+
+        private final class Progress implements DownloadHandler {
+
+            private final Entry entry;
+            private final AtomicBoolean done = new AtomicBoolean();
+            private volatile boolean statusReported;
+
+            Progress(Entry entry) {
+                this.entry = entry;
+            }
+
+            StringObjectMap event(String name) {
+                StringObjectMap result = new StringObjectMap();
+                result.put("event", name);
+                result.put("url", entry.url);
+                return result;
+            }
+
+            private void done(StringObjectMap event) {
+                if (done.compareAndSet(false, true)) {
+                    emit(event);
+                    entryDone();
+                }
+            }
+
+            private void failed(String why) {
+                failures.incrementAndGet();
+                StringObjectMap ev = event("failed");
+                ev.put("error", why);
+                done(ev);
+            }
+
+            @Override
+            public boolean onResponse(HttpResponseStatus status, HttpHeaders headers) {
+                boolean ok = HttpResponseStatus.OK.equals(status);
+                if (!statusReported) {
+                    statusReported = true;
+                    StringObjectMap ev = event("response");
+                    ev.put("status", status.code());
+                    emit(ev);
+                }
+                if (!ok) {
+                    failed("Got " + status + " from remote host");
+                }
+                return ok;
+            }
+
+            @Override
+            public void onModuleDownload(InfoFile module, InputStream bytes, String hash, String url) {
+                if (module == null) {
+                    failed("No Info/info.xml - not an NBM?");
+                    return;
+                }
+                try {
+                    StagedModule result = set.stage(module, bytes, url, hash, entry.useOriginalUrl, null, entry.mirrors);
+                    if (result == null) {
+                        StringObjectMap ev = event("duplicate");
+                        ev.put("hash", hash);
+                        done(ev);
+                    } else {
+                        staged.add(result);
+                        StringObjectMap ev = event("downloaded");
+                        ev.put("cnb", result.item().getCodeNameBase());
+                        ev.put("version", result.item().getVersion().toString());
+                        ev.put("hash", hash);
+                        done(ev);
+                    }
+                } catch (Exception ex) {
+                    failed(ex.toString());
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                failed(t.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.acteur.header.entities.BasicCredentials;
+import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.acteur.server.PipelineDecorator;
+import static com.mastfrog.acteur.server.ServerModule.SETTINGS_KEY_BASE_PATH;
+import com.mastfrog.settings.Settings;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.DEFAULT_BULK_ADD_MAX_BYTES;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_BULK_ADD_MAX_BYTES;
+import static com.timboudreau.metaupdatecenter.UploadPipelineDecorator.errorResponse;
+import static com.timboudreau.metaupdatecenter.UploadPipelineDecorator.trimSlashes;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import static io.netty.handler.codec.http.HttpResponseStatus.CONTINUE;
+import static io.netty.handler.codec.http.HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+import static io.netty.handler.codec.http.HttpResponseStatus.UNAUTHORIZED;
+import io.netty.handler.codec.http.HttpUtil;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import io.netty.handler.codec.http.LastHttpContent;
+
+/**
+ * Aggregates the body of <code>/add/bulk</code> requests, up to
+ * <code>bulk.add.max.bytes</code>, ahead of Netty's HttpObjectAggregator,
+ * which passes the already-full request through untouched. That keeps the
+ * server-wide max content length small for every other route, including
+ * unauthenticated ones, while a URL list of a few hundred entries can still
+ * be posted. Credentials are checked before anything is buffered; the
+ * acteur authenticates again as usual.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class BulkAddPipelineDecorator implements PipelineDecorator {
+
+    private static final String HANDLER_NAME = "bulk-add";
+    private final String bulkPath;
+    private final int maxBytes;
+    private final AuthenticatorImpl auth;
+
+    @Inject
+    BulkAddPipelineDecorator(Settings settings, AuthenticatorImpl auth) {
+        this.maxBytes = settings.getInt(SETTINGS_KEY_BULK_ADD_MAX_BYTES, DEFAULT_BULK_ADD_MAX_BYTES);
+        this.auth = auth;
+        String base = trimSlashes(settings.getString(SETTINGS_KEY_BASE_PATH, ""));
+        bulkPath = base.isEmpty() ? "add/bulk" : base + "/add/bulk";
+    }
+
+    @Override
+    public void onCreatePipeline(ChannelPipeline pipeline) {
+        // do nothing
+    }
+
+    @Override
+    public void onPipelineInitialized(ChannelPipeline pipeline) {
+        install(pipeline, ENCODER);
+    }
+
+    /**
+     * Add the aggregating handler to a pipeline immediately after the handler
+     * which decodes HttpRequests and encodes HttpResponses.
+     */
+    void install(ChannelPipeline pipeline, String after) {
+        pipeline.addAfter(after, HANDLER_NAME, new BulkBodyAggregator());
+    }
+
+    boolean isBulkAdd(HttpRequest req) {
+        if (!HttpMethod.PUT.equals(req.method()) && !HttpMethod.POST.equals(req.method())) {
+            return false;
+        }
+        String uri = req.uri();
+        int q = uri.indexOf('?');
+        if (q >= 0) {
+            uri = uri.substring(0, q);
+        }
+        return bulkPath.equals(trimSlashes(uri));
+    }
+
+    private final class BulkBodyAggregator extends ChannelInboundHandlerAdapter {
+
+        private HttpRequest request;
+        private CompositeByteBuf body;
+        private boolean discarding;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpRequest && !(msg instanceof FullHttpRequest)) {
+                HttpRequest req = (HttpRequest) msg;
+                if (isBulkAdd(req)) {
+                    start(ctx, req);
+                    return;
+                }
+            } else if (msg instanceof HttpContent && (request != null || discarding)) {
+                onContent(ctx, (HttpContent) msg);
+                return;
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        private void start(ChannelHandlerContext ctx, HttpRequest req) {
+            BasicCredentials credentials;
+            try {
+                credentials = Headers.read(Headers.AUTHORIZATION, req);
+            } catch (RuntimeException ex) {
+                credentials = null;
+            }
+            boolean noBodyYet = HttpUtil.is100ContinueExpected(req);
+            if (!auth.checkCredentials(credentials)) {
+                reject(ctx, UNAUTHORIZED, "Authentication required\n", noBodyYet);
+                return;
+            }
+            if (HttpUtil.getContentLength(req, -1L) > maxBytes) {
+                reject(ctx, REQUEST_ENTITY_TOO_LARGE, "Bulk add lists are limited to " + maxBytes + " bytes\n", noBodyYet);
+                return;
+            }
+            request = req;
+            body = ctx.alloc().compositeBuffer();
+            if (noBodyYet) {
+                ctx.writeAndFlush(new DefaultFullHttpResponse(HTTP_1_1, CONTINUE, Unpooled.EMPTY_BUFFER));
+            }
+        }
+
+        private void onContent(ChannelHandlerContext ctx, HttpContent content) {
+            boolean last = content instanceof LastHttpContent;
+            try {
+                if (discarding) {
+                    if (last) {
+                        // The response has already been sent
+                        ctx.close();
+                    }
+                    return;
+                }
+                body.addComponent(true, content.content().retain());
+                if (body.readableBytes() > maxBytes) {
+                    abort();
+                    reject(ctx, REQUEST_ENTITY_TOO_LARGE, "Bulk add lists are limited to " + maxBytes + " bytes\n", last);
+                    return;
+                }
+                if (last) {
+                    HttpRequest req = request;
+                    FullHttpRequest full = new DefaultFullHttpRequest(req.protocolVersion(), req.method(),
+                            req.uri(), body);
+                    full.headers().set(req.headers());
+                    full.headers().remove(HttpHeaderNames.EXPECT);
+                    HttpUtil.setTransferEncodingChunked(full, false);
+                    HttpUtil.setContentLength(full, body.readableBytes());
+                    request = null;
+                    body = null;
+                    ctx.fireChannelRead(full);
+                }
+            } finally {
+                content.release();
+            }
+        }
+
+        private void abort() {
+            request = null;
+            if (body != null) {
+                body.release();
+                body = null;
+            }
+        }
+
+        /**
+         * Send an error response, discarding the rest of the body if it has
+         * not all arrived, as the upload handler does.
+         */
+        private void reject(ChannelHandlerContext ctx, HttpResponseStatus status, String message, boolean bodyComplete) {
+            if (bodyComplete) {
+                ctx.writeAndFlush(errorResponse(status, message, "add")).addListener(ChannelFutureListener.CLOSE);
+            } else {
+                discarding = true;
+                ctx.writeAndFlush(errorResponse(status, message, "add"));
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            abort();
+            super.channelInactive(ctx);
+        }
+    }
+}
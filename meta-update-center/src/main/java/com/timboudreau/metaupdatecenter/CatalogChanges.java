@@ -0,0 +1,70 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The set of modules added or replaced in a ModuleSet since a given catalog
+ * generation. If the requested generation is older than the change history
+ * the set retains (or was issued by a previous run of the server), the
+ * result is the complete catalog and <code>isFull()</code> returns true.
+ *
+ * @author Tim Boudreau
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public final class CatalogChanges {
+
+    private final long generation;
+    private final long since;
+    private final boolean full;
+    private final List<ModuleItem> modules;
+
+    @JsonCreator
+    public CatalogChanges(@JsonProperty("generation") long generation,
+            @JsonProperty("since") long since,
+            @JsonProperty("full") boolean full,
+            @JsonProperty("modules") List<ModuleItem> modules) {
+        this.generation = generation;
+        this.since = since;
+        this.full = full;
+        this.modules = modules == null ? Collections.emptyList()
+                : Collections.unmodifiableList(modules);
+    }
+
+    /**
+     * The generation of the catalog this change set brings a client up to;
+     * pass this as <code>since</code> on the next request.
+     *
+     * @return The generation
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    public long getSince() {
+        return since;
+    }
+
+    /**
+     * If true, the modules list is the entire catalog, and a client should
+     * discard whatever it had rather than merging.
+     *
+     * @return Whether or not this is a complete catalog
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    public List<ModuleItem> getModules() {
+        return modules;
+    }
+
+    @Override
+    public String toString() {
+        return (full ? "full " : "delta ") + since + " -> " + generation
+                + ": " + modules.size() + " modules";
+    }
+}
@@ -0,0 +1,29 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.preconditions.Description;
+import static io.netty.handler.codec.http.HttpResponseStatus.CONFLICT;
+import static io.netty.handler.codec.http.HttpResponseStatus.FORBIDDEN;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+@Description("Rejects requests to add modules on a read-only replica, or on a "
+        + "node which does not currently hold the ingest lease")
+class CheckIngestAllowed extends Acteur {
+
+    @Inject
+    CheckIngestAllowed(Replicator replicator, PollLease lease) {
+        if (replicator.isFollower()) {
+            reply(FORBIDDEN, "This server is a read-only replica - add modules to "
+                    + replicator.primary() + "\n");
+        } else if (!lease.isLeader()) {
+            reply(CONFLICT, "Another server sharing this one's "
+                    + "storage currently holds the ingest lease - try again\n");
+        } else {
+            next();
+        }
+    }
+}
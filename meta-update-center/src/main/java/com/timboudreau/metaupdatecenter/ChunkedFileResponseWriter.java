@@ -3,39 +3,187 @@ package com.timboudreau.metaupdatecenter;
 import com.google.inject.Inject;
 import com.mastfrog.acteur.Closables;
 import com.mastfrog.acteur.Event;
+import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.ResponseWriter;
+import com.mastfrog.util.preconditions.Exceptions;
 import io.netty.buffer.ByteBuf;
-import java.io.BufferedInputStream;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.LastHttpContent;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.InputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
+ * Writes a file as a chunked response. The file is opened and read on the
+ * blocking I/O pool, a block of several chunks at a time, and each block is
+ * written from the channel's event loop once the previous one has been
+ * flushed, so the event loop never waits on the disk.
  *
  * @author Tim Boudreau
  */
 class ChunkedFileResponseWriter extends ResponseWriter {
-    private final byte[] buffer = new byte[DownloadActeur.FILE_CHUNK_SIZE];
-    private final InputStream stream;
+
+    /**
+     * How much to read from disk per trip to the blocking I/O pool.
+     */
+    static final int READ_SIZE = 65536;
+    private final int chunkSize;
+    private final int readSize;
+    private final BlockingIO io;
+    private final Callable<? extends ReadableByteChannel> opener;
+    private final AtomicReference<ReadableByteChannel> channel = new AtomicReference<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final FlightEvents.ModuleDownload event;
+    private volatile boolean keepAlive;
+    private long bytesWritten;
 
     @Inject
-    public ChunkedFileResponseWriter(File file, Closables clos) throws FileNotFoundException {
-        stream = clos.add(new BufferedInputStream(new FileInputStream(file), buffer.length));
+    public ChunkedFileResponseWriter(File file, Closables clos, BlockingIO io) {
+        this(() -> FileChannel.open(file.toPath(), StandardOpenOption.READ), clos,
+                DownloadActeur.FILE_CHUNK_SIZE, io, null);
+    }
+
+    ChunkedFileResponseWriter(ReadableByteChannel channel, Closables clos, int chunkSize, BlockingIO io) {
+        this(() -> channel, clos, chunkSize, io, null);
+    }
+
+    /**
+     * Create a writer which opens the file when the body is first written,
+     * and commits a flight recorder event, begun by the caller, once the
+     * whole file has been written.
+     */
+    ChunkedFileResponseWriter(Callable<? extends ReadableByteChannel> opener, Closables clos, int chunkSize,
+            BlockingIO io, FlightEvents.ModuleDownload event) {
+        this.chunkSize = chunkSize;
+        this.readSize = chunkSize * Math.max(1, READ_SIZE / chunkSize);
+        this.opener = opener;
+        this.io = io;
+        this.event = event;
+        clos.add((Runnable) this::closeFile);
     }
 
     @Override
     public ResponseWriter.Status write(Event<?> evt, ResponseWriter.Output out, int iteration) throws Exception {
-        // XXX could probably reuse a single buffer here rather than allocate
-        // on each iteration
-        ByteBuf buf = evt.channel().alloc().buffer(DownloadActeur.FILE_CHUNK_SIZE);
-        int bytes = buf.writeBytes(stream, DownloadActeur.FILE_CHUNK_SIZE);
-        if (bytes == -1) {
-            stream.close();
+        keepAlive = evt instanceof HttpEvent && ((HttpEvent) evt).requestsConnectionStayOpen();
+        readNext(out);
+        return ResponseWriter.Status.DEFERRED;
+    }
+
+    private void readNext(ResponseWriter.Output out) {
+        try {
+            io.execute(() -> read(out));
+        } catch (RejectedExecutionException ex) {
+            // The headers are already out, so all we can do is hang up
+            abort(out.channel(), ex);
+        }
+    }
+
+    private void read(ResponseWriter.Output out) {
+        Channel ch = out.channel();
+        ByteBuf buf = ch.alloc().buffer(readSize);
+        int bytes;
+        try {
+            bytes = fill(buf);
+        } catch (Exception ex) {
             buf.release();
-            return ResponseWriter.Status.DONE;
+            abort(ch, ex);
+            return;
+        }
+        try {
+            ch.eventLoop().execute(() -> onRead(out, buf, bytes));
+        } catch (RejectedExecutionException ex) {
+            // Event loop shutting down
+            buf.release();
+            closeFile();
+        }
+    }
+
+    private void onRead(ResponseWriter.Output out, ByteBuf buf, int bytes) {
+        if (closed.get() || !out.channel().isOpen()) {
+            buf.release();
+            closeFile();
+            return;
+        }
+        try {
+            if (bytes == -1) {
+                buf.release();
+                closeFile();
+                if (event != null) {
+                    event.bytes = bytesWritten;
+                    event.commit();
+                }
+                out.write(LastHttpContent.EMPTY_LAST_CONTENT);
+                if (!keepAlive) {
+                    out.future().addListener(ChannelFutureListener.CLOSE);
+                }
+                return;
+            }
+            bytesWritten += bytes;
+            while (buf.readableBytes() > chunkSize) {
+                out.write(buf.readRetainedSlice(chunkSize));
+            }
+            out.write(buf);
+        } catch (IOException ex) {
+            abort(out.channel(), ex);
+            return;
+        }
+        out.future().addListener(f -> {
+            if (f.isSuccess()) {
+                readNext(out);
+            } else {
+                closeFile();
+            }
+        });
+    }
+
+    private int fill(ByteBuf buf) throws Exception {
+        ReadableByteChannel in = channel.get();
+        if (in == null) {
+            in = opener.call();
+            if (!channel.compareAndSet(null, in) || closed.get()) {
+                in.close();
+                throw new IOException("Response closed before file was opened");
+            }
+        }
+        int total = 0;
+        while (total < readSize) {
+            int count = in.read(buf.nioBuffer(total, readSize - total));
+            if (count <= 0) {
+                if (count < 0 && total == 0) {
+                    return -1;
+                }
+                break;
+            }
+            total += count;
+        }
+        buf.writerIndex(total);
+        return total;
+    }
+
+    private void abort(Channel ch, Throwable t) {
+        closeFile();
+        if (ch.isOpen()) {
+            Exceptions.printStackTrace(t);
+            ch.close();
+        }
+    }
+
+    private void closeFile() {
+        closed.set(true);
+        ReadableByteChannel in = channel.getAndSet(null);
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                Exceptions.printStackTrace(ex);
+            }
         }
-        out.write(buf);
-        return ResponseWriter.Status.NOT_DONE;
     }
 }
@@ -0,0 +1,378 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.settings.Settings;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_BREAKER_BACKOFF_MINUTES;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_BREAKER_HOST_FAILURES;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_BREAKER_MAX_BACKOFF_HOURS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_BREAKER_URL_FAILURES;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+import javax.inject.Named;
+
+/**
+ * Circuit breakers for upstream URLs and the hosts they live on, so the poller
+ * stops spending connections on modules whose URL has gone away or whose
+ * server is down. A URL's circuit opens after a run of failures of any kind; a
+ * host's after a run of connection failures, timeouts and 5xx responses from
+ * any of its URLs - a 404 says nothing about the health of the server. While
+ * a circuit is open, the URL (or every URL on the host) is skipped. Once the
+ * backoff has elapsed the circuit is half-open: the next poll is let through
+ * as a probe, and closes it if it succeeds or reopens it for twice as long if
+ * it fails. While the probe is in flight the circuit is held open, so a
+ * host with many modules gets one request, not one per URL.
+ * <p>
+ * Only URLs and hosts which have failed are tracked; their state is saved to a
+ * file in the NBM dir after each poll cycle, and can be seen at
+ * <code>/breakers</code>.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class CircuitBreakers {
+
+    static final String STATE_FILE_NAME = ".poll-breakers.json";
+    /**
+     * How long a circuit is held open for a probe to report back; if it never
+     * does, another is let through after this.
+     */
+    static final long PROBE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private final Map<String, Breaker> urls = new ConcurrentHashMap<>();
+    private final Map<String, Breaker> hosts = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final int urlThreshold;
+    private final int hostThreshold;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+    private final Path stateFile;
+    private final ObjectMapper mapper;
+    private final Logs logs;
+    private final LongSupplier clock;
+
+    @Inject
+    CircuitBreakers(ModuleSet set, Settings settings, ObjectMapper mapper,
+            @Named(UpdateCenterServer.DOWNLOAD_LOGGER) Logs logs) {
+        this(set, settings, mapper, logs, System::currentTimeMillis);
+    }
+
+    CircuitBreakers(ModuleSet set, Settings settings, ObjectMapper mapper, Logs logs, LongSupplier clock) {
+        this.mapper = mapper;
+        this.logs = logs;
+        this.clock = clock;
+        urlThreshold = settings.getInt(SETTINGS_KEY_BREAKER_URL_FAILURES, 3);
+        hostThreshold = settings.getInt(SETTINGS_KEY_BREAKER_HOST_FAILURES, 5);
+        backoffMillis = TimeUnit.MINUTES.toMillis(settings.getLong(SETTINGS_KEY_BREAKER_BACKOFF_MINUTES, 60));
+        maxBackoffMillis = Math.max(backoffMillis,
+                TimeUnit.HOURS.toMillis(settings.getLong(SETTINGS_KEY_BREAKER_MAX_BACKOFF_HOURS, 24)));
+        stateFile = set.getStorageDir().toPath().resolve(STATE_FILE_NAME);
+        if (Files.exists(stateFile)) {
+            try {
+                SavedState saved = mapper.readValue(stateFile.toFile(), SavedState.class);
+                urls.putAll(saved.urls);
+                hosts.putAll(saved.hosts);
+            } catch (IOException ex) {
+                logs.warn("breakerStateUnreadable").add("file", stateFile.toString()).add(ex).close();
+            }
+        }
+    }
+
+    /**
+     * Filter a list of sources down to those whose circuits - their own and
+     * their host's - are not open, preserving order. A source whose circuit
+     * is half-open is let through as its probe, and the circuit held open for
+     * everyone else until the probe succeeds or fails, so the caller must
+     * report how each source it is given fares.
+     *
+     * @param sources Some URLs
+     * @return The ones which may be polled now
+     */
+    List<String> permitted(List<String> sources) {
+        long now = clock.getAsLong();
+        List<String> result = new ArrayList<>(sources.size());
+        for (String url : sources) {
+            State urlState = state(urls.get(url), urlThreshold, now);
+            if (urlState == State.OPEN) {
+                continue;
+            }
+            String host = host(url);
+            State hostState = host == null ? State.CLOSED : state(hosts.get(host), hostThreshold, now);
+            if (hostState == State.OPEN) {
+                continue;
+            }
+            if (hostState == State.HALF_OPEN && !claimProbe(hosts, host, hostThreshold, now)) {
+                continue;
+            }
+            if (urlState == State.HALF_OPEN && !claimProbe(urls, url, urlThreshold, now)) {
+                continue;
+            }
+            result.add(url);
+        }
+        return result;
+    }
+
+    /**
+     * Determine if any of a list of sources could be polled now, without
+     * claiming any probes.
+     *
+     * @param sources Some URLs
+     * @return true if at least one source's circuits are not open
+     */
+    boolean anyPermitted(List<String> sources) {
+        long now = clock.getAsLong();
+        for (String url : sources) {
+            String host = host(url);
+            if (state(urls.get(url), urlThreshold, now) != State.OPEN
+                    && (host == null || state(hosts.get(host), hostThreshold, now) != State.OPEN)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean claimProbe(Map<String, Breaker> map, String key, int threshold, long now) {
+        boolean[] claimed = new boolean[1];
+        map.computeIfPresent(key, (k, b) -> {
+            // Someone else may have claimed it since we looked
+            if (state(b, threshold, now) != State.HALF_OPEN) {
+                return b;
+            }
+            claimed[0] = true;
+            return b.probe(now + PROBE_TIMEOUT_MILLIS);
+        });
+        if (claimed[0]) {
+            dirty.set(true);
+        }
+        return claimed[0];
+    }
+
+    /**
+     * Record a good response - a body or a 304 - from a URL, closing its
+     * circuit and its host's.
+     */
+    void success(String url) {
+        close(urls, url, "url");
+        String host = host(url);
+        if (host != null) {
+            close(hosts, host, "host");
+        }
+    }
+
+    /**
+     * Record a failed attempt on a URL. Either the status or the error will be
+     * non-null.
+     */
+    void failure(String url, HttpResponseStatus status, Throwable error) {
+        String reason = status != null ? Integer.toString(status.code()) : String.valueOf(error);
+        trip(urls, url, urlThreshold, reason, "url");
+        boolean serverTrouble = status == null || status.code() >= 500;
+        String host = host(url);
+        if (serverTrouble && host != null) {
+            trip(hosts, host, hostThreshold, reason, "host");
+        }
+    }
+
+    private void close(Map<String, Breaker> map, String key, String kind) {
+        Breaker old = map.remove(key);
+        if (old != null) {
+            dirty.set(true);
+            if (old.opens > 0) {
+                logs.info("circuitClosed").add(kind, key).add("failures", old.consecutiveFailures).close();
+            }
+        }
+    }
+
+    private void trip(Map<String, Breaker> map, String key, int threshold, String reason, String kind) {
+        if (threshold <= 0) {
+            return;
+        }
+        long now = clock.getAsLong();
+        int[] openedBefore = new int[1];
+        Breaker updated = map.compute(key, (k, old) -> {
+            Breaker prev = old == null ? Breaker.EMPTY : old;
+            openedBefore[0] = prev.opens;
+            return prev.failure(now, threshold, backoffMillis, maxBackoffMillis, reason);
+        });
+        dirty.set(true);
+        if (updated.opens > openedBefore[0]) {
+            logs.warn("circuitOpen").add(kind, key).add("failures", updated.consecutiveFailures)
+                    .add("reason", reason)
+                    .add("retryInMinutes", TimeUnit.MILLISECONDS.toMinutes(updated.openUntil - now)).close();
+        }
+    }
+
+    static String host(String url) {
+        try {
+            URI uri = new URI(url);
+            if (uri.getHost() == null) {
+                return null;
+            }
+            String host = uri.getHost().toLowerCase(Locale.ROOT);
+            return uri.getPort() > 0 ? host + ":" + uri.getPort() : host;
+        } catch (URISyntaxException ex) {
+            return null;
+        }
+    }
+
+    private static State state(Breaker b, int threshold, long now) {
+        if (b == null || threshold <= 0 || b.consecutiveFailures < threshold) {
+            return State.CLOSED;
+        }
+        return now < b.openUntil ? State.OPEN : State.HALF_OPEN;
+    }
+
+    State urlState(String url) {
+        return state(urls.get(url), urlThreshold, clock.getAsLong());
+    }
+
+    State hostState(String host) {
+        return state(hosts.get(host), hostThreshold, clock.getAsLong());
+    }
+
+    /**
+     * Everything tracked, for the admin page.
+     */
+    Map<String, Object> snapshot() {
+        long now = clock.getAsLong();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("urls", describe(urls, urlThreshold, now));
+        result.put("hosts", describe(hosts, hostThreshold, now));
+        return result;
+    }
+
+    private static Map<String, Object> describe(Map<String, Breaker> map, int threshold, long now) {
+        Map<String, Object> result = new TreeMap<>();
+        map.forEach((key, b) -> {
+            Map<String, Object> info = new LinkedHashMap<>();
+            State state = state(b, threshold, now);
+            info.put("state", state.name());
+            info.put("consecutiveFailures", b.consecutiveFailures);
+            info.put("lastFailure", b.lastFailure);
+            info.put("lastError", b.lastError);
+            if (state != State.CLOSED) {
+                info.put("openUntil", b.openUntil);
+                info.put("opens", b.opens);
+                info.put("probing", b.probing);
+            }
+            result.put(key, info);
+        });
+        return result;
+    }
+
+    /**
+     * Write the breaker state to disk, if it has changed.
+     */
+    void save() {
+        if (!dirty.getAndSet(false)) {
+            return;
+        }
+        try {
+            Path tmp = stateFile.resolveSibling(STATE_FILE_NAME + ".tmp");
+            mapper.writeValue(tmp.toFile(), new SavedState(new TreeMap<>(urls), new TreeMap<>(hosts)));
+            Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            dirty.set(true);
+            logs.warn("breakerStateNotSaved").add("file", stateFile.toString()).add(ex).close();
+        }
+    }
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    static final class SavedState {
+
+        @JsonProperty("urls")
+        final Map<String, Breaker> urls;
+        @JsonProperty("hosts")
+        final Map<String, Breaker> hosts;
+
+        @JsonCreator
+        SavedState(@JsonProperty("urls") Map<String, Breaker> urls,
+                @JsonProperty("hosts") Map<String, Breaker> hosts) {
+            this.urls = urls == null ? new TreeMap<>() : urls;
+            this.hosts = hosts == null ? new TreeMap<>() : hosts;
+        }
+    }
+
+    /**
+     * The failure history of one URL or host.
+     */
+    static final class Breaker {
+
+        static final Breaker EMPTY = new Breaker(0, 0, 0, 0, null, false);
+        @JsonProperty("consecutiveFailures")
+        final int consecutiveFailures;
+        /**
+         * How many times the circuit has opened since it was last closed,
+         * which sets the backoff.
+         */
+        @JsonProperty("opens")
+        final int opens;
+        @JsonProperty("openUntil")
+        final long openUntil;
+        @JsonProperty("lastFailure")
+        final long lastFailure;
+        @JsonProperty("lastError")
+        final String lastError;
+        /**
+         * Whether the circuit is only open because a probe is in flight.
+         */
+        @JsonProperty("probing")
+        final boolean probing;
+
+        @JsonCreator
+        Breaker(@JsonProperty("consecutiveFailures") int consecutiveFailures,
+                @JsonProperty("opens") int opens,
+                @JsonProperty("openUntil") long openUntil,
+                @JsonProperty("lastFailure") long lastFailure,
+                @JsonProperty("lastError") String lastError,
+                @JsonProperty("probing") boolean probing) {
+            this.consecutiveFailures = consecutiveFailures;
+            this.opens = opens;
+            this.openUntil = openUntil;
+            this.lastFailure = lastFailure;
+            this.lastError = lastError;
+            this.probing = probing;
+        }
+
+        Breaker probe(long until) {
+            return new Breaker(consecutiveFailures, opens, until, lastFailure, lastError, true);
+        }
+
+        Breaker failure(long now, int threshold, long backoff, long maxBackoff, String reason) {
+            int failures = consecutiveFailures + 1;
+            if (failures < threshold || (consecutiveFailures >= threshold && now < openUntil && !probing)) {
+                // Not failing enough to open yet, or already open and this is
+                // a request which was in flight when it opened
+                return new Breaker(failures, opens, openUntil, now, reason, probing);
+            }
+            long wait = backoff << Math.min(opens, 30);
+            if (wait <= 0 || wait > maxBackoff) {
+                wait = maxBackoff;
+            }
+            return new Breaker(failures, opens + 1, now + wait, now, reason, false);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.timboudreau.metaupdatecenter;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes connections which have been quiet for too long, with separate limits
+ * for a connection sitting between requests (keep-alive) and one with a
+ * request in progress that has stopped moving (idle). For HTTP/1.1 it sits
+ * after the codec and counts requests in and responses out; for HTTP/2 a
+ * request is in progress if the connection has any active streams, and
+ * closing the connection sends GOAWAY.
+ *
+ * @author Tim Boudreau
+ */
+final class ConnectionIdleHandler extends IdleStateHandler {
+
+    private final long keepAliveSeconds;
+    private final long idleSeconds;
+    private final long periodSeconds;
+    private final Http2Connection http2;
+    private int inFlight;
+    private long quietPeriods;
+
+    private ConnectionIdleHandler(long keepAliveSeconds, long idleSeconds, Http2Connection http2) {
+        super(0, 0, period(keepAliveSeconds, idleSeconds), TimeUnit.SECONDS);
+        this.keepAliveSeconds = keepAliveSeconds;
+        this.idleSeconds = idleSeconds;
+        this.periodSeconds = period(keepAliveSeconds, idleSeconds);
+        this.http2 = http2;
+    }
+
+    /**
+     * Create a handler, or null if both timeouts are disabled.
+     */
+    static ConnectionIdleHandler create(long keepAliveSeconds, long idleSeconds, Http2Connection http2) {
+        if (keepAliveSeconds <= 0 && idleSeconds <= 0) {
+            return null;
+        }
+        return new ConnectionIdleHandler(keepAliveSeconds, idleSeconds, http2);
+    }
+
+    private static long period(long keepAliveSeconds, long idleSeconds) {
+        if (keepAliveSeconds <= 0) {
+            return idleSeconds;
+        } else if (idleSeconds <= 0) {
+            return keepAliveSeconds;
+        }
+        return Math.min(keepAliveSeconds, idleSeconds);
+    }
+
+    private boolean busy() {
+        return http2 == null ? inFlight > 0 : http2.numActiveStreams() > 0;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            inFlight++;
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof LastHttpContent && inFlight > 0) {
+            inFlight--;
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    @Override
+    protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent evt) throws Exception {
+        if (evt.state() != IdleState.ALL_IDLE) {
+            return;
+        }
+        quietPeriods = evt.isFirst() ? 1 : quietPeriods + 1;
+        long limit = busy() ? idleSeconds : keepAliveSeconds;
+        if (limit > 0 && quietPeriods * periodSeconds >= limit) {
+            ctx.close();
+        }
+    }
+}
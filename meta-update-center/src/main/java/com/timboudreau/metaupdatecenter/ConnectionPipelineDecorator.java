@@ -0,0 +1,276 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.mastfrog.acteur.server.PipelineDecorator;
+import static com.mastfrog.acteur.server.ServerModule.DEFAULT_COMPRESSION_LEVEL;
+import static com.mastfrog.acteur.server.ServerModule.DEFAULT_COMPRESSION_MEMORY_LEVEL;
+import static com.mastfrog.acteur.server.ServerModule.DEFAULT_COMPRESSION_THRESHOLD;
+import static com.mastfrog.acteur.server.ServerModule.DEFAULT_COMPRESSION_WINDOW_BITS;
+import static com.mastfrog.acteur.server.ServerModule.HTTP_COMPRESSION;
+import static com.mastfrog.acteur.server.ServerModule.HTTP_COMPRESSION_LEVEL;
+import static com.mastfrog.acteur.server.ServerModule.HTTP_COMPRESSION_MEMORY_LEVEL;
+import static com.mastfrog.acteur.server.ServerModule.HTTP_COMPRESSION_THRESHOLD;
+import static com.mastfrog.acteur.server.ServerModule.HTTP_COMPRESSION_WINDOW_BITS;
+import static com.mastfrog.acteur.server.ServerModule.MAX_CONTENT_LENGTH;
+import com.mastfrog.settings.Settings;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.DEFAULT_MAX_CONTENT_LENGTH;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_HTTP2_CONNECTION_WINDOW;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_HTTP2_ENABLED;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_HTTP2_MAX_FRAME;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_HTTP2_MAX_STREAMS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_HTTP2_STREAM_WINDOW;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_IDLE_TIMEOUT_SECONDS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_KEEP_ALIVE_TIMEOUT_SECONDS;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.compression.StandardCompressionOptions;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http2.DefaultHttp2Connection;
+import io.netty.handler.codec.http2.DefaultHttp2RemoteFlowController;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2Exception;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.codec.http2.WeightedFairQueueByteDistributor;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.AttributeKey;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sets up the connection-level parts of the pipeline: TLS, the upload and
+ * bulk add body handlers, keep-alive and idle timeouts, request timing, and - if
+ * <code>http2.enabled</code> is set - HTTP/2. Acteur only knows how to build an HTTP/1.1 pipeline, so every
+ * connection starts as one; a connection which opens with the HTTP/2 preface
+ * (h2c with prior knowledge), or negotiates <code>h2</code> via ALPN when TLS
+ * is on, has its HTTP/1.1 handlers replaced with an HTTP/2 codec, and each
+ * stream gets a child channel whose pipeline converts frames back into the
+ * HTTP objects Acteur's handler expects.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class ConnectionPipelineDecorator implements PipelineDecorator {
+
+    static final String IDLE_HANDLER = "idle";
+    static final String TIMING_HANDLER = "timing";
+    private static final String PREFACE_HANDLER = "h2c";
+    private static final String ALPN_HANDLER = "alpn";
+    private static final String HTTP2_CODEC = "h2";
+    private static final String HTTP2_STREAMS = "h2-streams";
+    private static final String STREAM_CODEC = "h2-stream";
+    /**
+     * How many bytes the flow controller hands a stream at a time when
+     * several are sending; the default of 1K suits small responses, but
+     * makes interleaving several multi-megabyte NBMs needlessly expensive.
+     */
+    private static final int ALLOCATION_QUANTUM = 16384;
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * The name of the channel attribute Acteur decides whether the URLs it
+     * generates should be https from; it needs setting when TLS is ours
+     * rather than Acteur's.
+     */
+    private static final String ACTEUR_SSL_ATTRIBUTE = "ssl";
+    private final UploadPipelineDecorator uploads;
+    private final BulkAddPipelineDecorator bulkAdds;
+    private final ServerTls tls;
+    private final RequestTimings timings;
+    private final Provider<ChannelHandler> handler;
+    private final boolean http2;
+    private final long keepAliveSeconds;
+    private final long idleSeconds;
+    private final int streamWindow;
+    private final int connectionWindow;
+    private final int maxStreams;
+    private final int maxFrame;
+    private final int maxContentLength;
+    private final boolean compress;
+    private final int compressionLevel;
+    private final int compressionWindowBits;
+    private final int compressionMemLevel;
+    private final int compressionThreshold;
+    private final AttributeKey<Boolean> sslKey;
+
+    @Inject
+    ConnectionPipelineDecorator(UploadPipelineDecorator uploads, BulkAddPipelineDecorator bulkAdds, ServerTls tls,
+            Provider<ChannelHandler> handler, Settings settings, RequestTimings timings) {
+        this.uploads = uploads;
+        this.bulkAdds = bulkAdds;
+        this.tls = tls;
+        this.timings = timings;
+        this.handler = handler;
+        http2 = settings.getBoolean(SETTINGS_KEY_HTTP2_ENABLED, false);
+        keepAliveSeconds = settings.getLong(SETTINGS_KEY_KEEP_ALIVE_TIMEOUT_SECONDS, 75);
+        idleSeconds = settings.getLong(SETTINGS_KEY_IDLE_TIMEOUT_SECONDS, 300);
+        streamWindow = settings.getInt(SETTINGS_KEY_HTTP2_STREAM_WINDOW, 1024 * 1024);
+        connectionWindow = Math.max(streamWindow, settings.getInt(SETTINGS_KEY_HTTP2_CONNECTION_WINDOW, 8 * 1024 * 1024));
+        maxStreams = settings.getInt(SETTINGS_KEY_HTTP2_MAX_STREAMS, 128);
+        maxFrame = settings.getInt(SETTINGS_KEY_HTTP2_MAX_FRAME, 65536);
+        maxContentLength = settings.getInt(MAX_CONTENT_LENGTH, Integer.parseInt(DEFAULT_MAX_CONTENT_LENGTH));
+        compress = settings.getBoolean(HTTP_COMPRESSION, true);
+        compressionLevel = settings.getInt(HTTP_COMPRESSION_LEVEL, DEFAULT_COMPRESSION_LEVEL);
+        compressionWindowBits = settings.getInt(HTTP_COMPRESSION_WINDOW_BITS, DEFAULT_COMPRESSION_WINDOW_BITS);
+        compressionMemLevel = settings.getInt(HTTP_COMPRESSION_MEMORY_LEVEL, DEFAULT_COMPRESSION_MEMORY_LEVEL);
+        compressionThreshold = settings.getInt(HTTP_COMPRESSION_THRESHOLD, DEFAULT_COMPRESSION_THRESHOLD);
+        // Acteur's key is not public, but attribute keys are shared by name;
+        // ServerModule has created it by the time we are injected
+        sslKey = AttributeKey.exists(ACTEUR_SSL_ATTRIBUTE) ? AttributeKey.valueOf(ACTEUR_SSL_ATTRIBUTE) : null;
+    }
+
+    @Override
+    public void onCreatePipeline(ChannelPipeline pipeline) {
+        if (tls.isEnabled() && pipeline.get(SSL_HANDLER) == null) {
+            pipeline.addFirst(SSL_HANDLER, tls.newHandler(pipeline.channel().alloc()));
+            if (sslKey != null) {
+                pipeline.channel().attr(sslKey).set(true);
+            }
+        }
+        uploads.onCreatePipeline(pipeline);
+        bulkAdds.onCreatePipeline(pipeline);
+    }
+
+    @Override
+    public void onPipelineInitialized(ChannelPipeline pipeline) {
+        uploads.onPipelineInitialized(pipeline);
+        bulkAdds.onPipelineInitialized(pipeline);
+        pipeline.addAfter(ENCODER, TIMING_HANDLER, timings.newHandler());
+        ConnectionIdleHandler idle = ConnectionIdleHandler.create(keepAliveSeconds, idleSeconds, null);
+        if (idle != null) {
+            // Between the codec and everything else, so it sees requests
+            // arrive and responses finish
+            pipeline.addAfter(ENCODER, IDLE_HANDLER, idle);
+        }
+        if (http2) {
+            if (pipeline.get(SSL_HANDLER) != null) {
+                pipeline.addAfter(SSL_HANDLER, ALPN_HANDLER, new Alpn());
+            } else {
+                pipeline.addFirst(PREFACE_HANDLER, new PrefaceSniffer());
+            }
+        }
+    }
+
+    private void switchToHttp2(ChannelPipeline pipeline, String caller) {
+        List<String> names = new ArrayList<>(pipeline.toMap().keySet());
+        for (String name : names) {
+            if (!SSL_HANDLER.equals(name) && !caller.equals(name)) {
+                pipeline.remove(name);
+            }
+        }
+        Http2FrameCodec codec = new CodecBuilder()
+                .initialSettings(Http2Settings.defaultSettings()
+                        .initialWindowSize(streamWindow)
+                        .maxConcurrentStreams(maxStreams)
+                        .maxFrameSize(maxFrame))
+                .build();
+        pipeline.addLast(HTTP2_CODEC, codec);
+        ConnectionIdleHandler idle = ConnectionIdleHandler.create(keepAliveSeconds, idleSeconds, codec.connection());
+        if (idle != null) {
+            pipeline.addLast(IDLE_HANDLER, idle);
+        }
+        pipeline.addLast(HTTP2_STREAMS, new Http2MultiplexHandler(new StreamInitializer()));
+        // The connection window starts at 64K regardless of settings, which
+        // would throttle a large upload to a trickle
+        Http2Connection conn = codec.connection();
+        try {
+            conn.local().flowController().incrementWindowSize(conn.connectionStream(),
+                    connectionWindow - Http2CodecUtil.DEFAULT_WINDOW_SIZE);
+        } catch (Http2Exception ex) {
+            pipeline.fireExceptionCaught(ex);
+        }
+    }
+
+    /**
+     * Builds the per-stream pipeline, mirroring the HTTP/1.1 one Acteur
+     * builds.
+     */
+    private final class StreamInitializer extends ChannelInitializer<Channel> {
+
+        @Override
+        protected void initChannel(Channel ch) throws Exception {
+            if (sslKey != null && ch.parent() != null && ch.parent().pipeline().get(SslHandler.class) != null) {
+                ch.attr(sslKey).set(true);
+            }
+            ChannelPipeline p = ch.pipeline();
+            p.addLast(STREAM_CODEC, new Http2StreamFrameToHttpObjectCodec(true));
+            p.addLast(TIMING_HANDLER, timings.newHandler());
+            p.addLast(AGGREGATOR, new HttpObjectAggregator(maxContentLength));
+            if (compress) {
+                p.addLast(COMPRESSOR, new HttpContentCompressor(compressionThreshold,
+                        StandardCompressionOptions.gzip(compressionLevel, compressionWindowBits, compressionMemLevel),
+                        StandardCompressionOptions.deflate(compressionLevel, compressionWindowBits, compressionMemLevel)));
+            }
+            p.addLast(HANDLER, handler.get());
+            uploads.install(p, STREAM_CODEC);
+            bulkAdds.install(p, STREAM_CODEC);
+        }
+    }
+
+    private static final class CodecBuilder extends Http2FrameCodecBuilder {
+
+        CodecBuilder() {
+            // Builders are server-side unless told otherwise
+            DefaultHttp2Connection connection = new DefaultHttp2Connection(true);
+            WeightedFairQueueByteDistributor distributor = new WeightedFairQueueByteDistributor(connection);
+            distributor.allocationQuantum(ALLOCATION_QUANTUM);
+            connection.remote().flowController(new DefaultHttp2RemoteFlowController(connection, distributor));
+            connection(connection);
+        }
+    }
+
+    /**
+     * Switches to HTTP/2 if ALPN negotiated it.
+     */
+    private final class Alpn extends ApplicationProtocolNegotiationHandler {
+
+        Alpn() {
+            super(ApplicationProtocolNames.HTTP_1_1);
+        }
+
+        @Override
+        protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+            if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                switchToHttp2(ctx.pipeline(), ctx.name());
+            }
+        }
+    }
+
+    /**
+     * Looks at the first bytes of a cleartext connection, switching it to
+     * HTTP/2 if they are the HTTP/2 connection preface, and otherwise
+     * getting out of the way.
+     */
+    private final class PrefaceSniffer extends ByteToMessageDecoder {
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            int count = Math.min(in.readableBytes(), PREFACE.length);
+            for (int i = 0; i < count; i++) {
+                if (in.getByte(in.readerIndex() + i) != PREFACE[i]) {
+                    ctx.pipeline().remove(this);
+                    return;
+                }
+            }
+            if (count == PREFACE.length) {
+                switchToHttp2(ctx.pipeline(), ctx.name());
+                // The preface is passed on to the codec when this is removed
+                ctx.pipeline().remove(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.mastfrog.util.preconditions.ConfigurationError;
+import com.mastfrog.util.streams.Streams;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The original storage layout: a directory per code name base, holding a
+ * <code>$HASH.nbm</code> and <code>$HASH.json</code> per version. Records
+ * are written to a temporary file and renamed into place, so a
+ * <code>.json</code> only ever appears complete and after its NBM.
+ *
+ * @author Tim Boudreau
+ */
+final class DirectoryModuleStore implements ModuleStore {
+
+    private static final String NBM = ".nbm";
+    private static final String JSON = ".json";
+    private static final String TMP = ".tmp";
+    private final Path dir;
+
+    DirectoryModuleStore(Path dir) {
+        this.dir = dir;
+        if (!Files.exists(dir)) {
+            try {
+                Files.createDirectories(dir);
+            } catch (IOException ex) {
+                throw new ConfigurationError("Could not create " + dir, ex);
+            }
+        }
+    }
+
+    @Override
+    public Path directory() {
+        return dir;
+    }
+
+    private Path moduleDir(String codeNameBase) {
+        return dir.resolve(codeNameBase);
+    }
+
+    @Override
+    public long putBlob(String codeNameBase, String hash, InputStream in, long lastModified) throws IOException {
+        Path moduleDir = moduleDir(codeNameBase);
+        Files.createDirectories(moduleDir);
+        Path nbm = moduleDir.resolve(hash + NBM);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(nbm), ModuleSet.COPY_BUFFER_SIZE)) {
+            Streams.copy(in, out, ModuleSet.COPY_BUFFER_SIZE);
+        }
+        if (lastModified != 0) {
+            Files.setLastModifiedTime(nbm, FileTime.fromMillis(lastModified));
+        }
+        return Files.size(nbm);
+    }
+
+    @Override
+    public void publish(String codeNameBase, String hash, byte[] record) throws IOException {
+        Path moduleDir = moduleDir(codeNameBase);
+        Path json = moduleDir.resolve(hash + JSON);
+        Path tmp = moduleDir.resolve(hash + JSON + TMP);
+        Files.write(tmp, record);
+        Files.move(tmp, json, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void discard(String codeNameBase, String hash) {
+        Path moduleDir = moduleDir(codeNameBase);
+        try {
+            Files.deleteIfExists(moduleDir.resolve(hash + JSON));
+            Files.deleteIfExists(moduleDir.resolve(hash + JSON + TMP));
+            Files.deleteIfExists(moduleDir.resolve(hash + NBM));
+            try (DirectoryStream<Path> str = Files.newDirectoryStream(moduleDir)) {
+                if (!str.iterator().hasNext()) {
+                    Files.delete(moduleDir);
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            // already gone
+        } catch (IOException ex) {
+            // Leave it - an incomplete pair is ignored when scanning
+        }
+    }
+
+    @Override
+    public boolean contains(String codeNameBase, String hash) {
+        Path moduleDir = moduleDir(codeNameBase);
+        return Files.exists(moduleDir.resolve(hash + NBM)) && Files.exists(moduleDir.resolve(hash + JSON));
+    }
+
+    @Override
+    public Blob blob(String codeNameBase, String hash) throws IOException {
+        Path nbm = moduleDir(codeNameBase).resolve(hash + NBM);
+        if (!Files.exists(nbm)) {
+            return null;
+        }
+        long size = Files.size(nbm);
+        long lastModified = Files.getLastModifiedTime(nbm).toMillis();
+        return new Blob() {
+            @Override
+            public long size() {
+                return size;
+            }
+
+            @Override
+            public long lastModified() {
+                return lastModified;
+            }
+
+            @Override
+            public ReadableByteChannel open() throws IOException {
+                return FileChannel.open(nbm, StandardOpenOption.READ);
+            }
+
+            @Override
+            public String toString() {
+                return nbm.toString();
+            }
+        };
+    }
+
+    @Override
+    public byte[] record(String codeNameBase, String hash) throws IOException {
+        Path json = moduleDir(codeNameBase).resolve(hash + JSON);
+        try {
+            return Files.readAllBytes(json);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public Map<String, Long> stamps() throws IOException {
+        Map<String, Long> result = new HashMap<>();
+        try (DirectoryStream<Path> str = Files.newDirectoryStream(dir, Files::isDirectory)) {
+            for (Path moduleDir : str) {
+                result.put(moduleDir.getFileName().toString(), Files.getLastModifiedTime(moduleDir).toMillis());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<byte[]> records(String codeNameBase) throws IOException {
+        Path moduleDir = moduleDir(codeNameBase);
+        Set<String> nbms = new HashSet<>();
+        List<Path> jsons = new ArrayList<>();
+        try (DirectoryStream<Path> str = Files.newDirectoryStream(moduleDir)) {
+            for (Path p : str) {
+                String name = p.getFileName().toString();
+                if (name.endsWith(NBM)) {
+                    nbms.add(name.substring(0, name.length() - NBM.length()));
+                } else if (name.endsWith(JSON)) {
+                    jsons.add(p);
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            return new ArrayList<>(0);
+        }
+        List<byte[]> result = new ArrayList<>(jsons.size());
+        for (Path json : jsons) {
+            String name = json.getFileName().toString();
+            if (!nbms.contains(name.substring(0, name.length() - JSON.length()))) {
+                continue;
+            }
+            try {
+                byte[] bytes = Files.readAllBytes(json);
+                if (bytes.length > 0) {
+                    result.add(bytes);
+                }
+            } catch (NoSuchFileException ex) {
+                // deleted while we were looking
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The hashes of the versions of a module which have both an NBM and a
+     * record, oldest NBM first.
+     *
+     * @param codeNameBase The code name base
+     * @return A list of hashes
+     * @throws IOException If the directory cannot be read
+     */
+    List<String> hashes(String codeNameBase) throws IOException {
+        Path moduleDir = moduleDir(codeNameBase);
+        Map<String, Long> result = new HashMap<>();
+        try (DirectoryStream<Path> str = Files.newDirectoryStream(moduleDir, "*" + NBM)) {
+            for (Path p : str) {
+                String name = p.getFileName().toString();
+                String hash = name.substring(0, name.length() - NBM.length());
+                if (Files.exists(moduleDir.resolve(hash + JSON))) {
+                    result.put(hash, Files.getLastModifiedTime(p).toMillis());
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            return new ArrayList<>(0);
+        }
+        List<String> hashes = new ArrayList<>(result.keySet());
+        hashes.sort((a, b) -> Long.compare(result.get(a), result.get(b)));
+        return hashes;
+    }
+
+    @Override
+    public byte[] document(String name) throws IOException {
+        return readDocument(dir, name);
+    }
+
+    @Override
+    public void putDocument(String name, byte[] bytes) throws IOException {
+        writeDocument(dir, name, bytes);
+    }
+
+    static byte[] readDocument(Path dir, String name) throws IOException {
+        try {
+            return Files.readAllBytes(dir.resolve(name));
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    static void writeDocument(Path dir, String name, byte[] bytes) throws IOException {
+        Path tmp = dir.resolve(name + TMP);
+        Files.write(tmp, bytes);
+        Files.move(tmp, dir.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public String toString() {
+        return "DirectoryModuleStore(" + dir + ")";
+    }
+}
@@ -8,7 +8,6 @@ import com.mastfrog.acteur.Closables;
 import com.mastfrog.acteur.HttpEvent;
 import com.mastfrog.acteur.annotations.HttpCall;
 import com.mastfrog.acteur.annotations.Precursors;
-import com.mastfrog.acteur.errors.Err;
 import com.mastfrog.acteur.headers.Headers;
 import static com.mastfrog.acteur.headers.Headers.CONTENT_DISPOSITION;
 import static com.mastfrog.acteur.headers.Headers.CONTENT_TYPE;
@@ -21,58 +20,70 @@ import com.mastfrog.acteur.preconditions.Description;
 import com.mastfrog.acteur.preconditions.Methods;
 import com.mastfrog.acteur.preconditions.PathRegex;
 import com.mastfrog.mime.MimeType;
-import com.mastfrog.url.Path;
 import com.mastfrog.util.time.TimeUtil;
 import static com.timboudreau.metaupdatecenter.DownloadActeur.DOWNLOAD_REGEX;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.util.AsciiString;
-import java.io.File;
-import java.io.FileNotFoundException;
 
 /**
  *
  * @author Tim Boudreau
  */
-@HttpCall
+@HttpCall(scopeTypes = FindModuleItem.StoredModule.class)
 @Methods({GET, HEAD})
 @PathRegex(DOWNLOAD_REGEX)
 @Description("Download a module")
-@Precursors({FindModuleItem.class, CheckIfNoneMatchHeader.class, CheckIfModifiedSinceHeader.class})
+@Precursors({FindModuleItem.class, FindModuleItem.CheckFound.class, CheckIfNoneMatchHeader.class, CheckIfModifiedSinceHeader.class})
 class DownloadActeur extends Acteur {
 
     static final int BUFFER_SIZE = 1490;
     public static final String DOWNLOAD_REGEX = "^download/.*?/.*\\.nbm";
     public static final int FILE_CHUNK_SIZE = 768;
+    /**
+     * Over TLS each chunk is encrypted as its own record, so send chunks of
+     * the largest record payload rather than many tiny records.
+     */
+    static final int TLS_FILE_CHUNK_SIZE = 16384;
 
     @Inject
-    DownloadActeur(ModuleSet ms, HttpEvent evt, Closables clos) throws FileNotFoundException {
-        Path pth = evt.path();
-        String codeName = pth.getElement(1).toString();
-        String hash = pth.getElement(2).toString();
-        ModuleItem item = ms.find(codeName, hash);
-        if (item == null) {
-            setState(new RespondWith(Err.conflict("Could not find " + codeName + " with hash " + hash + " in " + ms)));
-            return;
-        }
-        final File file = ms.getNBM(codeName, hash);
+    DownloadActeur(FindModuleItem.StoredModule found, HttpEvent evt, Closables clos, ServerTls tls, BlockingIO io) {
+        ModuleItem item = found.item;
+        String codeName = found.codeName;
+        String hash = evt.path().getElement(2).toString();
         CharSequence ifNoneMatch = evt.header(Headers.IF_NONE_MATCH);
         if (ifNoneMatch != null && hash.equals(ifNoneMatch)) {
             setState(new RespondWith(HttpResponseStatus.NOT_MODIFIED));
             return;
         }
-        if (!file.exists()) {
-            notFound("No such file " + file);
+        ModuleStore.Blob nbm = found.nbm;
+        if (nbm == null) {
+            notFound("No NBM stored for " + codeName + " " + hash);
         } else {
             setChunked(true);
             add(CONTENT_TYPE, MimeType.OCTET_STREAM);
-            add(LAST_MODIFIED, TimeUtil.fromUnixTimestamp(file.lastModified()));
+            add(LAST_MODIFIED, TimeUtil.fromUnixTimestamp(nbm.lastModified()));
             add(ETAG, new AsciiString(hash));
             ok();
             if (evt.method() != Method.HEAD) {
                 String filename = item.getCodeNameBase().replace('.', '-') + "_" + item.getVersion() + ".nbm";
                 add(CONTENT_DISPOSITION, new AsciiString("filename=\"" + filename + "\""));
-                setResponseWriter(new ChunkedFileResponseWriter(file, clos));
+                // Opened and read on the blocking I/O pool, not the event loop
+                setResponseWriter(new ChunkedFileResponseWriter(nbm::open, clos,
+                        tls.isEnabled() ? TLS_FILE_CHUNK_SIZE : FILE_CHUNK_SIZE, io, downloadEvent(evt, codeName)));
             }
         }
     }
+
+    private static FlightEvents.ModuleDownload downloadEvent(HttpEvent evt, String codeName) {
+        FlightEvents.ModuleDownload event = new FlightEvents.ModuleDownload();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        event.codeNameBase = codeName;
+        event.client = String.valueOf(evt.remoteAddress());
+        CharSequence userAgent = evt.header(Headers.USER_AGENT);
+        event.userAgent = userAgent == null ? null : userAgent.toString();
+        return event;
+    }
 }
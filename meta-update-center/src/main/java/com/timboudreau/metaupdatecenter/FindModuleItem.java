@@ -9,15 +9,18 @@ package com.timboudreau.metaupdatecenter;
 import com.google.inject.Inject;
 import com.mastfrog.acteur.Acteur;
 import com.mastfrog.acteur.HttpEvent;
-import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.acteur.preconditions.Description;
 import com.mastfrog.acteur.header.entities.CacheControl;
 import com.mastfrog.acteur.header.entities.CacheControlTypes;
 import com.mastfrog.url.Path;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
+ * Looks up the module and its stored NBM on the blocking I/O pool, since
+ * either may touch the disk, and resumes the chain with the result.
  *
  * @author Tim Boudreau
  */
@@ -25,23 +28,64 @@ import java.time.Duration;
 class FindModuleItem extends Acteur {
 
     @Inject
-    FindModuleItem(ModuleSet ms, HttpEvent evt, Page page, Stats stats) {
+    FindModuleItem(ModuleSet ms, HttpEvent evt, BlockingIO io) {
         Path pth = evt.path();
         String codeName = pth.getElement(1).toString();
         String hash = pth.getElement(2).toString();
-        hash = hash.substring(0, hash.length() - 4);
-        ModuleItem item = ms.find(codeName, hash);
-        if (item == null) {
-            stats.logFailedDownload(evt, codeName, hash);
-            notFound("No such file " + hash + ".nbm");
-            return;
-        } else {
-            add(Headers.LAST_MODIFIED, item.getDownloaded());
-            add(Headers.ETAG, hash);
+        String bareHash = hash.substring(0, hash.length() - 4);
+        then(resumer -> io.submit(() -> {
+            ModuleItem item = ms.find(codeName, bareHash);
+            return new StoredModule(codeName, bareHash, item,
+                    item == null ? null : ms.getNBM(codeName, item.getHash()), null);
+        }).whenComplete((found, thrown) -> {
+            resumer.resume(thrown == null ? found
+                    : new StoredModule(codeName, bareHash, null, null, thrown));
+        }));
+    }
+
+    /**
+     * The result of looking a module up.
+     */
+    static final class StoredModule {
+
+        final String codeName;
+        final String hash;
+        final ModuleItem item;
+        final ModuleStore.Blob nbm;
+        final Throwable thrown;
+
+        StoredModule(String codeName, String hash, ModuleItem item, ModuleStore.Blob nbm, Throwable thrown) {
+            this.codeName = codeName;
+            this.hash = hash;
+            this.item = item;
+            this.nbm = nbm;
+            this.thrown = thrown;
         }
-        add(Headers.CACHE_CONTROL, new CacheControl(CacheControlTypes.Public, CacheControlTypes.must_revalidate).add(CacheControlTypes.max_age, Duration.ofDays(120)));
-        next(item);
-        stats.logDownload(evt, item);
     }
 
+    @Description("Responds with 404 if the module was not found, or 503 if the "
+            + "server was too busy to look")
+    static final class CheckFound extends Acteur {
+
+        @Inject
+        CheckFound(StoredModule found, HttpEvent evt, Stats stats) throws Throwable {
+            if (found.thrown instanceof RejectedExecutionException) {
+                reply(SERVICE_UNAVAILABLE, "Too many requests waiting on the disk\n");
+                return;
+            } else if (found.thrown != null) {
+                throw found.thrown;
+            }
+            ModuleItem item = found.item;
+            if (item == null) {
+                stats.logFailedDownload(evt, found.codeName, found.hash);
+                notFound("No such file " + found.hash + ".nbm");
+                return;
+            }
+            add(Headers.LAST_MODIFIED, item.getDownloaded());
+            add(Headers.ETAG, found.hash);
+            add(Headers.CACHE_CONTROL, new CacheControl(CacheControlTypes.Public, CacheControlTypes.must_revalidate).add(CacheControlTypes.max_age, Duration.ofDays(120)));
+            next(item);
+            stats.logDownload(evt, item);
+        }
+    }
 }
@@ -0,0 +1,132 @@
+package com.timboudreau.metaupdatecenter;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events for the work the server does, so a slow poll or
+ * download can be lined up against GC, I/O and lock events in a recording
+ * instead of by comparing log timestamps. With no recording running,
+ * committing an event does nothing; see <code>/recording</code> to start one.
+ * <p>
+ * Stack traces are off - the events are emitted from a handful of known
+ * places, and walking the stack is most of what an event costs.
+ *
+ * @author Tim Boudreau
+ */
+final class FlightEvents {
+
+    static final String CATEGORY = "Meta Update Center";
+
+    private FlightEvents() {
+        throw new AssertionError();
+    }
+
+    @Name("com.timboudreau.metaupdatecenter.ModulePoll")
+    @Label("Module Poll")
+    @Description("Polling one module's upstream URL, from request to ingest or failure")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ModulePoll extends Event {
+
+        @Label("Poll Run")
+        int pollRun;
+        @Label("Code Name Base")
+        String codeNameBase;
+        @Label("URL")
+        String url;
+        @Label("Status")
+        int status;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("New Version")
+        boolean ingested;
+        @Label("Error")
+        String error;
+    }
+
+    @Name("com.timboudreau.metaupdatecenter.NbmParse")
+    @Label("NBM Parse")
+    @Description("Reading the metadata and hash of a downloaded NBM, and handing it on")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class NbmParse extends Event {
+
+        @Label("URL")
+        String url;
+        @Label("Code Name Base")
+        String codeNameBase;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Parse and Hash Time")
+        @Timespan
+        long parseNanos;
+        @Label("Handler Time")
+        @Timespan
+        long handlerNanos;
+        @Label("Error")
+        String error;
+    }
+
+    @Name("com.timboudreau.metaupdatecenter.ModuleAdd")
+    @Label("Module Add")
+    @Description("Storing a new module version and publishing it in the catalog")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ModuleAdd extends Event {
+
+        @Label("Code Name Base")
+        String codeNameBase;
+        @Label("Hash")
+        String hash;
+        @Label("Already Stored")
+        boolean duplicate;
+        @Label("Disk Write Time")
+        @Timespan
+        long writeNanos;
+        @Label("Publish Time")
+        @Timespan
+        long publishNanos;
+    }
+
+    @Name("com.timboudreau.metaupdatecenter.CatalogRender")
+    @Label("Catalog Render")
+    @Description("Sending the module catalog to a client")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class CatalogRender extends Event {
+
+        @Label("Format")
+        String format;
+        @Label("Modules")
+        int modules;
+        @Label("Client")
+        String client;
+    }
+
+    @Name("com.timboudreau.metaupdatecenter.ModuleDownload")
+    @Label("Module Download")
+    @Description("Sending an NBM to a client")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ModuleDownload extends Event {
+
+        @Label("Code Name Base")
+        String codeNameBase;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+        @Label("Client")
+        String client;
+        @Label("User Agent")
+        String userAgent;
+    }
+}
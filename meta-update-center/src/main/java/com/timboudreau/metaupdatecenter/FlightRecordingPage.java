@@ -0,0 +1,76 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.Closables;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.annotations.HttpCall;
+import com.mastfrog.acteur.header.entities.CacheControl;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Headers.CONTENT_DISPOSITION;
+import static com.mastfrog.acteur.headers.Headers.CONTENT_TYPE;
+import static com.mastfrog.acteur.headers.Method.DELETE;
+import static com.mastfrog.acteur.headers.Method.GET;
+import static com.mastfrog.acteur.headers.Method.PUT;
+import com.mastfrog.acteur.preconditions.Authenticated;
+import com.mastfrog.acteur.preconditions.Description;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.Path;
+import com.mastfrog.mime.MimeType;
+import static io.netty.handler.codec.http.HttpResponseStatus.CONFLICT;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import io.netty.util.AsciiString;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+/**
+ * Controls the server's flight recording: PUT starts it, GET downloads what
+ * has been recorded so far as a <code>.jfr</code> file for JDK Mission
+ * Control or the <code>jfr</code> tool, and DELETE stops it. Add
+ * <code>?state=true</code> to a GET for the recording's state as JSON
+ * instead.
+ *
+ * @author Tim Boudreau
+ */
+@HttpCall
+@Path("/recording")
+@Authenticated
+@Methods({GET, PUT, DELETE})
+@Description("PUT to start a JDK flight recording, GET to download it so far "
+        + "(or ?state=true for its state), DELETE to stop it")
+public class FlightRecordingPage extends Acteur {
+
+    @Inject
+    FlightRecordingPage(FlightRecordings recordings, HttpEvent evt, Closables clos, BlockingIO io) throws IOException {
+        add(Headers.CACHE_CONTROL, CacheControl.PRIVATE_NO_CACHE_NO_STORE);
+        if (!FlightRecordings.isAvailable()) {
+            reply(SERVICE_UNAVAILABLE, "Flight recording is not available in this JVM\n");
+            return;
+        }
+        if (evt.method() == PUT) {
+            recordings.start();
+        } else if (evt.method() == DELETE) {
+            recordings.stop();
+        } else if (!"true".equals(evt.urlParameter("state"))) {
+            java.nio.file.Path file = recordings.dump();
+            if (file == null) {
+                reply(CONFLICT, "Not recording - PUT to /recording to start\n");
+                return;
+            }
+            add(CONTENT_TYPE, MimeType.OCTET_STREAM);
+            add(CONTENT_DISPOSITION, new AsciiString("attachment; filename=\"meta-update-center-"
+                    + Instant.now().getEpochSecond() + ".jfr\""));
+            setChunked(true);
+            ok();
+            // The temporary file goes away when the response is done with it
+            setResponseWriter(new ChunkedFileResponseWriter(FileChannel.open(file,
+                    StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE), clos,
+                    DownloadActeur.TLS_FILE_CHUNK_SIZE, io));
+            return;
+        }
+        add(CONTENT_TYPE, MimeType.JSON_UTF_8);
+        ok(recordings.state());
+    }
+}
@@ -0,0 +1,139 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_FLIGHT_RECORDING;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_FLIGHT_RECORDING_CONFIGURATION;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_FLIGHT_RECORDING_MAX_AGE_MINUTES;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SYSTEM_LOGGER;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.inject.Named;
+import jdk.jfr.Configuration;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+
+/**
+ * The server's one flight recording, which can be started, dumped and
+ * stopped over HTTP by <code>/recording</code>, or started at launch. It
+ * keeps a rolling window of the last hour (by default) on disk, so it can be
+ * left running and dumped after something goes wrong.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class FlightRecordings {
+
+    private static final String RECORDING_NAME = "meta-update-center";
+    private final Logs logs;
+    private final String configuration;
+    private final Duration maxAge;
+    private Recording recording;
+
+    @Inject
+    FlightRecordings(Settings settings, @Named(SYSTEM_LOGGER) Logs logs, ShutdownHookRegistry reg) throws IOException {
+        this.logs = logs;
+        configuration = settings.getString(SETTINGS_KEY_FLIGHT_RECORDING_CONFIGURATION, "default");
+        maxAge = Duration.ofMinutes(settings.getLong(SETTINGS_KEY_FLIGHT_RECORDING_MAX_AGE_MINUTES, 60));
+        reg.add((Runnable) this::stop);
+        if (settings.getBoolean(SETTINGS_KEY_FLIGHT_RECORDING, false)) {
+            start();
+        }
+    }
+
+    static boolean isAvailable() {
+        return FlightRecorder.isAvailable();
+    }
+
+    synchronized boolean isRecording() {
+        return recording != null;
+    }
+
+    /**
+     * Start recording, if not already.
+     *
+     * @return true if a recording was started
+     * @throws IOException If the configuration cannot be read, or flight
+     * recording is not available in this JVM
+     */
+    synchronized boolean start() throws IOException {
+        if (recording != null) {
+            return false;
+        }
+        if (!isAvailable()) {
+            throw new IOException("Flight recording is not available in this JVM");
+        }
+        Recording r;
+        try {
+            r = new Recording(Configuration.getConfiguration(configuration));
+        } catch (ParseException ex) {
+            throw new IOException("Bad flight recorder configuration " + configuration, ex);
+        }
+        r.setName(RECORDING_NAME);
+        r.setToDisk(true);
+        r.setMaxAge(maxAge);
+        r.start();
+        recording = r;
+        logs.info("flightRecordingStarted").add("configuration", configuration)
+                .add("maxAgeMinutes", maxAge.toMinutes()).close();
+        return true;
+    }
+
+    /**
+     * Write what has been recorded so far to a new temporary file, which
+     * the caller should delete.
+     *
+     * @return A file, or null if not recording
+     */
+    synchronized Path dump() throws IOException {
+        if (recording == null) {
+            return null;
+        }
+        Path file = Files.createTempFile(RECORDING_NAME + "-", ".jfr");
+        try {
+            recording.dump(file);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+        logs.info("flightRecordingDumped").add("file", file.toString())
+                .add("bytes", Files.size(file)).close();
+        return file;
+    }
+
+    /**
+     * Stop and discard the recording.
+     *
+     * @return true if there was one
+     */
+    synchronized boolean stop() {
+        if (recording == null) {
+            return false;
+        }
+        recording.close();
+        recording = null;
+        logs.info("flightRecordingStopped").close();
+        return true;
+    }
+
+    synchronized Map<String, Object> state() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("available", isAvailable());
+        result.put("recording", recording != null);
+        result.put("configuration", configuration);
+        result.put("maxAgeMinutes", maxAge.toMinutes());
+        if (recording != null) {
+            result.put("started", recording.getStartTime() == null ? null : recording.getStartTime().toEpochMilli());
+            result.put("bytes", recording.getSize());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,175 @@
+package com.timboudreau.metaupdatecenter;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds values until a fixed delay has passed since they were last armed,
+ * for coalescing bursts of filesystem events. Arming a key which is already
+ * pending moves its deadline rather than adding a second entry. Deadlines
+ * are kept in a map keyed on the key, and scheduled onto a hashed timing
+ * wheel of buckets, so arming, re-arming and expiring are all constant-time
+ * no matter how many keys are pending - unlike a DelayQueue, where replacing
+ * an entry means a linear search under the queue's lock.
+ *
+ * @author Tim Boudreau
+ */
+final class HashedWheelDebouncer<K, V> {
+
+    private final long delayMillis;
+    private final long tickMillis;
+    private final Set<K>[] wheel;
+    private final Map<K, Pending<V>> pending = new HashMap<>();
+    private final ArrayDeque<V> expired = new ArrayDeque<>();
+    private final LongSupplier clock;
+    private long lastTick;
+
+    HashedWheelDebouncer(long delayMillis) {
+        this(delayMillis, System::currentTimeMillis);
+    }
+
+    @SuppressWarnings("unchecked")
+    HashedWheelDebouncer(long delayMillis, LongSupplier clock) {
+        this.delayMillis = Math.max(0, delayMillis);
+        this.clock = clock;
+        // A tick of 1/64th of the delay over a 128 slot wheel means any
+        // deadline lands less than one revolution away
+        this.tickMillis = Math.max(10, this.delayMillis / 64);
+        wheel = new Set[128];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new HashSet<>();
+        }
+        lastTick = clock.getAsLong() / tickMillis;
+    }
+
+    /**
+     * Schedule a value to be returned from <code>take()</code> once the delay
+     * has passed, replacing the value and deadline of any pending entry for
+     * the same key.
+     *
+     * @param key The key
+     * @param value The value
+     * @return true if the key was already pending
+     */
+    synchronized boolean arm(K key, V value) {
+        long deadline = clock.getAsLong() + delayMillis;
+        // Round up, so a bucket is never processed before its deadlines
+        long tick = Math.max(lastTick + 1, (deadline + tickMillis - 1) / tickMillis);
+        Pending<V> p = pending.get(key);
+        boolean wasPending = p != null;
+        if (wasPending) {
+            if (p.tick != tick) {
+                wheel[slot(p.tick)].remove(key);
+                wheel[slot(tick)].add(key);
+                p.tick = tick;
+            }
+            p.value = value;
+        } else {
+            pending.put(key, new Pending<>(value, tick));
+            wheel[slot(tick)].add(key);
+        }
+        notifyAll();
+        return wasPending;
+    }
+
+    /**
+     * Cancel any pending entry for a key.
+     *
+     * @param key The key
+     * @return true if something was cancelled
+     */
+    synchronized boolean cancel(K key) {
+        Pending<V> p = pending.remove(key);
+        if (p != null) {
+            wheel[slot(p.tick)].remove(key);
+        }
+        return p != null;
+    }
+
+    /**
+     * Number of entries not yet handed out by <code>take()</code>.
+     *
+     * @return The count
+     */
+    synchronized int size() {
+        return pending.size() + expired.size();
+    }
+
+    /**
+     * Block until an entry's delay has passed without it being re-armed,
+     * and return its value.
+     *
+     * @return A value
+     * @throws InterruptedException If interrupted while waiting
+     */
+    synchronized V take() throws InterruptedException {
+        for (;;) {
+            V result = poll();
+            if (result != null) {
+                return result;
+            }
+            if (pending.isEmpty()) {
+                wait();
+            } else {
+                long now = clock.getAsLong();
+                long nextTickAt = (now / tickMillis + 1) * tickMillis;
+                wait(Math.max(1, nextTickAt - now));
+            }
+        }
+    }
+
+    /**
+     * Get the value of an entry whose delay has passed, if there is one.
+     *
+     * @return A value or null
+     */
+    synchronized V poll() {
+        if (expired.isEmpty()) {
+            advance();
+        }
+        return expired.poll();
+    }
+
+    private void advance() {
+        long nowTick = clock.getAsLong() / tickMillis;
+        if (nowTick <= lastTick) {
+            return;
+        }
+        // After a long stall, every slot needs visiting once, no more
+        long first = Math.max(lastTick + 1, nowTick - wheel.length + 1);
+        for (long t = first; t <= nowTick; t++) {
+            Iterator<K> it = wheel[slot(t)].iterator();
+            while (it.hasNext()) {
+                K key = it.next();
+                Pending<V> p = pending.get(key);
+                // Entries for later revolutions of the wheel stay put
+                if (p.tick <= nowTick) {
+                    it.remove();
+                    pending.remove(key);
+                    expired.add(p.value);
+                }
+            }
+        }
+        lastTick = nowTick;
+    }
+
+    private int slot(long tick) {
+        return (int) (tick % wheel.length);
+    }
+
+    private static final class Pending<V> {
+
+        V value;
+        long tick;
+
+        Pending(V value, long tick) {
+            this.value = value;
+            this.tick = tick;
+        }
+    }
+}
@@ -91,7 +91,8 @@ public class IndexResource extends Acteur {
             + "click <b>Add</b> (middle right), and enter <code>__URL__</code>.";
 
     @Inject
-    IndexResource(ModuleSet set, PathFactory paths, Settings settings, VersionInfo version, ZonedDateTime serverStart, HttpEvent evt) {
+    IndexResource(ModuleSet set, PathFactory paths, Settings settings, VersionInfo version, ZonedDateTime serverStart, HttpEvent evt, ServerTls tls) {
+        boolean secure = tls.isEnabled();
         ok();
         StringBuilder sb = new StringBuilder();
         String name = settings.getString("server.name", "NetBeans Plugins");
@@ -141,20 +142,20 @@ public class IndexResource extends Acteur {
         }
 
         if (ucModule != null) {
-            URL u = paths.constructURL(Path.builder().add("download").add(ucModule.getCodeNameBase()).add(ucModule.getHash() + ".nbm").create(), false);
+            URL u = paths.constructURL(Path.builder().add("download").add(ucModule.getCodeNameBase()).add(ucModule.getHash() + ".nbm").create(), secure);
             sb.append("<p>To use these plugins in NetBeans, download <a href='").append(u).append("'>this plugin</a> and install it on "
                     + "the <b>Download</b> tab in <b>Tools | Plugins</b>. Then go to the <b>Available</b> tab and click <b>Check For Newest</b> "
                     + "and these will be there, and you will be notified of updates automatically.</p>");
             sb.append("<p>Alternately, you can download any plugin individually and install it in the same place.  ");
             sb.append("Or, open <b>Tools | Plugins</b>, and on the <b>Settings</b> tab, \n"
                     + " click <b>Add</b> (middle right), and enter \n");
-            sb.append("<code>").append(paths.constructURL(Path.parse("modules"), false)).append("</code> (which is what the "
+            sb.append("<code>").append(paths.constructURL(Path.parse("modules"), secure)).append("</code> (which is what the "
                     + "update center plugin does).</p>\n");
         } else {
             // ??
             sb.append("To access it from NetBeans, open <b>Tools | Plugins</b>.  On the settings tab, \n"
                     + "                + \"click <b>Add</b> (middle right), and enter \n");
-            sb.append("<code>").append(paths.constructURL(Path.parse("modules"), false)).append("</code> (or just download the update center plugin below, and add that on the <b>Downloaded</b> tab).\n");
+            sb.append("<code>").append(paths.constructURL(Path.parse("modules"), secure)).append("</code> (or just download the update center plugin below, and add that on the <b>Downloaded</b> tab).\n");
         }
         String info = settings.getString(SETTINGS_KEY_INFO_PARA);
         if (info != null) {
@@ -171,13 +172,14 @@ public class IndexResource extends Acteur {
             sb.append("  <td style='vertical-align: middle; margin: 5px;'>").append(item.getDescription()).append("</td>\n");
             sb.append("  <td style='vertical-align: middle; margin: 5px;'>").append(item.getVersion()).append("</td>\n");
             sb.append("  <td style='vertical-align: middle; margin: 5px;'>").append(FMT.format(item.getWhen()).replaceAll(" ", "&nbsp;")).append("</td>\n");
-            URL u = paths.constructURL(Path.builder().add("download").add(item.getCodeNameBase()).add(item.getHash() + ".nbm").create(), false);
+            URL u = paths.constructURL(Path.builder().add("download").add(item.getCodeNameBase()).add(item.getHash() + ".nbm").create(), secure);
 
             if (!UpdateCenterServer.DUMMY_URL.equals(item.getFrom())) {
                 sb.append("  <td style='vertical-align: middle; margin: 5px;'>")
                         .append("<a href=\"").append(u).append("\">").append("Download").append("</a>");
                 String from = item.getFrom();
-                if (from != null && !from.isEmpty() && !from.startsWith("file")) {
+                if (from != null && !from.isEmpty() && !from.startsWith("file")
+                        && !from.startsWith(UpdateCenterServer.UPLOAD_URL_PREFIX)) {
                     sb.append(" <p/> \n").append("<a href=\"").append(item.getFrom())
                             .append("\">").append("Link to Original").append("</a>");
                 }
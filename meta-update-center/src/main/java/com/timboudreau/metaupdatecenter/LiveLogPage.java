@@ -29,10 +29,12 @@ import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.Optional;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  *
@@ -59,11 +61,15 @@ public class LiveLogPage extends Acteur {
     static class LiveResponseWriter implements ChannelFutureListener {
 
         private final ContinuousLineStream stream;
-        private final Timer timer = new Timer();
+        // The channel's event loop keeps time, and each read of the file is
+        // handed to the disk pool, so a client costs no thread of its own
+        private final BlockingIO io;
+        private final AtomicReference<ScheduledFuture<?>> tailing = new AtomicReference<>();
         private final ApplicationControl control;
 
         @Inject
-        LiveResponseWriter(File file, Closables clos, Charset charset, ApplicationControl control, HttpEvent evt) throws IOException {
+        LiveResponseWriter(File file, Closables clos, Charset charset, ApplicationControl control, HttpEvent evt,
+                BlockingIO io) throws IOException {
             RandomAccessFile raf = new RandomAccessFile(file, "r");
             FileChannel channel = raf.getChannel();
             clos.add(raf);
@@ -77,7 +83,8 @@ public class LiveLogPage extends Acteur {
                 stream.next();
             }
             clos.add(stream);
-            clos.add(timer);
+            clos.add((Runnable) this::stopTailing);
+            this.io = io;
             this.control = control;
         }
 
@@ -96,7 +103,15 @@ public class LiveLogPage extends Acteur {
             @Override
             public void operationComplete(ChannelFuture f) throws Exception {
                 if (in.getAndIncrement() == 0) {
-                    timer.scheduleAtFixedRate(new TT(f.channel()), 3000, 10000);
+                    TT tail = new TT(f.channel());
+                    tailing.set(f.channel().eventLoop().scheduleAtFixedRate(() -> {
+                        try {
+                            io.execute(tail);
+                        } catch (RejectedExecutionException ex) {
+                            // Disk pool is busy; new lines will still be
+                            // there on the next tick
+                        }
+                    }, 3000, 10000, TimeUnit.MILLISECONDS));
                 }
                 lastFlushed.set(true);
             }
@@ -120,7 +135,14 @@ public class LiveLogPage extends Acteur {
             }
         }
 
-        private class TT extends TimerTask {
+        private void stopTailing() {
+            ScheduledFuture<?> fut = tailing.getAndSet(null);
+            if (fut != null) {
+                fut.cancel(false);
+            }
+        }
+
+        private class TT implements Runnable {
 
             private final Channel channel;
 
@@ -130,6 +152,11 @@ public class LiveLogPage extends Acteur {
 
             @Override
             public void run() {
+                if (!channel.isOpen()) {
+                    // In case the connection closed before we were scheduled
+                    stopTailing();
+                    return;
+                }
                 try {
                     write(channel);
                 } catch (Exception ex) {
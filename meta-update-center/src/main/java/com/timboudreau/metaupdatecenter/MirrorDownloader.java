@@ -0,0 +1,543 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.netty.http.client.ResponseFuture;
+import com.mastfrog.settings.Settings;
+import com.timboudreau.metaupdatecenter.NbmDownloader.DownloadHandler;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.GUICE_BINDING_POLLER_THREAD_POOL;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_POLL_RACE_SOURCES;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_POLL_SOURCE_TIMEOUT_SECONDS;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.inject.Named;
+
+/**
+ * Downloads a polled module from whichever of its sources - its
+ * <code>from</code> URL and any mirrors - is healthy and fastest, failing over
+ * to the next when one errors, times out or sends a body whose SHA-1 does not
+ * match the checksum the server advertised. Optionally the two best sources
+ * are raced, and the first good response wins.
+ * <p>
+ * Each source's latency (a moving average), successes and failures are kept
+ * per URL and saved to a file in the NBM dir after each poll cycle, so a
+ * restart does not forget which upstreams are slow. A source which has failed
+ * several times running is tried last until it has rested for a while.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class MirrorDownloader {
+
+    static final String STATS_FILE_NAME = ".upstream-sources.json";
+    private static final int UNHEALTHY_AFTER_FAILURES = 3;
+    private static final long RETRY_UNHEALTHY_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    private static final TypeReference<TreeMap<String, SourceStats>> STATS_TYPE
+            = new TypeReference<TreeMap<String, SourceStats>>() {
+    };
+    private final NbmDownloader downloader;
+    private final CircuitBreakers breakers;
+    private final ScheduledExecutorService pool;
+    private final ObjectMapper mapper;
+    private final Logs logs;
+    private final Path statsFile;
+    private final boolean race;
+    private final long timeoutMillis;
+    private final Map<String, SourceStats> stats = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    @Inject
+    MirrorDownloader(NbmDownloader downloader, CircuitBreakers breakers, ModuleSet set, Settings settings,
+            ObjectMapper mapper, @Named(GUICE_BINDING_POLLER_THREAD_POOL) ScheduledExecutorService pool,
+            @Named(UpdateCenterServer.DOWNLOAD_LOGGER) Logs logs) {
+        this.downloader = downloader;
+        this.breakers = breakers;
+        this.pool = pool;
+        if (pool instanceof ScheduledThreadPoolExecutor) {
+            // Every attempt schedules a timeout which is nearly always
+            // cancelled; left queued until it would have fired, each one
+            // keeps its whole download - channel, response and callbacks -
+            // reachable for the length of the timeout
+            ((ScheduledThreadPoolExecutor) pool).setRemoveOnCancelPolicy(true);
+        }
+        this.mapper = mapper;
+        this.logs = logs;
+        this.statsFile = set.getStorageDir().toPath().resolve(STATS_FILE_NAME);
+        this.race = settings.getBoolean(SETTINGS_KEY_POLL_RACE_SOURCES, false);
+        this.timeoutMillis = TimeUnit.SECONDS.toMillis(settings.getLong(SETTINGS_KEY_POLL_SOURCE_TIMEOUT_SECONDS, 120));
+        if (Files.exists(statsFile)) {
+            try {
+                stats.putAll(mapper.readValue(statsFile.toFile(), STATS_TYPE));
+            } catch (IOException ex) {
+                logs.warn("sourceStatsUnreadable").add("file", statsFile.toString()).add(ex).close();
+            }
+        }
+    }
+
+    /**
+     * Get the recorded health of a source.
+     *
+     * @param url A URL
+     * @return The stats, or null if it has never been tried
+     */
+    SourceStats stats(String url) {
+        return stats.get(url);
+    }
+
+    /**
+     * Order a module's sources best-first: healthy before unhealthy, then
+     * fastest first, with sources never tried yet after measured ones and
+     * the original order breaking ties.
+     *
+     * @param sources The sources
+     * @return A new list
+     */
+    List<String> order(List<String> sources) {
+        long now = System.currentTimeMillis();
+        List<String> result = new ArrayList<>(sources);
+        result.sort(Comparator.<String>comparingInt(url -> healthy(url, now) ? 0 : 1)
+                .thenComparingDouble(url -> {
+                    SourceStats s = stats.get(url);
+                    return s == null || s.latencyMillis < 0 ? Double.MAX_VALUE : s.latencyMillis;
+                }));
+        return result;
+    }
+
+    private boolean healthy(String url, long now) {
+        SourceStats s = stats.get(url);
+        return s == null || s.consecutiveFailures < UNHEALTHY_AFTER_FAILURES
+                || now - s.lastFailure > RETRY_UNHEALTHY_AFTER_MILLIS;
+    }
+
+    /**
+     * Download a module from the best of its sources. The handler sees the
+     * outcome of the source which won, or of the last one to fail; the URL
+     * passed to <code>onModuleDownload()</code> is always the module's
+     * <code>from</code> URL, whichever source supplied the bytes. Sources
+     * whose circuit breaker is open are skipped; if that is all of them, the
+     * handler gets an error without anything being fetched.
+     *
+     * @param item The module
+     * @param ifModifiedSince Sent to each source
+     * @param handler The handler
+     */
+    void download(ModuleItem item, ZonedDateTime ifModifiedSince, DownloadHandler handler) {
+        List<String> sources = breakers.permitted(order(item.sources()));
+        if (sources.isEmpty()) {
+            handler.onError(new IOException("Circuit open for every source of " + item.getCodeNameBase()));
+            return;
+        }
+        new Attempts(item, sources, ifModifiedSince, handler).start();
+    }
+
+    /**
+     * Write the source stats to disk, if they have changed. Only modules with
+     * mirrors have anything to choose between, so only their sources are
+     * tracked, and servers with none never write the file.
+     */
+    void save() {
+        if (!dirty.getAndSet(false)) {
+            return;
+        }
+        try {
+            Path tmp = statsFile.resolveSibling(STATS_FILE_NAME + ".tmp");
+            mapper.writeValue(tmp.toFile(), new TreeMap<>(stats));
+            Files.move(tmp, statsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            dirty.set(true);
+            logs.warn("sourceStatsNotSaved").add("file", statsFile.toString()).add(ex).close();
+        }
+    }
+
+    private void recordSuccess(String url, long millis) {
+        stats.compute(url, (u, old) -> (old == null ? SourceStats.EMPTY : old).success(millis));
+        dirty.set(true);
+    }
+
+    private void recordFailure(String url) {
+        stats.compute(url, (u, old) -> (old == null ? SourceStats.EMPTY : old).failure());
+        dirty.set(true);
+    }
+
+    /**
+     * Find the SHA-1 the server says the body has, from an
+     * <code>X-Checksum-Sha1</code> header as Maven repository managers send,
+     * or an RFC 3230 <code>Digest: sha=...</code> header.
+     *
+     * @return The digest, or null if the server did not send one
+     */
+    static byte[] advertisedSha1(HttpHeaders headers) {
+        if (headers == null) {
+            return null;
+        }
+        String hex = headers.get("X-Checksum-Sha1");
+        if (hex != null && hex.trim().length() == 40) {
+            hex = hex.trim();
+            byte[] result = new byte[20];
+            try {
+                for (int i = 0; i < result.length; i++) {
+                    result[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+                }
+                return result;
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        String digest = headers.get("Digest");
+        if (digest != null) {
+            for (String part : digest.split(",")) {
+                int eq = part.indexOf('=');
+                if (eq > 0 && "sha".equalsIgnoreCase(part.substring(0, eq).trim())) {
+                    try {
+                        return Base64.getDecoder().decode(part.substring(eq + 1).trim());
+                    } catch (IllegalArgumentException ex) {
+                        return null;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check a body against the advertised SHA-1, leaving the stream where it
+     * was. Streams which cannot be reset are not checked.
+     */
+    private static boolean matches(byte[] expected, InputStream bytes) throws IOException {
+        if (expected == null || !bytes.markSupported()) {
+            return true;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        bytes.mark(Integer.MAX_VALUE);
+        byte[] buf = new byte[8192];
+        for (int read = bytes.read(buf); read > 0; read = bytes.read(buf)) {
+            digest.update(buf, 0, read);
+        }
+        bytes.reset();
+        return MessageDigest.isEqual(expected, digest.digest());
+    }
+
+    /**
+     * The attempts to fetch one module: one source at a time, or two at
+     * once if racing, moving down the list as they fail.
+     */
+    private final class Attempts {
+
+        private final ModuleItem item;
+        private final List<String> sources;
+        private final ZonedDateTime ifModifiedSince;
+        private final DownloadHandler handler;
+        private final List<Attempt> running = new ArrayList<>(2);
+        private int next;
+        private boolean done;
+        private HttpResponseStatus lastStatus;
+        private HttpHeaders lastHeaders;
+        private Throwable lastError;
+
+        Attempts(ModuleItem item, List<String> sources, ZonedDateTime ifModifiedSince, DownloadHandler handler) {
+            this.item = item;
+            this.sources = sources;
+            this.ifModifiedSince = ifModifiedSince;
+            this.handler = handler;
+        }
+
+        void start() {
+            int initial = race ? Math.min(2, sources.size()) : 1;
+            for (int i = 0; i < initial; i++) {
+                launchNext();
+            }
+        }
+
+        private void launchNext() {
+            Attempt attempt;
+            synchronized (this) {
+                if (done || next >= sources.size()) {
+                    return;
+                }
+                attempt = new Attempt(sources.get(next++));
+                running.add(attempt);
+            }
+            attempt.launch();
+        }
+
+        /**
+         * Called when an attempt gives a definitive answer - a good body or
+         * Not Modified.
+         *
+         * @return true if it is the first, and should be passed on
+         */
+        private boolean win(Attempt winner) {
+            List<Attempt> losers;
+            synchronized (this) {
+                if (done) {
+                    return false;
+                }
+                done = true;
+                losers = new ArrayList<>(running);
+                losers.remove(winner);
+                running.clear();
+            }
+            breakers.success(winner.url);
+            if (sources.size() > 1) {
+                recordSuccess(winner.url, System.currentTimeMillis() - winner.started);
+            }
+            for (Attempt a : losers) {
+                a.cancel();
+            }
+            if (!winner.url.equals(item.getFrom())) {
+                logs.info("mirrorUsed").add("cnb", item.getCodeNameBase())
+                        .add("url", winner.url).add("from", item.getFrom()).close();
+            }
+            return true;
+        }
+
+        private void fail(Attempt attempt, HttpResponseStatus status, HttpHeaders headers, Throwable error) {
+            boolean exhausted;
+            synchronized (this) {
+                if (done || !running.remove(attempt)) {
+                    return;
+                }
+                if (status != null) {
+                    lastStatus = status;
+                    lastHeaders = headers;
+                    lastError = null;
+                } else {
+                    lastError = error;
+                }
+                exhausted = running.isEmpty() && next >= sources.size();
+                if (exhausted) {
+                    done = true;
+                }
+            }
+            attempt.cancel();
+            breakers.failure(attempt.url, status, error);
+            if (sources.size() > 1) {
+                recordFailure(attempt.url);
+            }
+            logs.debug("sourceFailed").add("cnb", item.getCodeNameBase()).add("url", attempt.url)
+                    .add("status", status == null ? null : status.code())
+                    .add("error", error == null ? null : error.toString()).close();
+            if (!exhausted) {
+                launchNext();
+            } else if (lastError != null) {
+                handler.onError(lastError);
+            } else {
+                handler.onResponse(lastStatus, lastHeaders);
+            }
+        }
+
+        /**
+         * Called when a source answered but there was no room on the blocking
+         * I/O pool to ingest what it sent. That says nothing about the
+         * source, so no circuit or stats are touched and no other source is
+         * tried; the module is simply picked up again on the next poll.
+         */
+        private void busy(Attempt attempt, Throwable error) {
+            List<Attempt> others;
+            synchronized (this) {
+                if (done || !running.remove(attempt)) {
+                    return;
+                }
+                done = true;
+                others = new ArrayList<>(running);
+                running.clear();
+            }
+            attempt.cancel();
+            for (Attempt a : others) {
+                a.cancel();
+            }
+            logs.debug("ingestDeferred").add("cnb", item.getCodeNameBase()).add("url", attempt.url).close();
+            handler.onError(error);
+        }
+
+        private final class Attempt implements DownloadHandler {
+
+            private final String url;
+            private final long started = System.currentTimeMillis();
+            private volatile ResponseFuture future;
+            private volatile ScheduledFuture<?> timeout;
+            private volatile HttpHeaders headers;
+
+            Attempt(String url) {
+                this.url = url;
+            }
+
+            void launch() {
+                // Only a deadline for the response to start, and only worth
+                // having if there is another source to fall back on; once
+                // headers arrive a large NBM may take as long as it takes
+                if (timeoutMillis > 0 && sources.size() > 1) {
+                    timeout = pool.schedule(() -> fail(this, null, null,
+                            new IOException("No response from " + url + " in " + timeoutMillis + "ms")),
+                            timeoutMillis, TimeUnit.MILLISECONDS);
+                }
+                try {
+                    future = downloader.download(ifModifiedSince, url, this);
+                } catch (Exception ex) {
+                    fail(this, null, null, ex);
+                }
+            }
+
+            void cancel() {
+                ScheduledFuture<?> t = timeout;
+                if (t != null) {
+                    t.cancel(false);
+                }
+                ResponseFuture f = future;
+                if (f != null) {
+                    f.cancel();
+                }
+            }
+
+            @Override
+            public boolean onResponse(HttpResponseStatus status, HttpHeaders headers) {
+                synchronized (Attempts.this) {
+                    if (done) {
+                        return false;
+                    }
+                }
+                if (HttpResponseStatus.OK.equals(status)) {
+                    if (this.headers == null) {
+                        cancelTimeout();
+                        handler.onHeadersReceived(url);
+                    }
+                    this.headers = headers;
+                    return true;
+                }
+                if (status.code() < 400) {
+                    // Not Modified, most likely - an answer as good as a body
+                    if (win(this)) {
+                        cancelTimeout();
+                        handler.onResponse(status, headers);
+                    }
+                } else {
+                    fail(this, status, headers, null);
+                }
+                return false;
+            }
+
+            @Override
+            public void onModuleDownload(InfoFile module, InputStream bytes, String hash, String url) {
+                try {
+                    byte[] expected = advertisedSha1(headers);
+                    if (!matches(expected, bytes)) {
+                        fail(this, null, null, new IOException("SHA-1 of body from " + this.url
+                                + " does not match " + UploadPipelineDecorator.hex(expected)));
+                        return;
+                    }
+                } catch (IOException ex) {
+                    fail(this, null, null, ex);
+                    return;
+                }
+                if (win(this)) {
+                    cancelTimeout();
+                    handler.onResponse(HttpResponseStatus.OK, headers);
+                    handler.onModuleDownload(module, bytes, hash, item.getFrom());
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                if (t instanceof RejectedExecutionException) {
+                    busy(this, t);
+                } else {
+                    fail(this, null, null, t);
+                }
+            }
+
+            private void cancelTimeout() {
+                ScheduledFuture<?> t = timeout;
+                if (t != null) {
+                    t.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * What is known about one upstream URL.
+     */
+    static final class SourceStats {
+
+        static final SourceStats EMPTY = new SourceStats(-1, 0, 0, 0, 0, 0);
+        private static final double SMOOTHING = 0.3;
+        /**
+         * Moving average of the time to a complete response, or -1 if no
+         * request has succeeded.
+         */
+        @JsonProperty("latencyMillis")
+        final double latencyMillis;
+        @JsonProperty("successes")
+        final long successes;
+        @JsonProperty("failures")
+        final long failures;
+        @JsonProperty("consecutiveFailures")
+        final int consecutiveFailures;
+        @JsonProperty("lastSuccess")
+        final long lastSuccess;
+        @JsonProperty("lastFailure")
+        final long lastFailure;
+
+        @JsonCreator
+        SourceStats(@JsonProperty("latencyMillis") double latencyMillis,
+                @JsonProperty("successes") long successes,
+                @JsonProperty("failures") long failures,
+                @JsonProperty("consecutiveFailures") int consecutiveFailures,
+                @JsonProperty("lastSuccess") long lastSuccess,
+                @JsonProperty("lastFailure") long lastFailure) {
+            this.latencyMillis = latencyMillis;
+            this.successes = successes;
+            this.failures = failures;
+            this.consecutiveFailures = consecutiveFailures;
+            this.lastSuccess = lastSuccess;
+            this.lastFailure = lastFailure;
+        }
+
+        SourceStats success(long millis) {
+            double latency = latencyMillis < 0 ? millis : latencyMillis + SMOOTHING * (millis - latencyMillis);
+            return new SourceStats(latency, successes + 1, failures, 0, System.currentTimeMillis(), lastFailure);
+        }
+
+        SourceStats failure() {
+            return new SourceStats(latencyMillis, successes, failures + 1, consecutiveFailures + 1,
+                    lastSuccess, System.currentTimeMillis());
+        }
+
+        @Override
+        public String toString() {
+            return "latency " + (long) latencyMillis + "ms, " + successes + " ok, "
+                    + failures + " failed (" + consecutiveFailures + " in a row)";
+        }
+    }
+}
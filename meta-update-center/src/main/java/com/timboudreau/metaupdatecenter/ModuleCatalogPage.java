@@ -11,6 +11,7 @@ import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.ResponseWriter;
 import com.mastfrog.acteur.annotations.HttpCall;
 import com.mastfrog.acteur.headers.HeaderValueType;
+import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.acteur.server.PathFactory;
 import static com.mastfrog.acteur.headers.Headers.CACHE_CONTROL;
 import static com.mastfrog.acteur.headers.Headers.CONTENT_ENCODING;
@@ -34,6 +35,7 @@ import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoField;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  *
@@ -46,6 +48,11 @@ import java.util.Iterator;
 public class ModuleCatalogPage extends Page {
 
     public static final String MODULE_PAGE_REGEX = "^modules$";
+    /**
+     * Header carrying the ModuleSet generation the response reflects, for
+     * use as the <code>since</code> parameter to <code>/modules/changes</code>.
+     */
+    static final HeaderValueType<CharSequence> CATALOG_GENERATION = Headers.header("X-Catalog-Generation");
 
     @Inject
     ModuleCatalogPage() {
@@ -74,6 +81,9 @@ public class ModuleCatalogPage extends Page {
         @Inject
         SetupETag(ModuleSet set, HttpEvent evt, Stats stats) {
             stats.logHit(evt);
+            // Read before the hash, so a concurrent add can only make a
+            // client fetch a change it already has, never miss one
+            add(CATALOG_GENERATION, Long.toString(set.generation()));
             add(ETAG, set.getCombinedHash());
             next();
         }
@@ -83,16 +93,23 @@ public class ModuleCatalogPage extends Page {
     private static final class ModuleListSender extends Acteur {
 
         @Inject
-        ModuleListSender(ModuleSet set, HttpEvent evt, ObjectMapper mapper, final PathFactory factory) throws JsonProcessingException {
+        ModuleListSender(ModuleSet set, HttpEvent evt, ObjectMapper mapper, final PathFactory factory, ServerTls tls) throws JsonProcessingException {
             final Iterator<ModuleItem> items = set.iterator();
             final ZonedDateTime lm = set.getNewestDownloaded();
             setChunked(true);
             if ("true".equals(evt.urlParameter("json"))) {
-                ok(mapper.writeValueAsString(set.toList()));
+                FlightEvents.CatalogRender event = renderEvent(evt, "json");
+                List<ModuleItem> modules = set.toList();
+                ok(mapper.writeValueAsString(modules));
+                if (event != null) {
+                    event.modules = modules.size();
+                    event.commit();
+                }
             } else {
                 ok();
                 if (evt.method() != Method.HEAD) {
-                    setResponseWriter(new ResponseWriterImpl(lm, items, factory));
+                    setResponseWriter(new CatalogXmlWriter(lm, items, factory, tls.isEnabled(),
+                            renderEvent(evt, "xml")));
                 }
             }
             HttpRequest req = evt.request();
@@ -102,38 +119,67 @@ public class ModuleCatalogPage extends Page {
             }
         }
 
-        private static class ResponseWriterImpl extends ResponseWriter {
+        private static FlightEvents.CatalogRender renderEvent(HttpEvent evt, String format) {
+            FlightEvents.CatalogRender event = new FlightEvents.CatalogRender();
+            if (!event.isEnabled()) {
+                return null;
+            }
+            event.begin();
+            event.format = format;
+            event.client = String.valueOf(evt.remoteAddress());
+            return event;
+        }
+    }
 
-            private final ZonedDateTime lm;
-            private final Iterator<ModuleItem> items;
-            private final PathFactory factory;
+    /**
+     * Writes a module_updates document, one module per iteration.
+     */
+    static final class CatalogXmlWriter extends ResponseWriter {
 
-            public ResponseWriterImpl(ZonedDateTime lm, Iterator<ModuleItem> items, PathFactory factory) {
-                this.lm = lm;
-                this.items = items;
-                this.factory = factory;
-            }
+        private final ZonedDateTime lm;
+        private final Iterator<ModuleItem> items;
+        private final PathFactory factory;
+        private final boolean secure;
+        private final FlightEvents.CatalogRender event;
+        private int modules;
 
-            @Override
-            public Status write(Event<?> evt, ResponseWriter.Output out, int iteration) throws Exception {
-                if (iteration == 0) {
-                    String timestamp = lm.get(ChronoField.SECOND_OF_MINUTE) + "/" + lm.get(ChronoField.MINUTE_OF_HOUR) + "/"
-                            + lm.get(ChronoField.HOUR_OF_DAY) + "/" + lm.get(ChronoField.DAY_OF_MONTH) + "/"
-                            + lm.get(ChronoField.MONTH_OF_YEAR) + "/" + lm.getYear();
-                    out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
-                            + "<!DOCTYPE module_updates PUBLIC \"-//NetBeans//DTD Autoupdate Catalog 2.6//EN\" \"http://www.netbeans.org/dtds/autoupdate-catalog-2_6.dtd\">\n"
-                            + "<module_updates timestamp=\"" + timestamp + "\">\n\n");
-                }
-                if (items.hasNext()) {
-                    out.write(items.next().toXML(factory, "download"));
-                }
-                if (!items.hasNext()) {
-                    out.write("</module_updates>\n\n");
-                    out.channel().flush();
+        CatalogXmlWriter(ZonedDateTime lm, Iterator<ModuleItem> items, PathFactory factory, boolean secure) {
+            this(lm, items, factory, secure, null);
+        }
+
+        CatalogXmlWriter(ZonedDateTime lm, Iterator<ModuleItem> items, PathFactory factory, boolean secure,
+                FlightEvents.CatalogRender event) {
+            this.lm = lm;
+            this.items = items;
+            this.factory = factory;
+            this.secure = secure;
+            this.event = event;
+        }
+
+        @Override
+        public Status write(Event<?> evt, ResponseWriter.Output out, int iteration) throws Exception {
+            if (iteration == 0) {
+                String timestamp = lm.get(ChronoField.SECOND_OF_MINUTE) + "/" + lm.get(ChronoField.MINUTE_OF_HOUR) + "/"
+                        + lm.get(ChronoField.HOUR_OF_DAY) + "/" + lm.get(ChronoField.DAY_OF_MONTH) + "/"
+                        + lm.get(ChronoField.MONTH_OF_YEAR) + "/" + lm.getYear();
+                out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
+                        + "<!DOCTYPE module_updates PUBLIC \"-//NetBeans//DTD Autoupdate Catalog 2.6//EN\" \"http://www.netbeans.org/dtds/autoupdate-catalog-2_6.dtd\">\n"
+                        + "<module_updates timestamp=\"" + timestamp + "\">\n\n");
+            }
+            if (items.hasNext()) {
+                out.write(items.next().toXML(factory, "download", secure));
+                modules++;
+            }
+            if (!items.hasNext()) {
+                out.write("</module_updates>\n\n");
+                out.channel().flush();
 //                    out.future().addListener(ChannelFutureListener.CLOSE);
+                if (event != null) {
+                    event.modules = modules;
+                    event.commit();
                 }
-                return items.hasNext() ? Status.NOT_DONE : Status.DONE;
             }
+            return items.hasNext() ? Status.NOT_DONE : Status.DONE;
         }
     }
 }
@@ -0,0 +1,91 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Inject;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.Page;
+import com.mastfrog.acteur.annotations.HttpCall;
+import com.mastfrog.acteur.headers.HeaderValueType;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Headers.CACHE_CONTROL;
+import static com.mastfrog.acteur.headers.Headers.CONTENT_TYPE;
+import com.mastfrog.acteur.headers.Method;
+import com.mastfrog.acteur.preconditions.Description;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.ParametersMustBeNumbersIfPresent;
+import com.mastfrog.acteur.preconditions.PathRegex;
+import com.mastfrog.acteur.preconditions.RequiredUrlParameters;
+import com.mastfrog.acteur.server.PathFactory;
+import com.mastfrog.acteur.header.entities.CacheControl;
+import static com.mastfrog.acteur.header.entities.CacheControlTypes.must_revalidate;
+import static com.mastfrog.acteur.header.entities.CacheControlTypes.no_cache;
+import com.mastfrog.mime.MimeType;
+import static com.timboudreau.metaupdatecenter.ModuleCatalogPage.CATALOG_GENERATION;
+import static com.timboudreau.metaupdatecenter.ModuleChangesPage.MODULE_CHANGES_PAGE_REGEX;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.ReferenceCounted;
+
+/**
+ * Incremental version of the catalog, for mirrors and other clients which
+ * already hold a copy and want only what was added or replaced since the
+ * generation reported in the <code>X-Catalog-Generation</code> header of
+ * their last response.
+ *
+ * @author Tim Boudreau
+ */
+@HttpCall
+@Methods({Method.GET, Method.HEAD})
+@PathRegex(MODULE_CHANGES_PAGE_REGEX)
+@RequiredUrlParameters("since")
+@ParametersMustBeNumbersIfPresent("since")
+@Description("Get the modules added or replaced since the catalog generation "
+        + "passed as ?since=; the full catalog is returned (with X-Catalog-Full: "
+        + "true) if that generation is too old. Pass ?json=true for JSON.")
+public class ModuleChangesPage extends Page {
+
+    public static final String MODULE_CHANGES_PAGE_REGEX = "^modules\\/changes$";
+    static final HeaderValueType<CharSequence> CATALOG_FULL = Headers.header("X-Catalog-Full");
+
+    @Inject
+    ModuleChangesPage() {
+        add(ChangesSender.class);
+    }
+
+    @Description("Sends the modules changed since the requested generation")
+    private static final class ChangesSender extends Acteur {
+
+        @Inject
+        ChangesSender(ModuleSet set, HttpEvent evt, Stats stats, ObjectMapper mapper, PathFactory factory, ServerTls tls) throws JsonProcessingException {
+            stats.logHit(evt);
+            long since = Long.parseLong(evt.urlParameter("since"));
+            CatalogChanges changes = set.changesSince(since);
+            add(CATALOG_GENERATION, Long.toString(changes.getGeneration()));
+            add(CATALOG_FULL, Boolean.toString(changes.isFull()));
+            add(CACHE_CONTROL, new CacheControl(no_cache, must_revalidate));
+            setChunked(true);
+            boolean head = evt.method() == Method.HEAD;
+            if ("true".equals(evt.urlParameter("json"))) {
+                add(CONTENT_TYPE, MimeType.JSON_UTF_8);
+                if (head) {
+                    ok();
+                } else {
+                    ok(mapper.writeValueAsString(changes));
+                }
+            } else {
+                add(CONTENT_TYPE, MimeType.XML_UTF_8);
+                ok();
+                if (!head) {
+                    setResponseWriter(new ModuleCatalogPage.CatalogXmlWriter(set.getNewestDownloaded(),
+                            changes.getModules().iterator(), factory, tls.isEnabled()));
+                }
+            }
+            HttpRequest req = evt.request();
+            if (req instanceof ReferenceCounted) {
+                // Same as ModuleCatalogPage
+                ((ReferenceCounted) req).release();
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.timboudreau.metaupdatecenter;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableMap;
@@ -10,20 +11,26 @@ import com.mastfrog.acteur.server.PathFactory;
 import com.mastfrog.url.Path;
 import com.mastfrog.url.URL;
 import static com.mastfrog.util.collections.CollectionUtils.map;
-import com.sun.org.apache.xml.internal.serialize.OutputFormat;
-import com.sun.org.apache.xml.internal.serialize.XMLSerializer;
 import com.timboudreau.metaupdatecenter.borrowed.SpecificationVersion;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -31,6 +38,7 @@ import org.w3c.dom.Element;
  *
  * @author Tim Boudreau
  */
+@JsonIgnoreProperties(ignoreUnknown = true)
 public final class ModuleItem implements Comparable<ModuleItem> {
 
     private final String codeNameBase;
@@ -40,6 +48,13 @@ public final class ModuleItem implements Comparable<ModuleItem> {
     private final boolean useOriginalURL;
     private final String from;
     private final ZonedDateTime lastModified;
+    private final List<String> mirrors;
+
+    public ModuleItem(String codeNameBase, String hash, Map<String, Object> info,
+            ZonedDateTime downloaded, boolean useOriginalURL, ZonedDateTime lastModified,
+            String from) {
+        this(codeNameBase, hash, info, downloaded, useOriginalURL, lastModified, from, null);
+    }
 
     @JsonCreator
     public ModuleItem(@JsonProperty("codeNameBase") String codeNameBase,
@@ -48,8 +63,10 @@ public final class ModuleItem implements Comparable<ModuleItem> {
             @JsonProperty("downloaded") ZonedDateTime downloaded,
             @JsonProperty("useOriginalURL") boolean useOriginalURL,
             @JsonProperty("lastModified") ZonedDateTime lastModified,
-            @JsonProperty("from") String from) {
+            @JsonProperty("from") String from,
+            @JsonProperty("mirrors") List<String> mirrors) {
         this.lastModified = lastModified;
+        this.mirrors = mirrors == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(mirrors));
         this.codeNameBase = codeNameBase;
         this.hash = hash;
         this.metadata = info;
@@ -95,6 +112,29 @@ public final class ModuleItem implements Comparable<ModuleItem> {
         return from;
     }
 
+    /**
+     * Other URLs the same NBM can be fetched from when polling, in order of
+     * preference, after <code>from</code>.
+     *
+     * @return A list, possibly empty
+     */
+    public List<String> getMirrors() {
+        return mirrors;
+    }
+
+    /**
+     * The <code>from</code> URL followed by any mirrors.
+     *
+     * @return A list
+     */
+    @JsonIgnore
+    public List<String> sources() {
+        List<String> result = new ArrayList<>(mirrors.size() + 1);
+        result.add(from);
+        result.addAll(mirrors);
+        return result;
+    }
+
     public String getCodeNameBase() {
         return codeNameBase;
     }
@@ -139,7 +179,7 @@ public final class ModuleItem implements Comparable<ModuleItem> {
         SpecificationVersion theirs = o.getVersion();
         int result = theirs.compareTo(mine);
         if (result == 0) {
-            result = o.getDownloaded().compareTo(o.getDownloaded());
+            result = o.getDownloaded().compareTo(getDownloaded());
         }
         return result;
     }
@@ -147,12 +187,16 @@ public final class ModuleItem implements Comparable<ModuleItem> {
     private String xml;
 
     public String toXML(PathFactory paths, String base) throws ParserConfigurationException, IOException, TransformerException {
+        return toXML(paths, base, false);
+    }
+
+    public String toXML(PathFactory paths, String base, boolean secure) throws ParserConfigurationException, IOException, TransformerException {
         if (xml != null) {
             return xml;
         }
         Map<String, Object> meta = new HashMap<>(getMetadata());
         if (!useOriginalURL) {
-            URL nue = paths.constructURL(Path.builder().add(base).add(getCodeNameBase()).add(hash + ".nbm").create(), false);
+            URL nue = paths.constructURL(Path.builder().add(base).add(getCodeNameBase()).add(hash + ".nbm").create(), secure);
             meta.put("distribution", nue.toString());
         }
         DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
@@ -181,18 +225,16 @@ public final class ModuleItem implements Comparable<ModuleItem> {
     }
 
     public static String nodeToString(Document document) throws IOException, TransformerConfigurationException, TransformerException {
-        OutputFormat format = new OutputFormat("XML", "UTF-8", true);
-        format.setOmitXMLDeclaration(true);
-        format.setStandalone(false);
-        format.setPreserveEmptyAttributes(true);
-        format.setAllowJavaNames(true);
-        format.setPreserveSpace(false);
-        format.setIndenting(true);
-        format.setIndent(4);
-        format.setLineWidth(80);
+        // The com.sun xerces serializer this used to use is not exported
+        // from java.xml on JDK 9 and up
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        transformer.setOutputProperty(OutputKeys.METHOD, "xml");
+        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
         Writer out = new StringWriter();
-        XMLSerializer serializer = new XMLSerializer(out, format);
-        serializer.serialize(document);
+        transformer.transform(new DOMSource(document), new StreamResult(out));
         return out.toString();
     }
 }
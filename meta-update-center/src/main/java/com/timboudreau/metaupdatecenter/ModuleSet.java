@@ -6,31 +6,29 @@ import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import com.google.inject.util.Providers;
 import com.mastfrog.bunyan.java.v2.Log;
 import com.mastfrog.bunyan.java.v2.Logs;
-import com.mastfrog.util.preconditions.ConfigurationError;
 import com.mastfrog.util.preconditions.Exceptions;
-import com.mastfrog.util.streams.Streams;
 import com.mastfrog.util.time.TimeUtil;
 import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SYSTEM_LOGGER;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.xml.xpath.XPathExpressionException;
 
 /**
@@ -40,13 +38,37 @@ import javax.xml.xpath.XPathExpressionException;
 @Singleton
 public final class ModuleSet implements Iterable<ModuleItem> {
 
-    private final File dir;
+    private final Provider<ModuleStore> store;
     private final Provider<ObjectMapper> mapper;
     private final Set<ModuleItem> items = ConcurrentHashMap.newKeySet(96);
     private final Provider<Logs> logs;
+    /**
+     * The number of add/replace events retained for computing deltas; a
+     * client asking for changes since a generation older than this gets the
+     * full catalog.
+     */
+    public static final int CHANGE_HISTORY_SIZE = 1024;
+    // Seeded from the clock so a generation handed out by a previous run
+    // of the server is always older than anything in this run's history
+    private final AtomicLong generation = new AtomicLong(System.currentTimeMillis());
+    private final ArrayDeque<Change> changes = new ArrayDeque<>(64);
+    private long changeHistoryFloor = generation.get();
 
     public File getStorageDir() {
-        return dir;
+        return store().directory().toFile();
+    }
+
+    /**
+     * Get the store the modules are kept in.
+     *
+     * @return The store
+     */
+    public ModuleStore getStore() {
+        return store();
+    }
+
+    private ModuleStore store() {
+        return store.get();
     }
 
     @Override
@@ -60,8 +82,16 @@ public final class ModuleSet implements Iterable<ModuleItem> {
         return result;
     }
 
-    public File getNBM(String codeName, String fileName) {
-        return new File(new File(dir, codeName), fileName);
+    /**
+     * Get the stored NBM for a module.
+     *
+     * @param codeName The code name base
+     * @param hash The hash
+     * @return The NBM, or null if it is not stored
+     * @throws IOException If something goes wrong
+     */
+    public ModuleStore.Blob getNBM(String codeName, String hash) throws IOException {
+        return store().blob(codeName, hash);
     }
 
     public ModuleItem find(String codeName, String hash) {
@@ -75,24 +105,24 @@ public final class ModuleSet implements Iterable<ModuleItem> {
                 }
             }
         }
-        File f = new File(new File(dir, codeName), hash + ".json");
-        if (f.exists()) {
-            try {
-                return ModuleItem.fromFile(f, mapper.get());
-            } catch (JsonParseException ex) {
-                logs.get().error("Failed to parse JSON").add("file", f.getAbsolutePath())
-                        .add(ex).close();
-                System.err.println("failed parsing JSON " + f);
-                Exceptions.printStackTrace(ex);
-            } catch (IOException ex) {
-                logs.get().error("Error reading JSON").add("file", f.getAbsolutePath())
-                        .add(ex).close();
-                System.err.println("failed reading " + f);
-                Exceptions.printStackTrace(ex);
+        try {
+            byte[] record = store().record(codeName, hash);
+            if (record != null) {
+                return mapper.get().readValue(record, ModuleItem.class);
             }
+        } catch (JsonParseException ex) {
+            logs.get().error("Failed to parse JSON").add("codeName", codeName)
+                    .add("hash", hash).add(ex).close();
+            System.err.println("failed parsing JSON for " + codeName + " " + hash);
+            Exceptions.printStackTrace(ex);
+        } catch (IOException ex) {
+            logs.get().error("Error reading JSON").add("codeName", codeName)
+                    .add("hash", hash).add(ex).close();
+            System.err.println("failed reading " + codeName + " " + hash);
+            Exceptions.printStackTrace(ex);
         }
         logs.get().warn("No module").add("codeName", codeName)
-                .add("hash", hash).add("file", f.getPath()).close();
+                .add("hash", hash).add("store", store().toString()).close();
         return null;
     }
 
@@ -107,18 +137,24 @@ public final class ModuleSet implements Iterable<ModuleItem> {
     }
 
     private final Provider<Stats> stats;
+    private final Provider<PollLease> lease;
+    private final Map<String, Long> moduleStamps = new ConcurrentHashMap<>();
 
-    @Inject
     ModuleSet(File dir, Provider<ObjectMapper> mapper, Provider<Stats> stats, @Named(SYSTEM_LOGGER) Provider<Logs> logs) {
+        this(dir, mapper, stats, logs, () -> null);
+    }
+
+    ModuleSet(File dir, Provider<ObjectMapper> mapper, Provider<Stats> stats, @Named(SYSTEM_LOGGER) Provider<Logs> logs, Provider<PollLease> lease) {
+        this(Providers.of(new DirectoryModuleStore(dir.toPath())), mapper, stats, logs, lease);
+    }
+
+    @Inject
+    ModuleSet(Provider<ModuleStore> store, Provider<ObjectMapper> mapper, Provider<Stats> stats, @Named(SYSTEM_LOGGER) Provider<Logs> logs, Provider<PollLease> lease) {
         this.logs = logs;
-        this.dir = dir;
+        this.lease = lease;
+        this.store = store;
         this.mapper = mapper;
         this.stats = stats;
-        if (!dir.exists()) {
-            if (!dir.mkdirs()) {
-                throw new ConfigurationError("Could not create " + dir);
-            }
-        }
     }
 
     public ZonedDateTime getNewestDownloaded() {
@@ -138,24 +174,175 @@ public final class ModuleSet implements Iterable<ModuleItem> {
         return sb.toString();
     }
 
-    private final Pattern PAT = Pattern.compile("(.*)\\.(.*)");
     public static final int COPY_BUFFER_SIZE = 2048;
 
-    public File getModuleFile(ModuleItem item) {
-        File modulesDir = new File(dir, item.getCodeNameBase());
-        File moduleFile = new File(modulesDir, item.getHash() + ".nbm");
-        return moduleFile;
+    /**
+     * Determine if a module's NBM and metadata are present in the store.
+     *
+     * @param item A module
+     * @return true if it is stored
+     */
+    public boolean isStored(ModuleItem item) {
+        return store().contains(item.getCodeNameBase(), item.getHash());
     }
 
     public int size() {
         return items.size();
     }
 
+    /**
+     * Get the current catalog generation, which increases every time a module
+     * is added or replaced, or the set is rescanned from disk.
+     *
+     * @return The generation
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Get the modules added or replaced after the passed generation. If the
+     * change history no longer reaches back that far (or the generation is
+     * not one this set could have issued), the result contains the full
+     * catalog.
+     *
+     * @param since A generation previously obtained from this server
+     * @return A change set
+     */
+    public CatalogChanges changesSince(long since) {
+        synchronized (changes) {
+            long current = generation.get();
+            if (since < changeHistoryFloor || since > current) {
+                return new CatalogChanges(current, since, true, toList());
+            }
+            // If a module was replaced more than once, only the newest
+            // version matters
+            Map<String, ModuleItem> byCodeName = new LinkedHashMap<>();
+            Iterator<Change> iter = changes.descendingIterator();
+            while (iter.hasNext()) {
+                Change change = iter.next();
+                if (change.generation <= since) {
+                    break;
+                }
+                byCodeName.putIfAbsent(change.item.getCodeNameBase(), change.item);
+            }
+            List<ModuleItem> result = new ArrayList<>(byCodeName.values());
+            Collections.sort(result);
+            return new CatalogChanges(current, since, false, result);
+        }
+    }
+
+    private void recordChange(ModuleItem item, ModuleItem old) {
+        synchronized (changes) {
+            replace(item, old, generation.incrementAndGet());
+        }
+    }
+
+    private void replace(ModuleItem item, ModuleItem old, long gen) {
+        // called with the lock held
+        this.items.add(item);
+        if (old != null) {
+            this.items.remove(old);
+        }
+        changes.add(new Change(gen, item));
+        while (changes.size() > CHANGE_HISTORY_SIZE) {
+            changeHistoryFloor = changes.removeFirst().generation;
+        }
+    }
+
+    private ModuleItem current(String codeNameBase) {
+        for (ModuleItem i : this.items) {
+            if (i.getCodeNameBase().equals(codeNameBase)) {
+                return i;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Make a batch of staged modules visible in the catalog at once, under a
+     * single new generation. If the batch contains more than one version of
+     * a module, the newest wins.
+     *
+     * @param staged Modules returned by <code>stage()</code>
+     * @return The modules now in the catalog as a result
+     */
+    List<ModuleItem> publish(Collection<? extends StagedModule> staged) {
+        Map<String, ModuleItem> newest = new LinkedHashMap<>();
+        for (StagedModule sm : staged) {
+            ModuleItem prev = newest.get(sm.item.getCodeNameBase());
+            if (prev == null || sm.item.compareTo(prev) < 0) {
+                newest.put(sm.item.getCodeNameBase(), sm.item);
+            }
+        }
+        if (newest.isEmpty()) {
+            return Collections.emptyList();
+        }
+        synchronized (changes) {
+            long gen = generation.incrementAndGet();
+            for (ModuleItem item : newest.values()) {
+                replace(item, current(item.getCodeNameBase()), gen);
+            }
+        }
+        List<ModuleItem> result = new ArrayList<>(newest.values());
+        for (ModuleItem item : result) {
+            stats.get().logIngest(item);
+        }
+        return result;
+    }
+
+    private void resetChanges() {
+        synchronized (changes) {
+            changes.clear();
+            changeHistoryFloor = generation.incrementAndGet();
+        }
+    }
+
     public ModuleItem add(InfoFile info, InputStream module, String url, String hash, boolean useOrigUrl) throws IOException {
         return add(info, module, url, hash, useOrigUrl, null);
     }
 
     public ModuleItem add(InfoFile info, InputStream module, String url, String hash, boolean useOrigUrl, ZonedDateTime lastModified) throws IOException {
+        return add(info, module, url, hash, useOrigUrl, lastModified, Collections.emptyList());
+    }
+
+    public ModuleItem add(InfoFile info, InputStream module, String url, String hash, boolean useOrigUrl, ZonedDateTime lastModified, List<String> mirrors) throws IOException {
+        FlightEvents.ModuleAdd event = new FlightEvents.ModuleAdd();
+        boolean recording = event.isEnabled();
+        event.begin();
+        long start = recording ? System.nanoTime() : 0;
+        StagedModule staged = stage(info, module, url, hash, useOrigUrl, lastModified, mirrors);
+        long stagedAt = recording ? System.nanoTime() : 0;
+        if (staged != null) {
+            publish(Collections.singleton(staged));
+        }
+        if (recording && event.shouldCommit()) {
+            event.hash = hash;
+            event.duplicate = staged == null;
+            event.writeNanos = stagedAt - start;
+            event.publishNanos = System.nanoTime() - stagedAt;
+            try {
+                event.codeNameBase = info.getModuleCodeName();
+            } catch (XPathExpressionException ex) {
+                // stage() would have failed first
+            }
+            event.commit();
+        }
+        return staged == null ? null : staged.item;
+    }
+
+    /**
+     * Write a module's NBM and metadata into the storage dir without making
+     * it part of the catalog; pass the result to <code>publish()</code> to do
+     * that.
+     *
+     * @return A staged module, or null if this exact module is already stored
+     */
+    StagedModule stage(InfoFile info, InputStream module, String url, String hash, boolean useOrigUrl, ZonedDateTime lastModified) throws IOException {
+        return stage(info, module, url, hash, useOrigUrl, lastModified, Collections.emptyList());
+    }
+
+    StagedModule stage(InfoFile info, InputStream module, String url, String hash, boolean useOrigUrl, ZonedDateTime lastModified, List<String> mirrors) throws IOException {
         String codeName;
         Map<String, Object> metadata;
         try {
@@ -164,165 +351,154 @@ public final class ModuleSet implements Iterable<ModuleItem> {
         } catch (XPathExpressionException ex) {
             throw new IOException(ex);
         }
-        File moduleDir = new File(dir, codeName);
-        File nbmFile = new File(moduleDir, hash + ".nbm");
-        File mdFile = new File(moduleDir, hash + ".json");
-        if (nbmFile.exists() && mdFile.exists()) {
+        if (store().contains(codeName, hash)) {
             return null;
         }
-        boolean moduleDirCreated = false;
+        PollLease fence = lease.get();
+        // The generated module is identical on every node sharing the
+        // directory, so it is exempt
+        if (fence != null && !UpdateCenterServer.DUMMY_URL.equals(url)) {
+            // Another node may have taken over the shared directory
+            fence.checkFence();
+        }
         try {
-            if (!moduleDir.exists()) {
-                moduleDirCreated = moduleDir.mkdirs();
-                if (!moduleDirCreated) {
-                    throw new IOException("Could not create " + moduleDir);
-                }
-            }
-            if (!nbmFile.exists()) {
-                if (!nbmFile.createNewFile()) {
-                    throw new IOException("Could not create " + nbmFile);
-                }
-            }
-            if (!mdFile.exists()) {
-                if (!mdFile.createNewFile()) {
-                    throw new IOException("Could not create " + mdFile);
-                }
-            }
-
-            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(nbmFile), COPY_BUFFER_SIZE)) {
-                try (InputStream in = module) {
-                    Streams.copy(in, out, COPY_BUFFER_SIZE);
-                }
+            long size;
+            try (InputStream in = module) {
+                size = store().putBlob(codeName, hash, in, lastModified == null ? 0
+                        : TimeUtil.toUnixTimestamp(lastModified));
             }
-            if (lastModified != null && lastModified.toInstant().toEpochMilli() != 0) {
-                nbmFile.setLastModified(TimeUtil.toUnixTimestamp(lastModified));
-            }
-            metadata.put("downloadsize", Long.toString(nbmFile.length()));
+            metadata.put("downloadsize", Long.toString(size));
             Map<String, Object> mdInfo = new HashMap<>();
             mdInfo.put("metadata", metadata);
             mdInfo.put("downloaded", System.currentTimeMillis());
             mdInfo.put("from", url);
+            if (!mirrors.isEmpty()) {
+                mdInfo.put("mirrors", mirrors);
+            }
             mdInfo.put("hash", hash);
             mdInfo.put("useOriginalURL", useOrigUrl);
             mdInfo.put("codeNameBase", codeName);
             mdInfo.put("lastModified", lastModified == null ? 0 : TimeUtil.toUnixTimestamp(lastModified));
-            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(mdFile), COPY_BUFFER_SIZE)) {
-                mapper.get().writeValue(out, mdInfo);
-            }
-            ModuleItem old = null;
-            for (ModuleItem i : this.items) {
-                if (i.getCodeNameBase().equals(codeName)) {
-                    old = i;
-                    break;
-                }
-            }
-            ModuleItem item = mapper.get().readValue(mdFile, ModuleItem.class);
-            this.items.add(item);
-            if (old != null) {
-                this.items.remove(old);
-            }
-            stats.get().logIngest(item);
-            return item;
+            byte[] record = mapper.get().writeValueAsBytes(mdInfo);
+            ModuleItem item = mapper.get().readValue(record, ModuleItem.class);
+            store().publish(codeName, hash, record);
+            return new StagedModule(item);
         } catch (Exception e) {
-                try (Log log = logs.get().error("unpackModuleError")) {
+            try (Log log = logs.get().error("unpackModuleError")) {
                 log.add("url", url).add("hash", hash)
                         .add("useOriginalUrl", useOrigUrl)
                         .add(e);
-                if (mdFile.exists()) {
-                    mdFile.delete();
-                }
-                if (nbmFile.exists()) {
-                    nbmFile.delete();
-                }
-                if (moduleDir.list().length == 0) {
-                    moduleDir.delete();
-                }
+                store().discard(codeName, hash);
                 throw e instanceof IOException ? ((IOException) e) : new IOException(e);
             }
         }
     }
 
+    /**
+     * Remove a module returned by <code>stage()</code> which is not going to
+     * be published after all.
+     *
+     * @param staged The staged module
+     */
+    void discard(StagedModule staged) {
+        store().discard(staged.item.getCodeNameBase(), staged.item.getHash());
+    }
+
     void scan() {
         this.items.clear();
-        Map<String, Map<String, Pair>> pairs = new HashMap<>();
-        for (File moduleDir : dir.listFiles()) {
-            if (moduleDir.isDirectory()) {
-                String cnb = moduleDir.getName();
-                Map<String, Pair> pairForHash = pairs.get(cnb);
-                if (pairForHash == null) {
-                    pairs.put(cnb, pairForHash = new HashMap<>());
-                }
-                for (File mf : moduleDir.listFiles()) {
-                    if (mf.isFile()) {
-                        String hash = mf.getName();
-                        Matcher m = PAT.matcher(hash);
-                        if (m.find()) {
-                            hash = m.group(1);
-                        }
-                        Pair pp = pairForHash.get(hash);
-                        if (pp == null) {
-                            pairForHash.put(hash, pp = new Pair());
-                        }
-                        if (mf.getName().endsWith(".json")) {
-                            pp.manifest = mf;
-                        } else if (mf.getName().endsWith(".nbm")) {
-                            pp.nbm = mf;
-                        }
-                    }
-                }
-                for (String key : new LinkedList<>(pairForHash.keySet())) {
-                    Pair pair = pairForHash.get(key);
-                    if (!pair.isComplete()) {
-                        pairForHash.remove(key);
-                    }
+        try {
+            for (Map.Entry<String, Long> e : store().stamps().entrySet()) {
+                moduleStamps.put(e.getKey(), e.getValue());
+                ModuleItem newest = newestIn(e.getKey());
+                if (newest != null) {
+                    this.items.add(newest);
                 }
             }
+        } catch (IOException ex) {
+            logs.get().error("scanFailed").add("store", store().toString()).add(ex).close();
         }
-        for (Map.Entry<String, Map<String, Pair>> e : pairs.entrySet()) {
-            Map<String, Pair> m = e.getValue();
-            List<ModuleItem> items = new LinkedList<>();
-            for (Map.Entry<String, Pair> e1 : m.entrySet()) {
-                if (!e1.getValue().isComplete()) {
-                    continue;
-                }
-                File md = e1.getValue().manifest;
+        resetChanges();
+    }
+
+    /**
+     * Pick up modules written into the store by some other process sharing
+     * it, only examining modules whose stamp has changed since the last scan
+     * or refresh.
+     *
+     * @return The number of modules added or replaced
+     */
+    int refresh() {
+        Map<String, Long> stamps;
+        try {
+            stamps = store().stamps();
+        } catch (IOException ex) {
+            logs.get().warn("refreshFailed").add("store", store().toString()).add(ex).close();
+            return 0;
+        }
+        int result = 0;
+        for (Map.Entry<String, Long> e : stamps.entrySet()) {
+            String cnb = e.getKey();
+            Long old = moduleStamps.put(cnb, e.getValue());
+            if (old != null && old.equals(e.getValue())) {
+                continue;
+            }
+            ModuleItem newest = newestIn(cnb);
+            if (newest == null) {
+                // Possibly a half-written pair - look again next time
+                moduleStamps.remove(cnb);
+                continue;
+            }
+            ModuleItem current = current(newest.getCodeNameBase());
+            if (current == null || (!current.getHash().equals(newest.getHash()) && newest.compareTo(current) < 0)) {
+                recordChange(newest, current);
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private ModuleItem newestIn(String codeNameBase) {
+        List<ModuleItem> items = new LinkedList<>();
+        try {
+            for (byte[] record : store().records(codeNameBase)) {
                 try {
-                    ModuleItem item = mapper.get().readValue(md, ModuleItem.class);
-                    items.add(item);
+                    items.add(mapper.get().readValue(record, ModuleItem.class));
                 } catch (IOException ex) {
                     Exceptions.printStackTrace(ex);
                 }
             }
-            Collections.sort(items);
-            if (!items.isEmpty()) {
-                this.items.add(items.iterator().next());
-            }
+        } catch (IOException ex) {
+            logs.get().warn("readRecordsFailed").add("codeName", codeNameBase).add(ex).close();
         }
+        Collections.sort(items);
+        return items.isEmpty() ? null : items.iterator().next();
     }
 
-    static class ModuleEntry {
+    /**
+     * A module whose files have been written, but which is not yet visible
+     * in the catalog.
+     */
+    static final class StagedModule {
 
-        public final ModuleItem item;
-        public final File metadata;
+        final ModuleItem item;
 
-        public ModuleEntry(ModuleItem item, File metadata) {
+        StagedModule(ModuleItem item) {
             this.item = item;
-            this.metadata = metadata;
         }
-    }
 
-    private static class Pair {
+        public ModuleItem item() {
+            return item;
+        }
+    }
 
-        public File manifest;
-        public File nbm;
+    private static final class Change {
 
-        public boolean isComplete() {
-            return manifest != null && nbm != null;
-        }
+        final long generation;
+        final ModuleItem item;
 
-        @Override
-        public String toString() {
-            return "manifest: " + manifest + " nbm: " + nbm;
+        Change(long generation, ModuleItem item) {
+            this.generation = generation;
+            this.item = item;
         }
     }
 }
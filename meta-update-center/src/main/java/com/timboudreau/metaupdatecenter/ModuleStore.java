@@ -0,0 +1,159 @@
+package com.timboudreau.metaupdatecenter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where module NBMs and their metadata records are kept. A module is stored
+ * as a blob - the NBM - and a record - the JSON the ModuleSet reads back as a
+ * ModuleItem - both keyed by code name base and hash. The blob is written
+ * first; the module does not exist as far as anything reading the store is
+ * concerned until its record is published, which must be atomic, so a
+ * reader (or another server sharing the store) never sees a record whose
+ * blob is incomplete.
+ * <p>
+ * Implementations must be thread-safe. The default keeps one directory per
+ * code name base with a <code>$HASH.nbm</code> and <code>$HASH.json</code>
+ * for each version.
+ *
+ * @author Tim Boudreau
+ */
+public interface ModuleStore {
+
+    /**
+     * The directory the store lives in, which is also where the server keeps
+     * its own state files and spools uploads.
+     *
+     * @return A directory
+     */
+    Path directory();
+
+    /**
+     * Write a module's NBM. Not visible until <code>publish()</code> is
+     * called for the same code name base and hash.
+     *
+     * @param codeNameBase The module's code name base
+     * @param hash The module hash
+     * @param in The bytes, which are read to the end but not closed
+     * @param lastModified The last modified time to record, or 0
+     * @return The number of bytes written
+     * @throws IOException If something goes wrong
+     */
+    long putBlob(String codeNameBase, String hash, InputStream in, long lastModified) throws IOException;
+
+    /**
+     * Atomically make a module visible by storing its metadata record.
+     *
+     * @param codeNameBase The module's code name base
+     * @param hash The module hash
+     * @param record The JSON metadata
+     * @throws IOException If something goes wrong
+     */
+    void publish(String codeNameBase, String hash, byte[] record) throws IOException;
+
+    /**
+     * Remove whatever has been written for a module which failed part way
+     * through being stored.
+     *
+     * @param codeNameBase The module's code name base
+     * @param hash The module hash
+     */
+    void discard(String codeNameBase, String hash);
+
+    /**
+     * Determine if a module's blob and record are both present.
+     *
+     * @param codeNameBase The module's code name base
+     * @param hash The module hash
+     * @return true if it is stored
+     */
+    boolean contains(String codeNameBase, String hash);
+
+    /**
+     * Get a published module's NBM.
+     *
+     * @param codeNameBase The module's code name base
+     * @param hash The module hash
+     * @return The blob, or null if there is none
+     * @throws IOException If something goes wrong
+     */
+    Blob blob(String codeNameBase, String hash) throws IOException;
+
+    /**
+     * Get a published module's metadata record.
+     *
+     * @param codeNameBase The module's code name base
+     * @param hash The module hash
+     * @return The record, or null if there is none
+     * @throws IOException If something goes wrong
+     */
+    byte[] record(String codeNameBase, String hash) throws IOException;
+
+    /**
+     * List every code name base with published records, each with a stamp
+     * which changes whenever a record is published for it, so a caller can
+     * tell which modules to re-read.
+     *
+     * @return A map of code name base to stamp
+     * @throws IOException If something goes wrong
+     */
+    Map<String, Long> stamps() throws IOException;
+
+    /**
+     * Get all published records for one code name base, in no particular
+     * order.
+     *
+     * @param codeNameBase A code name base
+     * @return The records
+     * @throws IOException If something goes wrong
+     */
+    List<byte[]> records(String codeNameBase) throws IOException;
+
+    /**
+     * Read a small named document the server keeps alongside the modules,
+     * such as the generated update center module's state.
+     *
+     * @param name The name
+     * @return The bytes, or null if there is no such document
+     * @throws IOException If something goes wrong
+     */
+    byte[] document(String name) throws IOException;
+
+    /**
+     * Atomically replace a named document.
+     *
+     * @param name The name
+     * @param bytes The content
+     * @throws IOException If something goes wrong
+     */
+    void putDocument(String name, byte[] bytes) throws IOException;
+
+    /**
+     * A stored NBM.
+     */
+    interface Blob {
+
+        long size();
+
+        /**
+         * The last modified time recorded when the blob was written, or the
+         * time it was written if none was.
+         *
+         * @return Milliseconds since the epoch
+         */
+        long lastModified();
+
+        /**
+         * Open a channel positioned at the start of the blob, which reads
+         * exactly <code>size()</code> bytes. The caller closes it.
+         *
+         * @return A channel
+         * @throws IOException If something goes wrong
+         */
+        ReadableByteChannel open() throws IOException;
+    }
+}
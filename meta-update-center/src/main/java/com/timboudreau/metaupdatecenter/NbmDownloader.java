@@ -8,6 +8,7 @@ import com.mastfrog.netty.http.client.HttpClient;
 import com.mastfrog.netty.http.client.HttpRequestBuilder;
 import com.mastfrog.netty.http.client.ResponseFuture;
 import com.mastfrog.netty.http.client.State;
+import com.mastfrog.netty.http.client.StateType;
 import com.mastfrog.util.streams.Streams;
 import com.mastfrog.util.streams.HashingInputStream;
 import com.mastfrog.util.thread.Receiver;
@@ -31,13 +32,18 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.ZonedDateTime;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import javax.inject.Named;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPathExpressionException;
 import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
@@ -49,11 +55,13 @@ import org.xml.sax.SAXException;
 public class NbmDownloader {
 
     private final HttpClient client;
+    private final BlockingIO io;
     private final Logs logs;
 
     @Inject
-    public NbmDownloader(HttpClient client, @Named(UpdateCenterServer.DOWNLOAD_LOGGER) Logs logs) {
+    public NbmDownloader(HttpClient client, BlockingIO io, @Named(UpdateCenterServer.DOWNLOAD_LOGGER) Logs logs) {
         this.client = client;
+        this.io = io;
         this.logs = logs;
     }
 
@@ -87,101 +95,233 @@ public class NbmDownloader {
         if (ifModifiedSince != null) {
             bldr = bldr.addHeader(Headers.IF_MODIFIED_SINCE, ifModifiedSince);
         }
-        ResponseFuture fut = bldr.execute();
-        fut.onAnyEvent(new Receiver<State<?>>() {
-            @Override
-            public void receive(State<?> object) {
-                switch (object.stateType()) {
-                    case Error:
-                        Throwable t = (Throwable) object.get();
-                        logs.trace("dlError").add("url", url).add(t).close();
-                        callback.onError(t);
-                        break;
-                    case HeadersReceived:
-                        HttpResponse hdrs = (HttpResponse) object.get();
-                        logs.trace("dlHeadersReceived").add("url", url).add("status", hdrs.status().toString()).close();
-                        if (!callback.onResponse(hdrs.status(), hdrs.headers())) {
-                            fut.cancel();
-                        }
-                        break;
-                    case Finished:
-                        DefaultFullHttpResponse resp = (DefaultFullHttpResponse) object.get();
-                        logs.trace("dlFinished").add("url", url).add("status", resp.status().toString()).close();
-                        resp.touch("nbm-downloader-finished");
-                        if (!callback.onResponse(resp.status(), resp.headers())) {
-                            return;
-                        }
-                        ByteBuf buf = resp.content();
-                        buf.touch("nbm-downloader-finished");
-                        handleDownloadedNBM(buf, callback, url);
-                        break;
-                    default:
-                        break;
-                }
-            }
-        });
+        // Registered on the builder, not the future execute() returns: a
+        // quick answer - a 304 from a server on the same host - can arrive
+        // before execute() returns, and the future does not replay events
+        // to listeners added after they happened
+        DownloadReceiver receiver = new DownloadReceiver(url, callback);
+        ResponseFuture fut = bldr.onEvent(receiver).execute();
+        receiver.started(fut);
         return fut;
     }
 
-    protected void handleDownloadedNBM(ByteBuf buf, DownloadHandler callback, String url) {
-        InfoFile moduleInfo = null;
-        try (HashingInputStream stream = HashingInputStream.sha1(new ByteBufInputStream(buf))) {
-            ZipInputStream in = new ZipInputStream(stream, CharsetUtil.UTF_8);
-            for (ZipEntry e = in.getNextEntry(); e != null; e = in.getNextEntry()) {
-                try {
-                    if ("Info/info.xml".equals(e.getName())) {
-                        long size = e.getSize();
-                        if (size == -1) {
-                            size = 32768;
-                        }
+    /**
+     * Passes the events of one download to its handler, making sure the
+     * handler hears something even if the connection closes or times out
+     * before a response is complete.
+     */
+    private final class DownloadReceiver extends Receiver<State<?>> {
 
-                        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-                        byte[] buffer = new byte[Math.min(4096, (int) size)];
-                        int read = 0;
-                        int len = 0;
-                        while ((read = in.read(buffer)) > 0) {
-                            if (read != -1) {
-                                len += read;
-                                out.write(buffer, 0, read);
-                            } else {
-                                break;
-                            }
-                        }
-                        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-                        dbFactory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
-
-                        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-                        Document doc = dBuilder.parse(new ByteArrayInputStream(out.toByteArray(), 0, len));
-                        doc.getDocumentElement().normalize();
-                        moduleInfo = new InfoFile(doc);
-                        break;
+        private final String url;
+        private final DownloadHandler callback;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile ResponseFuture future;
+        private volatile boolean cancel;
+
+        DownloadReceiver(String url, DownloadHandler callback) {
+            this.url = url;
+            this.callback = callback;
+        }
+
+        void started(ResponseFuture future) {
+            this.future = future;
+            if (cancel) {
+                future.cancel();
+            }
+        }
+
+        private void cancel() {
+            cancel = true;
+            ResponseFuture fut = future;
+            if (fut != null) {
+                fut.cancel();
+            }
+        }
+
+        @Override
+        public void receive(State<?> object) {
+            switch (object.stateType()) {
+                case Error:
+                    Throwable t = (Throwable) object.get();
+                    logs.trace("dlError").add("url", url).add(t).close();
+                    if (done.compareAndSet(false, true)) {
+                        callback.onError(t);
                     }
-                } finally {
-                    in.closeEntry();
-                }
+                    break;
+                case HeadersReceived:
+                    HttpResponse hdrs = (HttpResponse) object.get();
+                    logs.trace("dlHeadersReceived").add("url", url).add("status", hdrs.status().toString()).close();
+                    if (!callback.onResponse(hdrs.status(), hdrs.headers())) {
+                        done.set(true);
+                        cancel();
+                    }
+                    break;
+                case Finished:
+                    DefaultFullHttpResponse resp = (DefaultFullHttpResponse) object.get();
+                    logs.trace("dlFinished").add("url", url).add("status", resp.status().toString()).close();
+                    resp.touch("nbm-downloader-finished");
+                    if (!done.compareAndSet(false, true) || !callback.onResponse(resp.status(), resp.headers())) {
+                        return;
+                    }
+                    ByteBuf buf = resp.content();
+                    buf.touch("nbm-downloader-finished");
+                    // Hashing, parsing and storing the NBM block, so they
+                    // run on the blocking I/O pool rather than the client's
+                    // event loop, on a copy the client cannot release
+                    ByteBuf copy = buf.copy();
+                    if (buf.refCnt() > 0) {
+                        buf.release();
+                    }
+                    try {
+                        io.execute(() -> handleDownloadedNBM(copy, callback, url));
+                    } catch (RejectedExecutionException ex) {
+                        copy.release();
+                        callback.onError(ex);
+                    }
+                    break;
+                case Closed:
+                case Timeout:
+                    if (done.compareAndSet(false, true)) {
+                        logs.trace("dlIncomplete").add("url", url).add("state", object.stateType().name()).close();
+                        callback.onError(new IOException(object.stateType() == StateType.Timeout
+                                ? "Timed out downloading " + url
+                                : "Connection closed before " + url + " was downloaded"));
+                    }
+                    break;
+                default:
+                    break;
             }
+        }
+    }
+
+    protected void handleDownloadedNBM(ByteBuf buf, DownloadHandler callback, String url) {
+        FlightEvents.NbmParse event = new FlightEvents.NbmParse();
+        boolean recording = event.isEnabled();
+        event.begin();
+        long start = recording ? System.nanoTime() : 0;
+        long parsed = 0;
+        if (recording) {
+            event.url = url;
+            event.bytes = buf.readableBytes();
+        }
+        try (HashingInputStream stream = HashingInputStream.sha1(new ByteBufInputStream(buf))) {
+            InfoFile moduleInfo = readInfoFile(new ZipInputStream(stream, CharsetUtil.UTF_8));
             stream.close();
             String hash = stream.getHashAsString();
+            if (recording) {
+                parsed = System.nanoTime();
+                event.parseNanos = parsed - start;
+                event.codeNameBase = codeNameBase(moduleInfo);
+            }
             buf.resetReaderIndex();
             buf.touch("pass-to-download-callback");
             callback.onModuleDownload(moduleInfo, new ByteBufInputStream(buf), hash, url);
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (recording) {
+                event.error = e.toString();
+            }
+            callback.onError(e);
+        } finally {
             if (buf.refCnt() > 0) {
                 buf.release();
             }
+            if (recording && event.shouldCommit()) {
+                if (parsed != 0) {
+                    event.handlerNanos = System.nanoTime() - parsed;
+                }
+                event.commit();
+            }
+        }
+    }
+
+    private static String codeNameBase(InfoFile info) {
+        try {
+            return info.getModuleCodeName();
+        } catch (XPathExpressionException ex) {
+            return null;
+        }
+    }
 
+    /**
+     * Process an NBM which is already on disk, without reading it into
+     * memory.  The hash is computed exactly as it is for downloaded NBMs, so
+     * the same file arriving by either route is recognized as the same module.
+     *
+     * @param file The file
+     * @param url The URL to report as its source
+     * @param callback Called synchronously with the result
+     */
+    void handleLocalNBM(Path file, String url, DownloadHandler callback) {
+        try {
+            InfoFile moduleInfo;
+            String hash;
+            // Unbuffered, so the bytes hashed are exactly the ones the zip
+            // stream asks for, as with a ByteBufInputStream
+            try (HashingInputStream stream = HashingInputStream.sha1(Files.newInputStream(file))) {
+                moduleInfo = readInfoFile(new ZipInputStream(stream, CharsetUtil.UTF_8));
+                stream.close();
+                hash = stream.getHashAsString();
+            }
+            try (InputStream in = Files.newInputStream(file)) {
+                callback.onModuleDownload(moduleInfo, in, hash, url);
+            }
         } catch (Exception e) {
-            e.printStackTrace();
             callback.onError(e);
-        } finally {
-//            buf.release();
         }
     }
 
+    private static InfoFile readInfoFile(ZipInputStream in) throws IOException, ParserConfigurationException, SAXException {
+        for (ZipEntry e = in.getNextEntry(); e != null; e = in.getNextEntry()) {
+            try {
+                if ("Info/info.xml".equals(e.getName())) {
+                    long size = e.getSize();
+                    if (size == -1) {
+                        size = 32768;
+                    }
+
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+                    byte[] buffer = new byte[Math.min(4096, (int) size)];
+                    int read = 0;
+                    int len = 0;
+                    while ((read = in.read(buffer)) > 0) {
+                        if (read != -1) {
+                            len += read;
+                            out.write(buffer, 0, read);
+                        } else {
+                            break;
+                        }
+                    }
+                    DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+                    dbFactory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+
+                    DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+                    Document doc = dBuilder.parse(new ByteArrayInputStream(out.toByteArray(), 0, len));
+                    doc.getDocumentElement().normalize();
+                    return new InfoFile(doc);
+                }
+            } finally {
+                in.closeEntry();
+            }
+        }
+        return null;
+    }
+
     interface DownloadHandler {
 
         boolean onResponse(HttpResponseStatus status, HttpHeaders headers);
 
+        /**
+         * Called when a source has answered with the headers of a 200
+         * response and its body is on the way, for timing.
+         *
+         * @param url The source which answered
+         */
+        default void onHeadersReceived(String url) {
+            // do nothing
+        }
+
         void onModuleDownload(InfoFile module, InputStream bytes, String hash, String url);
 
         void onError(Throwable t);
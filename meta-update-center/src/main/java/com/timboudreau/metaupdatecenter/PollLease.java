@@ -0,0 +1,308 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.bunyan.java.v2.Log;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
+import com.mastfrog.util.collections.StringObjectMap;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.GUICE_BINDING_POLLER_THREAD_POOL;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_CLUSTER_ENABLED;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_CLUSTER_LEASE_SECONDS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_CLUSTER_NODE_ID;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_CLUSTER_REFRESH_SECONDS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SYSTEM_LOGGER;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Leader election for several servers sharing one nbm.dir (e.g. on an NFS
+ * volume). The holder of the lease file in that directory is the only node
+ * which polls upstream servers or ingests NBMs; each acquisition increments a
+ * fencing token, and ModuleSet refuses to publish if the lease file no longer
+ * carries this node's token - so a node which stalled past its lease expiry
+ * cannot clobber the new leader's writes. Other nodes periodically refresh
+ * their ModuleSet from the metadata files the leader writes.
+ * <p>
+ * Lease expiry uses wall-clock time, so nodes' clocks need to be reasonably
+ * in sync (well within the lease duration).
+ * </p>
+ * If clustering is not enabled, every node is its own leader.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+public class PollLease {
+
+    static final String LEASE_FILE_NAME = ".poll-lease.json";
+    private static final String LOCK_FILE_NAME = ".poll-lease.lock";
+    private final Path leaseFile;
+    private final Path lockFile;
+    private final String owner;
+    private final Duration duration;
+    private final ObjectMapper mapper;
+    private final Logs logs;
+    private final boolean enabled;
+    private volatile long token = -1;
+    private volatile long expires;
+
+    @Inject
+    PollLease(Settings settings, ModuleSet set, ObjectMapper mapper,
+            @Named(SYSTEM_LOGGER) Logs logs,
+            @Named(GUICE_BINDING_POLLER_THREAD_POOL) ScheduledExecutorService pool,
+            ShutdownHookRegistry reg) {
+        this(set.getStorageDir().toPath(), nodeId(settings),
+                Duration.ofSeconds(settings.getLong(SETTINGS_KEY_CLUSTER_LEASE_SECONDS, 60)),
+                mapper, logs, settings.getBoolean(SETTINGS_KEY_CLUSTER_ENABLED, false));
+        if (enabled) {
+            // Renewal gets a thread of its own: queued behind slow work on the
+            // shared pool, the lease could lapse while this node is healthy
+            ScheduledExecutorService renewer = Executors.newSingleThreadScheduledExecutor(
+                    new DaemonThreadFactory("poll-lease-"));
+            long renewMillis = Math.max(250, duration.toMillis() / 3);
+            renewer.scheduleWithFixedDelay(this::renew, 0, renewMillis, TimeUnit.MILLISECONDS);
+            long refreshSeconds = settings.getLong(SETTINGS_KEY_CLUSTER_REFRESH_SECONDS, 15);
+            pool.scheduleWithFixedDelay(() -> {
+                try {
+                    int found = set.refresh();
+                    if (found > 0) {
+                        logs.info("clusterRefresh").add("newModules", found)
+                                .add("leader", isLeader()).close();
+                    }
+                } catch (Exception | Error e) {
+                    logs.error("clusterRefresh").add(e).close();
+                }
+            }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+            reg.add((Runnable) this::release);
+            // Hooks run in reverse order, so renewal stops before the release
+            reg.add(renewer);
+        }
+    }
+
+    PollLease(Path dir, String owner, Duration duration, ObjectMapper mapper, Logs logs, boolean enabled) {
+        this.leaseFile = dir.resolve(LEASE_FILE_NAME);
+        this.lockFile = dir.resolve(LOCK_FILE_NAME);
+        this.owner = owner;
+        this.duration = duration;
+        this.mapper = mapper;
+        this.logs = logs;
+        this.enabled = enabled;
+    }
+
+    private static String nodeId(Settings settings) {
+        String result = settings.getString(SETTINGS_KEY_CLUSTER_NODE_ID);
+        if (result == null) {
+            // pid@host, plus a suffix so several servers in one JVM differ
+            result = ManagementFactory.getRuntimeMXBean().getName() + "-"
+                    + Integer.toString(ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE), 36);
+        }
+        return result;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String owner() {
+        return owner;
+    }
+
+    /**
+     * Whether this node currently holds the lease (always true if clustering
+     * is not enabled).
+     *
+     * @return true if this node may poll and ingest
+     */
+    public boolean isLeader() {
+        return !enabled || (token >= 0 && System.currentTimeMillis() < expires);
+    }
+
+    /**
+     * The fencing token of the lease this node holds, or -1.
+     *
+     * @return The token
+     */
+    public long token() {
+        return isLeader() ? token : -1;
+    }
+
+    /**
+     * Verify, against the lease file itself rather than this node's cached
+     * view of it, that this node still holds the lease with the same token,
+     * before writing anything into the shared directory.
+     *
+     * @throws IOException if the lease has been lost or taken over
+     */
+    public void checkFence() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        long myToken = token;
+        Lease current = read();
+        if (myToken < 0 || current == null || !owner.equals(current.owner)
+                || current.token != myToken || current.isExpired()) {
+            throw new IOException("Not the holder of " + leaseFile + " (my token "
+                    + myToken + ", lease " + current + ")");
+        }
+    }
+
+    /**
+     * Acquire or extend the lease, if it is free, expired or already ours.
+     *
+     * @return true if this node holds the lease afterwards
+     */
+    boolean renew() {
+        if (!enabled) {
+            return true;
+        }
+        boolean wasLeader = isLeader();
+        try (Log log = logs.debug("pollLease")) {
+            log.add("owner", owner);
+            try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                // The lock makes read-modify-write atomic where the filesystem
+                // supports it; the re-read after the rename is the fallback
+                // where it does not
+                FileLock lock;
+                try {
+                    lock = channel.tryLock();
+                } catch (OverlappingFileLockException ex) {
+                    // Another node in this JVM is mid-renewal
+                    lock = null;
+                }
+                if (lock == null) {
+                    log.add("busy", true);
+                    return isLeader();
+                }
+                try {
+                    Lease current = read();
+                    long now = System.currentTimeMillis();
+                    Lease next;
+                    if (current == null) {
+                        next = new Lease(owner, 1, now + duration.toMillis());
+                    } else if (owner.equals(current.owner) && current.token == token && !current.isExpired()) {
+                        next = new Lease(owner, current.token, now + duration.toMillis());
+                    } else if (current.isExpired()) {
+                        next = new Lease(owner, current.token + 1, now + duration.toMillis());
+                    } else {
+                        token = -1;
+                        log.add("holder", current.owner).add("holderToken", current.token);
+                        return false;
+                    }
+                    write(next);
+                    Lease check = read();
+                    if (check != null && owner.equals(check.owner) && check.token == next.token) {
+                        token = next.token;
+                        expires = next.expires;
+                        log.add("token", token).add("expires", expires);
+                        return true;
+                    }
+                    token = -1;
+                    return false;
+                } finally {
+                    lock.release();
+                }
+            }
+        } catch (IOException ex) {
+            logs.error("pollLease").add("owner", owner).add(ex).close();
+            return isLeader();
+        } finally {
+            boolean nowLeader = isLeader();
+            if (nowLeader != wasLeader) {
+                logs.warn("pollLeadership").add("owner", owner)
+                        .add("leader", nowLeader).add("token", token).close();
+            }
+        }
+    }
+
+    /**
+     * Give up the lease, if held, so another node need not wait for it to
+     * expire.
+     */
+    void release() {
+        if (!enabled || token < 0) {
+            return;
+        }
+        try {
+            Lease current = read();
+            if (current != null && owner.equals(current.owner) && current.token == token) {
+                write(new Lease(owner, token, 0));
+            }
+        } catch (IOException ex) {
+            logs.warn("releaseLease").add(ex).close();
+        } finally {
+            token = -1;
+        }
+    }
+
+    private Lease read() throws IOException {
+        try (InputStream in = Files.newInputStream(leaseFile)) {
+            Map<String, Object> m = mapper.readValue(in, StringObjectMap.class);
+            return new Lease((String) m.get("owner"), ((Number) m.get("token")).longValue(),
+                    ((Number) m.get("expires")).longValue());
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    private void write(Lease lease) throws IOException {
+        Path tmp = leaseFile.resolveSibling(LEASE_FILE_NAME + "." + owner.hashCode() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            mapper.writeValue(out, lease.toMap());
+        }
+        try {
+            Files.move(tmp, leaseFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, leaseFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static final class Lease {
+
+        final String owner;
+        final long token;
+        final long expires;
+
+        Lease(String owner, long token, long expires) {
+            this.owner = owner;
+            this.token = token;
+            this.expires = expires;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+
+        StringObjectMap toMap() {
+            StringObjectMap result = new StringObjectMap();
+            result.put("owner", owner);
+            result.put("token", token);
+            result.put("expires", expires);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return owner + ":" + token + (isExpired() ? " (expired)" : "");
+        }
+    }
+}
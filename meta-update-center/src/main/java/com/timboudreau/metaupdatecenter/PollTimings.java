@@ -0,0 +1,367 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.settings.Settings;
+import com.timboudreau.metaupdatecenter.Poller.PollerProbe;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_POLL_TIMINGS_CYCLES;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * Records how long each module took in each poll cycle - time to the
+ * response headers, time to the complete body, time to ingest it, bytes and
+ * status - for the last few cycles, so a slow cycle can be traced to the
+ * upstreams responsible. Served as JSON with percentiles by
+ * <code>/poll/timings</code>.
+ * <p>
+ * Times are measured from when the poller asked for the module, so with
+ * many modules in flight at once they include time spent waiting for a
+ * connection.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class PollTimings implements PollerProbe {
+
+    private static final int SLOWEST_COUNT = 10;
+    private final int maxCycles;
+    private final Deque<Cycle> cycles = new ArrayDeque<>();
+    /**
+     * The timing of each module's latest attempt, so that callbacks which
+     * arrive after the next cycle has begun are credited to the cycle which
+     * made the request. ModuleItem does not override equals(), so this is
+     * keyed by identity.
+     */
+    private final Map<ModuleItem, ModuleTiming> inFlight = new ConcurrentHashMap<>();
+    private volatile Cycle current;
+
+    @Inject
+    PollTimings(Settings settings) {
+        maxCycles = Math.max(1, settings.getInt(SETTINGS_KEY_POLL_TIMINGS_CYCLES, 24));
+    }
+
+    @Override
+    public void onPollCycleStarted(int run, int modules) {
+        Cycle cycle = new Cycle(run, modules);
+        synchronized (cycles) {
+            cycles.addLast(cycle);
+            while (cycles.size() > maxCycles) {
+                cycles.removeFirst();
+            }
+        }
+        current = cycle;
+    }
+
+    private ModuleTiming timing(ModuleItem item) {
+        return inFlight.get(item);
+    }
+
+    private void finish(ModuleItem item, ModuleTiming t) {
+        t.finish();
+        inFlight.remove(item, t);
+    }
+
+    @Override
+    public void onAttemptDownload(ModuleItem item) {
+        Cycle cycle = current;
+        if (cycle != null) {
+            ModuleTiming t = new ModuleTiming(item);
+            cycle.modules.put(item.getCodeNameBase(), t);
+            inFlight.put(item, t);
+        }
+    }
+
+    @Override
+    public void onHeadersReceived(ModuleItem item, String url) {
+        ModuleTiming t = timing(item);
+        if (t != null && t.headersAt == 0) {
+            t.source = url;
+            t.headersAt = System.nanoTime();
+        }
+    }
+
+    @Override
+    public void onDownloadStatus(ModuleItem item, HttpResponseStatus status) {
+        ModuleTiming t = timing(item);
+        if (t != null) {
+            t.status = status.code();
+            if (!HttpResponseStatus.OK.equals(status)) {
+                finish(item, t);
+            }
+        }
+    }
+
+    @Override
+    public void onNewVersionDownloaded(ModuleItem item, InfoFile module, String url) {
+        ModuleTiming t = timing(item);
+        if (t != null) {
+            t.bodyAt = System.nanoTime();
+        }
+    }
+
+    @Override
+    public void onIngested(ModuleItem item, long bytes, long nanos) {
+        ModuleTiming t = timing(item);
+        if (t != null) {
+            t.bytes = bytes;
+            t.ingestNanos = nanos;
+            finish(item, t);
+        }
+    }
+
+    @Override
+    public void onError(ModuleItem item, Throwable thrown) {
+        ModuleTiming t = timing(item);
+        if (t != null) {
+            t.error = String.valueOf(thrown);
+            finish(item, t);
+        }
+    }
+
+    @Override
+    public void onPollCycleCompleted(ModuleSet set) {
+        end(current);
+    }
+
+    @Override
+    public void onPollCycleCompleted(int run, ModuleSet set) {
+        Cycle cycle = null;
+        synchronized (cycles) {
+            for (Cycle c : cycles) {
+                if (c.run == run) {
+                    cycle = c;
+                }
+            }
+        }
+        end(cycle);
+    }
+
+    private static void end(Cycle cycle) {
+        if (cycle != null && cycle.endedAt == 0) {
+            cycle.endedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * The retained cycles, newest first, and the upstreams which have been
+     * slowest across all of them.
+     *
+     * @param includeModules If true, include every module's timings
+     * @return A map to serialize as JSON
+     */
+    Map<String, Object> snapshot(boolean includeModules) {
+        List<Cycle> all;
+        synchronized (cycles) {
+            all = new ArrayList<>(cycles);
+        }
+        List<Object> cycleInfo = new ArrayList<>(all.size());
+        Map<String, List<ModuleTiming>> byUpstream = new HashMap<>();
+        for (int i = all.size() - 1; i >= 0; i--) {
+            Cycle cycle = all.get(i);
+            cycleInfo.add(cycle.describe(includeModules));
+            for (ModuleTiming t : cycle.modules.values()) {
+                if (t.finishedAt != 0) {
+                    byUpstream.computeIfAbsent(t.upstream(), u -> new ArrayList<>()).add(t);
+                }
+            }
+        }
+        List<Map<String, Object>> slowest = new ArrayList<>();
+        byUpstream.forEach((url, timings) -> {
+            long[] totals = millis(timings, ModuleTiming::totalNanos);
+            Map<String, Object> info = new LinkedHashMap<>();
+            info.put("url", url);
+            info.put("host", CircuitBreakers.host(url));
+            info.put("samples", totals.length);
+            info.put("medianMillis", percentile(totals, 50));
+            info.put("maxMillis", totals[totals.length - 1]);
+            info.put("medianTimeToHeadersMillis", percentile(millis(timings, ModuleTiming::headersNanos), 50));
+            ModuleTiming last = timings.get(timings.size() - 1);
+            info.put("lastStatus", last.status);
+            info.put("lastError", last.error);
+            slowest.add(info);
+        });
+        slowest.sort((a, b) -> Long.compare((Long) b.get("medianMillis"), (Long) a.get("medianMillis")));
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("cycles", cycleInfo);
+        result.put("slowestUpstreams", slowest.subList(0, Math.min(SLOWEST_COUNT, slowest.size())));
+        return result;
+    }
+
+    /**
+     * Sorted milliseconds, leaving out modules which never got as far as the
+     * event being measured.
+     */
+    private static long[] millis(Collection<ModuleTiming> timings, ToLongFunction<ModuleTiming> f) {
+        long[] result = new long[timings.size()];
+        int count = 0;
+        for (ModuleTiming t : timings) {
+            long nanos = f.applyAsLong(t);
+            if (nanos >= 0) {
+                result[count++] = TimeUnit.NANOSECONDS.toMillis(nanos);
+            }
+        }
+        result = Arrays.copyOf(result, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Nearest-rank percentile of sorted values, or -1 if there are none.
+     */
+    static long percentile(long[] sorted, int pct) {
+        if (sorted.length == 0) {
+            return -1;
+        }
+        int rank = (int) Math.ceil(pct / 100D * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    private static Map<String, Object> summary(long[] sorted) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", sorted.length);
+        if (sorted.length > 0) {
+            result.put("p50", percentile(sorted, 50));
+            result.put("p90", percentile(sorted, 90));
+            result.put("p99", percentile(sorted, 99));
+            result.put("max", sorted[sorted.length - 1]);
+        }
+        return result;
+    }
+
+    private static final class Cycle {
+
+        final int run;
+        final int moduleCount;
+        final long started = System.currentTimeMillis();
+        final long startedAt = System.nanoTime();
+        volatile long endedAt;
+        final Map<String, ModuleTiming> modules = new ConcurrentHashMap<>();
+
+        Cycle(int run, int moduleCount) {
+            this.run = run;
+            this.moduleCount = moduleCount;
+        }
+
+        Map<String, Object> describe(boolean includeModules) {
+            List<ModuleTiming> all = new ArrayList<>(modules.values());
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("run", run);
+            result.put("started", started);
+            long end = endedAt;
+            result.put("durationMillis", TimeUnit.NANOSECONDS.toMillis((end == 0 ? System.nanoTime() : end) - startedAt));
+            result.put("complete", end != 0);
+            result.put("modules", moduleCount);
+            result.put("attempted", all.size());
+            int finished = 0;
+            int failed = 0;
+            long bytes = 0;
+            Map<Integer, Integer> statuses = new HashMap<>();
+            for (ModuleTiming t : all) {
+                if (t.finishedAt != 0) {
+                    finished++;
+                }
+                if (t.error != null || t.status >= 400) {
+                    failed++;
+                }
+                if (t.status > 0) {
+                    statuses.merge(t.status, 1, Integer::sum);
+                }
+                bytes += t.bytes;
+            }
+            result.put("finished", finished);
+            result.put("failed", failed);
+            result.put("statuses", statuses);
+            result.put("bytes", bytes);
+            result.put("timeToHeadersMillis", summary(millis(all, ModuleTiming::headersNanos)));
+            result.put("timeToBodyMillis", summary(millis(all, ModuleTiming::bodyNanos)));
+            result.put("ingestMillis", summary(millis(all, ModuleTiming::ingest)));
+            result.put("totalMillis", summary(millis(all, ModuleTiming::totalNanos)));
+            if (includeModules) {
+                List<Object> details = new ArrayList<>(all.size());
+                for (ModuleTiming t : all) {
+                    details.add(t.describe());
+                }
+                result.put("details", details);
+            }
+            return result;
+        }
+    }
+
+    private static final class ModuleTiming {
+
+        final String cnb;
+        final String from;
+        final long startedAt = System.nanoTime();
+        volatile String source;
+        volatile long headersAt;
+        volatile long bodyAt;
+        volatile long finishedAt;
+        volatile long ingestNanos = -1;
+        volatile long bytes;
+        volatile int status;
+        volatile String error;
+
+        ModuleTiming(ModuleItem item) {
+            this.cnb = item.getCodeNameBase();
+            this.from = item.getFrom();
+        }
+
+        void finish() {
+            if (finishedAt == 0) {
+                finishedAt = System.nanoTime();
+            }
+        }
+
+        String upstream() {
+            return source == null ? from : source;
+        }
+
+        long headersNanos() {
+            return headersAt == 0 ? -1 : headersAt - startedAt;
+        }
+
+        long bodyNanos() {
+            return bodyAt == 0 ? -1 : bodyAt - startedAt;
+        }
+
+        long ingest() {
+            return ingestNanos;
+        }
+
+        long totalNanos() {
+            return finishedAt == 0 ? -1 : finishedAt - startedAt;
+        }
+
+        Map<String, Object> describe() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("cnb", cnb);
+            result.put("url", upstream());
+            result.put("status", status);
+            result.put("timeToHeadersMillis", toMillis(headersNanos()));
+            result.put("timeToBodyMillis", toMillis(bodyNanos()));
+            result.put("ingestMillis", toMillis(ingestNanos));
+            result.put("totalMillis", toMillis(totalNanos()));
+            result.put("bytes", bytes);
+            if (error != null) {
+                result.put("error", error);
+            }
+            return result;
+        }
+
+        private static long toMillis(long nanos) {
+            return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+    }
+}
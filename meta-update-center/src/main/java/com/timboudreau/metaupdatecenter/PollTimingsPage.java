@@ -0,0 +1,35 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.annotations.HttpCall;
+import com.mastfrog.acteur.header.entities.CacheControl;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Method.GET;
+import com.mastfrog.acteur.preconditions.Authenticated;
+import com.mastfrog.acteur.preconditions.Description;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.Path;
+import com.mastfrog.mime.MimeType;
+
+/**
+ * Timings of recent poll cycles, with percentiles and the slowest upstreams.
+ *
+ * @author Tim Boudreau
+ */
+@HttpCall
+@Path("/poll/timings")
+@Authenticated
+@Methods(GET)
+@Description("Get timings of recent poll cycles with percentiles and the slowest "
+        + "upstream URLs; pass ?modules=true for every module's timings")
+public class PollTimingsPage extends Acteur {
+
+    @Inject
+    PollTimingsPage(PollTimings timings, HttpEvent evt) {
+        add(Headers.CONTENT_TYPE, MimeType.JSON_UTF_8);
+        add(Headers.CACHE_CONTROL, CacheControl.PRIVATE_NO_CACHE_NO_STORE);
+        ok(timings.snapshot("true".equals(evt.urlParameter("modules"))));
+    }
+}
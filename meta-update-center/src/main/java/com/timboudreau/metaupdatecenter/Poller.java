@@ -6,6 +6,7 @@ import com.mastfrog.acteur.headers.Headers;
 import com.mastfrog.bunyan.java.v2.Log;
 import com.mastfrog.bunyan.java.v2.Logs;
 import com.mastfrog.netty.http.client.HttpClient;
+import com.mastfrog.settings.Settings;
 import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
 import com.mastfrog.util.preconditions.ConfigurationError;
 import com.mastfrog.util.preconditions.Exceptions;
@@ -19,20 +20,20 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URISyntaxException;
 import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.inject.Named;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.xpath.XPathExpressionException;
-import org.xml.sax.SAXException;
 
 /**
  *
@@ -41,7 +42,8 @@ import org.xml.sax.SAXException;
 public class Poller implements Runnable {
 
     private final ModuleSet set;
-    private final NbmDownloader downloader;
+    private final MirrorDownloader downloader;
+    private final CircuitBreakers breakers;
     private final Logs pollLogger;
     private final PollerProbe probe;
     private ScheduledFuture<?> future;
@@ -51,14 +53,17 @@ public class Poller implements Runnable {
     private long interval;
     private final ScheduledExecutorService pollThreadPool;
     private int pollLoops;
+    private final boolean replica;
+    private final PollLease lease;
 
     @Inject
     Poller(ModuleSet set, @Named(SETTINGS_KEY_POLL_INTERVAL_MINUTES) long interval,
             @Named(SETTINGS_KEY_POLL_INITIAL_DELAY_MINUTES) long initialDelay,
-            HttpClient client, ShutdownHookRegistry registry, NbmDownloader downloader,
+            HttpClient client, ShutdownHookRegistry registry, MirrorDownloader downloader,
+            CircuitBreakers breakers,
             @Named(GUICE_BINDING_POLLER_THREAD_POOL) ScheduledExecutorService pollThreadPool,
             @Named(UpdateCenterServer.DOWNLOAD_LOGGER) Logs pollLogger,
-            PollerProbe probe) {
+            PollerProbe probe, PollTimings timings, Settings settings, PollLease lease) {
         if (interval <= 0) {
             throw new ConfigurationError("Poll interval must be > 0 but is " + interval);
         }
@@ -66,13 +71,22 @@ public class Poller implements Runnable {
             throw new ConfigurationError("Poll initial delay must be >= 0 but is " + initialDelay);
         }
         this.pollThreadPool = pollThreadPool;
+        this.lease = lease;
         this.initialDelay = initialDelay;
         this.interval = interval;
-        this.probe = probe;
+        // Tests bind their own probe; keep recording timings regardless
+        this.probe = probe == timings ? probe : new BothProbes(timings, probe);
         this.downloader = downloader;
+        this.breakers = breakers;
         this.set = set;
         this.pollLogger = pollLogger;
         registry.add((Runnable) client::shutdown);
+        // Replicas get their modules from the primary, which does the polling
+        replica = Replicator.isFollower(settings);
+        if (replica) {
+            pollLogger.info("schedulePollTask").add("replica", true).close();
+            return;
+        }
         future = pollThreadPool.scheduleWithFixedDelay(this, initialDelay, interval, TimeUnit.MINUTES);
         pollLogger.info("schedulePollTask").add("initialMinutes", initialDelay)
                 .add("interval", interval)
@@ -85,10 +99,19 @@ public class Poller implements Runnable {
 
     public synchronized boolean pollNow() {
         try (Log log = pollLogger.warn("scheduleImmediatePollRun")) {
+            if (replica) {
+                log.add("success", false).add("pollingState", "replica");
+                return false;
+            }
             if (polling) {
                 log.add("success", false).add("pollingState", "running");
                 return false;
             }
+            if (!lease.isLeader()) {
+                // The run would be skipped; leave the schedule alone
+                log.add("success", false).add("pollingState", "notLeader");
+                return false;
+            }
             if (future.isCancelled()) {
                 log.add("success", false).add("pendingState", "enqueued");
                 return false;
@@ -110,9 +133,19 @@ public class Poller implements Runnable {
 
     @Override
     public void run() {
-        polling = true;
-        int loop = pollLoops++;
+        if (replica) {
+            return;
+        }
+        boolean leader = lease.isLeader();
+        int loop = leader ? pollLoops++ : pollLoops;
         try {
+            if (!leader) {
+                // Another node sharing nbm.dir does the polling; the finally
+                // block still restores the schedule if pollNow() cancelled it
+                pollLogger.debug("skipPoll").add("leaseHolder", false).close();
+                return;
+            }
+            polling = true;
             String msg = "Poll NBMs at " + Headers.toISO2822Date(ZonedDateTime.now());
             Thread.currentThread().setName(msg);
             Set<ModuleItem> pending = ConcurrentHashMap.newKeySet(set.size());
@@ -126,99 +159,140 @@ public class Poller implements Runnable {
                     .add("pollRun", loop)
                     .add("polling", shuffled.size())
                     .close();
-            for (final ModuleItem item : shuffled) {
-                try (Log log = loopLogs.trace("polling")) {
-                    if (UpdateCenterServer.DUMMY_URL.equals(item.getFrom())) {
-                        pollLogger.debug("skipInternalModule").add(item.getFrom())
+            probe.onPollCycleStarted(loop, shuffled.size());
+            Cycle cycle = new Cycle(loop, loopLogs);
+            try {
+                for (final ModuleItem item : shuffled) {
+                    try (Log log = loopLogs.trace("polling")) {
+                        if (UpdateCenterServer.DUMMY_URL.equals(item.getFrom())) {
+                            pollLogger.debug("skipInternalModule").add(item.getFrom())
+                                    .add("cnb", item.getCodeNameBase()).close();
+                            continue;
+                        }
+                        if (item.getFrom().startsWith(UpdateCenterServer.UPLOAD_URL_PREFIX)) {
+                            // Pushed to us; there is nothing upstream to poll
+                            continue;
+                        }
+                        if (!breakers.anyPermitted(item.sources())) {
+                            // Failing upstream which is backing off; don't waste
+                            // a connection on it until its circuit is half-open
+                            log.add("circuitOpen", item.getFrom()).add("cnb", item.getCodeNameBase());
+                            continue;
+                        }
+                        pending.add(item);
+                        cycle.attempting();
+                        probe.onAttemptDownload(item);
+                        log.add("downloadAttempt", item.getFrom()).add("hash", item.getHash())
                                 .add("cnb", item.getCodeNameBase()).close();
-                        continue;
-                    }
-                    pending.add(item);
-                    probe.onAttemptDownload(item);
-                    log.add("downloadAttempt", item.getFrom()).add("hash", item.getHash())
-                            .add("cnb", item.getCodeNameBase()).close();
-                    downloader.download(item.getDownloaded(), item.getFrom(), new DownloadHandler() {
-                        ZonedDateTime lastModified;
-
-                        @Override
-                        public boolean onResponse(HttpResponseStatus status, HttpHeaders headers) {
-                            if (status.code() > 399) {
-                                loopLogs.warn("downloadFail")
-                                        .add("url", item.getFrom()).add("status", status.code()).close();
+                        FlightEvents.ModulePoll event = new FlightEvents.ModulePoll();
+                        event.begin();
+                        if (event.isEnabled()) {
+                            event.pollRun = loop;
+                            event.codeNameBase = item.getCodeNameBase();
+                            event.url = item.getFrom();
+                        }
+                        downloader.download(item, item.getDownloaded(), new DownloadHandler() {
+                            ZonedDateTime lastModified;
+
+                            @Override
+                            public void onHeadersReceived(String url) {
+                                probe.onHeadersReceived(item, url);
+                                // May be a mirror
+                                event.url = url;
                             }
-                            probe.onDownloadStatus(item, status);
-                            String lm = headers.get(HttpHeaderNames.LAST_MODIFIED);
-                            if (lm != null) {
-                                try {
-                                    lastModified = Headers.LAST_MODIFIED.toValue(lm);
-                                } catch (Exception ex) {
-                                    loopLogs.error("invalid-last-modified").add("value", lm).add("cnb", item.getCodeNameBase())
-                                            .add("url", item.getFrom());
-                                    probe.onError(item, ex);
+
+                            @Override
+                            public boolean onResponse(HttpResponseStatus status, HttpHeaders headers) {
+                                if (status.code() > 399) {
+                                    loopLogs.warn("downloadFail")
+                                            .add("url", item.getFrom()).add("status", status.code()).close();
+                                }
+                                probe.onDownloadStatus(item, status);
+                                event.status = status.code();
+                                String lm = headers.get(HttpHeaderNames.LAST_MODIFIED);
+                                if (lm != null) {
+                                    try {
+                                        lastModified = Headers.LAST_MODIFIED.toValue(lm);
+                                    } catch (Exception ex) {
+                                        loopLogs.error("invalid-last-modified").add("value", lm).add("cnb", item.getCodeNameBase())
+                                                .add("url", item.getFrom());
+                                        probe.onError(item, ex);
+                                    }
                                 }
+                                loopLogs.trace("downloadResponse").add("status", status.code())
+                                        .add("pollRun", loop)
+                                        .add("url", item.getFrom()).add("lastModified", lm).close();
+                                boolean result = OK.equals(status);
+                                if (!result) {
+                                    removePending(item);
+                                }
+                                return result;
                             }
-                            loopLogs.trace("downloadResponse").add("status", status.code())
-                                    .add("pollRun", loop)
-                                    .add("url", item.getFrom()).add("lastModified", lm).close();
-                            boolean result = OK.equals(status);
-                            if (!result) {
-                                removePending(item);
+
+                            private void removePending(ModuleItem item) {
+                                if (pending.remove(item)) {
+                                    event.commit();
+                                    cycle.attempted();
+                                }
                             }
-                            return result;
-                        }
 
-                        private void removePending(ModuleItem item) {
-                            if (pending.remove(item) && pending.isEmpty()) {
-                                loopLogs.trace("pollCycleCompleted")
-                                        .add("pollRun", loop)
-                                        .add("cnb", item.getCodeNameBase())
-                                        .close();
-                                probe.onPollCycleCompleted(set);
+                            @Override
+                            public void onModuleDownload(InfoFile module, InputStream bytes, String hash, String url) {
+                                try {
+                                    loopLogs.info("newVersionDownloaded")
+                                            .add("cnb", module.getModuleCodeName())
+                                            .add("url", url)
+                                            .add("version", module.getModuleVersion().toString()).close();
+                                    probe.onNewVersionDownloaded(item, module, url);
+                                    long size = bytes.available();
+                                    long ingestStart = System.nanoTime();
+                                    set.add(module, bytes, url, hash, item.isUseOriginalURL(), lastModified, item.getMirrors());
+                                    probe.onIngested(item, size, System.nanoTime() - ingestStart);
+                                    event.bytes = size;
+                                    event.ingested = true;
+                                } catch (IOException ex) {
+                                    loopLogs.error("downloadFail")
+                                            .add("url", url)
+                                            .add(ex).close();
+                                    Exceptions.printStackTrace(ex);
+                                    probe.onError(item, ex);
+                                    event.error = ex.toString();
+                                    removePending(item);
+                                } catch (XPathExpressionException ex) {
+                                    loopLogs.error("downloadFail")
+                                            .add("url", url)
+                                            .add(ex).close();
+                                    Exceptions.printStackTrace(ex);
+                                    probe.onError(item, ex);
+                                    event.error = ex.toString();
+                                    removePending(item);
+                                } finally {
+                                    removePending(item);
+                                }
                             }
-                        }
 
-                        @Override
-                        public void onModuleDownload(InfoFile module, InputStream bytes, String hash, String url) {
-                            try {
-                                loopLogs.info("newVersionDownloaded")
-                                        .add("cnb", module.getModuleCodeName())
-                                        .add("url", url)
-                                        .add("version", module.getModuleVersion().toString()).close();
-                                probe.onNewVersionDownloaded(item, module, url);
-                                set.add(module, bytes, url, hash, item.isUseOriginalURL(), lastModified);
-                            } catch (IOException ex) {
-                                loopLogs.error("downloadFail")
-                                        .add("url", url)
-                                        .add(ex).close();
-                                Exceptions.printStackTrace(ex);
-                                probe.onError(item, ex);
-                                removePending(item);
-                            } catch (XPathExpressionException ex) {
-                                loopLogs.error("downloadFail")
-                                        .add("url", url)
-                                        .add(ex).close();
-                                Exceptions.printStackTrace(ex);
-                                probe.onError(item, ex);
-                                removePending(item);
-                            } finally {
+                            @Override
+                            public void onError(Throwable t) {
+                                if (t instanceof RejectedExecutionException) {
+                                    // Downloaded, but the disk is too busy to
+                                    // take it; the next cycle will try again
+                                    loopLogs.warn("ingestDeferred")
+                                            .add("pollRun", loop)
+                                            .add("url", item.getFrom()).close();
+                                } else {
+                                    loopLogs.error("download")
+                                            .add("pollRun", loop)
+                                            .add("url", item.getFrom()).add(t).close();
+                                }
+                                probe.onError(item, t);
+                                event.error = String.valueOf(t);
                                 removePending(item);
                             }
-                        }
-
-                        @Override
-                        public void onError(Throwable t) {
-                            loopLogs.error("download")
-                                    .add("pollRun", loop)
-                                    .add("url", item.getFrom()).add(t).close();
-                            probe.onError(item, t);
-                            removePending(item);
-                        }
-                    });
-                } catch (IOException | URISyntaxException | SAXException | ParserConfigurationException ex) {
-                    pollLogger.error("download").add("url", item.getFrom()).add(ex).close();
-                    probe.onError(item, ex);
-                    Exceptions.printStackTrace(ex);
+                        });
+                    }
                 }
+            } finally {
+                cycle.loopFinished();
             }
         } catch (Exception | Error e) {
             pollLogger.error("download").add(e).add("pollRun", loop);
@@ -236,45 +310,148 @@ public class Poller implements Runnable {
         }
     }
 
-    @ImplementedBy(DefaultPollerProbe.class)
-    public interface PollerProbe { // used by tests to monitor polling status
+    /**
+     * Tracks the downloads of one poll cycle, so it is completed exactly
+     * once: when the loop has started everything it is going to and nothing
+     * is still outstanding - including when nothing was attempted at all.
+     */
+    private final class Cycle {
+
+        private final int loop;
+        private final Logs loopLogs;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private volatile boolean loopFinished;
+
+        Cycle(int loop, Logs loopLogs) {
+            this.loop = loop;
+            this.loopLogs = loopLogs;
+        }
+
+        void attempting() {
+            outstanding.incrementAndGet();
+        }
+
+        void attempted() {
+            if (outstanding.decrementAndGet() == 0) {
+                maybeComplete();
+            }
+        }
+
+        void loopFinished() {
+            loopFinished = true;
+            maybeComplete();
+        }
+
+        private void maybeComplete() {
+            if (loopFinished && outstanding.get() == 0 && completed.compareAndSet(false, true)) {
+                loopLogs.trace("pollCycleCompleted").add("pollRun", loop).close();
+                downloader.save();
+                breakers.save();
+                probe.onPollCycleCompleted(loop, set);
+            }
+        }
+    }
+
+    @ImplementedBy(PollTimings.class)
+    public interface PollerProbe {
+
+        default void onPollCycleStarted(int run, int modules) {
+            // do nothing
+        }
 
         void onAttemptDownload(ModuleItem item);
 
+        default void onHeadersReceived(ModuleItem item, String url) {
+            // do nothing
+        }
+
         void onDownloadStatus(ModuleItem item, HttpResponseStatus status);
 
         void onNewVersionDownloaded(ModuleItem item, InfoFile module, String url);
 
+        default void onIngested(ModuleItem item, long bytes, long nanos) {
+            // do nothing
+        }
+
         void onError(ModuleItem item, Throwable thrown);
 
         void onPollCycleCompleted(ModuleSet set);
+
+        /**
+         * Called when every module attempted in a poll cycle has finished,
+         * which may be after the next cycle has begun.
+         *
+         * @param run The cycle, as passed to onPollCycleStarted()
+         * @param set The module set
+         */
+        default void onPollCycleCompleted(int run, ModuleSet set) {
+            onPollCycleCompleted(set);
+        }
     }
 
-    static final class DefaultPollerProbe implements PollerProbe {
+    private static final class BothProbes implements PollerProbe {
+
+        private final PollerProbe a;
+        private final PollerProbe b;
+
+        BothProbes(PollerProbe a, PollerProbe b) {
+            this.a = a;
+            this.b = b;
+        }
 
         @Override
-        public void onNewVersionDownloaded(ModuleItem item, InfoFile module, String url) {
-            // do nothing
+        public void onPollCycleStarted(int run, int modules) {
+            a.onPollCycleStarted(run, modules);
+            b.onPollCycleStarted(run, modules);
+        }
+
+        @Override
+        public void onAttemptDownload(ModuleItem item) {
+            a.onAttemptDownload(item);
+            b.onAttemptDownload(item);
+        }
+
+        @Override
+        public void onHeadersReceived(ModuleItem item, String url) {
+            a.onHeadersReceived(item, url);
+            b.onHeadersReceived(item, url);
         }
 
         @Override
         public void onDownloadStatus(ModuleItem item, HttpResponseStatus status) {
-            // do nothing
+            a.onDownloadStatus(item, status);
+            b.onDownloadStatus(item, status);
         }
 
         @Override
-        public void onAttemptDownload(ModuleItem item) {
-            // do nothing
+        public void onNewVersionDownloaded(ModuleItem item, InfoFile module, String url) {
+            a.onNewVersionDownloaded(item, module, url);
+            b.onNewVersionDownloaded(item, module, url);
+        }
+
+        @Override
+        public void onIngested(ModuleItem item, long bytes, long nanos) {
+            a.onIngested(item, bytes, nanos);
+            b.onIngested(item, bytes, nanos);
         }
 
         @Override
         public void onError(ModuleItem item, Throwable thrown) {
-            // do nothing
+            a.onError(item, thrown);
+            b.onError(item, thrown);
         }
 
         @Override
         public void onPollCycleCompleted(ModuleSet set) {
-            // do nothing
+            a.onPollCycleCompleted(set);
+            b.onPollCycleCompleted(set);
+        }
+
+        @Override
+        public void onPollCycleCompleted(int run, ModuleSet set) {
+            a.onPollCycleCompleted(run, set);
+            b.onPollCycleCompleted(run, set);
         }
     }
 }
@@ -16,6 +16,7 @@ import com.mastfrog.acteur.preconditions.Authenticated;
 import com.mastfrog.acteur.preconditions.Description;
 import com.mastfrog.acteur.preconditions.Methods;
 import com.mastfrog.acteur.preconditions.PathRegex;
+import com.mastfrog.acteur.annotations.Precursors;
 import com.mastfrog.acteur.preconditions.RequiredUrlParameters;
 import com.mastfrog.acteur.header.entities.CacheControl;
 import com.mastfrog.mime.MimeType;
@@ -37,6 +38,7 @@ import java.io.InputStream;
 import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -49,6 +51,7 @@ import java.util.List;
 @Methods({PUT, POST, GET})
 @RequiredUrlParameters("url")
 @Authenticated
+@Precursors(CheckIngestAllowed.class)
 @Description("Add a module to be downloaded and served")
 public class PutModulePage extends Acteur {
 
@@ -67,8 +70,25 @@ public class PutModulePage extends Acteur {
             setState(new RespondWith(BAD_REQUEST, "URL " + u + " has problems: " + u.getProblems()));
             return;
         }
+        // Alternate URLs for the same NBM, used when polling for updates
+        List<String> mirrors = new ArrayList<>();
+        String mirrorsParam = evt.urlParameter("mirrors");
+        if (mirrorsParam != null) {
+            for (String mirror : mirrorsParam.split(",")) {
+                mirror = mirror.trim();
+                if (mirror.isEmpty()) {
+                    continue;
+                }
+                URL mu = URL.parse(mirror);
+                if (!mu.isValid()) {
+                    setState(new RespondWith(BAD_REQUEST, "Mirror URL " + mu + " has problems: " + mu.getProblems()));
+                    return;
+                }
+                mirrors.add(mirror);
+            }
+        }
         ok();
-        Downloader handler = new Downloader(u, set, useOriginalUrl, mapper);
+        Downloader handler = new Downloader(u, set, useOriginalUrl, mirrors, mapper);
         setResponseWriter(handler);
         downloader.download(TimeUtil.fromUnixTimestamp(0), url, handler);
         HttpRequest req = evt.request();
@@ -85,11 +105,13 @@ public class PutModulePage extends Acteur {
         private final ModuleSet set;
         private final boolean origUrl;
         private final ObjectMapper mapper;
+        private final List<String> mirrors;
 
-        public Downloader(URL url, ModuleSet set, boolean origUrl, ObjectMapper mapper) {
+        public Downloader(URL url, ModuleSet set, boolean origUrl, List<String> mirrors, ObjectMapper mapper) {
             this.url = url;
             this.set = set;
             this.origUrl = origUrl;
+            this.mirrors = mirrors;
             this.mapper = mapper;
         }
 
@@ -143,7 +165,7 @@ public class PutModulePage extends Acteur {
             write("Download of " + module + " completed.  SHA-1 nbm hash: " + hash + "\n");
             ModuleItem item = null;
             try {
-                item = set.add(module, bytes, url, hash, origUrl);
+                item = set.add(module, bytes, url, hash, origUrl, null, mirrors);
             } catch (IOException ex) {
                 Exceptions.printStackTrace(ex);
                 write("Failed " + ex + "\n");
@@ -0,0 +1,295 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.bunyan.java.v2.Log;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.netty.http.client.HttpClient;
+import com.mastfrog.netty.http.client.ResponseHandler;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
+import com.timboudreau.metaupdatecenter.ModuleSet.StagedModule;
+import com.timboudreau.metaupdatecenter.NbmDownloader.DownloadHandler;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.DOWNLOAD_LOGGER;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.DUMMY_URL;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_REPLICATION_INTERVAL_SECONDS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_REPLICATION_PRIMARY;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * When <code>replication.primary</code> is set, this server is a read-only
+ * follower of another instance: rather than polling upstream URLs itself, it
+ * periodically fetches the primary's <code>/modules/changes</code> feed, pulls
+ * any NBMs it does not have from the primary's download URLs, checks that the
+ * hash computed on arrival matches the one the primary advertised, and
+ * ingests them with the primary's metadata. The generation it has caught up
+ * to is saved in the NBM dir, so a restart resumes from there rather than
+ * fetching the whole catalog again.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class Replicator implements Runnable {
+
+    private static final long CYCLE_TIMEOUT_MINUTES = 10;
+    static final String CURSOR_FILE_NAME = ".replication-cursor.json";
+    private final String primary;
+    private final ModuleSet set;
+    private final NbmDownloader downloader;
+    private final HttpClient client;
+    private final ObjectMapper mapper;
+    private final Logs logs;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final ScheduledExecutorService thread;
+    private final ScheduledFuture<?> future;
+    private final Path cursorFile;
+    private volatile long since = 0;
+    private volatile boolean shuttingDown;
+
+    @Inject
+    Replicator(Settings settings, ModuleSet set, NbmDownloader downloader, HttpClient client,
+            ObjectMapper mapper, @Named(DOWNLOAD_LOGGER) Logs logs,
+            ShutdownHookRegistry reg) {
+        this.set = set;
+        this.downloader = downloader;
+        this.client = client;
+        this.mapper = mapper;
+        this.logs = logs;
+        this.primary = primaryUrl(settings);
+        cursorFile = set.getStorageDir().toPath().resolve(CURSOR_FILE_NAME);
+        if (primary != null) {
+            since = loadCursor();
+            long interval = settings.getLong(SETTINGS_KEY_REPLICATION_INTERVAL_SECONDS, 30);
+            // A run waits up to CYCLE_TIMEOUT_MINUTES for its pulls, which is
+            // too long to hold one of the shared pool's few threads
+            thread = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("replicator-"));
+            future = thread.scheduleWithFixedDelay(this, 1, interval, TimeUnit.SECONDS);
+            reg.add(thread);
+            reg.add((Runnable) () -> {
+                shuttingDown = true;
+                future.cancel(false);
+            });
+            logs.info("replicaStartup").add("primary", primary)
+                    .add("intervalSeconds", interval).close();
+        } else {
+            thread = null;
+            future = null;
+        }
+    }
+
+    /**
+     * Determine if the settings make this server a read-only replica which
+     * should not poll, watch directories or accept new modules.
+     *
+     * @param settings The settings
+     * @return true if this is a follower
+     */
+    static boolean isFollower(Settings settings) {
+        return primaryUrl(settings) != null;
+    }
+
+    private static String primaryUrl(Settings settings) {
+        String result = settings.getString(SETTINGS_KEY_REPLICATION_PRIMARY);
+        if (result == null || result.trim().isEmpty()) {
+            return null;
+        }
+        result = result.trim();
+        while (result.endsWith("/")) {
+            result = result.substring(0, result.length() - 1);
+        }
+        return result;
+    }
+
+    boolean isFollower() {
+        return primary != null;
+    }
+
+    String primary() {
+        return primary;
+    }
+
+    /**
+     * Run a replication cycle as soon as the replication thread is free.
+     */
+    void replicateNow() {
+        if (thread != null) {
+            thread.execute(this);
+        }
+    }
+
+    long lastSyncedGeneration() {
+        return since;
+    }
+
+    @Override
+    public void run() {
+        if (primary == null || shuttingDown || !running.compareAndSet(false, true)) {
+            return;
+        }
+        try (Log log = logs.info("replicate")) {
+            log.add("primary", primary).add("since", since);
+            try {
+                CatalogChanges changes = fetchChanges();
+                log.add("generation", changes.getGeneration())
+                        .add("full", changes.isFull())
+                        .add("changed", changes.getModules().size());
+                List<CompletableFuture<?>> pending = new ArrayList<>();
+                for (ModuleItem item : changes.getModules()) {
+                    if (DUMMY_URL.equals(item.getFrom())) {
+                        // Each node generates its own update center module
+                        continue;
+                    }
+                    if (set.isStored(item)) {
+                        continue;
+                    }
+                    pending.add(pull(item));
+                }
+                log.add("pulling", pending.size());
+                CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[pending.size()]))
+                        .get(CYCLE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+                // Only advance once everything is here, so a failed pull
+                // gets retried on the next run
+                if (since != changes.getGeneration()) {
+                    since = changes.getGeneration();
+                    saveCursor(since);
+                }
+                log.add("success", true);
+            } catch (Exception ex) {
+                log.add("success", false).add(ex);
+            }
+        } finally {
+            running.set(false);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private long loadCursor() {
+        if (!Files.exists(cursorFile)) {
+            return 0;
+        }
+        try {
+            Map<String, Object> cursor = mapper.readValue(cursorFile.toFile(), Map.class);
+            // A cursor from some other primary means nothing to this one
+            if (primary.equals(cursor.get("primary")) && cursor.get("since") instanceof Number) {
+                return ((Number) cursor.get("since")).longValue();
+            }
+        } catch (IOException ex) {
+            logs.warn("replicationCursorUnreadable").add("file", cursorFile.toString()).add(ex).close();
+        }
+        return 0;
+    }
+
+    private void saveCursor(long generation) {
+        Map<String, Object> cursor = new LinkedHashMap<>();
+        cursor.put("primary", primary);
+        cursor.put("since", generation);
+        try {
+            Path tmp = cursorFile.resolveSibling(CURSOR_FILE_NAME + ".tmp");
+            mapper.writeValue(tmp.toFile(), cursor);
+            Files.move(tmp, cursorFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            // Harmless - the next restart just fetches more than it needs
+            logs.warn("replicationCursorNotSaved").add("file", cursorFile.toString()).add(ex).close();
+        }
+    }
+
+    private CatalogChanges fetchChanges() throws Exception {
+        CompletableFuture<CatalogChanges> result = new CompletableFuture<>();
+        client.get().setURL(primary + "/modules/changes?json=true&since=" + since)
+                .execute(new ResponseHandler<String>(String.class) {
+                    @Override
+                    protected void receive(HttpResponseStatus status, HttpHeaders headers, String body) {
+                        try {
+                            result.complete(mapper.readValue(body, CatalogChanges.class));
+                        } catch (IOException ex) {
+                            result.completeExceptionally(ex);
+                        }
+                    }
+
+                    @Override
+                    protected void onErrorResponse(HttpResponseStatus status, HttpHeaders headers, String content) {
+                        result.completeExceptionally(new IOException("Primary " + primary
+                                + " replied " + status + ": " + content));
+                    }
+
+                    @Override
+                    protected void onError(Throwable err) {
+                        result.completeExceptionally(err);
+                    }
+                });
+        return result.get(CYCLE_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+    }
+
+    private CompletableFuture<ModuleItem> pull(ModuleItem item) throws Exception {
+        CompletableFuture<ModuleItem> result = new CompletableFuture<>();
+        String url = primary + "/download/" + item.getCodeNameBase() + "/" + item.getHash() + ".nbm";
+        downloader.download(null, url, new DownloadHandler() {
+            @Override
+            public boolean onResponse(HttpResponseStatus status, HttpHeaders headers) {
+                if (!OK.equals(status)) {
+                    result.completeExceptionally(new IOException(status + " from " + url));
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public void onModuleDownload(InfoFile module, InputStream bytes, String hash, String ignored) {
+                try (Log log = logs.info("replicated")) {
+                    log.add("cnb", item.getCodeNameBase()).add("hash", hash).add("url", url);
+                    // The hash is computed by the same code on both ends, so
+                    // a mismatch means a truncated or altered transfer
+                    if (module == null || !item.getHash().equals(hash)) {
+                        throw new IOException("Hash mismatch for " + url + ": expected "
+                                + item.getHash() + " but got " + hash);
+                    }
+                    StagedModule staged = set.stage(module, bytes, item.getFrom(), hash,
+                            item.isUseOriginalURL(), item.getLastModified(), item.getMirrors());
+                    ModuleItem added = null;
+                    if (staged != null) {
+                        // Compare what was actually stored, before it becomes
+                        // visible
+                        Object expectedSize = item.getMetadata().get("downloadsize");
+                        Object storedSize = staged.item.getMetadata().get("downloadsize");
+                        if (expectedSize != null && !expectedSize.toString().equals(String.valueOf(storedSize))) {
+                            set.discard(staged);
+                            throw new IOException("Size mismatch for " + url + ": expected "
+                                    + expectedSize + " but got " + storedSize);
+                        }
+                        added = set.publish(Collections.singleton(staged)).get(0);
+                    }
+                    log.add("added", added != null);
+                    result.complete(added);
+                } catch (Exception ex) {
+                    result.completeExceptionally(ex);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,432 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.Event;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.Page;
+import com.mastfrog.acteur.debug.Probe;
+import com.mastfrog.acteur.util.RequestID;
+import com.mastfrog.acteurbase.ActeurState;
+import com.mastfrog.bunyan.java.v2.Log;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.settings.Settings;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_REQUEST_TIMINGS_SAMPLES;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_REQUEST_TIMINGS_SAMPLE_RATE;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_SLOW_REQUEST_MILLIS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SLOW_REQUEST_LOGGER;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.AttributeKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.inject.Named;
+
+/**
+ * Times every request through each acteur in the chain of the page which
+ * answered it, and through the response being written - when the headers
+ * went out, how many writes the body took, how many bytes, and when the last
+ * byte was handed to the socket. Requests slower than
+ * <code>request.slow.millis</code> have the whole breakdown written to the
+ * <code>slowrequests</code> log (which bunyan's <code>log.route</code>
+ * setting can send to a file of its own); a sample of the rest feeds a
+ * per-route histogram served by <code>/requests/timings</code>.
+ * <p>
+ * Acteur reports each acteur as it finishes, so an acteur's time is the time
+ * since the previous one finished - which includes constructing it, where
+ * most acteurs do their work, and waiting for any deferred result.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class RequestTimings implements Probe {
+
+    static final String NOT_FOUND_ROUTE = "(not found)";
+    private static final String GENERATED_PAGE_SUFFIX = "__GenPage";
+    private static final int RECENT_SLOW_COUNT = 20;
+    private static final AttributeKey<RequestTiming> TIMING_KEY = AttributeKey.valueOf("requestTiming");
+    private final Logs slowLog;
+    private final long slowNanos;
+    private final double sampleRate;
+    private final int samples;
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private final Deque<Map<String, Object>> recentSlow = new ArrayDeque<>();
+
+    @Inject
+    RequestTimings(Settings settings, @Named(SLOW_REQUEST_LOGGER) Logs slowLog) {
+        this.slowLog = slowLog;
+        long slowMillis = settings.getLong(SETTINGS_KEY_SLOW_REQUEST_MILLIS, 1000);
+        slowNanos = slowMillis < 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        sampleRate = Math.max(0D, Math.min(1D, settings.getDouble(SETTINGS_KEY_REQUEST_TIMINGS_SAMPLE_RATE, 0.1D)));
+        samples = Math.max(1, settings.getInt(SETTINGS_KEY_REQUEST_TIMINGS_SAMPLES, 1024));
+    }
+
+    /**
+     * Create the handler which watches a connection's (or HTTP/2 stream's)
+     * responses being written; it belongs between the HTTP codec and
+     * everything else, so it sees the response after compression.
+     */
+    ChannelHandler newHandler() {
+        return new ResponseWriteHandler();
+    }
+
+    private static RequestTiming timing(Event<?> evt) {
+        return evt.channel().attr(TIMING_KEY).get();
+    }
+
+    @Override
+    public void onBeforeProcessRequest(RequestID id, Event<?> evt) {
+        evt.channel().attr(TIMING_KEY).set(new RequestTiming(evt));
+    }
+
+    @Override
+    public void onBeforeRunPage(RequestID id, Event<?> evt, Page page) {
+        RequestTiming t = timing(evt);
+        if (t != null) {
+            t.onPage(page);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void onActeurWasRun(RequestID id, Event<?> evt, Page page, Acteur acteur, ActeurState result) {
+        RequestTiming t = timing(evt);
+        if (t != null && acteur != null) {
+            t.onActeur(acteur);
+        }
+    }
+
+    @Override
+    public void onFallthrough(RequestID id, Event<?> evt) {
+        RequestTiming t = timing(evt);
+        if (t != null) {
+            t.onFallthrough();
+        }
+    }
+
+    @Override
+    public void onThrown(RequestID id, Event<?> evt, Throwable thrown) {
+        RequestTiming t = evt == null ? null : timing(evt);
+        if (t != null) {
+            t.error = String.valueOf(thrown);
+        }
+    }
+
+    void onFinished(RequestTiming t) {
+        long total = t.finishedAt - t.startedAt;
+        Route route = routes.computeIfAbsent(t.route, r -> new Route());
+        route.requests.increment();
+        if (total >= slowNanos) {
+            route.slow.increment();
+            Map<String, Object> breakdown = t.describe();
+            synchronized (recentSlow) {
+                recentSlow.addFirst(breakdown);
+                while (recentSlow.size() > RECENT_SLOW_COUNT) {
+                    recentSlow.removeLast();
+                }
+            }
+            Log log = slowLog.warn("slowRequest");
+            breakdown.forEach(log::add);
+            log.close();
+        }
+        if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            route.sample(t, samples);
+        }
+    }
+
+    /**
+     * Per-route request counts and percentiles, and the most recent slow
+     * requests.
+     *
+     * @return A map to serialize as JSON
+     */
+    Map<String, Object> snapshot() {
+        Map<String, Object> routeInfo = new TreeMap<>();
+        routes.forEach((name, route) -> routeInfo.put(name, route.describe()));
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("slowMillis", slowNanos == Long.MAX_VALUE ? -1 : TimeUnit.NANOSECONDS.toMillis(slowNanos));
+        result.put("sampleRate", sampleRate);
+        result.put("routes", routeInfo);
+        synchronized (recentSlow) {
+            result.put("recentSlow", new ArrayList<>(recentSlow));
+        }
+        return result;
+    }
+
+    private static long micros(long nanos) {
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Everything known about one request so far. Acteur's callbacks for a
+     * request arrive one at a time, but not necessarily on one thread.
+     */
+    final class RequestTiming {
+
+        final long startedAt = System.nanoTime();
+        final String method;
+        final String path;
+        final String client;
+        String route = NOT_FOUND_ROUTE;
+        int pagesTried;
+        long pageStartedAt;
+        long lastMark = startedAt;
+        Acteur lastActeur;
+        final List<String> acteurs = new ArrayList<>(8);
+        long[] acteurNanos = new long[8];
+        volatile String error;
+        int status;
+        long headersAt;
+        long finishedAt;
+        int writes;
+        long bytes;
+
+        RequestTiming(Event<?> evt) {
+            if (evt instanceof HttpEvent) {
+                HttpEvent he = (HttpEvent) evt;
+                method = he.method().name();
+                path = "/" + he.path();
+            } else {
+                method = null;
+                path = null;
+            }
+            client = String.valueOf(evt.remoteAddress());
+        }
+
+        synchronized void onPage(Page page) {
+            String name = page.getClass().getSimpleName();
+            route = name.endsWith(GENERATED_PAGE_SUFFIX)
+                    ? name.substring(0, name.length() - GENERATED_PAGE_SUFFIX.length())
+                    : name;
+            pagesTried++;
+            // Only the page which answers matters; the ones before it were
+            // rejected by their path or method tests
+            acteurs.clear();
+            lastActeur = null;
+            lastMark = pageStartedAt = System.nanoTime();
+        }
+
+        synchronized void onActeur(Acteur acteur) {
+            // Depending on how the chain is run, acteur can report an
+            // acteur twice - with and without its state
+            if (acteur == lastActeur) {
+                return;
+            }
+            lastActeur = acteur;
+            long now = System.nanoTime();
+            int ix = acteurs.size();
+            if (ix == acteurNanos.length) {
+                acteurNanos = Arrays.copyOf(acteurNanos, ix * 2);
+            }
+            acteurs.add(acteur.getClass().getSimpleName());
+            acteurNanos[ix] = now - lastMark;
+            lastMark = now;
+        }
+
+        synchronized void onFallthrough() {
+            route = NOT_FOUND_ROUTE;
+            acteurs.clear();
+        }
+
+        synchronized void onHeadersWritten(int status) {
+            this.status = status;
+            headersAt = System.nanoTime();
+        }
+
+        synchronized void onContentWritten(long bytes) {
+            writes++;
+            this.bytes += bytes;
+        }
+
+        void onLastByteWritten() {
+            synchronized (this) {
+                finishedAt = System.nanoTime();
+            }
+            onFinished(this);
+        }
+
+        synchronized long timeToHeaders() {
+            return headersAt == 0 ? -1 : headersAt - startedAt;
+        }
+
+        synchronized Map<String, Object> describe() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("route", route);
+            result.put("method", method);
+            result.put("path", path);
+            result.put("client", client);
+            result.put("status", status);
+            result.put("totalMillis", TimeUnit.NANOSECONDS.toMillis(finishedAt - startedAt));
+            result.put("routingMicros", micros(pageStartedAt == 0 ? -1 : pageStartedAt - startedAt));
+            result.put("pagesTried", pagesTried);
+            List<Map<String, Object>> chain = new ArrayList<>(acteurs.size());
+            for (int i = 0; i < acteurs.size(); i++) {
+                Map<String, Object> a = new LinkedHashMap<>();
+                a.put("acteur", acteurs.get(i));
+                a.put("micros", micros(acteurNanos[i]));
+                chain.add(a);
+            }
+            result.put("acteurs", chain);
+            result.put("timeToHeadersMillis", TimeUnit.NANOSECONDS.toMillis(headersAt - startedAt));
+            result.put("timeToLastByteMillis", TimeUnit.NANOSECONDS.toMillis(finishedAt - startedAt));
+            result.put("writes", writes);
+            result.put("bytes", bytes);
+            if (error != null) {
+                result.put("error", error);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Sampled timings of requests answered by one page, kept in a ring
+     * buffer of the most recent samples.
+     */
+    static final class Route {
+
+        final LongAdder requests = new LongAdder();
+        final LongAdder slow = new LongAdder();
+        private long[] totals = new long[16];
+        private long[] headers = new long[16];
+        private final Map<String, long[]> acteurTotals = new LinkedHashMap<>();
+        private int next;
+        private int count;
+
+        synchronized void sample(RequestTiming t, int max) {
+            sample(micros(t.finishedAt - t.startedAt), micros(t.timeToHeaders()), max);
+            synchronized (t) {
+                for (int i = 0; i < t.acteurs.size(); i++) {
+                    long[] sumAndCount = acteurTotals.computeIfAbsent(t.acteurs.get(i), a -> new long[2]);
+                    sumAndCount[0] += t.acteurNanos[i];
+                    sumAndCount[1]++;
+                }
+            }
+        }
+
+        synchronized void sample(long totalMicros, long headersMicros, int max) {
+            if (count == totals.length && count < max) {
+                int size = Math.min(max, count * 2);
+                totals = Arrays.copyOf(totals, size);
+                headers = Arrays.copyOf(headers, size);
+                // The buffer was full, so next has wrapped to the oldest
+                // sample; carry on from the first new slot instead
+                next = count;
+            }
+            totals[next] = totalMicros;
+            headers[next] = headersMicros;
+            next = (next + 1) % totals.length;
+            count = Math.min(count + 1, totals.length);
+        }
+
+        synchronized Map<String, Object> describe() {
+            long[] sortedTotals = sorted(totals);
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("requests", requests.sum());
+            result.put("slow", slow.sum());
+            result.put("samples", count);
+            result.put("totalMicros", summary(sortedTotals));
+            result.put("timeToHeadersMicros", summary(sorted(headers)));
+            result.put("histogram", histogram(sortedTotals));
+            Map<String, Object> meanActeurMicros = new LinkedHashMap<>();
+            acteurTotals.forEach((acteur, sumAndCount)
+                    -> meanActeurMicros.put(acteur, micros(sumAndCount[0] / sumAndCount[1])));
+            result.put("meanActeurMicros", meanActeurMicros);
+            return result;
+        }
+
+        private long[] sorted(long[] values) {
+            long[] result = Arrays.copyOf(values, count);
+            Arrays.sort(result);
+            return result;
+        }
+
+        private static Map<String, Object> summary(long[] sorted) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            if (sorted.length > 0) {
+                result.put("p50", PollTimings.percentile(sorted, 50));
+                result.put("p90", PollTimings.percentile(sorted, 90));
+                result.put("p99", PollTimings.percentile(sorted, 99));
+                result.put("max", sorted[sorted.length - 1]);
+            }
+            return result;
+        }
+
+        /**
+         * Counts of samples in power-of-two millisecond buckets, keyed by
+         * each bucket's upper bound, leaving out empty buckets.
+         */
+        private static Map<String, Object> histogram(long[] sortedMicros) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            int ix = 0;
+            for (long bound = 1; ix < sortedMicros.length; bound *= 2) {
+                int inBucket = 0;
+                while (ix < sortedMicros.length && sortedMicros[ix] < bound * 1000) {
+                    inBucket++;
+                    ix++;
+                }
+                if (inBucket > 0) {
+                    result.put("<" + bound + "ms", inBucket);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Watches the response go out. One per channel, since it holds the
+     * timing of the response being written while the next request's may
+     * already have begun.
+     */
+    private final class ResponseWriteHandler extends ChannelOutboundHandlerAdapter {
+
+        private RequestTiming writing;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof HttpResponse) {
+                HttpResponse resp = (HttpResponse) msg;
+                if (resp.status().codeClass() != HttpStatusClass.INFORMATIONAL) {
+                    writing = ctx.channel().attr(TIMING_KEY).getAndSet(null);
+                    if (writing != null) {
+                        writing.onHeadersWritten(resp.status().code());
+                    }
+                }
+            }
+            RequestTiming t = writing;
+            if (t != null) {
+                if (msg instanceof HttpContent) {
+                    t.onContentWritten(((HttpContent) msg).content().readableBytes());
+                } else if (msg instanceof ByteBuf) {
+                    t.onContentWritten(((ByteBuf) msg).readableBytes());
+                } else if (msg instanceof FileRegion) {
+                    t.onContentWritten(((FileRegion) msg).count());
+                }
+                if (msg instanceof LastHttpContent) {
+                    writing = null;
+                    promise = promise.unvoid();
+                    promise.addListener(f -> t.onLastByteWritten());
+                }
+            }
+            ctx.write(msg, promise);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.annotations.HttpCall;
+import com.mastfrog.acteur.header.entities.CacheControl;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Method.GET;
+import com.mastfrog.acteur.preconditions.Authenticated;
+import com.mastfrog.acteur.preconditions.Description;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.Path;
+import com.mastfrog.mime.MimeType;
+
+/**
+ * Sampled per-route request timings, with percentiles and the mean time
+ * spent in each acteur, and the most recent slow requests.
+ *
+ * @author Tim Boudreau
+ */
+@HttpCall
+@Path("/requests/timings")
+@Authenticated
+@Methods(GET)
+@Description("Get sampled per-route request timings with percentiles, a histogram "
+        + "and mean time per acteur, and the breakdowns of recent slow requests")
+public class RequestTimingsPage extends Acteur {
+
+    @Inject
+    RequestTimingsPage(RequestTimings timings) {
+        add(Headers.CONTENT_TYPE, MimeType.JSON_UTF_8);
+        add(Headers.CACHE_CONTROL, CacheControl.PRIVATE_NO_CACHE_NO_STORE);
+        ok(timings.snapshot());
+    }
+}
@@ -0,0 +1,1098 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.util.preconditions.ConfigurationError;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps NBMs and their records in append-only segment files under
+ * <code>segments/</code> rather than two files and a directory per version,
+ * for servers with very long version histories. Each write is an entry -
+ * a header naming the code name base and hash, the payload and CRCs of both
+ * - appended to the newest segment, which is rolled once it passes a size
+ * limit. A record entry is only written after its blob entry has been forced
+ * to disk, and only counts once it has been read back intact, so publishing
+ * is atomic.
+ * <p>
+ * Where every entry lives is held in memory and saved, as a compact offset
+ * index, each time a segment is rolled or compacted; at startup the index is
+ * loaded and only the segment tail written since it was saved is replayed.
+ * An entry torn by a crash ends the replay and is truncated away.
+ * <p>
+ * Only the newest few versions of each module (by publish order) are kept;
+ * older ones are dropped from the index when superseded, and sealed segments
+ * which have become mostly dead are compacted in the background by copying
+ * their live entries to the end of the log and deleting them.
+ * <p>
+ * The first time it is opened on a directory which already holds modules in
+ * the directory layout, they are copied in, oldest first; the originals are
+ * left in place.
+ * <p>
+ * Unlike the directory layout, this store may only be used by one process
+ * at a time.
+ *
+ * @author Tim Boudreau
+ */
+final class SegmentModuleStore implements ModuleStore {
+
+    static final String SEGMENTS_DIR = "segments";
+    static final String INDEX_FILE = "index";
+    static final String IMPORTING_FILE = "importing";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final long SEGMENT_MAGIC = 0x4E424D5345473031L;
+    private static final int SEGMENT_HEADER_SIZE = Long.BYTES;
+    private static final int ENTRY_MAGIC = 0x4E424D45;
+    private static final int INDEX_MAGIC = 0x4E424D49;
+    private static final int INDEX_VERSION = 1;
+    private static final byte BLOB = 1;
+    private static final byte RECORD = 2;
+    private static final byte DISCARD = 3;
+    private static final int TRAILER_SIZE = Integer.BYTES * 2;
+    private static final int MAX_NAME_BYTES = 4096;
+    private static final int COPY_BUFFER_SIZE = 65536;
+    /**
+     * Sealed segments less than this fraction live are compacted.
+     */
+    private static final double COMPACT_BELOW = 0.5;
+    private final Path dir;
+    private final Path segmentsDir;
+    private final long maxSegmentBytes;
+    private final int retainVersions;
+    private final Executor compactor;
+    private final Logs logs;
+    // Held for every append and every change to where things are; the
+    // index maps are additionally guarded by this
+    private final Object writeLock = new Object();
+    // Held exclusively only to delete a compacted segment, so a reader
+    // holding it never finds the segment it looked up gone
+    private final ReentrantReadWriteLock segmentFiles = new ReentrantReadWriteLock();
+    private final Map<String, Map<String, Stored>> published = new HashMap<>();
+    private final Map<String, Stored> pending = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private Segment active;
+    private long nextSeq = 1;
+
+    SegmentModuleStore(Path dir, long maxSegmentBytes, int retainVersions, Executor compactor, Logs logs) {
+        this.dir = dir;
+        this.segmentsDir = dir.resolve(SEGMENTS_DIR);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.retainVersions = Math.max(1, retainVersions);
+        this.compactor = compactor;
+        this.logs = logs;
+        try {
+            Files.createDirectories(segmentsDir);
+            recover();
+            importDirectoryLayout();
+        } catch (IOException ex) {
+            throw new ConfigurationError("Could not open segment store in " + segmentsDir, ex);
+        }
+        maybeCompact();
+    }
+
+    @Override
+    public Path directory() {
+        return dir;
+    }
+
+    @Override
+    public long putBlob(String codeNameBase, String hash, InputStream in, long lastModified) throws IOException {
+        long stamp = lastModified == 0 ? System.currentTimeMillis() : lastModified;
+        synchronized (writeLock) {
+            Location loc = append(BLOB, 0, stamp, codeNameBase, hash, (ch, pos, crc) -> {
+                byte[] buf = new byte[COPY_BUFFER_SIZE];
+                long total = 0;
+                for (int count; (count = in.read(buf)) > 0;) {
+                    crc.update(buf, 0, count);
+                    writeFully(ch, ByteBuffer.wrap(buf, 0, count), pos + total);
+                    total += count;
+                }
+                return total;
+            });
+            synchronized (this) {
+                Stored old = pending.put(key(codeNameBase, hash), new Stored(codeNameBase, hash, 0, stamp, loc, null));
+                if (old != null) {
+                    adjust(old.blob, -1);
+                }
+                // Count it so the segment is not compacted out from under it
+                adjust(loc, 1);
+            }
+            return loc.length;
+        }
+    }
+
+    @Override
+    public void publish(String codeNameBase, String hash, byte[] record) throws IOException {
+        synchronized (writeLock) {
+            Stored blob;
+            synchronized (this) {
+                blob = pending.get(key(codeNameBase, hash));
+            }
+            if (blob == null) {
+                throw new IOException("No blob written for " + codeNameBase + " " + hash);
+            }
+            // The blob must be on disk before the record which makes it visible
+            active.channel.force(false);
+            long seq = nextSeq++;
+            Location loc = append(RECORD, seq, blob.lastModified, codeNameBase, hash, bytesPayload(record));
+            active.channel.force(false);
+            synchronized (this) {
+                pending.remove(key(codeNameBase, hash));
+                adjust(blob.blob, -1);
+                add(new Stored(codeNameBase, hash, seq, blob.lastModified, blob.blob, loc), true);
+            }
+        }
+        maybeCompact();
+    }
+
+    @Override
+    public void discard(String codeNameBase, String hash) {
+        synchronized (writeLock) {
+            boolean wasPublished;
+            synchronized (this) {
+                Stored blob = pending.remove(key(codeNameBase, hash));
+                if (blob != null) {
+                    adjust(blob.blob, -1);
+                }
+                wasPublished = remove(codeNameBase, hash) != null;
+            }
+            if (wasPublished) {
+                try {
+                    append(DISCARD, 0, 0, codeNameBase, hash, bytesPayload(new byte[0]));
+                } catch (IOException ex) {
+                    logs.warn("segmentDiscardFailed").add("cnb", codeNameBase)
+                            .add("hash", hash).add(ex).close();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean contains(String codeNameBase, String hash) {
+        return stored(codeNameBase, hash) != null;
+    }
+
+    private synchronized Stored stored(String codeNameBase, String hash) {
+        Map<String, Stored> versions = published.get(codeNameBase);
+        return versions == null ? null : versions.get(hash);
+    }
+
+    @Override
+    public Blob blob(String codeNameBase, String hash) throws IOException {
+        Stored stored = stored(codeNameBase, hash);
+        return stored == null ? null : new SegmentBlob(stored);
+    }
+
+    @Override
+    public byte[] record(String codeNameBase, String hash) throws IOException {
+        segmentFiles.readLock().lock();
+        try {
+            Stored stored = stored(codeNameBase, hash);
+            return stored == null ? null : read(stored.record);
+        } finally {
+            segmentFiles.readLock().unlock();
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Long> stamps() {
+        Map<String, Long> result = new HashMap<>(published.size());
+        published.forEach((cnb, versions) -> {
+            long max = 0;
+            for (Stored s : versions.values()) {
+                max = Math.max(max, s.seq);
+            }
+            result.put(cnb, max);
+        });
+        return result;
+    }
+
+    @Override
+    public List<byte[]> records(String codeNameBase) throws IOException {
+        segmentFiles.readLock().lock();
+        try {
+            List<Location> locations = new ArrayList<>();
+            synchronized (this) {
+                Map<String, Stored> versions = published.get(codeNameBase);
+                if (versions != null) {
+                    for (Stored s : versions.values()) {
+                        locations.add(s.record);
+                    }
+                }
+            }
+            List<byte[]> result = new ArrayList<>(locations.size());
+            for (Location loc : locations) {
+                result.add(read(loc));
+            }
+            return result;
+        } finally {
+            segmentFiles.readLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] document(String name) throws IOException {
+        return DirectoryModuleStore.readDocument(dir, name);
+    }
+
+    @Override
+    public void putDocument(String name, byte[] bytes) throws IOException {
+        DirectoryModuleStore.writeDocument(dir, name, bytes);
+    }
+
+    /**
+     * Compact every sealed segment which is less than half live now, rather
+     * than waiting for the background task.
+     *
+     * @return The number of segments removed
+     * @throws IOException If something goes wrong
+     */
+    int compact() throws IOException {
+        if (!compacting.compareAndSet(false, true)) {
+            return 0;
+        }
+        try {
+            List<Segment> victims = new ArrayList<>();
+            synchronized (this) {
+                for (Segment seg : segments.values()) {
+                    if (compactable(seg)) {
+                        victims.add(seg);
+                    }
+                }
+            }
+            if (victims.isEmpty()) {
+                return 0;
+            }
+            long reclaimed = 0;
+            for (Segment victim : victims) {
+                reclaimed += victim.size;
+                for (Stored stored : liveIn(victim)) {
+                    synchronized (writeLock) {
+                        // It may have been superseded since we looked
+                        if (stored(stored.cnb, stored.hash) != stored) {
+                            continue;
+                        }
+                        Location blob = append(BLOB, 0, stored.lastModified, stored.cnb,
+                                stored.hash, copyPayload(stored.blob));
+                        Location record = append(RECORD, stored.seq, stored.lastModified,
+                                stored.cnb, stored.hash, copyPayload(stored.record));
+                        synchronized (this) {
+                            add(new Stored(stored.cnb, stored.hash, stored.seq,
+                                    stored.lastModified, blob, record), false);
+                        }
+                    }
+                }
+            }
+            synchronized (writeLock) {
+                active.channel.force(false);
+                saveIndex();
+            }
+            segmentFiles.writeLock().lock();
+            try {
+                for (Segment victim : victims) {
+                    synchronized (this) {
+                        segments.remove(victim.id);
+                    }
+                    victim.channel.close();
+                    Files.deleteIfExists(victim.path);
+                }
+            } finally {
+                segmentFiles.writeLock().unlock();
+            }
+            logs.info("segmentsCompacted").add("segments", victims.size())
+                    .add("bytes", reclaimed).close();
+            return victims.size();
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    private void maybeCompact() {
+        if (compacting.get()) {
+            return;
+        }
+        boolean any = false;
+        synchronized (this) {
+            for (Segment seg : segments.values()) {
+                if (compactable(seg)) {
+                    any = true;
+                    break;
+                }
+            }
+        }
+        if (any) {
+            compactor.execute(() -> {
+                try {
+                    compact();
+                } catch (IOException | RuntimeException ex) {
+                    logs.error("segmentCompactionFailed").add(ex).close();
+                }
+            });
+        }
+    }
+
+    private boolean compactable(Segment seg) {
+        // called holding this
+        if (seg == active || seg.live >= (seg.size - SEGMENT_HEADER_SIZE) * COMPACT_BELOW) {
+            return false;
+        }
+        // A blob waiting to be published cannot be moved
+        for (Stored s : pending.values()) {
+            if (s.blob.segment == seg.id) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized List<Stored> liveIn(Segment seg) {
+        List<Stored> result = new ArrayList<>();
+        for (Map<String, Stored> versions : published.values()) {
+            for (Stored s : versions.values()) {
+                if (s.blob.segment == seg.id || s.record.segment == seg.id) {
+                    result.add(s);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Close the store's files; for tests which reopen it.
+     */
+    void close() throws IOException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                for (Segment seg : segments.values()) {
+                    seg.channel.close();
+                }
+            }
+        }
+    }
+
+    // Index bookkeeping - called holding this
+
+    private void add(Stored stored, boolean prune) {
+        Map<String, Stored> versions = published.computeIfAbsent(stored.cnb, k -> new HashMap<>());
+        Stored old = versions.put(stored.hash, stored);
+        if (old != null) {
+            dead(old);
+        }
+        live(stored);
+        if (prune) {
+            prune(stored.cnb);
+        }
+    }
+
+    private void prune(String codeNameBase) {
+        Map<String, Stored> versions = published.get(codeNameBase);
+        while (versions != null && versions.size() > retainVersions) {
+            Stored oldest = null;
+            for (Stored s : versions.values()) {
+                if (oldest == null || s.seq < oldest.seq) {
+                    oldest = s;
+                }
+            }
+            remove(codeNameBase, oldest.hash);
+        }
+    }
+
+    private Stored remove(String codeNameBase, String hash) {
+        Map<String, Stored> versions = published.get(codeNameBase);
+        Stored old = versions == null ? null : versions.remove(hash);
+        if (old != null) {
+            dead(old);
+            if (versions.isEmpty()) {
+                published.remove(codeNameBase);
+            }
+        }
+        return old;
+    }
+
+    private void live(Stored stored) {
+        adjust(stored.blob, 1);
+        adjust(stored.record, 1);
+    }
+
+    private void dead(Stored stored) {
+        adjust(stored.blob, -1);
+        adjust(stored.record, -1);
+    }
+
+    private void adjust(Location loc, int sign) {
+        Segment seg = segments.get(loc.segment);
+        if (seg != null) {
+            seg.live += sign * loc.entrySize();
+        }
+    }
+
+    private static String key(String codeNameBase, String hash) {
+        return codeNameBase + '/' + hash;
+    }
+
+    // Reading and writing entries
+
+    private byte[] read(Location loc) throws IOException {
+        Segment seg;
+        synchronized (this) {
+            seg = segments.get(loc.segment);
+        }
+        if (seg == null) {
+            throw new NoSuchFileException(segmentPath(loc.segment).toString());
+        }
+        ByteBuffer buf = ByteBuffer.allocate((int) loc.length);
+        if (!readFully(seg.channel, buf, loc.payloadStart())) {
+            throw new IOException("Truncated entry at " + loc.start + " in " + seg.path);
+        }
+        return buf.array();
+    }
+
+    private Location append(byte type, long seq, long lastModified, String cnb, String hash, Payload payload) throws IOException {
+        // called holding writeLock
+        if (active.size >= maxSegmentBytes) {
+            roll();
+        }
+        Segment seg = active;
+        long start = seg.size;
+        byte[] cnbBytes = cnb.getBytes(StandardCharsets.UTF_8);
+        byte[] hashBytes = hash.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = header(type, seq, lastModified, cnbBytes, hashBytes, 0);
+        long payloadStart = start + header.capacity();
+        try {
+            writeFully(seg.channel, header, start);
+            CRC32 payloadCrc = new CRC32();
+            long length = payload.write(seg.channel, payloadStart, payloadCrc);
+            header = header(type, seq, lastModified, cnbBytes, hashBytes, length);
+            writeFully(seg.channel, header.duplicate(), start);
+            CRC32 headerCrc = new CRC32();
+            headerCrc.update(header.array());
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            trailer.putInt((int) headerCrc.getValue()).putInt((int) payloadCrc.getValue()).flip();
+            writeFully(seg.channel, trailer, payloadStart + length);
+            Location result = new Location(seg.id, start, header.capacity(), length);
+            synchronized (this) {
+                seg.size = result.end();
+            }
+            return result;
+        } catch (IOException | RuntimeException ex) {
+            // Leave nothing for recovery to trip over
+            seg.channel.truncate(start);
+            throw ex;
+        }
+    }
+
+    private static ByteBuffer header(byte type, long seq, long lastModified, byte[] cnb, byte[] hash, long length) {
+        ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES + 1 + Long.BYTES * 3
+                + Short.BYTES * 2 + cnb.length + hash.length);
+        buf.putInt(ENTRY_MAGIC).put(type).putLong(seq).putLong(lastModified)
+                .putShort((short) cnb.length).put(cnb)
+                .putShort((short) hash.length).put(hash)
+                .putLong(length).flip();
+        return buf;
+    }
+
+    private static Payload bytesPayload(byte[] bytes) {
+        return (ch, pos, crc) -> {
+            crc.update(bytes);
+            writeFully(ch, ByteBuffer.wrap(bytes), pos);
+            return bytes.length;
+        };
+    }
+
+    private Payload copyPayload(Location from) throws IOException {
+        Segment seg;
+        synchronized (this) {
+            seg = segments.get(from.segment);
+        }
+        return (ch, pos, crc) -> {
+            ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            long copied = 0;
+            while (copied < from.length) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), from.length - copied));
+                if (!readFully(seg.channel, buf, from.payloadStart() + copied)) {
+                    throw new IOException("Truncated entry at " + from.start + " in " + seg.path);
+                }
+                crc.update(buf.array(), 0, buf.limit());
+                buf.flip();
+                writeFully(ch, buf, pos + copied);
+                copied += buf.limit();
+            }
+            return copied;
+        };
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            pos += ch.write(buf, pos);
+        }
+    }
+
+    private static boolean readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int count = ch.read(buf, pos);
+            if (count < 0) {
+                return false;
+            }
+            pos += count;
+        }
+        buf.flip();
+        return true;
+    }
+
+    // Segments
+
+    private Path segmentPath(int id) {
+        return segmentsDir.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private Segment openSegment(int id, boolean create) throws IOException {
+        Path path = segmentPath(id);
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+        Segment seg = new Segment(id, path, ch);
+        if (create) {
+            ByteBuffer magic = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            magic.putLong(SEGMENT_MAGIC).flip();
+            writeFully(ch, magic, 0);
+            ch.force(true);
+            seg.size = SEGMENT_HEADER_SIZE;
+        } else {
+            ByteBuffer magic = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+            if (!readFully(ch, magic, 0) || magic.getLong() != SEGMENT_MAGIC) {
+                ch.close();
+                throw new IOException("Not a segment file: " + path);
+            }
+            seg.size = ch.size();
+        }
+        return seg;
+    }
+
+    private void roll() throws IOException {
+        // called holding writeLock
+        active.channel.force(false);
+        Segment next = openSegment(active.id + 1, true);
+        synchronized (this) {
+            segments.put(next.id, next);
+            active = next;
+        }
+        saveIndex();
+    }
+
+    // Recovery
+
+    private void recover() throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        try (DirectoryStream<Path> str = Files.newDirectoryStream(segmentsDir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path p : str) {
+                String name = p.getFileName().toString();
+                try {
+                    ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException ex) {
+                    logs.warn("strangeSegmentName").add("file", p.toString()).close();
+                }
+            }
+        }
+        ids.sort(null);
+        for (int id : ids) {
+            Segment seg = openSegment(id, false);
+            segments.put(id, seg);
+        }
+        if (segments.isEmpty()) {
+            Segment first = openSegment(1, true);
+            segments.put(first.id, first);
+        }
+        active = segments.lastEntry().getValue();
+        int fromSegment = segments.firstKey();
+        long fromOffset = SEGMENT_HEADER_SIZE;
+        long[] validThrough = loadIndex();
+        if (validThrough != null) {
+            fromSegment = (int) validThrough[0];
+            fromOffset = validThrough[1];
+        } else {
+            published.clear();
+            pending.clear();
+        }
+        long replayed = 0;
+        for (Segment seg : segments.tailMap(fromSegment, true).values()) {
+            long end = replay(seg, seg.id == fromSegment ? fromOffset : SEGMENT_HEADER_SIZE);
+            replayed += end - (seg.id == fromSegment ? fromOffset : SEGMENT_HEADER_SIZE);
+            if (end < seg.size) {
+                logs.warn("segmentTruncated").add("segment", seg.path.toString())
+                        .add("at", end).add("size", seg.size).close();
+                if (seg == active) {
+                    seg.channel.truncate(end);
+                }
+                seg.size = end;
+            }
+        }
+        // Blobs which never got a record are garbage
+        pending.clear();
+        for (Segment seg : segments.values()) {
+            seg.live = 0;
+        }
+        for (Map<String, Stored> versions : published.values()) {
+            for (Stored s : versions.values()) {
+                live(s);
+                nextSeq = Math.max(nextSeq, s.seq + 1);
+            }
+        }
+        saveIndex();
+        logs.info("segmentStoreOpened").add("dir", segmentsDir.toString())
+                .add("segments", segments.size()).add("modules", published.size())
+                .add("usedIndex", validThrough != null).add("replayedBytes", replayed).close();
+    }
+
+    /**
+     * Copy in any modules stored in the directory layout, if this store is
+     * empty, so that switching engines on an existing server does not start
+     * it with nothing to serve. A marker file is kept while this runs, so an
+     * import interrupted by a crash is finished on the next start.
+     */
+    private void importDirectoryLayout() throws IOException {
+        Path marker = segmentsDir.resolve(IMPORTING_FILE);
+        boolean resuming = Files.exists(marker);
+        synchronized (this) {
+            if (!resuming && !published.isEmpty()) {
+                return;
+            }
+        }
+        DirectoryModuleStore old = new DirectoryModuleStore(dir);
+        List<String> codeNameBases = new ArrayList<>(old.stamps().keySet());
+        codeNameBases.remove(SEGMENTS_DIR);
+        if (codeNameBases.isEmpty() && !resuming) {
+            return;
+        }
+        codeNameBases.sort(null);
+        DirectoryModuleStore.writeDocument(segmentsDir, IMPORTING_FILE, new byte[0]);
+        int imported = 0;
+        int failed = 0;
+        for (String cnb : codeNameBases) {
+            for (String hash : old.hashes(cnb)) {
+                if (contains(cnb, hash)) {
+                    continue;
+                }
+                try {
+                    Blob blob = old.blob(cnb, hash);
+                    byte[] record = old.record(cnb, hash);
+                    if (blob == null || record == null) {
+                        continue;
+                    }
+                    try (InputStream in = Channels.newInputStream(blob.open())) {
+                        putBlob(cnb, hash, in, blob.lastModified());
+                    }
+                    publish(cnb, hash, record);
+                    imported++;
+                } catch (IOException ex) {
+                    discard(cnb, hash);
+                    failed++;
+                    logs.warn("segmentImportFailed").add("cnb", cnb).add("hash", hash).add(ex).close();
+                }
+            }
+        }
+        Files.delete(marker);
+        if (imported > 0 || failed > 0) {
+            logs.info("segmentImport").add("dir", dir.toString())
+                    .add("imported", imported).add("failed", failed)
+                    .add("msg", "Modules in the directory layout were copied into "
+                            + SEGMENTS_DIR + "/; the originals can be deleted").close();
+        }
+    }
+
+    /**
+     * Read entries from a segment into the index, returning the offset of
+     * the end of the last intact one.
+     */
+    private long replay(Segment seg, long from) throws IOException {
+        long pos = from;
+        long size = seg.channel.size();
+        ByteBuffer fixed = ByteBuffer.allocate(Integer.BYTES + 1 + Long.BYTES * 2 + Short.BYTES);
+        while (pos < size) {
+            fixed.clear();
+            if (!readFully(seg.channel, fixed, pos) || fixed.getInt() != ENTRY_MAGIC) {
+                return pos;
+            }
+            byte type = fixed.get();
+            long seq = fixed.getLong();
+            long lastModified = fixed.getLong();
+            int cnbLength = fixed.getShort() & 0xFFFF;
+            if (cnbLength > MAX_NAME_BYTES) {
+                return pos;
+            }
+            ByteBuffer rest = ByteBuffer.allocate(cnbLength + Short.BYTES);
+            if (!readFully(seg.channel, rest, pos + fixed.capacity())) {
+                return pos;
+            }
+            int hashLength = rest.getShort(cnbLength) & 0xFFFF;
+            if (hashLength > MAX_NAME_BYTES) {
+                return pos;
+            }
+            int headerLength = fixed.capacity() + rest.capacity() + hashLength + Long.BYTES;
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            if (!readFully(seg.channel, header, pos)) {
+                return pos;
+            }
+            long length = header.getLong(headerLength - Long.BYTES);
+            if (length < 0 || pos + headerLength + length + TRAILER_SIZE > size) {
+                return pos;
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            if (!readFully(seg.channel, trailer, pos + headerLength + length)) {
+                return pos;
+            }
+            CRC32 headerCrc = new CRC32();
+            headerCrc.update(header.array());
+            if ((int) headerCrc.getValue() != trailer.getInt()
+                    || (int) payloadCrc(seg, pos + headerLength, length) != trailer.getInt()) {
+                return pos;
+            }
+            byte[] cnbBytes = new byte[cnbLength];
+            header.position(fixed.capacity());
+            header.get(cnbBytes);
+            byte[] hashBytes = new byte[hashLength];
+            header.position(fixed.capacity() + cnbLength + Short.BYTES);
+            header.get(hashBytes);
+            String cnb = new String(cnbBytes, StandardCharsets.UTF_8);
+            String hash = new String(hashBytes, StandardCharsets.UTF_8);
+            Location loc = new Location(seg.id, pos, headerLength, length);
+            switch (type) {
+                case BLOB:
+                    pending.put(key(cnb, hash), new Stored(cnb, hash, 0, lastModified, loc, null));
+                    break;
+                case RECORD:
+                    Stored blob = pending.remove(key(cnb, hash));
+                    if (blob != null) {
+                        add(new Stored(cnb, hash, seq, lastModified, blob.blob, loc), true);
+                    }
+                    break;
+                case DISCARD:
+                    pending.remove(key(cnb, hash));
+                    remove(cnb, hash);
+                    break;
+                default:
+                    return pos;
+            }
+            pos = loc.end();
+        }
+        return pos;
+    }
+
+    private static long payloadCrc(Segment seg, long pos, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(COPY_BUFFER_SIZE, Math.max(1, length)));
+        long read = 0;
+        while (read < length) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), length - read));
+            if (!readFully(seg.channel, buf, pos + read)) {
+                return -1;
+            }
+            crc.update(buf.array(), 0, buf.limit());
+            read += buf.limit();
+        }
+        return crc.getValue();
+    }
+
+    // The index
+
+    private void saveIndex() throws IOException {
+        // called holding writeLock
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            synchronized (this) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(active.id);
+                out.writeLong(active.size);
+                int count = 0;
+                for (Map<String, Stored> versions : published.values()) {
+                    count += versions.size();
+                }
+                out.writeInt(count);
+                for (Map<String, Stored> versions : published.values()) {
+                    for (Stored s : versions.values()) {
+                        out.writeUTF(s.cnb);
+                        out.writeUTF(s.hash);
+                        out.writeLong(s.seq);
+                        out.writeLong(s.lastModified);
+                        s.blob.write(out);
+                        s.record.write(out);
+                    }
+                }
+                // A blob written before the index but published after it
+                // needs to be known when its record is replayed
+                out.writeInt(pending.size());
+                for (Stored s : pending.values()) {
+                    out.writeUTF(s.cnb);
+                    out.writeUTF(s.hash);
+                    out.writeLong(s.lastModified);
+                    s.blob.write(out);
+                }
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES);
+        trailer.putLong(crc.getValue());
+        bytes.write(trailer.array());
+        DirectoryModuleStore.writeDocument(segmentsDir, INDEX_FILE, bytes.toByteArray());
+    }
+
+    /**
+     * Load the saved index if it is intact and everything it refers to still
+     * exists, returning the segment and offset it is valid through.
+     */
+    private long[] loadIndex() {
+        byte[] bytes;
+        try {
+            bytes = DirectoryModuleStore.readDocument(segmentsDir, INDEX_FILE);
+        } catch (IOException ex) {
+            logs.warn("segmentIndexUnreadable").add(ex).close();
+            return null;
+        }
+        if (bytes == null || bytes.length < Long.BYTES) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - Long.BYTES);
+        if (crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - Long.BYTES, Long.BYTES).getLong()) {
+            logs.warn("segmentIndexCorrupt").close();
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                return null;
+            }
+            int segment = in.readInt();
+            long offset = in.readLong();
+            Segment through = segments.get(segment);
+            if (through == null || through.size < offset) {
+                return null;
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String cnb = in.readUTF();
+                String hash = in.readUTF();
+                long seq = in.readLong();
+                long lastModified = in.readLong();
+                Location blob = Location.read(in);
+                Location record = Location.read(in);
+                if (!segments.containsKey(blob.segment) || !segments.containsKey(record.segment)) {
+                    published.clear();
+                    pending.clear();
+                    return null;
+                }
+                published.computeIfAbsent(cnb, k -> new HashMap<>())
+                        .put(hash, new Stored(cnb, hash, seq, lastModified, blob, record));
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String cnb = in.readUTF();
+                String hash = in.readUTF();
+                long lastModified = in.readLong();
+                Location blob = Location.read(in);
+                if (segments.containsKey(blob.segment)) {
+                    pending.put(key(cnb, hash), new Stored(cnb, hash, 0, lastModified, blob, null));
+                }
+            }
+            return new long[]{segment, offset};
+        } catch (IOException ex) {
+            logs.warn("segmentIndexCorrupt").add(ex).close();
+            published.clear();
+            pending.clear();
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentModuleStore(" + segmentsDir + ")";
+    }
+
+    interface Payload {
+
+        long write(FileChannel ch, long pos, CRC32 crc) throws IOException;
+    }
+
+    private static final class Segment {
+
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        long live;
+
+        Segment(int id, Path path, FileChannel channel) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+        }
+    }
+
+    private static final class Location {
+
+        final int segment;
+        final long start;
+        final int headerLength;
+        final long length;
+
+        Location(int segment, long start, int headerLength, long length) {
+            this.segment = segment;
+            this.start = start;
+            this.headerLength = headerLength;
+            this.length = length;
+        }
+
+        long payloadStart() {
+            return start + headerLength;
+        }
+
+        long end() {
+            return payloadStart() + length + TRAILER_SIZE;
+        }
+
+        long entrySize() {
+            return end() - start;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(segment);
+            out.writeLong(start);
+            out.writeInt(headerLength);
+            out.writeLong(length);
+        }
+
+        static Location read(DataInputStream in) throws IOException {
+            return new Location(in.readInt(), in.readLong(), in.readInt(), in.readLong());
+        }
+    }
+
+    private static final class Stored {
+
+        final String cnb;
+        final String hash;
+        final long seq;
+        final long lastModified;
+        final Location blob;
+        final Location record;
+
+        Stored(String cnb, String hash, long seq, long lastModified, Location blob, Location record) {
+            this.cnb = cnb;
+            this.hash = hash;
+            this.seq = seq;
+            this.lastModified = lastModified;
+            this.blob = blob;
+            this.record = record;
+        }
+    }
+
+    private final class SegmentBlob implements Blob {
+
+        private final Stored stored;
+
+        SegmentBlob(Stored stored) {
+            this.stored = stored;
+        }
+
+        @Override
+        public long size() {
+            return stored.blob.length;
+        }
+
+        @Override
+        public long lastModified() {
+            return stored.lastModified;
+        }
+
+        @Override
+        public ReadableByteChannel open() throws IOException {
+            segmentFiles.readLock().lock();
+            try {
+                // Compaction may have moved it since we were created
+                Stored current = stored(stored.cnb, stored.hash);
+                if (current == null) {
+                    throw new NoSuchFileException(stored.cnb + "/" + stored.hash);
+                }
+                Location loc = current.blob;
+                FileChannel ch = FileChannel.open(segmentPath(loc.segment), StandardOpenOption.READ);
+                return new SliceChannel(ch, loc.payloadStart(), loc.payloadStart() + loc.length);
+            } finally {
+                segmentFiles.readLock().unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return stored.cnb + "/" + stored.hash + " in " + SegmentModuleStore.this;
+        }
+    }
+
+    /**
+     * Reads one entry's payload out of a segment file. The file stays
+     * readable through this channel even if compaction deletes it.
+     */
+    private static final class SliceChannel implements ReadableByteChannel {
+
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        SliceChannel(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int oldLimit = dst.limit();
+            dst.limit(dst.position() + (int) Math.min(dst.remaining(), end - position));
+            try {
+                int count = channel.read(dst, position);
+                if (count > 0) {
+                    position += count;
+                }
+                return count;
+            } finally {
+                dst.limit(oldLimit);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
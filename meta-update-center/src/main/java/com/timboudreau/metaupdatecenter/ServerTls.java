@@ -0,0 +1,243 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.util.preconditions.ConfigurationError;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.GUICE_BINDING_POLLER_THREAD_POOL;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_HTTP2_ENABLED;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TLS_CERT_FILE;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TLS_ENABLED;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TLS_ENGINE;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TLS_KEYSTORE_FILE;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TLS_KEY_FILE;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TLS_KEY_PASSWORD;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TLS_RELOAD_CHECK_SECONDS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TLS_SELF_SIGNED;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TLS_SESSION_CACHE_SIZE;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TLS_SESSION_TIMEOUT_SECONDS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SYSTEM_LOGGER;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+
+/**
+ * The server's own TLS termination. Acteur builds its SSL context once and
+ * keeps it for the life of the process, so this holds the context instead,
+ * rebuilding it when the certificate or key files change so a renewed
+ * certificate is picked up without a restart. New connections get the new
+ * certificate; existing ones carry on with the old.
+ * <p>
+ * The OpenSSL engine is used if netty-tcnative is on the classpath, the JDK
+ * one otherwise. Sessions are cached for resumption; with OpenSSL the session
+ * ticket keys are generated once per process, so tickets issued before a
+ * certificate reload are still honored after it. The JDK engine issues
+ * stateless tickets on its own.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class ServerTls {
+
+    private final boolean enabled;
+    private final SslProvider engine;
+    private final Path certFile;
+    private final Path keyFile;
+    private final Path keyStoreFile;
+    private final String password;
+    private final int sessionCacheSize;
+    private final long sessionTimeoutSeconds;
+    private final boolean http2;
+    private final OpenSslSessionTicketKey ticketKey;
+    private final Logs logs;
+    private volatile SslContext context;
+    private volatile String stamp;
+
+    @Inject
+    ServerTls(Settings settings, @Named(SYSTEM_LOGGER) Logs logs,
+            @Named(GUICE_BINDING_POLLER_THREAD_POOL) ScheduledExecutorService pool) throws IOException, GeneralSecurityException {
+        this.logs = logs;
+        enabled = settings.getBoolean(SETTINGS_KEY_TLS_ENABLED, false);
+        certFile = path(settings, SETTINGS_KEY_TLS_CERT_FILE);
+        keyFile = path(settings, SETTINGS_KEY_TLS_KEY_FILE);
+        keyStoreFile = path(settings, SETTINGS_KEY_TLS_KEYSTORE_FILE);
+        password = settings.getString(SETTINGS_KEY_TLS_KEY_PASSWORD);
+        sessionCacheSize = settings.getInt(SETTINGS_KEY_TLS_SESSION_CACHE_SIZE, 20480);
+        sessionTimeoutSeconds = settings.getLong(SETTINGS_KEY_TLS_SESSION_TIMEOUT_SECONDS, 3600);
+        http2 = settings.getBoolean(SETTINGS_KEY_HTTP2_ENABLED, false);
+        if (!enabled) {
+            engine = null;
+            ticketKey = null;
+            return;
+        }
+        if ((certFile == null) != (keyFile == null)) {
+            throw new ConfigurationError("Both " + SETTINGS_KEY_TLS_CERT_FILE + " and "
+                    + SETTINGS_KEY_TLS_KEY_FILE + " must be set, or neither");
+        }
+        if (certFile == null && keyStoreFile == null && !settings.getBoolean(SETTINGS_KEY_TLS_SELF_SIGNED, false)) {
+            // Clients would refuse a self-signed certificate, so never fall
+            // back to one unless asked to
+            throw new ConfigurationError(SETTINGS_KEY_TLS_ENABLED + " is set but no certificate is - set "
+                    + SETTINGS_KEY_TLS_KEYSTORE_FILE + ", or " + SETTINGS_KEY_TLS_CERT_FILE + " and "
+                    + SETTINGS_KEY_TLS_KEY_FILE + ", or " + SETTINGS_KEY_TLS_SELF_SIGNED
+                    + "=true to use a throwaway self-signed one");
+        }
+        engine = engine(settings.getString(SETTINGS_KEY_TLS_ENGINE, "auto"));
+        ticketKey = engine == SslProvider.OPENSSL ? newTicketKey() : null;
+        stamp = stamp();
+        context = build();
+        logs.info("tls").add("engine", engine.name())
+                .add("cert", keyStoreFile != null ? keyStoreFile.toString()
+                        : certFile != null ? certFile.toString() : "self-signed")
+                .add("alpn", http2).close();
+        long reloadSeconds = settings.getLong(SETTINGS_KEY_TLS_RELOAD_CHECK_SECONDS, 60);
+        if (reloadSeconds > 0 && (certFile != null || keyStoreFile != null)) {
+            pool.scheduleWithFixedDelay(this::reloadIfChanged, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private static Path path(Settings settings, String key) {
+        String result = settings.getString(key);
+        return result == null ? null : Paths.get(result);
+    }
+
+    private static SslProvider engine(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "auto":
+                return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+            case "openssl":
+                if (!OpenSsl.isAvailable()) {
+                    throw new ConfigurationError("OpenSSL requested but not available - is "
+                            + "netty-tcnative on the classpath? " + OpenSsl.unavailabilityCause());
+                }
+                return SslProvider.OPENSSL;
+            case "jdk":
+                return SslProvider.JDK;
+            default:
+                throw new ConfigurationError("Unknown " + SETTINGS_KEY_TLS_ENGINE + " '" + name
+                        + "' - use auto, openssl or jdk");
+        }
+    }
+
+    private static OpenSslSessionTicketKey newTicketKey() {
+        SecureRandom rnd = new SecureRandom();
+        byte[] name = new byte[OpenSslSessionTicketKey.NAME_SIZE];
+        byte[] hmac = new byte[OpenSslSessionTicketKey.HMAC_KEY_SIZE];
+        byte[] aes = new byte[OpenSslSessionTicketKey.AES_KEY_SIZE];
+        rnd.nextBytes(name);
+        rnd.nextBytes(hmac);
+        rnd.nextBytes(aes);
+        return new OpenSslSessionTicketKey(name, hmac, aes);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    SslProvider engine() {
+        return engine;
+    }
+
+    /**
+     * Create an SSL handler for a new connection using the current
+     * certificate.
+     *
+     * @param alloc The channel's allocator
+     * @return A handler
+     */
+    SslHandler newHandler(ByteBufAllocator alloc) {
+        return context.newHandler(alloc);
+    }
+
+    /**
+     * Rebuild the SSL context if the certificate, key or keystore file has
+     * changed since it was last built. If they cannot be loaded - say, the
+     * certificate has been replaced but not yet the key - the old context is
+     * kept and the next check tries again.
+     *
+     * @return true if the context was replaced
+     */
+    boolean reloadIfChanged() {
+        try {
+            String now = stamp();
+            if (now.equals(stamp)) {
+                return false;
+            }
+            context = build();
+            stamp = now;
+            logs.info("tlsReload").add("engine", engine.name()).close();
+            return true;
+        } catch (Exception | Error e) {
+            logs.error("tlsReload").add(e).close();
+            return false;
+        }
+    }
+
+    private String stamp() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Path p : new Path[]{certFile, keyFile, keyStoreFile}) {
+            if (p != null) {
+                sb.append(Files.getLastModifiedTime(p).toMillis()).append(':')
+                        .append(Files.size(p)).append(';');
+            }
+        }
+        return sb.toString();
+    }
+
+    private SslContext build() throws IOException, GeneralSecurityException {
+        SslContextBuilder builder;
+        if (keyStoreFile != null) {
+            char[] pw = password == null ? new char[0] : password.toCharArray();
+            KeyStore store = KeyStore.getInstance("PKCS12");
+            try (InputStream in = Files.newInputStream(keyStoreFile)) {
+                store.load(in, pw);
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(store, pw);
+            builder = SslContextBuilder.forServer(kmf);
+        } else if (certFile != null) {
+            builder = SslContextBuilder.forServer(certFile.toFile(), keyFile.toFile(), password);
+        } else {
+            logs.warn("tls").add("msg", "Using a self-signed certificate").close();
+            SelfSignedCertificate cert = new SelfSignedCertificate();
+            builder = SslContextBuilder.forServer(cert.certificate(), cert.privateKey());
+        }
+        builder.sslProvider(engine)
+                .sessionCacheSize(sessionCacheSize)
+                .sessionTimeout(sessionTimeoutSeconds);
+        if (http2) {
+            builder.applicationProtocolConfig(new ApplicationProtocolConfig(
+                    ApplicationProtocolConfig.Protocol.ALPN,
+                    ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                    ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                    ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1));
+        }
+        SslContext result = builder.build();
+        if (ticketKey != null && result.sessionContext() instanceof OpenSslSessionContext) {
+            ((OpenSslSessionContext) result.sessionContext()).setTicketKeys(ticketKey);
+        }
+        return result;
+    }
+}
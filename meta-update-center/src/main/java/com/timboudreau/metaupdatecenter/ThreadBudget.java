@@ -0,0 +1,64 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import static com.mastfrog.acteur.server.ServerModule.EVENT_THREADS;
+import static com.mastfrog.acteur.server.ServerModule.WORKER_THREADS;
+import com.mastfrog.acteur.server.EventLoopFactory;
+import com.mastfrog.giulius.thread.ThreadCount;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.GUICE_BINDING_POLLER_THREAD_POOL;
+import com.timboudreau.metaupdatecenter.UpdateCenterServer.NbmInfoModule.HttpClientProvider;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.inject.Named;
+
+/**
+ * Reports the threads the server is configured to run - the server's event
+ * loops, the HTTP client's (or that it shares the server's), the shared
+ * blocking pool, the disk I/O pool and the watch dir's - alongside the
+ * number of threads actually live in the JVM, so the budget can be checked
+ * against a small VM.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class ThreadBudget {
+
+    private final EventLoopFactory loops;
+    private final ThreadCount eventThreads;
+    private final ThreadCount workerThreads;
+    private final ThreadCount blockingThreads;
+    private final HttpClientProvider client;
+    private final WatchDir watch;
+    private final BlockingIO io;
+
+    @Inject
+    ThreadBudget(EventLoopFactory loops, @Named(EVENT_THREADS) ThreadCount eventThreads,
+            @Named(WORKER_THREADS) ThreadCount workerThreads,
+            @Named(GUICE_BINDING_POLLER_THREAD_POOL) ThreadCount blockingThreads,
+            HttpClientProvider client, WatchDir watch, BlockingIO io) {
+        this.loops = loops;
+        this.eventThreads = eventThreads;
+        this.workerThreads = workerThreads;
+        this.blockingThreads = blockingThreads;
+        this.client = client;
+        this.watch = watch;
+        this.io = io;
+    }
+
+    Map<String, Object> describe() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        if (loops instanceof TransportEventLoopFactory) {
+            result.put("transport", ((TransportEventLoopFactory) loops).transport().toString());
+        }
+        result.put("eventThreads", eventThreads.get());
+        result.put("workerThreads", workerThreads.get());
+        result.put("httpClientThreads", client.sharesServerEventLoop() ? "workers" : client.threads());
+        result.put("blockingThreads", blockingThreads.get());
+        result.put("blockingIoThreads", io.threads());
+        result.put("watchThreads", watch.threadCounts());
+        result.put("liveThreads", ManagementFactory.getThreadMXBean().getThreadCount());
+        return result;
+    }
+}
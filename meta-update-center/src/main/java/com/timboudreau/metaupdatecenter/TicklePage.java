@@ -50,7 +50,7 @@ import java.util.Objects;
 public class TicklePage extends Acteur {
 
     @Inject
-    TicklePage(HttpEvent evt, Settings settings, Poller poller) {
+    TicklePage(HttpEvent evt, Settings settings, Poller poller, Replicator replicator) {
         String token = settings.getString(SETTINGS_KEY_TICKLE_TOKEN);
         if (token == null) {
             reply(NOT_FOUND, "Tickle not enabled.\n");
@@ -58,6 +58,9 @@ public class TicklePage extends Acteur {
             String received = evt.urlParameter("token");
             if (!Objects.equals(token, received)) {
                 badRequest("Incorrect token.\n");
+            } else if (replicator.isFollower()) {
+                replicator.replicateNow();
+                ok("Replication from " + replicator.primary() + " scheduled immediately.\n");
             } else {
                 boolean polling = poller.pollNow();
                 if (polling) {
@@ -0,0 +1,116 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.mastfrog.util.preconditions.ConfigurationError;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * The Netty transports the server can run on. Epoll is a dependency, but
+ * only works on Linux; io_uring lives in Netty's incubator and is only used
+ * if <code>netty-incubator-transport-native-io_uring</code> has been put on
+ * the classpath, so it is reached by reflection.
+ *
+ * @author Tim Boudreau
+ */
+enum Transport {
+
+    NIO,
+    EPOLL,
+    IO_URING;
+
+    private static final String IO_URING_PACKAGE = "io.netty.incubator.channel.uring.";
+
+    static Transport forName(String name, String settingsKey) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "nio":
+                return NIO;
+            case "epoll":
+                return EPOLL;
+            case "io_uring":
+            case "iouring":
+                return IO_URING;
+            default:
+                throw new ConfigurationError("Unknown " + settingsKey + " '" + name
+                        + "' - should be nio, epoll or io_uring");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * The transport to try if this one is not available.
+     */
+    Transport fallback() {
+        switch (this) {
+            case IO_URING:
+                return EPOLL;
+            default:
+                return NIO;
+        }
+    }
+
+    boolean isAvailable() {
+        return unavailabilityCause() == null;
+    }
+
+    /**
+     * Why this transport cannot be used here, or null if it can.
+     */
+    Throwable unavailabilityCause() {
+        switch (this) {
+            case EPOLL:
+                return Epoll.unavailabilityCause();
+            case IO_URING:
+                try {
+                    return (Throwable) Class.forName(IO_URING_PACKAGE + "IOUring")
+                            .getMethod("unavailabilityCause").invoke(null);
+                } catch (ReflectiveOperationException | LinkageError ex) {
+                    return ex;
+                }
+            default:
+                return null;
+        }
+    }
+
+    EventLoopGroup newGroup(int threads, Executor executor) {
+        switch (this) {
+            case EPOLL:
+                return new EpollEventLoopGroup(threads, executor);
+            case IO_URING:
+                try {
+                    return (EventLoopGroup) Class.forName(IO_URING_PACKAGE + "IOUringEventLoopGroup")
+                            .getConstructor(int.class, Executor.class).newInstance(threads, executor);
+                } catch (ReflectiveOperationException ex) {
+                    throw new IllegalStateException("Could not create io_uring event loop", ex);
+                }
+            default:
+                return new NioEventLoopGroup(threads, executor);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    Class<? extends ServerChannel> serverChannelType() {
+        switch (this) {
+            case EPOLL:
+                return EpollServerSocketChannel.class;
+            case IO_URING:
+                try {
+                    return (Class<? extends ServerChannel>) Class.forName(IO_URING_PACKAGE + "IOUringServerSocketChannel");
+                } catch (ClassNotFoundException ex) {
+                    throw new IllegalStateException("Could not find io_uring server channel", ex);
+                }
+            default:
+                return NioServerSocketChannel.class;
+        }
+    }
+}
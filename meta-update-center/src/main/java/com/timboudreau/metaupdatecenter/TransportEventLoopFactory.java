@@ -0,0 +1,73 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.mastfrog.acteur.server.EventLoopFactory;
+import static com.mastfrog.acteur.server.ServerModule.EVENT_THREADS;
+import static com.mastfrog.acteur.server.ServerModule.WORKER_THREADS;
+import com.mastfrog.bunyan.java.v2.Log;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.giulius.thread.ThreadCount;
+import com.mastfrog.settings.Settings;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TRANSPORT;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SYSTEM_LOGGER;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import java.util.concurrent.Executor;
+import javax.inject.Named;
+
+/**
+ * Creates the server's event loops using the transport named by the
+ * <code>transport</code> setting, falling back from io_uring to epoll to NIO
+ * when the native library for one is missing or will not load, rather than
+ * failing to start.
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class TransportEventLoopFactory extends EventLoopFactory {
+
+    private final Transport transport;
+    private final EventLoopGroup events;
+    private final EventLoopGroup workers;
+
+    @Inject
+    TransportEventLoopFactory(@Named(EVENT_THREADS) Executor eventExecutor,
+            @Named(EVENT_THREADS) ThreadCount eventThreads,
+            @Named(WORKER_THREADS) Executor workerExecutor,
+            @Named(WORKER_THREADS) ThreadCount workerThreads,
+            Settings settings, @Named(SYSTEM_LOGGER) Logs logs) {
+        Transport requested = Transport.forName(settings.getString(SETTINGS_KEY_TRANSPORT, "nio"),
+                SETTINGS_KEY_TRANSPORT);
+        Transport selected = requested;
+        Log log = logs.info("transport").add("requested", requested.toString());
+        while (!selected.isAvailable()) {
+            log.add(selected + "Unavailable", String.valueOf(selected.unavailabilityCause()));
+            selected = selected.fallback();
+        }
+        transport = selected;
+        // The HTTP client only accepts an NIO event loop group
+        log.add("transport", transport.toString()).add("httpClientTransport", Transport.NIO.toString()).close();
+        events = transport.newGroup(eventThreads.get(), eventExecutor);
+        workers = transport.newGroup(workerThreads.get(), workerExecutor);
+    }
+
+    Transport transport() {
+        return transport;
+    }
+
+    @Override
+    protected Class<? extends ServerChannel> channelType() {
+        return transport.serverChannelType();
+    }
+
+    @Override
+    public EventLoopGroup getEventGroup() {
+        return events;
+    }
+
+    @Override
+    public EventLoopGroup getWorkerGroup() {
+        return workers;
+    }
+}
@@ -8,6 +8,7 @@ import com.google.inject.Module;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.google.inject.TypeLiteral;
+import com.google.inject.name.Named;
 import com.google.inject.name.Names;
 import com.mastfrog.acteur.ActeurFactory;
 import com.mastfrog.acteur.Event;
@@ -24,11 +25,15 @@ import static com.mastfrog.acteur.headers.Method.HEAD;
 import com.mastfrog.acteur.preconditions.Methods;
 import com.mastfrog.acteur.preconditions.PathRegex;
 import com.mastfrog.acteur.server.ServerBuilder;
+import com.mastfrog.acteur.server.EventLoopFactory;
+import com.mastfrog.acteur.server.PipelineDecorator;
+import com.mastfrog.acteur.debug.Probe;
 import com.mastfrog.acteur.server.ServerModule;
 import static com.mastfrog.acteur.server.ServerModule.BYTEBUF_ALLOCATOR_SETTINGS_KEY;
 import static com.mastfrog.acteur.server.ServerModule.HTTP_COMPRESSION;
 import static com.mastfrog.acteur.server.ServerModule.MAX_CONTENT_LENGTH;
 import static com.mastfrog.acteur.server.ServerModule.POOLED_ALLOCATOR;
+import static com.mastfrog.acteur.server.ServerModule.SETTINGS_KEY_URLS_EXTERNAL_SECURE_PORT;
 import com.mastfrog.acteur.util.Server;
 import com.mastfrog.bunyan.java.v2.Log;
 import com.mastfrog.bunyan.java.v2.Logs;
@@ -40,11 +45,13 @@ import com.mastfrog.jackson.JacksonModule;
 import com.mastfrog.jackson.configuration.DurationSerializationMode;
 import com.mastfrog.jackson.configuration.TimeSerializationMode;
 import com.mastfrog.netty.http.client.HttpClient;
+import com.mastfrog.netty.http.client.HttpClientBuilder;
 import com.mastfrog.settings.MutableSettings;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.settings.SettingsBuilder;
 import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
 import com.mastfrog.util.libversion.VersionInfo;
+import com.mastfrog.util.preconditions.ConfigurationError;
 import com.mastfrog.util.preconditions.Exceptions;
 import com.mastfrog.util.strings.RandomStrings;
 import com.mastfrog.util.strings.Strings;
@@ -54,6 +61,8 @@ import com.timboudreau.metaupdatecenter.gennbm.ServerInstallId;
 import com.timboudreau.metaupdatecenter.gennbm.UpdateCenterModuleGenerator;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import java.io.File;
@@ -62,6 +71,7 @@ import java.io.InputStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Function;
 import javax.xml.parsers.ParserConfigurationException;
@@ -73,6 +83,12 @@ public class UpdateCenterServer extends GenericApplication {
 
     public static final String SETTINGS_KEY_WATCH_DIR = "watch.dir";
     public static final String SETTINGS_KEY_FILE_NOTIFICATION_PROCESS_DELAY_SECONDS = "watch.delay.seconds";
+    /**
+     * Threads used to parse and hash NBMs found in the watch dir; defaults to
+     * the number of cores.
+     */
+    public static final String SETTINGS_KEY_WATCH_PARSE_THREADS = "watch.parse.threads";
+    public static final String SETTINGS_KEY_WATCH_BATCH_SIZE = "watch.batch.size";
     public static final String STATS_LOGGER = "stats";
     public static final String ERROR_LOGGER = ActeurBunyanModule.ERROR_LOGGER;
     public static final String REQUESTS_LOGGER = ActeurBunyanModule.ACCESS_LOGGER;
@@ -80,15 +96,135 @@ public class UpdateCenterServer extends GenericApplication {
     public static final String SYSTEM_LOGGER = "system";
     public static final String AUTH_LOGGER = "auth";
     public static final String FILE_WATCH_LOGGER = "filewatch";
+    public static final String SLOW_REQUEST_LOGGER = "slowrequests";
     public static final String SETTINGS_KEY_TICKLE_TOKEN = "tickleToken";
     public static final String SETTINGS_KEY_NBM_DIR = "nbm.dir";
+    /**
+     * How modules are kept in nbm.dir - <code>directory</code> (the default;
+     * a directory per module with a pair of files per version) or
+     * <code>segments</code> (append-only segment files with an offset index,
+     * for very long version histories; single-process only).
+     */
+    public static final String SETTINGS_KEY_STORAGE_ENGINE = "storage.engine";
+    public static final String STORAGE_ENGINE_DIRECTORY = "directory";
+    public static final String STORAGE_ENGINE_SEGMENTS = "segments";
+    /**
+     * Size past which the segment being appended to is sealed and a new one
+     * started.
+     */
+    public static final String SETTINGS_KEY_SEGMENT_MAX_MEGABYTES = "storage.segment.max.megabytes";
+    /**
+     * How many versions of each module the segment store keeps; older ones
+     * are dropped and their space reclaimed by compaction.
+     */
+    public static final String SETTINGS_KEY_SEGMENT_RETAIN_VERSIONS = "storage.segment.retain.versions";
     public static final String SETTINGS_KEY_PASSWORD = "password";
     public static final String SETTINGS_KEY_ADMIN_USER_NAME = "admin.user.name";
     public static final String SETTINGS_KEY_POLL_INTERVAL_MINUTES = "poll.interval.minutes";
     public static final String SETTINGS_KEY_POLL_INITIAL_DELAY_MINUTES = "poll.initial.delay.minutes";
+    /**
+     * When polling a module which has mirrors, fetch from the two best
+     * sources at once and use whichever answers first.
+     */
+    public static final String SETTINGS_KEY_POLL_RACE_SOURCES = "poll.race.sources";
+    /**
+     * How long to wait for one upstream source to start responding before
+     * trying the next of a module's mirrors.
+     */
+    public static final String SETTINGS_KEY_POLL_SOURCE_TIMEOUT_SECONDS = "poll.source.timeout.seconds";
+    /**
+     * Consecutive failures after which an upstream URL is no longer polled
+     * until it has backed off; 0 disables the per-URL circuit breaker.
+     */
+    public static final String SETTINGS_KEY_BREAKER_URL_FAILURES = "poll.breaker.url.failures";
+    /**
+     * Consecutive connection failures, timeouts or 5xx responses from any
+     * URL on a host after which nothing on that host is polled until it has
+     * backed off; 0 disables the per-host circuit breaker.
+     */
+    public static final String SETTINGS_KEY_BREAKER_HOST_FAILURES = "poll.breaker.host.failures";
+    /**
+     * How long an opened circuit stays open the first time; doubled for
+     * each failed probe after that.
+     */
+    public static final String SETTINGS_KEY_BREAKER_BACKOFF_MINUTES = "poll.breaker.backoff.minutes";
+    /**
+     * The longest an open circuit waits before probing again.
+     */
+    public static final String SETTINGS_KEY_BREAKER_MAX_BACKOFF_HOURS = "poll.breaker.max.backoff.hours";
+    /**
+     * How many poll cycles' timings to keep for <code>/poll/timings</code>.
+     */
+    public static final String SETTINGS_KEY_POLL_TIMINGS_CYCLES = "poll.timings.cycles";
+    /**
+     * Start a JDK flight recording when the server starts, rather than
+     * waiting for a PUT to <code>/recording</code>.
+     */
+    public static final String SETTINGS_KEY_FLIGHT_RECORDING = "flight.recording";
+    /**
+     * The JFR configuration to record with - <code>default</code> (low
+     * overhead, suitable for leaving on) or <code>profile</code>.
+     */
+    public static final String SETTINGS_KEY_FLIGHT_RECORDING_CONFIGURATION = "flight.recording.configuration";
+    /**
+     * How many minutes of events the flight recording keeps.
+     */
+    public static final String SETTINGS_KEY_FLIGHT_RECORDING_MAX_AGE_MINUTES = "flight.recording.max.age.minutes";
+    /**
+     * Requests which take longer than this many milliseconds, from arriving
+     * to the last byte of the response being written, have their timings
+     * written to the <code>slowrequests</code> log; negative to turn it off.
+     */
+    public static final String SETTINGS_KEY_SLOW_REQUEST_MILLIS = "request.slow.millis";
+    /**
+     * The fraction of requests, from 0 to 1, whose timings go into the
+     * per-route percentiles served by <code>/requests/timings</code>.
+     */
+    public static final String SETTINGS_KEY_REQUEST_TIMINGS_SAMPLE_RATE = "request.timings.sample.rate";
+    /**
+     * How many of the most recent sampled requests to keep per route.
+     */
+    public static final String SETTINGS_KEY_REQUEST_TIMINGS_SAMPLES = "request.timings.samples";
+    /**
+     * How often, in minutes, to log the ByteBuf allocators' metrics (also
+     * served by <code>/allocator</code>); zero to never log them.
+     */
+    public static final String SETTINGS_KEY_ALLOCATOR_METRICS_LOG_MINUTES = "allocator.metrics.log.minutes";
+    /**
+     * The Netty transport for the server's connections - <code>nio</code>
+     * (the default), <code>epoll</code> or <code>io_uring</code>. If the
+     * native library for the one requested cannot be loaded, the server falls
+     * back to the next (io_uring to epoll to NIO) and logs why.
+     */
+    public static final String SETTINGS_KEY_TRANSPORT = "transport";
     public static final String SETTINGS_KEY_HTTP_LOG_ENABLED = "http.log.enabled";
     public static final String SETTINGS_KEY_TAG = "server.tag";
+    /**
+     * Event loop threads for the HTTP client which polls upstreams, unless it
+     * shares the server's.
+     */
     public static final String SETTINGS_KEY_DOWNLOAD_THREADS = "download.threads";
+    /**
+     * Run the HTTP client on the server's worker event loops rather than
+     * starting <code>download.threads</code> of its own; only possible with
+     * the <code>nio</code> transport.
+     */
+    public static final String SETTINGS_KEY_HTTP_CLIENT_SHARE_EVENT_LOOP = "http.client.share.event.loop";
+    /**
+     * Threads in the pool shared by polling, replication, log tailing,
+     * metrics and other periodic or blocking background work.
+     */
+    public static final String SETTINGS_KEY_BLOCKING_THREADS = "blocking.threads";
+    /**
+     * Threads which perform disk I/O on behalf of the event loops - catalog
+     * lookups, reading NBMs being served and storing downloaded ones.
+     */
+    public static final String SETTINGS_KEY_BLOCKING_IO_THREADS = "blocking.io.threads";
+    /**
+     * How many disk I/O tasks may wait for a thread before further requests
+     * are refused with a 503.
+     */
+    public static final String SETTINGS_KEY_BLOCKING_IO_QUEUE_SIZE = "blocking.io.queue.size";
     public static final String SETTINGS_KEY_GEN_MODULE_AUTHOR = "gen.module.author";
     public static final String DEFAULT_MODULE_AUTHOR = "Tim Boudreau";
     public static final String SETTINGS_KEY_INFO_PARA = "home.page.info";
@@ -98,16 +234,93 @@ public class UpdateCenterServer extends GenericApplication {
     public static final int FILE_CHUNK_SIZE = 768;
     public static final String SETTINGS_NAMESPACE = "nbmserver";
     public static final String DUMMY_URL = "http://GENERATED.MODULE";
+    /**
+     * Prefix of the source URL recorded for modules pushed to /upload, which
+     * have no upstream to poll.
+     */
+    public static final String UPLOAD_URL_PREFIX = "upload:";
     public static final String GUICE_BINDING_POLLER_THREAD_POOL = "poller";
     public static final String SYS_PROP_SETTINGS_FILE_NAMESPACE = "settings.file.name";
     public static final String SETTINGS_KEY_SETTINGS_NAMESPACE = SYS_PROP_SETTINGS_FILE_NAMESPACE;
+    /**
+     * Base URL (including any base path) of another instance of this server;
+     * if set, this instance runs as a read-only replica of it.
+     */
+    public static final String SETTINGS_KEY_REPLICATION_PRIMARY = "replication.primary";
+    public static final String SETTINGS_KEY_REPLICATION_INTERVAL_SECONDS = "replication.interval.seconds";
+    public static final String SETTINGS_KEY_BULK_ADD_CONCURRENCY = "bulk.add.concurrency";
+    /**
+     * Largest body <code>/add/bulk</code> will accept; only that route is
+     * allowed more than the server-wide max content length.
+     */
+    public static final String SETTINGS_KEY_BULK_ADD_MAX_BYTES = "bulk.add.max.bytes";
+    public static final int DEFAULT_BULK_ADD_MAX_BYTES = 131072;
+    public static final String SETTINGS_KEY_UPLOAD_MAX_BYTES = "upload.max.bytes";
+    public static final long DEFAULT_UPLOAD_MAX_BYTES = 512L * 1024L * 1024L;
+    /**
+     * Largest request body which will be aggregated in memory for any route
+     * but <code>/add/bulk</code> (see <code>bulk.add.max.bytes</code>) and
+     * <code>/upload</code>, which is streamed to disk.
+     */
+    public static final String DEFAULT_MAX_CONTENT_LENGTH = "384";
+    /**
+     * Serve HTTP/2 as well as HTTP/1.1 - in cleartext to clients which open
+     * with the HTTP/2 preface, and via ALPN when TLS is enabled.
+     */
+    public static final String SETTINGS_KEY_HTTP2_ENABLED = "http2.enabled";
+    public static final String SETTINGS_KEY_HTTP2_STREAM_WINDOW = "http2.stream.window.bytes";
+    public static final String SETTINGS_KEY_HTTP2_CONNECTION_WINDOW = "http2.connection.window.bytes";
+    public static final String SETTINGS_KEY_HTTP2_MAX_STREAMS = "http2.max.concurrent.streams";
+    public static final String SETTINGS_KEY_HTTP2_MAX_FRAME = "http2.max.frame.bytes";
+    /**
+     * Seconds a connection with no request in progress is kept open.
+     */
+    public static final String SETTINGS_KEY_KEEP_ALIVE_TIMEOUT_SECONDS = "keep.alive.timeout.seconds";
+    /**
+     * Seconds a connection with a request in progress may go without reading
+     * or writing anything before it is closed.
+     */
+    public static final String SETTINGS_KEY_IDLE_TIMEOUT_SECONDS = "idle.timeout.seconds";
+    /**
+     * Terminate TLS in the server itself, using the certificate from
+     * <code>tls.cert.file</code> and <code>tls.key.file</code> (PEM) or
+     * <code>tls.keystore.file</code> (PKCS#12), reloaded when they change.
+     */
+    public static final String SETTINGS_KEY_TLS_ENABLED = "tls.enabled";
+    public static final String SETTINGS_KEY_TLS_CERT_FILE = "tls.cert.file";
+    public static final String SETTINGS_KEY_TLS_KEY_FILE = "tls.key.file";
+    public static final String SETTINGS_KEY_TLS_KEYSTORE_FILE = "tls.keystore.file";
+    public static final String SETTINGS_KEY_TLS_KEY_PASSWORD = "tls.key.password";
+    /**
+     * Serve a generated self-signed certificate when <code>tls.enabled</code>
+     * is set but no certificate is; without it, that is a configuration
+     * error.
+     */
+    public static final String SETTINGS_KEY_TLS_SELF_SIGNED = "tls.self.signed";
+    /**
+     * Which TLS implementation to use - <code>openssl</code>,
+     * <code>jdk</code> or <code>auto</code> (OpenSSL if netty-tcnative is
+     * available).
+     */
+    public static final String SETTINGS_KEY_TLS_ENGINE = "tls.engine";
+    public static final String SETTINGS_KEY_TLS_SESSION_CACHE_SIZE = "tls.session.cache.size";
+    public static final String SETTINGS_KEY_TLS_SESSION_TIMEOUT_SECONDS = "tls.session.timeout.seconds";
+    public static final String SETTINGS_KEY_TLS_RELOAD_CHECK_SECONDS = "tls.reload.check.seconds";
+    /**
+     * Set to true when several servers share one nbm.dir, so that only the
+     * holder of a lease file in it polls and ingests.
+     */
+    public static final String SETTINGS_KEY_CLUSTER_ENABLED = "cluster.enabled";
+    public static final String SETTINGS_KEY_CLUSTER_NODE_ID = "cluster.node.id";
+    public static final String SETTINGS_KEY_CLUSTER_LEASE_SECONDS = "cluster.lease.seconds";
+    public static final String SETTINGS_KEY_CLUSTER_REFRESH_SECONDS = "cluster.refresh.seconds";
     private final Stats stats;
     private final String serverName;
 
     private static final Logs SYSLOG = Logs.named(UpdateCenterServer.class.getName());
 
     @Inject
-    UpdateCenterServer(ModuleSet set, UpdateCenterModuleGenerator gen, Stats stats, Settings settings, ServerInstallId serverId, ShutdownHookRegistry shutdown, VersionInfo ver) throws IOException, ParserConfigurationException, SAXException {
+    UpdateCenterServer(ModuleSet set, UpdateCenterModuleGenerator gen, Stats stats, Settings settings, ServerInstallId serverId, ShutdownHookRegistry shutdown, VersionInfo ver, ThreadBudget threads) throws IOException, ParserConfigurationException, SAXException {
         serverName = settings.getString(SETTINGS_KEY_DISPLAY_NAME) + " " + ver.deweyDecimalVersion();
         try {
             set.scan();
@@ -136,10 +349,12 @@ public class UpdateCenterServer extends GenericApplication {
                     .add("git-dirty", ver.dirty)
                     .add("modules", logInfo)
                     .addIfNotNull("pollInterval", settings.getInt(SETTINGS_KEY_POLL_INTERVAL_MINUTES))
+                    .addIfNotNull(SETTINGS_KEY_REPLICATION_PRIMARY, settings.getString(SETTINGS_KEY_REPLICATION_PRIMARY))
                     .addIfNotNull(ServerModule.PORT, settings.getInt(ServerModule.PORT))
                     .addIfNotNull(ServerModule.WORKER_THREADS, settings.getInt(ServerModule.WORKER_THREADS))
                     .addIfNotNull(ServerModule.BYTEBUF_ALLOCATOR_SETTINGS_KEY, settings.getString(ServerModule.BYTEBUF_ALLOCATOR_SETTINGS_KEY))
-                    .addIfNotNull(SETTINGS_KEY_LOG_LEVEL, settings.getString(SETTINGS_KEY_LOG_LEVEL));
+                    .addIfNotNull(SETTINGS_KEY_LOG_LEVEL, settings.getString(SETTINGS_KEY_LOG_LEVEL))
+                    .add("threads", threads.describe());
         }
         shutdown.add((Runnable) () -> {
             SYSLOG.info("shutdown").close();
@@ -170,7 +385,7 @@ public class UpdateCenterServer extends GenericApplication {
                 .add("salt", "as098df7u0aQ#3,0cH!")
                 .add(SETTINGS_KEY_ASYNC_LOGGING, "false")
                 .add(HTTP_COMPRESSION, "true")
-                .add(MAX_CONTENT_LENGTH, "384")
+                .add(MAX_CONTENT_LENGTH, DEFAULT_MAX_CONTENT_LENGTH)
                 .add(SETTINGS_KEY_POLL_INITIAL_DELAY_MINUTES, 2)
                 .addFilesystemAndClasspathLocations()
                 .parseCommandLineArguments(args).buildMutableSettings();
@@ -205,6 +420,14 @@ public class UpdateCenterServer extends GenericApplication {
                 settings.setString(SETTINGS_KEY_PASSWORD, password);
             }
 
+            if (settings.getBoolean(SETTINGS_KEY_TLS_ENABLED, false)
+                    && settings.getString(SETTINGS_KEY_URLS_EXTERNAL_SECURE_PORT) == null) {
+                // Secure URLs in the catalog should point at the port we
+                // terminate TLS on (8123 is Acteur's default), not 443
+                settings.setString(SETTINGS_KEY_URLS_EXTERNAL_SECURE_PORT,
+                        settings.getString(ServerModule.PORT, "8123"));
+            }
+
             String tickleToken = settings.getString(SETTINGS_KEY_TICKLE_TOKEN);
             if (tickleToken == null) {
                 String defaultTickleToken = new RandomStrings().randomChars(32);
@@ -218,12 +441,14 @@ public class UpdateCenterServer extends GenericApplication {
                             .bindLogger(SYSTEM_LOGGER)
                             .bindLogger(AUTH_LOGGER)
                             .bindLogger(FILE_WATCH_LOGGER)
-                            .bindLogger(DOWNLOAD_LOGGER))
+                            .bindLogger(DOWNLOAD_LOGGER)
+                            .bindLogger(SLOW_REQUEST_LOGGER))
                     .mergeNamespaces()
                     .add(MAIN_MODULE.apply(base))
                     .add(new ThreadModule().builder(GUICE_BINDING_POLLER_THREAD_POOL).daemon().eager()
                             .scheduled()
                             .withDefaultThreadCount(3)
+                            .legacyThreadCountName(SETTINGS_KEY_BLOCKING_THREADS)
                             .bind())
                     .applicationClass(UpdateCenterServer.class)
                     .add(new JacksonModule().withJavaTimeSerializationMode(TimeSerializationMode.TIME_AS_EPOCH_MILLIS,
@@ -272,36 +497,122 @@ public class UpdateCenterServer extends GenericApplication {
         @Override
         protected void configure() {
             Provider<Logs> logs = binder().getProvider(Key.get(new TypeLiteral<Logs>(){}, Names.named(SYSTEM_LOGGER)));
-            ModuleSet set = new ModuleSet(base, binder().getProvider(ObjectMapper.class), binder().getProvider(Stats.class), logs);
+            ModuleStoreProvider store = new ModuleStoreProvider(base, binder().getProvider(Settings.class),
+                    binder().getProvider(Key.get(ScheduledExecutorService.class, Names.named(GUICE_BINDING_POLLER_THREAD_POOL))),
+                    logs);
+            bind(ModuleStore.class).toProvider(store);
+            ModuleSet set = new ModuleSet(store, binder().getProvider(ObjectMapper.class), binder().getProvider(Stats.class), logs,
+                    binder().getProvider(PollLease.class));
             bind(ModuleSet.class).toInstance(set);
             bind(HttpClient.class).toProvider(HttpClientProvider.class);
             bind(Authenticator.class).to(AuthenticatorImpl.class);
+            bind(PipelineDecorator.class).to(ConnectionPipelineDecorator.class);
             bind(Poller.class).asEagerSingleton();
             bind(WatchDir.class).asEagerSingleton();
+            bind(Replicator.class).asEagerSingleton();
+            bind(PollLease.class).asEagerSingleton();
+            bind(FlightRecordings.class).asEagerSingleton();
+            bind(Probe.class).to(RequestTimings.class);
+            bind(AllocatorMetrics.class).asEagerSingleton();
+            bind(EventLoopFactory.class).to(TransportEventLoopFactory.class);
             bind(VersionInfo.class).toInstance(VersionInfo.find(UpdateCenterServer.class, "com.mastfrog", "meta-update-server"));
         }
 
+        static class ModuleStoreProvider implements Provider<ModuleStore> {
+
+            private final File base;
+            private final Provider<Settings> settings;
+            private final Provider<ScheduledExecutorService> pool;
+            private final Provider<Logs> logs;
+            private ModuleStore store;
+
+            ModuleStoreProvider(File base, Provider<Settings> settings, Provider<ScheduledExecutorService> pool, Provider<Logs> logs) {
+                this.base = base;
+                this.settings = settings;
+                this.pool = pool;
+                this.logs = logs;
+            }
+
+            @Override
+            public synchronized ModuleStore get() {
+                if (store == null) {
+                    Settings s = settings.get();
+                    String engine = s.getString(SETTINGS_KEY_STORAGE_ENGINE, STORAGE_ENGINE_DIRECTORY);
+                    switch (engine) {
+                        case STORAGE_ENGINE_DIRECTORY:
+                            store = new DirectoryModuleStore(base.toPath());
+                            break;
+                        case STORAGE_ENGINE_SEGMENTS:
+                            if (s.getBoolean(SETTINGS_KEY_CLUSTER_ENABLED, false)) {
+                                throw new ConfigurationError(SETTINGS_KEY_STORAGE_ENGINE + "="
+                                        + STORAGE_ENGINE_SEGMENTS + " cannot be shared by a cluster");
+                            }
+                            store = new SegmentModuleStore(base.toPath(),
+                                    s.getLong(SETTINGS_KEY_SEGMENT_MAX_MEGABYTES, 256) * 1024 * 1024,
+                                    s.getInt(SETTINGS_KEY_SEGMENT_RETAIN_VERSIONS, 2),
+                                    pool.get(), logs.get());
+                            break;
+                        default:
+                            throw new ConfigurationError("Unknown " + SETTINGS_KEY_STORAGE_ENGINE
+                                    + " '" + engine + "'");
+                    }
+                }
+                return store;
+            }
+        }
+
         @Singleton
         static class HttpClientProvider implements Provider<HttpClient> {
 
             private final HttpClient client;
+            private final ByteBufAllocator alloc;
+            private final int threads;
+            private final boolean shared;
 
             @Inject
-            HttpClientProvider(ByteBufAllocator alloc, Settings settings, VersionInfo info) {
+            HttpClientProvider(ByteBufAllocator alloc, Settings settings, VersionInfo info,
+                    EventLoopFactory loops, @Named(SYSTEM_LOGGER) Logs logs) {
+                this.alloc = alloc;
                 String ver = "nbmserver-" + info.deweyDecimalVersion() + " - https://github.com/timboudreau/meta-update-center";
-                int downloadThreads = settings.getInt(SETTINGS_KEY_DOWNLOAD_THREADS, 16);
-                client = HttpClient.builder()
+                HttpClientBuilder builder = HttpClient.builder()
                         .setUserAgent(ver)
                         .followRedirects()
                         .setChannelOption(ChannelOption.ALLOCATOR, alloc)
-                        .threadCount(downloadThreads)
-                        .maxChunkSize(32768).build();
+                        .maxChunkSize(32768);
+                EventLoopGroup workers = settings.getBoolean(SETTINGS_KEY_HTTP_CLIENT_SHARE_EVENT_LOOP, false)
+                        ? loops.getWorkerGroup() : null;
+                // The client can only be given an NIO group
+                shared = workers instanceof NioEventLoopGroup;
+                if (shared) {
+                    builder.setEventLoopGroup((NioEventLoopGroup) workers);
+                    threads = ((NioEventLoopGroup) workers).executorCount();
+                } else {
+                    if (workers != null) {
+                        logs.warn("httpClientNotShared")
+                                .add("workerGroup", workers.getClass().getSimpleName()).close();
+                    }
+                    threads = settings.getInt(SETTINGS_KEY_DOWNLOAD_THREADS, 4);
+                    builder.threadCount(threads);
+                }
+                client = builder.build();
             }
 
             @Override
             public HttpClient get() {
                 return client;
             }
+
+            ByteBufAllocator allocator() {
+                return alloc;
+            }
+
+            boolean sharesServerEventLoop() {
+                return shared;
+            }
+
+            int threads() {
+                return threads;
+            }
         }
     }
 }
@@ -0,0 +1,123 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.mastfrog.acteur.Acteur;
+import com.mastfrog.acteur.HttpEvent;
+import com.mastfrog.acteur.annotations.HttpCall;
+import com.mastfrog.acteur.annotations.Precursors;
+import com.mastfrog.acteur.header.entities.CacheControl;
+import com.mastfrog.acteur.headers.Headers;
+import static com.mastfrog.acteur.headers.Method.PUT;
+import com.mastfrog.acteur.preconditions.Authenticated;
+import com.mastfrog.acteur.preconditions.Description;
+import com.mastfrog.acteur.preconditions.Methods;
+import com.mastfrog.acteur.preconditions.PathRegex;
+import com.mastfrog.bunyan.java.v2.Log;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.mime.MimeType;
+import com.timboudreau.metaupdatecenter.NbmDownloader.DownloadHandler;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.DOWNLOAD_LOGGER;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.UPLOAD_URL_PREFIX;
+import com.timboudreau.metaupdatecenter.UploadPipelineDecorator.SpooledUpload;
+import static com.timboudreau.metaupdatecenter.UploadPipelineDecorator.SPOOLED_UPLOAD;
+import static com.timboudreau.metaupdatecenter.UploadPage.UPLOAD_PAGE_REGEX;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.CREATED;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import io.netty.util.ReferenceCounted;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.zip.ZipException;
+
+/**
+ * Accepts an NBM as the body of a PUT, so a build can push its artifacts
+ * rather than waiting to be polled. The body never passes through the
+ * aggregator - UploadPipelineDecorator has already written it to a file in
+ * the storage dir by the time this runs.
+ *
+ * @author Tim Boudreau
+ */
+@HttpCall
+@PathRegex(UPLOAD_PAGE_REGEX)
+@Methods(PUT)
+@Authenticated
+@Precursors(CheckIngestAllowed.class)
+@Description("Upload an NBM file as the request body.  Pass ?sha1= with the "
+        + "hex SHA-1 of the file to have it verified, and ?name= to record a "
+        + "name for where it came from")
+public class UploadPage extends Acteur {
+
+    public static final String UPLOAD_PAGE_REGEX = "^upload$";
+
+    @Inject
+    UploadPage(ModuleSet set, HttpEvent evt, NbmDownloader downloader, ObjectMapper mapper,
+            @Named(DOWNLOAD_LOGGER) Logs logs) {
+        add(Headers.CONTENT_TYPE, MimeType.PLAIN_TEXT_UTF_8);
+        add(Headers.EXPIRES, ZonedDateTime.now().minus(Duration.ofDays(30)));
+        add(Headers.CACHE_CONTROL, CacheControl.PRIVATE_NO_CACHE_NO_STORE);
+        HttpRequest req = evt.request();
+        if (req instanceof ReferenceCounted) {
+            // Same as PutModulePage
+            ((ReferenceCounted) req).release();
+        }
+        SpooledUpload upload = evt.channel().attr(SPOOLED_UPLOAD).getAndSet(null);
+        if (upload == null) {
+            badRequest("No NBM in request body\n");
+            return;
+        }
+        try (Log log = logs.info("upload")) {
+            log.add("size", upload.size()).add("sha1", upload.sha1());
+            String expected = evt.urlParameter("sha1");
+            if (expected != null && !expected.trim().equalsIgnoreCase(upload.sha1())) {
+                log.add("expectedSha1", expected);
+                badRequest("SHA-1 of upload is " + upload.sha1() + " not " + expected + "\n");
+                return;
+            }
+            String name = evt.urlParameter("name");
+            downloader.handleLocalNBM(upload.file(), null, new DownloadHandler() {
+                @Override
+                public boolean onResponse(HttpResponseStatus status, HttpHeaders headers) {
+                    return true;
+                }
+
+                @Override
+                public void onModuleDownload(InfoFile module, InputStream bytes, String hash, String ignored) {
+                    if (module == null) {
+                        badRequest("No Info/info.xml - not an NBM?\n");
+                        return;
+                    }
+                    try {
+                        String source = UPLOAD_URL_PREFIX + (name == null
+                                ? module.getModuleCodeName() + ".nbm" : name);
+                        log.add("cnb", module.getModuleCodeName()).add("hash", hash).add("from", source);
+                        ModuleItem item = set.add(module, bytes, source, hash, false);
+                        if (item == null) {
+                            reply(OK, "I already have that module.\n");
+                        } else {
+                            reply(CREATED, "Upload of " + module + " completed.  SHA-1 nbm hash: " + hash + "\n"
+                                    + "Metadata:\n" + mapper.writeValueAsString(item.getMetadata()) + "\n");
+                        }
+                    } catch (Exception ex) {
+                        onError(ex);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    log.add(t);
+                    reply(t instanceof ZipException ? BAD_REQUEST : INTERNAL_SERVER_ERROR,
+                            "Failed: " + t + "\n");
+                }
+            });
+        } finally {
+            upload.delete();
+        }
+    }
+}
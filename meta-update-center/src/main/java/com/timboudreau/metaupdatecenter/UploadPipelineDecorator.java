@@ -0,0 +1,514 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.mastfrog.acteur.header.entities.BasicCredentials;
+import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.acteur.server.PipelineDecorator;
+import static com.mastfrog.acteur.server.ServerModule.SETTINGS_KEY_BASE_PATH;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.util.preconditions.Exceptions;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.DEFAULT_UPLOAD_MAX_BYTES;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.DOWNLOAD_LOGGER;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_UPLOAD_MAX_BYTES;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import static io.netty.handler.codec.http.HttpResponseStatus.CONTINUE;
+import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
+import static io.netty.handler.codec.http.HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import static io.netty.handler.codec.http.HttpResponseStatus.UNAUTHORIZED;
+import io.netty.handler.codec.http.HttpUtil;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.AttributeKey;
+import io.netty.util.CharsetUtil;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Puts a handler in front of Netty's HttpObjectAggregator which writes the
+ * body of <code>PUT /upload</code> requests to a temporary file in the
+ * storage dir as it arrives, hashing it on the way (the writes themselves
+ * happen on the blocking I/O pool, never the event loop), and then passes an empty
+ * request on to the application with the file attached to the channel, so an
+ * NBM of any size can be pushed without ever being held in memory.
+ * <p>
+ * Acteur's own <code>@Early</code> pages are not used for this, because
+ * content can reach the pipeline before the page's chain has run far enough
+ * to install its chunk handler, and because their presence disables response
+ * compression for every request.
+ * </p>
+ *
+ * @author Tim Boudreau
+ */
+@Singleton
+final class UploadPipelineDecorator implements PipelineDecorator {
+
+    static final AttributeKey<SpooledUpload> SPOOLED_UPLOAD
+            = AttributeKey.valueOf(UploadPipelineDecorator.class, "spooledUpload");
+    private static final String HANDLER_NAME = "upload";
+    /**
+     * How many chunks may wait to be written before the connection stops
+     * being read from.
+     */
+    private static final int MAX_PENDING_WRITES = 16;
+    private final Path dir;
+    private final String uploadPath;
+    private final long maxBytes;
+    private final AuthenticatorImpl auth;
+    private final BlockingIO io;
+    private final Logs logs;
+
+    @Inject
+    UploadPipelineDecorator(ModuleSet set, Settings settings, AuthenticatorImpl auth, BlockingIO io,
+            @Named(DOWNLOAD_LOGGER) Logs logs) {
+        this.dir = set.getStorageDir().toPath();
+        this.maxBytes = settings.getLong(SETTINGS_KEY_UPLOAD_MAX_BYTES, DEFAULT_UPLOAD_MAX_BYTES);
+        this.auth = auth;
+        this.io = io;
+        this.logs = logs;
+        String base = trimSlashes(settings.getString(SETTINGS_KEY_BASE_PATH, ""));
+        uploadPath = base.isEmpty() ? "upload" : base + "/upload";
+    }
+
+    @Override
+    public void onCreatePipeline(ChannelPipeline pipeline) {
+        // do nothing
+    }
+
+    @Override
+    public void onPipelineInitialized(ChannelPipeline pipeline) {
+        // After the encoder, so responses written from here are encoded but
+        // do not pass through the compressor, which has not seen the request
+        install(pipeline, ENCODER);
+    }
+
+    /**
+     * Add the upload handler to a pipeline immediately after the handler
+     * which decodes HttpRequests and encodes HttpResponses.
+     */
+    void install(ChannelPipeline pipeline, String after) {
+        pipeline.addAfter(after, HANDLER_NAME, new Spooler());
+    }
+
+    static String trimSlashes(String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && path.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+
+    boolean isUpload(HttpRequest req) {
+        if (!HttpMethod.PUT.equals(req.method())) {
+            return false;
+        }
+        String uri = req.uri();
+        int q = uri.indexOf('?');
+        if (q >= 0) {
+            uri = uri.substring(0, q);
+        }
+        return uploadPath.equals(trimSlashes(uri));
+    }
+
+    /**
+     * The body of an upload, which the acteur handling the request owns and
+     * must delete when done.
+     */
+    static final class SpooledUpload {
+
+        private final Path file;
+        private final long size;
+        private final String sha1;
+
+        SpooledUpload(Path file, long size, String sha1) {
+            this.file = file;
+            this.size = size;
+            this.sha1 = sha1;
+        }
+
+        Path file() {
+            return file;
+        }
+
+        long size() {
+            return size;
+        }
+
+        /**
+         * The SHA-1 of the entire body, as hex - unlike the module hash, this
+         * is what <code>sha1sum</code> would report for the file.
+         *
+         * @return A hash
+         */
+        String sha1() {
+            return sha1;
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                Exceptions.printStackTrace(ex);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return file + " (" + size + " bytes, sha1 " + sha1 + ")";
+        }
+    }
+
+    /**
+     * The temporary file an upload is being written to. Its methods block,
+     * so they only run on the blocking I/O pool, one at a time per upload.
+     */
+    private final class Spool {
+
+        private final MessageDigest digest;
+        private Path file;
+        private FileChannel out;
+
+        Spool() throws NoSuchAlgorithmException {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+
+        void open() throws IOException {
+            file = Files.createTempFile(dir, ".upload-", ".nbm.tmp");
+            out = FileChannel.open(file, StandardOpenOption.WRITE);
+        }
+
+        void write(ByteBuf buf) throws IOException {
+            for (ByteBuffer nio : buf.nioBuffers()) {
+                digest.update(nio.duplicate());
+                while (nio.hasRemaining()) {
+                    out.write(nio);
+                }
+            }
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+
+        void discard() {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+                if (file != null) {
+                    Files.deleteIfExists(file);
+                }
+            } catch (IOException ex) {
+                logs.error("uploadDiscard").add("file", file).add(ex).close();
+            }
+        }
+    }
+
+    /**
+     * A step of writing an upload to disk.
+     */
+    private interface SpoolTask {
+
+        void run() throws Exception;
+    }
+
+    /**
+     * Run some cleanup on the blocking I/O pool, or right here if it is
+     * refusing work.
+     */
+    private void cleanUp(Runnable r) {
+        try {
+            io.execute(r);
+        } catch (RejectedExecutionException ex) {
+            r.run();
+        }
+    }
+
+    /**
+     * Hands each chunk of an upload to the blocking I/O pool, chaining the
+     * writes so they happen in order, and stops reading from the connection
+     * while too many are waiting, so a client faster than the disk cannot
+     * fill the heap.
+     */
+    private final class Spooler extends ChannelInboundHandlerAdapter {
+
+        private HttpRequest request;
+        private Spool spool;
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+        private int pending;
+        private long received;
+        private boolean discarding;
+        private HttpRequest finishing;
+        private Spool finishingSpool;
+        private long finishingSize;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpRequest && !(msg instanceof FullHttpRequest)) {
+                // An earlier upload on this connection which never reached
+                // the acteur that claims it
+                SpooledUpload stale = ctx.channel().attr(SPOOLED_UPLOAD).getAndSet(null);
+                if (stale != null) {
+                    cleanUp(stale::delete);
+                }
+                HttpRequest req = (HttpRequest) msg;
+                if (isUpload(req)) {
+                    start(ctx, req);
+                    return;
+                }
+            } else if (msg instanceof HttpContent && (request != null || discarding)) {
+                onContent(ctx, (HttpContent) msg);
+                return;
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        private void start(ChannelHandlerContext ctx, HttpRequest req) {
+            BasicCredentials credentials;
+            try {
+                credentials = Headers.read(Headers.AUTHORIZATION, req);
+            } catch (RuntimeException ex) {
+                credentials = null;
+            }
+            // A client waiting for 100 Continue will not send the body if
+            // refused, so there is nothing to drain
+            boolean noBodyYet = HttpUtil.is100ContinueExpected(req);
+            // Check before anything is written to disk, so anonymous clients
+            // cannot fill it up; the acteur authenticates again as usual
+            if (!auth.checkCredentials(credentials)) {
+                reject(ctx, UNAUTHORIZED, "Authentication required\n", noBodyYet);
+                return;
+            }
+            long length = HttpUtil.getContentLength(req, -1L);
+            if (length > maxBytes) {
+                reject(ctx, REQUEST_ENTITY_TOO_LARGE, "Uploads are limited to " + maxBytes + " bytes\n", noBodyYet);
+                return;
+            }
+            Spool s;
+            try {
+                s = new Spool();
+            } catch (NoSuchAlgorithmException ex) {
+                logs.error("uploadSpool").add(ex).close();
+                reject(ctx, INTERNAL_SERVER_ERROR, "Could not hash upload\n", noBodyYet);
+                return;
+            }
+            request = req;
+            spool = s;
+            received = 0;
+            // Each upload gets its own chain, so one which failed cannot
+            // fail the next on the same connection
+            tail = CompletableFuture.completedFuture(null);
+            enqueue(ctx, s, s::open, null);
+            if (noBodyYet) {
+                ctx.writeAndFlush(new DefaultFullHttpResponse(HTTP_1_1, CONTINUE, Unpooled.EMPTY_BUFFER));
+            }
+        }
+
+        private void onContent(ChannelHandlerContext ctx, HttpContent content) {
+            boolean last = content instanceof LastHttpContent;
+            try {
+                if (discarding) {
+                    if (last) {
+                        // The response has already been sent
+                        ctx.close();
+                    }
+                    return;
+                }
+                ByteBuf buf = content.content();
+                received += buf.readableBytes();
+                if (received > maxBytes) {
+                    abort();
+                    reject(ctx, REQUEST_ENTITY_TOO_LARGE, "Uploads are limited to " + maxBytes + " bytes\n", last);
+                    return;
+                }
+                Spool s = spool;
+                ByteBuf data = buf.retain();
+                enqueue(ctx, s, () -> s.write(data), data);
+                if (last) {
+                    enqueue(ctx, s, s::close, null);
+                    finishing = request;
+                    finishingSpool = s;
+                    finishingSize = received;
+                    request = null;
+                    spool = null;
+                }
+            } finally {
+                content.release();
+            }
+        }
+
+        private void enqueue(ChannelHandlerContext ctx, Spool s, SpoolTask task, ByteBuf data) {
+            CompletableFuture<Void> next = new CompletableFuture<>();
+            tail.whenComplete((ignored, earlier) -> {
+                if (earlier != null) {
+                    if (data != null) {
+                        data.release();
+                    }
+                    next.completeExceptionally(earlier);
+                    return;
+                }
+                try {
+                    io.execute(() -> {
+                        try {
+                            task.run();
+                            next.complete(null);
+                        } catch (Throwable t) {
+                            next.completeExceptionally(t);
+                        } finally {
+                            if (data != null) {
+                                data.release();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException ex) {
+                    if (data != null) {
+                        data.release();
+                    }
+                    next.completeExceptionally(ex);
+                }
+            });
+            tail = next;
+            if (++pending > MAX_PENDING_WRITES) {
+                ctx.channel().config().setAutoRead(false);
+            }
+            next.whenComplete((ignored, thrown) -> ctx.executor().execute(() -> onWritten(ctx, s, thrown)));
+        }
+
+        private void onWritten(ChannelHandlerContext ctx, Spool s, Throwable thrown) {
+            pending--;
+            // Only the first failure of the upload in progress is reported
+            if (thrown != null && (s == spool || s == finishingSpool)) {
+                boolean bodyComplete = s == finishingSpool;
+                finishing = null;
+                finishingSpool = null;
+                request = null;
+                spool = null;
+                cleanUp(s::discard);
+                if (thrown instanceof RejectedExecutionException) {
+                    reject(ctx, SERVICE_UNAVAILABLE, "Too many requests waiting on the disk\n", bodyComplete);
+                } else {
+                    logs.error("uploadSpool").add("file", s.file).add(thrown).close();
+                    reject(ctx, INTERNAL_SERVER_ERROR, "Failed writing upload: " + thrown + "\n", bodyComplete);
+                }
+            }
+            if (pending == 0) {
+                if (!ctx.channel().config().isAutoRead()) {
+                    ctx.channel().config().setAutoRead(true);
+                }
+                if (finishing != null) {
+                    finish(ctx);
+                }
+            }
+        }
+
+        private void finish(ChannelHandlerContext ctx) {
+            Spool s = finishingSpool;
+            HttpRequest req = finishing;
+            finishing = null;
+            finishingSpool = null;
+            SpooledUpload upload = new SpooledUpload(s.file, finishingSize, hex(s.digest.digest()));
+            logs.debug("uploadSpooled").add("upload", upload.toString()).close();
+            FullHttpRequest full = new DefaultFullHttpRequest(req.protocolVersion(), req.method(),
+                    req.uri(), Unpooled.EMPTY_BUFFER);
+            full.headers().set(req.headers());
+            full.headers().remove(HttpHeaderNames.EXPECT);
+            HttpUtil.setTransferEncodingChunked(full, false);
+            HttpUtil.setContentLength(full, 0);
+            ctx.channel().attr(SPOOLED_UPLOAD).set(upload);
+            ctx.fireChannelRead(full);
+        }
+
+        private void abort() {
+            request = null;
+            Spool s = spool != null ? spool : finishingSpool;
+            spool = null;
+            finishing = null;
+            finishingSpool = null;
+            if (s != null) {
+                // After any writes still queued for it
+                tail.whenComplete((ignored, thrown) -> cleanUp(s::discard));
+            }
+        }
+
+        /**
+         * Send an error response; unless the body has been read, the rest of
+         * it is discarded and the connection closed once it has all arrived,
+         * since many clients will not read a response until they have
+         * finished sending.
+         */
+        private void reject(ChannelHandlerContext ctx, HttpResponseStatus status, String message, boolean bodyComplete) {
+            FullHttpResponse resp = errorResponse(status, message, "upload");
+            if (bodyComplete) {
+                ctx.writeAndFlush(resp).addListener(ChannelFutureListener.CLOSE);
+            } else {
+                discarding = true;
+                ctx.writeAndFlush(resp);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            abort();
+            SpooledUpload unclaimed = ctx.channel().attr(SPOOLED_UPLOAD).getAndSet(null);
+            if (unclaimed != null) {
+                cleanUp(unclaimed::delete);
+            }
+            super.channelInactive(ctx);
+        }
+    }
+
+    /**
+     * A plain text error response, sent from the pipeline before the request
+     * reaches the application, which closes the connection.
+     */
+    static FullHttpResponse errorResponse(HttpResponseStatus status, String message, String realm) {
+        FullHttpResponse resp = new DefaultFullHttpResponse(HTTP_1_1, status,
+                Unpooled.copiedBuffer(message, CharsetUtil.UTF_8));
+        resp.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+        resp.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        HttpUtil.setContentLength(resp, resp.content().readableBytes());
+        if (status == UNAUTHORIZED) {
+            resp.headers().set(HttpHeaderNames.WWW_AUTHENTICATE, "Basic realm=\"" + realm + "\"");
+        }
+        return resp;
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16))
+                    .append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -6,76 +6,110 @@ import com.mastfrog.bunyan.java.v2.Log;
 import com.mastfrog.bunyan.java.v2.Logs;
 import com.mastfrog.settings.Settings;
 import com.mastfrog.shutdown.hooks.ShutdownHookRegistry;
-import com.mastfrog.util.streams.Streams;
 import com.mastfrog.util.time.TimeUtil;
 import com.timboudreau.metaupdatecenter.NbmDownloader.DownloadHandler;
 import static com.timboudreau.metaupdatecenter.UpdateCenterServer.FILE_WATCH_LOGGER;
+import com.timboudreau.metaupdatecenter.ModuleSet.StagedModule;
 import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_FILE_NOTIFICATION_PROCESS_DELAY_SECONDS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_WATCH_BATCH_SIZE;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_WATCH_PARSE_THREADS;
 import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_WATCH_DIR;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
-import io.netty.buffer.ByteBufInputStream;
-import io.netty.buffer.ByteBufOutputStream;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintStream;
 import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.time.Duration;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.ZonedDateTime;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import javax.xml.xpath.XPathExpressionException;
 
 /**
- * Allows a local folder
+ * Allows a local folder to be watched for NBMs, which are ingested as they
+ * appear. Ingest is a pipeline: a single thread debounces filesystem events
+ * until a file stops changing, a pool sized to the number of cores parses and
+ * hashes files and writes them into the storage dir, and a single thread
+ * publishes whatever has accumulated to the ModuleSet in batches, so dropping
+ * a few hundred NBMs in at once costs a handful of catalog generations rather
+ * than one each.
+ * <p>
+ * Subdirectories are watched too, including ones created later. What has
+ * been done with each file is kept in a {@link WatchState}, so a restart only
+ * opens files whose size or timestamp has changed.
  *
  * @author Tim Boudreau
  */
 final class WatchDir implements Runnable {
 
+    /**
+     * How long the commit stage waits for more parsed NBMs before publishing
+     * a partial batch.
+     */
+    private static final long BATCH_LINGER_MILLIS = 250;
+    /**
+     * The watcher, debouncer and committer each block indefinitely, so
+     * they get threads of their own rather than tying up the shared pool.
+     */
+    private static final int LOOP_THREADS = 3;
     private final NbmDownloader processor;
 
-    private final ByteBufAllocator alloc;
     private volatile boolean shuttingDown;
     private final Thread.UncaughtExceptionHandler ueh;
     private final WatchService watchService;
-    private final DelayQueue<DelayKey> queue;
-    private final Duration delay;
+    private final HashedWheelDebouncer<Path, FileStamp> queue;
     private final Logs logger;
     private final ModuleSet set;
+    private final PollLease lease;
+    private final ThreadPoolExecutor parsePool;
+    private final BlockingQueue<Parsed> commitQueue = new LinkedBlockingQueue<>();
+    private final int batchSize;
+    private final WatchState state;
 
     @Inject
     public WatchDir(Settings settings, ShutdownHookRegistry reg, NbmDownloader processor,
-            ByteBufAllocator alloc, Thread.UncaughtExceptionHandler ueh, @Named(FILE_WATCH_LOGGER) Logs logger,
-            ModuleSet set) throws IOException {
+            Thread.UncaughtExceptionHandler ueh, @Named(FILE_WATCH_LOGGER) Logs logger,
+            ModuleSet set, PollLease lease) throws IOException {
         this.processor = processor;
-        this.alloc = alloc;
+        this.lease = lease;
         this.ueh = ueh;
         this.logger = logger;
         this.set = set;
         String pth = settings.getString(SETTINGS_KEY_WATCH_DIR);
-        Duration delay = null;
         ExecutorService threadPool = null;
+        ThreadPoolExecutor parsePool = null;
         WatchService watchService = null;
-        DelayQueue<DelayKey> queue = null;
+        HashedWheelDebouncer<Path, FileStamp> queue = null;
         Path path = null;
+        WatchState state = null;
         try (Log log = logger.info("startup")) {
-            if (pth != null) {
+            if (pth != null && Replicator.isFollower(settings)) {
+                // Replicas are read-only; anything dropped here belongs on the primary
+                log.add("path", pth).add("watching", false).add("replica", true);
+            } else if (pth != null) {
                 try {
                     path = Paths.get(pth).normalize().toAbsolutePath();
                     log.add("path", path.toString());
@@ -83,12 +117,18 @@ final class WatchDir implements Runnable {
                         log.add("exists", true);
                         watchService = FileSystems.getDefault().newWatchService();
                         long seconds = settings.getLong(SETTINGS_KEY_FILE_NOTIFICATION_PROCESS_DELAY_SECONDS, 10);
-                        delay = Duration.ofSeconds(seconds);
                         reg.addResource(watchService);
-                        path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
-                        queue = new DelayQueue<>();
-                        threadPool = Executors.newFixedThreadPool(3);
-                        log.add("watching", true).add("delay", seconds);
+                        state = new WatchState(path);
+                        queue = new HashedWheelDebouncer<>(TimeUnit.SECONDS.toMillis(seconds));
+                        threadPool = Executors.newFixedThreadPool(LOOP_THREADS, new DaemonThreadFactory("watch-dir-"));
+                        int parseThreads = Math.max(1, settings.getInt(SETTINGS_KEY_WATCH_PARSE_THREADS,
+                                Runtime.getRuntime().availableProcessors()));
+                        parsePool = new ThreadPoolExecutor(parseThreads, parseThreads, 60, TimeUnit.SECONDS,
+                                new LinkedBlockingQueue<>(), new DaemonThreadFactory("new-nbm-dir-parser-"));
+                        // Most of the time nothing is arriving, so don't keep
+                        // a thread per core parked for it
+                        parsePool.allowCoreThreadTimeOut(true);
+                        log.add("watching", true).add("delay", seconds).add("parseThreads", parseThreads);
                     } else {
                         log.add("exists", false).add("watching", false);
                     }
@@ -101,12 +141,18 @@ final class WatchDir implements Runnable {
         }
         this.watchService = watchService;
         this.queue = queue;
-        this.delay = delay;
-        if (threadPool != null && queue != null && path != null) {
-            threadPool.submit(new Watcher(path));
-            threadPool.submit(new Processor());
-            threadPool.submit(new InitialScan(path));
+        this.parsePool = parsePool;
+        this.state = state;
+        this.batchSize = Math.max(1, settings.getInt(SETTINGS_KEY_WATCH_BATCH_SIZE, 64));
+        if (threadPool != null && queue != null && path != null && state != null) {
+            threadPool.submit(new Watcher());
+            threadPool.submit(new Debouncer());
+            threadPool.submit(new Committer());
+            // On a large tree the walk takes a while; it feeds the parse
+            // pool anyway, so run it there rather than on the shared pool
+            parsePool.submit(new InitialScan(path));
             reg.add(threadPool);
+            reg.add(parsePool);
             // Add this last since hooks are run in reverse order - we want shuttingDown
             // to be true before anything else is interrupted
             reg.add(this);
@@ -123,140 +169,301 @@ final class WatchDir implements Runnable {
 
         @Override
         public void run() {
-            try {
-                Files.walk(path, FileVisitOption.FOLLOW_LINKS).filter(child -> {
-                    return child.getFileName().toString().endsWith(".nbm");
-                }).forEach(child -> {
-                    try (Log log = logger.info("initial-scan")) {
-                        log.add("path", child.toString());
-                        try {
-                            if (processingFailed(child)) {
-                                log.add("status", "alreadyFailed");
-                            } else if (alreadyProcessed(child)) {
-                                log.add("status", "alreadyProcessed");
-                            }
-                            if (!processingFailed(child) && !alreadyProcessed(child)) {
-                                DelayKey key = new DelayKey(child, delay.toMillis());
-                                if (!shuttingDown) {
-                                    queue.offer(key);
-                                }
-                                log.add("status", "queued");
-                            }
-                        } catch (IOException ex) {
-                            log.add(ex);
-                            ueh.uncaughtException(Thread.currentThread(), ex);
-                        }
-                    }
-                });
+            try (Log log = logger.info("initial-scan")) {
+                log.add("path", path.toString());
+                try {
+                    Set<Path> present = scan(path, log);
+                    state.compact(present);
+                    log.add("files", present.size());
+                } catch (IOException ex) {
+                    log.add(ex);
+                    ueh.uncaughtException(Thread.currentThread(), ex);
+                }
+            }
+        }
+    }
 
-            } catch (IOException ioe) {
-                ueh.uncaughtException(Thread.currentThread(), ioe);
+    /**
+     * Walk a directory tree, watching every directory in it and queueing
+     * every NBM whose size or timestamp differs from what the state file
+     * recorded. The attributes the walk already has are used, so nothing is
+     * stat'd twice.
+     *
+     * @return The NBMs found
+     */
+    private Set<Path> scan(Path root, Log log) throws IOException {
+        Map<Path, BasicFileAttributes> nbms = new HashMap<>();
+        Set<Path> sidecars = new HashSet<>();
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                register(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".nbm")) {
+                    nbms.put(file, attrs);
+                } else if (name.endsWith(".nbm.processed") || name.endsWith(".nbm.failed")) {
+                    sidecars.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                logger.warn("scan-failed").add("path", file.toString()).add(exc).close();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        int queued = 0;
+        for (Map.Entry<Path, BasicFileAttributes> e : nbms.entrySet()) {
+            Path file = e.getKey();
+            long size = e.getValue().size();
+            long lastModified = e.getValue().lastModifiedTime().toMillis();
+            importSidecars(file, size, lastModified, sidecars);
+            if (!state.isCurrent(file, size, lastModified) && !shuttingDown) {
+                queue.arm(file, new FileStamp(file, size, lastModified));
+                queued++;
             }
         }
+        // Sidecars left over belong to NBMs which are gone
+        for (Path orphan : sidecars) {
+            Files.deleteIfExists(orphan);
+        }
+        state.flush();
+        log.add("queued", queued);
+        return nbms.keySet();
+    }
+
+    /**
+     * Older versions recorded outcomes in <code>.processed</code> and
+     * <code>.failed</code> files next to each NBM; fold those into the state
+     * file and delete them.
+     */
+    private void importSidecars(Path file, long size, long lastModified, Set<Path> sidecars) throws IOException {
+        Path processed = file.resolveSibling(file.getFileName() + ".processed");
+        Path failed = file.resolveSibling(file.getFileName() + ".failed");
+        boolean wasProcessed = sidecars.remove(processed);
+        boolean wasFailed = sidecars.remove(failed);
+        if (state.get(file) == null) {
+            if (wasProcessed) {
+                state.processed(file, size, lastModified, null);
+            } else if (wasFailed) {
+                state.failed(file, size, lastModified);
+            }
+        }
+        if (wasProcessed) {
+            Files.deleteIfExists(processed);
+        }
+        if (wasFailed) {
+            Files.deleteIfExists(failed);
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
     }
 
     @Override
     public void run() {
         shuttingDown = true;
+        if (state != null) {
+            try {
+                state.close();
+            } catch (IOException ex) {
+                logger.warn("state-close").add(ex).close();
+            }
+        }
     }
 
-    private Path markerFile(Path path) {
-        return path.getParent().resolve(path.getFileName() + ".processed");
+    WatchState state() {
+        return state;
     }
 
-    private long markerFileLastModified(Path path) throws IOException {
-        Path markerFile = markerFile(path);
-        if (!Files.exists(markerFile)) {
-            return -1;
-        } else {
-            return Files.getLastModifiedTime(path).to(TimeUnit.MILLISECONDS);
-        }
+    /**
+     * Number of items waiting in, or being worked on by, each stage of the
+     * ingest pipeline, in pipeline order.
+     */
+    Map<String, Integer> queueDepths() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        result.put("debounce", queue == null ? 0 : queue.size());
+        result.put("parse", parsePool == null ? 0 : parsePool.getQueue().size());
+        result.put("parsing", parsePool == null ? 0 : parsePool.getActiveCount());
+        result.put("commit", commitQueue.size());
+        return result;
     }
 
-    private boolean alreadyProcessed(Path path) throws IOException {
-        long lastModified = Files.getLastModifiedTime(path).to(TimeUnit.MILLISECONDS);
-        return lastModified <= markerFileLastModified(path);
+    /**
+     * Threads this watcher has started, for reporting the server's thread
+     * budget; parse threads exit after a minute with nothing to do.
+     */
+    Map<String, Integer> threadCounts() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        result.put("loops", parsePool == null ? 0 : LOOP_THREADS);
+        result.put("parseMax", parsePool == null ? 0 : parsePool.getMaximumPoolSize());
+        result.put("parseLive", parsePool == null ? 0 : parsePool.getPoolSize());
+        return result;
     }
 
-    private Path failedFile(Path path) {
-        return path.getParent().resolve(path.getFileName() + ".failed");
+    private void recordFailure(Parsed p, Throwable t) {
+        recordFailure(p.path, p.size, p.lastModified, t);
     }
 
-    private boolean processingFailed(Path path) throws IOException {
-        Path failedFile = path.getParent().resolve(path.getFileName() + ".failed");
-        if (!Files.exists(failedFile)) {
-            return false;
-        } else {
-            long fileLm = Files.getLastModifiedTime(path).to(TimeUnit.MILLISECONDS);
-            long failedLm = Files.getLastModifiedTime(failedFile).to(TimeUnit.MILLISECONDS);
-            return fileLm <= failedLm;
+    private void recordFailure(Path path, long size, long lastModified, Throwable t) {
+        logger.warn("module-failed").add("origPath", path.toString()).add(t).close();
+        try {
+            state.failed(path, size, lastModified);
+            state.flush();
+        } catch (IOException ex) {
+            ueh.uncaughtException(Thread.currentThread(), ex);
         }
     }
 
-    private void processOne(Path path) throws IOException {
-        if (!processingFailed(path) && !alreadyProcessed(path)) {
-            long length = Files.size(path);
-            ByteBuf buf = alloc.buffer((int) length);
-            try (ByteBufOutputStream out = new ByteBufOutputStream(buf)) {
-                try (InputStream in = Files.newInputStream(path, StandardOpenOption.READ)) {
-                    Streams.copy(in, out);
-                }
+    /**
+     * Parse stage - runs on the parse pool; hashes the file, reads its
+     * Info/info.xml and writes it into the storage dir, handing the result
+     * to the commit stage.
+     */
+    private void parse(Path path, long size, long lastModified) {
+        if (shuttingDown) {
+            return;
+        }
+        processor.handleLocalNBM(path, null, new DownloadHandler() {
+            @Override
+            public boolean onResponse(HttpResponseStatus status, HttpHeaders headers) {
+                throw new AssertionError("Shouldn't get here.");
             }
-            DownloadHandler dh = new DownloadHandler() {
-                @Override
-                public boolean onResponse(HttpResponseStatus status, HttpHeaders headers) {
-                    throw new AssertionError("Shouldn't get here.");
+
+            @Override
+            public void onModuleDownload(InfoFile module, InputStream bytes, String hash, String willBeNull) {
+                if (module == null) {
+                    onError(new IOException("No Info/info.xml in " + path));
+                    return;
+                }
+                try {
+                    ZonedDateTime when = TimeUtil.fromUnixTimestamp(lastModified);
+                    StagedModule staged = set.stage(module, bytes, path.toUri().toURL().toString(), hash, false, when);
+                    commitQueue.offer(new Parsed(path, size, lastModified, module, hash, staged));
+                } catch (Exception ex) {
+                    onError(ex);
                 }
+            }
 
-                @Override
-                public void onModuleDownload(InfoFile module, InputStream bytes, String hash, String willBeNull) {
-                    if (module == null) {
-                        // duplicate
-                        logger.info("module-processed").add("origPath", path.toString())
-                                .add("duplicate", true).add("success", false).close();
-                        return;
+            @Override
+            public void onError(Throwable t) {
+                recordFailure(path, size, lastModified, t);
+            }
+        });
+    }
+
+    /**
+     * Commit stage - the only thread which publishes to the ModuleSet, taking
+     * everything the parse stage has produced, up to the batch size.
+     */
+    private class Committer implements Runnable {
+
+        @Override
+        public void run() {
+            Thread.currentThread().setName("new-nbm-dir-committer");
+            List<Parsed> batch = new ArrayList<>(batchSize);
+            for (;;) {
+                try {
+                    batch.add(commitQueue.take());
+                    while (batch.size() < batchSize) {
+                        if (commitQueue.drainTo(batch, batchSize - batch.size()) == 0) {
+                            Parsed next = commitQueue.poll(BATCH_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+                            if (next == null) {
+                                break;
+                            }
+                            batch.add(next);
+                        }
                     }
-                    try (Log log = logger.info("module-processed")) {
-                        log.add("origPath", path.toString())
-                                .add("cnb", module.getModuleCodeName())
-                                .add("specVersion", module.getModuleVersion().toString())
-                                .add("implVersion", module.getImplementationVersion())
-                                .add("hash", hash)
-                                .add("duplicate", false);
-                        buf.resetReaderIndex();
-                        ZonedDateTime when = TimeUtil.fromUnixTimestamp(Files.getLastModifiedTime(path).to(TimeUnit.MILLISECONDS));
-                        ModuleItem item = set.add(module, new ByteBufInputStream(buf), path.toUri().toURL().toString(), hash, false, when);
-                        log.add("success", true);
-                        Files.createFile(markerFile(path));
-                    } catch (XPathExpressionException | IOException ex) {
+                    commit(batch);
+                } catch (InterruptedException ex) {
+                    if (shuttingDown) {
+                        logger.info("committer-thread-exit").close();
+                        return;
+                    } else {
                         ueh.uncaughtException(Thread.currentThread(), ex);
                     }
+                } catch (Exception ex) {
+                    ueh.uncaughtException(Thread.currentThread(), ex);
+                } finally {
+                    batch.clear();
                 }
+            }
+        }
 
-                @Override
-                public void onError(Throwable t) {
-                    Path failFile = failedFile(path);
-                    try (PrintStream ps = new PrintStream(Files.newOutputStream(failFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
-                        ps.println(TimeUtil.toHttpHeaderFormat(TimeUtil.nowGMT()));
-                        ps.println(path.toString());
-                        t.printStackTrace(ps);
-                        ps.println("---------------------------------------------------------\n\n");
-                    } catch (IOException ex) {
-                        ueh.uncaughtException(Thread.currentThread(), t);
+        private void commit(List<Parsed> batch) {
+            List<StagedModule> staged = new ArrayList<>(batch.size());
+            for (Parsed p : batch) {
+                if (p.staged != null) {
+                    staged.add(p.staged);
+                }
+            }
+            try (Log log = logger.info("commit")) {
+                log.add("batch", batch.size()).add("staged", staged.size())
+                        .add("queues", queueDepths());
+                try {
+                    if (!staged.isEmpty()) {
+                        set.publish(staged);
                     }
+                    log.add("generation", set.generation());
+                } catch (Exception ex) {
+                    log.add(ex);
+                    for (Parsed p : batch) {
+                        if (p.staged != null) {
+                            recordFailure(p, ex);
+                        }
+                    }
+                    return;
+                }
+                for (Parsed p : batch) {
+                    try (Log l = logger.info("module-processed")) {
+                        l.add("origPath", p.path.toString())
+                                .add("cnb", p.module.getModuleCodeName())
+                                .add("specVersion", p.module.getModuleVersion().toString())
+                                .add("implVersion", p.module.getImplementationVersion())
+                                .add("hash", p.hash)
+                                .add("duplicate", p.staged == null);
+                        state.processed(p.path, p.size, p.lastModified, p.hash);
+                        l.add("success", true);
+                    } catch (Exception ex) {
+                        ueh.uncaughtException(Thread.currentThread(), ex);
+                    }
+                }
+                try {
+                    state.flush();
+                } catch (IOException ex) {
+                    ueh.uncaughtException(Thread.currentThread(), ex);
                 }
-            };
-            processor.handleDownloadedNBM(buf, dh, null);
+            }
         }
     }
 
-    private class Watcher implements Runnable {
+    private static final class Parsed {
 
-        private final Path dir;
+        final Path path;
+        final long size;
+        final long lastModified;
+        final InfoFile module;
+        final String hash;
+        final StagedModule staged;
 
-        Watcher(Path dir) {
-            this.dir = dir;
+        Parsed(Path path, long size, long lastModified, InfoFile module, String hash, StagedModule staged) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.module = module;
+            this.hash = hash;
+            this.staged = staged;
         }
+    }
+
+    private class Watcher implements Runnable {
 
         @Override
         public void run() {
@@ -265,23 +472,37 @@ final class WatchDir implements Runnable {
             for (;;) {
                 try {
                     key = watchService.take();
+                    Path dir = (Path) key.watchable();
                     for (WatchEvent<?> event : key.pollEvents()) {
                         try (Log log = logger.debug("watch")) {
-                            Path path = (Path) event.context();
-                            path = dir.resolve(path);
-                            if (path.toString().endsWith("nbm")) {
-                                log.add("path", path.toString());
-                                DelayKey delayKey = new DelayKey(path, delay.toMillis());
-                                if (queue.contains(delayKey)) {
-                                    queue.remove(delayKey);
-                                    queue.add(delayKey);
-                                    log.add("requeued", true);
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                // Events for this directory were dropped;
+                                // look at what is in it now
+                                log.add("overflow", dir.toString());
+                                scan(dir, log);
+                                continue;
+                            }
+                            Path path = dir.resolve((Path) event.context());
+                            log.add("path", path.toString());
+                            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                                // Files may have landed in it before it was
+                                // registered, so scan it rather than just
+                                // registering it
+                                log.add("newDir", true);
+                                scan(path, log);
+                                continue;
+                            }
+                            if (path.getFileName().toString().endsWith(".nbm")) {
+                                FileStamp stamp = FileStamp.of(path);
+                                if (stamp == null) {
+                                    log.add("deleted", true);
+                                    queue.cancel(path);
                                     continue;
                                 }
-                                queue.add(delayKey);
-                                log.add("submitted", true);
-                                log.add("delay", delayKey.getDelay(TimeUnit.MILLISECONDS));
+                                log.add(queue.arm(path, stamp) ? "requeued" : "submitted", true);
                             }
+                        } catch (IOException ex) {
+                            logger.warn("watch-event").add("event", event.kind().name()).add(ex).close();
                         }
                     }
                     key.reset();
@@ -304,36 +525,55 @@ final class WatchDir implements Runnable {
         }
     }
 
-    private class Processor implements Runnable {
+    /**
+     * Debounce stage - waits for files to stop changing before handing them
+     * to the parse pool.
+     */
+    private class Debouncer implements Runnable {
 
         @Override
         public void run() {
-            Thread.currentThread().setName("new-nbm-dir-processor");
-            DelayKey key;
+            Thread.currentThread().setName("new-nbm-dir-debouncer");
+            FileStamp key;
             for (;;) {
                 try {
                     key = queue.take();
                     if (key != null) {
                         try (Log log = logger.info("process")) {
                             log.add("path", key.pth.toString());
-                            if (!key.isValid()) {
+                            BasicFileAttributes attrs = key.current();
+                            if (attrs == null) {
                                 log.add("valid", false);
                                 continue;
                             }
                             log.add("valid", true);
-                            if (key.isModified()) {
+                            if (key.isModified(attrs)) {
                                 log.add("modified-since-enqueueing", true);
-                                queue.offer(key.reset());
+                                queue.arm(key.path(), key.reset(attrs));
                                 continue;
                             }
                             log.add("modified-since-enqueueing", false);
                             Path path = key.path();
-                            processOne(path);
+                            long size = attrs.size();
+                            long lastModified = attrs.lastModifiedTime().toMillis();
+                            if (state.isCurrent(path, size, lastModified)) {
+                                log.add("alreadyProcessed", true);
+                                continue;
+                            }
+                            if (!lease.isLeader()) {
+                                // Another node sharing nbm.dir ingests; keep
+                                // the file around in case this one takes over
+                                queue.arm(key.path(), key.reset(attrs));
+                                log.add("leaseHolder", false);
+                                continue;
+                            }
+                            parsePool.execute(() -> parse(path, size, lastModified));
+                            log.add("queues", queueDepths());
                         }
                     }
                 } catch (InterruptedException ex) {
                     if (shuttingDown) {
-                        logger.info("processor-thread-exist").close();
+                        logger.info("debouncer-thread-exist").close();
                         return;
                     } else {
                         ueh.uncaughtException(Thread.currentThread(), ex);
@@ -345,58 +585,60 @@ final class WatchDir implements Runnable {
         }
     }
 
-    private static class DelayKey implements Delayed {
+    /**
+     * The size and timestamp of a file when it was last seen, so the
+     * debouncer can tell whether it is still being written.
+     */
+    private static final class FileStamp {
 
-        long created = System.currentTimeMillis();
         private final Path pth;
-        private final long delay;
-        private long lastModified;
+        private final long size;
+        private final long lastModified;
 
-        DelayKey(Path pth, long delay) throws IOException {
+        FileStamp(Path pth, long size, long lastModified) {
             this.pth = pth;
-            this.delay = delay;
-            lastModified = Files.getLastModifiedTime(pth).to(TimeUnit.MILLISECONDS);
+            this.size = size;
+            this.lastModified = lastModified;
         }
 
-        public Path path() {
-            return pth;
+        static FileStamp of(Path pth) throws IOException {
+            BasicFileAttributes attrs = attributes(pth);
+            return attrs == null ? null
+                    : new FileStamp(pth, attrs.size(), attrs.lastModifiedTime().toMillis());
         }
 
-        public boolean isValid() {
-            return Files.exists(pth);
+        static BasicFileAttributes attributes(Path pth) throws IOException {
+            try {
+                return Files.readAttributes(pth, BasicFileAttributes.class);
+            } catch (NoSuchFileException ex) {
+                return null;
+            }
         }
 
-        public boolean isModified() throws IOException {
-            return isValid() && lastModified != Files.getLastModifiedTime(pth).to(TimeUnit.MILLISECONDS);
+        public Path path() {
+            return pth;
         }
 
-        public DelayKey reset() throws IOException {
-            return new DelayKey(pth, delay);
+        /**
+         * Stat the file.
+         *
+         * @return Its current attributes, or null if it has been deleted
+         */
+        public BasicFileAttributes current() throws IOException {
+            return attributes(pth);
         }
 
-        public String toString() {
-            return pth + " delay " + getDelay(TimeUnit.MILLISECONDS);
+        public boolean isModified(BasicFileAttributes attrs) {
+            return size != attrs.size() || lastModified != attrs.lastModifiedTime().toMillis();
         }
 
-        @Override
-        public long getDelay(TimeUnit unit) {
-            long expiresAt = created + delay;
-            return expiresAt - System.currentTimeMillis();
+        public FileStamp reset(BasicFileAttributes attrs) {
+            return new FileStamp(pth, attrs.size(), attrs.lastModifiedTime().toMillis());
         }
 
         @Override
-        public int compareTo(Delayed o) {
-            long a = created;
-            long b = ((DelayKey) o).created;
-            return a > b ? 1 : a == b ? 0 : -1;
-        }
-
-        public boolean equals(Object o) {
-            return o instanceof DelayKey && ((DelayKey) o).pth.toString().equals(pth.toString());
-        }
-
-        public int hashCode() {
-            return pth.toString().hashCode();
+        public String toString() {
+            return pth + " " + size + " " + lastModified;
         }
     }
 }
@@ -0,0 +1,173 @@
+package com.timboudreau.metaupdatecenter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers what has already been done with each NBM in the watch dir, keyed
+ * on path, size and modification time, so a restart does not need to open
+ * anything that has not changed. Stored in a single file in the watch dir;
+ * each outcome is appended as a line of
+ * <code>status size mtime hash relative-path</code>, later lines replacing
+ * earlier ones, and the file is rewritten with only live entries once the
+ * startup scan has seen what still exists.
+ *
+ * @author Tim Boudreau
+ */
+final class WatchState {
+
+    static final String STATE_FILE_NAME = ".nbm-watch-state";
+    private static final String PROCESSED = "P";
+    private static final String FAILED = "F";
+    private static final String NO_HASH = "-";
+    private final Path dir;
+    private final Path file;
+    private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+    private BufferedWriter out;
+
+    WatchState(Path dir) throws IOException {
+        this.dir = dir;
+        this.file = dir.resolve(STATE_FILE_NAME);
+        if (Files.exists(file)) {
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    String[] parts = line.split("\t", 5);
+                    if (parts.length != 5) {
+                        // Torn final line from a crash mid-write
+                        continue;
+                    }
+                    try {
+                        Path path = dir.resolve(parts[4]);
+                        entries.put(path, new Entry(FAILED.equals(parts[0]),
+                                Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                                NO_HASH.equals(parts[3]) ? null : parts[3]));
+                    } catch (NumberFormatException ex) {
+                        continue;
+                    }
+                }
+            }
+        }
+    }
+
+    Path file() {
+        return file;
+    }
+
+    /**
+     * Get the last recorded outcome for a file.
+     *
+     * @param path A file
+     * @return An entry or null
+     */
+    Entry get(Path path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Determine if a file with this size and modification time has already
+     * been processed or has already failed.
+     */
+    boolean isCurrent(Path path, long size, long lastModified) {
+        Entry e = entries.get(path);
+        return e != null && e.size == size && e.lastModified == lastModified;
+    }
+
+    synchronized void processed(Path path, long size, long lastModified, String hash) throws IOException {
+        record(path, new Entry(false, size, lastModified, hash));
+    }
+
+    synchronized void failed(Path path, long size, long lastModified) throws IOException {
+        record(path, new Entry(true, size, lastModified, null));
+    }
+
+    private void record(Path path, Entry entry) throws IOException {
+        entries.put(path, entry);
+        if (out == null) {
+            out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        write(out, path, entry);
+    }
+
+    /**
+     * Write out anything recorded since the last flush.
+     */
+    synchronized void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Drop entries for files which no longer exist and rewrite the state
+     * file with one line per remaining entry. Files missing from the scan
+     * are checked again, since the pipeline may have recorded files that
+     * appeared while it was walking.
+     *
+     * @param present The files the startup scan found
+     */
+    synchronized void compact(Set<Path> present) throws IOException {
+        entries.keySet().removeIf(path -> !present.contains(path) && Files.notExists(path));
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        Path tmp = dir.resolve(STATE_FILE_NAME + ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Map.Entry<Path, Entry> e : entries.entrySet()) {
+                write(w, e.getKey(), e.getValue());
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private void write(BufferedWriter w, Path path, Entry entry) throws IOException {
+        w.write(entry.failed ? FAILED : PROCESSED);
+        w.write('\t');
+        w.write(Long.toString(entry.size));
+        w.write('\t');
+        w.write(Long.toString(entry.lastModified));
+        w.write('\t');
+        w.write(entry.hash == null ? NO_HASH : entry.hash);
+        w.write('\t');
+        w.write(dir.relativize(path).toString());
+        w.write('\n');
+    }
+
+    static final class Entry {
+
+        final boolean failed;
+        final long size;
+        final long lastModified;
+        final String hash;
+
+        Entry(boolean failed, long size, long lastModified, String hash) {
+            this.failed = failed;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        @Override
+        public String toString() {
+            return (failed ? "failed " : "processed ") + size + " " + lastModified
+                    + (hash == null ? "" : " " + hash);
+        }
+    }
+}
@@ -10,12 +10,12 @@ import com.mastfrog.url.Path;
 import com.mastfrog.url.URL;
 import com.mastfrog.util.collections.StringObjectMap;
 import com.mastfrog.util.libversion.VersionInfo;
-import com.mastfrog.util.preconditions.ConfigurationError;
 import com.mastfrog.util.preconditions.Exceptions;
 import com.mastfrog.util.streams.Streams;
 import com.mastfrog.util.streams.HashingOutputStream;
 import com.timboudreau.metaupdatecenter.InfoFile;
 import com.timboudreau.metaupdatecenter.ModuleSet;
+import com.timboudreau.metaupdatecenter.ModuleStore;
 import com.timboudreau.metaupdatecenter.UpdateCenterServer;
 import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_GEN_MODULE_AUTHOR;
 import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_INFO_PARA;
@@ -23,7 +23,6 @@ import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_T
 import io.netty.util.CharsetUtil;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -72,7 +71,9 @@ public final class UpdateCenterModuleGenerator {
         this.settings = settings;
         this.paths = paths;
         this.mapper = mapper;
-        updateUrlHttps = settings.getBoolean("update.url.https", false);
+        // If we terminate TLS ourselves, the update URL can point straight at us
+        updateUrlHttps = settings.getBoolean("update.url.https",
+                settings.getBoolean(UpdateCenterServer.SETTINGS_KEY_TLS_ENABLED, false));
         serverInstallId = idProvider.get();
         tag = settings.getString(SETTINGS_KEY_TAG);
         serverVersion = version.deweyDecimalVersion();
@@ -94,13 +95,14 @@ public final class UpdateCenterModuleGenerator {
         addJarTemplate(FileTemplate.of("layer.xml", substs.get(CODE_NAME_SLASHES) + "/layer.xml"));
     }
 
+    private static final String STATE_DOCUMENT = "genmodule.json";
     private static final TypeReference<StringObjectMap> REF = new TypeReference<StringObjectMap>(){};
     private void load() throws IOException {
-        File dir = modules.getStorageDir();
-        File f = new File(dir, "genmodule.json");
+        ModuleStore store = modules.getStore();
+        byte[] saved = store.document(STATE_DOCUMENT);
         ZonedDateTime now = ZonedDateTime.now();
-        if (f.exists()) {
-            Map<String, Object> m = mapper.readValue(f, REF);
+        if (saved != null) {
+            Map<String, Object> m = mapper.readValue(saved, REF);
             Number num = (Number) m.get("version");
             if (num != null) {
                 version = num.intValue();
@@ -122,7 +124,7 @@ public final class UpdateCenterModuleGenerator {
                 m.put("year", now.getYear() + "");
                 m.put("month", now.get(ChronoField.MONTH_OF_YEAR) + "");
                 m.put("day", now.getDayOfMonth() + "");
-                mapper.writeValue(f, m);
+                store.putDocument(STATE_DOCUMENT, mapper.writeValueAsBytes(m));
             } else {
                 // Use the date from the last time the bits changed
                 year = (String) m.get("year");
@@ -130,9 +132,6 @@ public final class UpdateCenterModuleGenerator {
                 month = (String) m.get("month");
             }
         } else {
-            if (!f.createNewFile()) {
-                throw new ConfigurationError("Could not create " + f.getAbsolutePath());
-            }
             String currHash = getImplementationVersion(getSubstitutions());
             Map<String, Object> m = new HashMap<>();
             m.put("hash", currHash);
@@ -148,7 +147,7 @@ public final class UpdateCenterModuleGenerator {
             substs = null;
             currHash = getImplementationVersion(getSubstitutions());
             m.put("hash", currHash);
-            mapper.writeValue(f, m);
+            store.putDocument(STATE_DOCUMENT, mapper.writeValueAsBytes(m));
         }
     }
 
@@ -0,0 +1,84 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.acteur.header.entities.BasicCredentials;
+import com.mastfrog.util.collections.StringObjectMap;
+import com.mastfrog.util.streams.Streams;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_ADMIN_USER;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_PASSWORD;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_A_v1;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the allocator metrics served by <code>/allocator</code> once the
+ * server has allocated something.
+ *
+ * @author Tim Boudreau
+ */
+public class AllocatorMetricsTest {
+
+    private LaunchedNbmServer server;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMetrics() throws Throwable {
+        server.addModuleAndEnsurePresent(MODULE_A_v1);
+        server.assertBytes(MODULE_A_v1, "download/" + MODULE_A_v1.codeNameBase()
+                + "/" + server.findInCatalog(MODULE_A_v1.codeNameBase()).get("hash") + ".nbm");
+
+        HttpURLConnection conn = (HttpURLConnection) server.serverUrl("allocator", "chunks=true").openConnection();
+        Map<String, Object> result;
+        try {
+            conn.setRequestProperty("Authorization",
+                    new BasicCredentials(TEST_ADMIN_USER, TEST_PASSWORD).toString());
+            assertEquals(200, conn.getResponseCode());
+            try (InputStream in = conn.getInputStream()) {
+                result = new ObjectMapper().readValue(Streams.readUTF8String(in), StringObjectMap.class);
+            }
+        } finally {
+            conn.disconnect();
+        }
+        Map<String, Object> alloc = (Map<String, Object>) result.get("server");
+        assertEquals("PooledByteBufAllocator", alloc.get("type"), result.toString());
+        assertEquals("server", result.get("httpClient"), "The client shares the server's allocator");
+        Map<String, Object> direct = (Map<String, Object>) alloc.get("directArenas");
+        assertTrue((Integer) direct.get("count") > 0, direct.toString());
+        assertTrue(((Number) direct.get("allocations")).longValue() > 0, direct.toString());
+        assertTrue((Integer) direct.get("chunks") > 0, direct.toString());
+        // Huge allocations are not in any arena's chunk lists
+        assertTrue(((Number) direct.get("reservedBytes")).longValue()
+                <= ((Number) alloc.get("usedDirectMemory")).longValue(), alloc.toString());
+        List<Map<String, Object>> arenas = (List<Map<String, Object>>) direct.get("arenas");
+        assertEquals(direct.get("count"), arenas.size());
+        assertTrue(arenas.stream().anyMatch(a -> !((List<?>) a.get("chunkUsagePercent")).isEmpty()),
+                arenas.toString());
+        Map<String, Object> memory = (Map<String, Object>) result.get("directMemory");
+        assertNotNull(memory.get("direct"), memory.toString());
+
+        // Should not throw
+        server.getServerObject(AllocatorMetrics.class).log();
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        server = new NbmServerLauncher().setInitialNbms(MODULE_A_v1).launch();
+    }
+
+    @AfterEach
+    public void tearDown() throws Throwable {
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+}
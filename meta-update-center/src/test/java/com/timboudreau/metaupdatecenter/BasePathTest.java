@@ -89,6 +89,13 @@ public class BasePathTest {
 
         serv.assertBytes(MODULE_A_v1, expectedPath);
 
+        // A generation from before this server started must get the whole catalog
+        String changes = serv.get("modules/changes", "since=0&json=true");
+        assertTrue(changes.contains("\"full\":true"), changes);
+        assertTrue(changes.contains(MODULE_A_v1.codeNameBase()), changes);
+        String changesXml = serv.get("modules/changes", "since=0");
+        assertTrue(changesXml.contains(MODULE_A_v1.codeNameBase()), changesXml);
+
 //        String log = serv.get("log");
 //        assertNotNull(log);
 //        System.out.println("\n\nLOG:\n" + log);
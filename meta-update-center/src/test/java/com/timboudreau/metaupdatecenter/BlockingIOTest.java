@@ -0,0 +1,103 @@
+package com.timboudreau.metaupdatecenter;
+
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_BLOCKING_IO_QUEUE_SIZE;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_BLOCKING_IO_THREADS;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import com.timboudreau.metaupdatecenter.testutil.SyntheticNbms;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_A_v1;
+import java.net.HttpURLConnection;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that NBMs are stored and served through the blocking I/O pool, and
+ * that downloads are refused with a 503 rather than queued without limit
+ * when it is saturated.
+ *
+ * @author Tim Boudreau
+ */
+public class BlockingIOTest {
+
+    private static final String CNB = "org.blocking.io.big";
+    private LaunchedNbmServer server;
+
+    @Test
+    public void testLargeNbmRoundTrips() throws Throwable {
+        // Several read blocks, each written as many chunks
+        byte[] big = SyntheticNbms.generate(CNB, "1.0", 300_000, new Random(7));
+        assertTrue(big.length > ChunkedFileResponseWriter.READ_SIZE * 3, "Too small: " + big.length);
+        server.syntheticNbms().put("big.nbm", big);
+        server.putUrlToServe(server.syntheticSourceURL("big.nbm"));
+
+        String path = downloadPath(CNB);
+        assertArrayEquals(big, server.bytes(path));
+        // And again over what may be a reused connection
+        assertArrayEquals(big, server.bytes(path));
+    }
+
+    @Test
+    public void testSaturatedPoolRefusesDownloads() throws Throwable {
+        server.addModuleAndEnsurePresent(MODULE_A_v1);
+        String path = downloadPath(MODULE_A_v1.codeNameBase());
+        BlockingIO io = server.getServerObject(BlockingIO.class);
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocker = () -> {
+            started.countDown();
+            try {
+                release.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        try {
+            // One thread busy, one task queued - the pool is full
+            io.execute(blocker);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            io.execute(blocker);
+            assertEquals(1, io.queued());
+            assertEquals(503, status(path));
+        } finally {
+            release.countDown();
+        }
+        server.assertBytes(MODULE_A_v1, path);
+    }
+
+    private String downloadPath(String cnb) throws Throwable {
+        return "download/" + cnb + "/" + server.findInCatalog(cnb).get("hash") + ".nbm";
+    }
+
+    private int status(String path) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) server.serverUrl(path).openConnection();
+        try {
+            return conn.getResponseCode();
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        server = new NbmServerLauncher().setInitialNbms(MODULE_A_v1)
+                .onCreateSettings(settings -> {
+                    settings.setInt(SETTINGS_KEY_BLOCKING_IO_THREADS, 1);
+                    settings.setInt(SETTINGS_KEY_BLOCKING_IO_QUEUE_SIZE, 1);
+                }).launch();
+    }
+
+    @AfterEach
+    public void tearDown() throws Throwable {
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+}
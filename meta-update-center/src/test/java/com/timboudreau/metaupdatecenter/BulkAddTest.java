@@ -0,0 +1,158 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.acteur.header.entities.BasicCredentials;
+import com.mastfrog.util.collections.StringObjectMap;
+import com.mastfrog.util.streams.Streams;
+import com.timboudreau.metaupdatecenter.BulkAddPage.Entry;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_ADMIN_USER;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_PASSWORD;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_A_v1;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_B_v1;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class BulkAddTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private LaunchedNbmServer server;
+
+    @Test
+    public void testParse() throws Exception {
+        List<Entry> lines = BulkAddPage.parse("# modules\nhttp://foo.example/a.nbm\n\n"
+                + "  http://foo.example/b.nbm true\n", false, mapper);
+        assertEquals(2, lines.size());
+        assertEquals("http://foo.example/a.nbm", lines.get(0).url);
+        assertFalse(lines.get(0).useOriginalUrl);
+        assertTrue(lines.get(1).useOriginalUrl);
+
+        List<Entry> json = BulkAddPage.parse("[\"http://foo.example/a.nbm\", "
+                + "{\"url\":\"http://foo.example/b.nbm\", \"useOriginalURL\":false}]", true, mapper);
+        assertEquals(2, json.size());
+        assertTrue(json.get(0).useOriginalUrl);
+        assertFalse(json.get(1).useOriginalUrl);
+    }
+
+    @Test
+    public void testBulkAddPublishesOnce() throws Throwable {
+        ModuleSet set = server.getServerObject(ModuleSet.class);
+        long generationBefore = set.generation();
+        String body = server.moduleSourceURL(MODULE_A_v1) + "\n"
+                + server.moduleSourceURL(MODULE_B_v1) + "\n"
+                + server.moduleSourceURL(MODULE_A_v1).replace(".nbm", "-missing.nbm") + "\n";
+
+        List<Map<String, Object>> events = bulkAdd(body);
+        Map<String, Object> last = events.get(events.size() - 1);
+        assertEquals("published", last.get("event"), "Last event should be the summary: " + events);
+        assertEquals(1, last.get("failed"), events.toString());
+        List<?> published = (List<?>) last.get("published");
+        assertEquals(2, published.size(), events.toString());
+        assertTrue(published.contains(MODULE_A_v1.codeNameBase()));
+        assertTrue(published.contains(MODULE_B_v1.codeNameBase()));
+
+        int downloaded = 0;
+        for (Map<String, Object> e : events) {
+            if ("downloaded".equals(e.get("event"))) {
+                downloaded++;
+            }
+        }
+        assertEquals(2, downloaded, events.toString());
+        assertEquals(generationBefore + 1, set.generation(),
+                "Both modules should be published in a single generation");
+        assertNotNull(server.findInCatalog(MODULE_A_v1.codeNameBase()));
+        assertNotNull(server.findInCatalog(MODULE_B_v1.codeNameBase()));
+
+        CatalogChanges changes = set.changesSince(generationBefore);
+        assertFalse(changes.isFull());
+        assertEquals(2, changes.getModules().size(), changes.toString());
+
+        List<Map<String, Object>> again = bulkAdd(server.moduleSourceURL(MODULE_A_v1));
+        assertEquals("duplicate", again.get(again.size() - 2).get("event"), again.toString());
+        assertEquals(generationBefore + 1, set.generation());
+    }
+
+    @Test
+    public void testOnlyBulkAddAcceptsLargeBodies() throws Throwable {
+        StringBuilder body = new StringBuilder(server.moduleSourceURL(MODULE_A_v1)).append('\n');
+        while (body.length() < 4096) {
+            body.append("# padding to push the body past the server-wide limit\n");
+        }
+        List<Map<String, Object>> events = bulkAdd(body.toString());
+        assertEquals("published", events.get(events.size() - 1).get("event"), events.toString());
+
+        while (body.length() <= UpdateCenterServer.DEFAULT_BULK_ADD_MAX_BYTES) {
+            body.append("# padding to push the body past the bulk add limit\n");
+        }
+        assertEquals(413, put("add/bulk", body.toString()).getResponseCode());
+        // Other routes keep the small limit
+        assertEquals(413, put("add", body.substring(0, 4096)).getResponseCode());
+    }
+
+    private HttpURLConnection put(String path, String body) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) server.serverUrl(path).openConnection();
+        conn.setRequestMethod("PUT");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Authorization",
+                new BasicCredentials(TEST_ADMIN_USER, TEST_PASSWORD).toString());
+        conn.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+        conn.setConnectTimeout(1500);
+        conn.setReadTimeout(10000);
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return conn;
+    }
+
+    private List<Map<String, Object>> bulkAdd(String body) throws Exception {
+        HttpURLConnection conn = put("add/bulk", body);
+        try {
+            assertEquals(200, conn.getResponseCode());
+            assertTrue(conn.getContentType().startsWith("application/x-ndjson"), conn.getContentType());
+            String response;
+            try (InputStream in = conn.getInputStream()) {
+                response = Streams.readUTF8String(in);
+            }
+            List<Map<String, Object>> result = new ArrayList<>();
+            for (String line : response.split("\n")) {
+                if (!line.trim().isEmpty()) {
+                    result.add(mapper.readValue(line, StringObjectMap.class));
+                }
+            }
+            return result;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        server = new NbmServerLauncher()
+                .setInitialNbms(MODULE_A_v1, MODULE_B_v1)
+                .launch();
+    }
+
+    @AfterEach
+    public void tearDown() throws Throwable {
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import com.mastfrog.util.file.FileUtils;
+import com.timboudreau.metaupdatecenter.CircuitBreakers.State;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_BREAKER_BACKOFF_MINUTES;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_BREAKER_HOST_FAILURES;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_BREAKER_MAX_BACKOFF_HOURS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_BREAKER_URL_FAILURES;
+import com.timboudreau.metaupdatecenter.testutil.TestUtils;
+import com.timboudreau.metaupdatecenter.testutil.TestUtils.Fixture;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class CircuitBreakersTest {
+
+    private static final String GONE = "http://a.example/gone.nbm";
+    private static final String FINE = "http://a.example/fine.nbm";
+    private static final String ELSEWHERE = "http://b.example/other.nbm";
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private Path dir;
+    private ModuleSet set;
+    private ObjectMapper mapper;
+    private Logs logs;
+
+    @Test
+    public void testUrlCircuitOpensAndBacksOff() throws Exception {
+        CircuitBreakers breakers = breakers();
+        List<String> all = Arrays.asList(GONE, FINE, ELSEWHERE);
+        for (int i = 0; i < 2; i++) {
+            breakers.failure(GONE, NOT_FOUND, null);
+            assertEquals(all, breakers.permitted(all), "Opened too soon");
+        }
+        breakers.failure(GONE, NOT_FOUND, null);
+        assertEquals(State.OPEN, breakers.urlState(GONE));
+        assertEquals(Arrays.asList(FINE, ELSEWHERE), breakers.permitted(all));
+        // 404s are the URL's problem, not the host's
+        assertEquals(State.CLOSED, breakers.hostState("a.example"));
+
+        // After the backoff, one probe is let through
+        now.addAndGet(TimeUnit.MINUTES.toMillis(10));
+        assertEquals(State.HALF_OPEN, breakers.urlState(GONE));
+        assertEquals(all, breakers.permitted(all));
+        assertEquals(Arrays.asList(FINE, ELSEWHERE), breakers.permitted(all),
+                "Only one probe should be in flight at a time");
+        // and failing reopens it for twice as long
+        breakers.failure(GONE, NOT_FOUND, null);
+        assertEquals(State.OPEN, breakers.urlState(GONE));
+        now.addAndGet(TimeUnit.MINUTES.toMillis(10));
+        assertEquals(State.OPEN, breakers.urlState(GONE));
+        now.addAndGet(TimeUnit.MINUTES.toMillis(10));
+        assertEquals(State.HALF_OPEN, breakers.urlState(GONE));
+
+        // A failure from a request already in flight when it opened does
+        // not push it further out
+        breakers.failure(GONE, NOT_FOUND, null);
+        breakers.failure(GONE, NOT_FOUND, null);
+        now.addAndGet(TimeUnit.MINUTES.toMillis(40));
+        assertEquals(State.HALF_OPEN, breakers.urlState(GONE));
+
+        // The backoff is capped
+        for (int i = 0; i < 10; i++) {
+            breakers.failure(GONE, NOT_FOUND, null);
+            now.addAndGet(TimeUnit.HOURS.toMillis(2));
+        }
+        assertEquals(State.HALF_OPEN, breakers.urlState(GONE));
+
+        breakers.success(GONE);
+        assertEquals(State.CLOSED, breakers.urlState(GONE));
+        assertEquals(all, breakers.permitted(all));
+    }
+
+    @Test
+    public void testHostCircuit() throws Exception {
+        CircuitBreakers breakers = breakers();
+        List<String> all = Arrays.asList(GONE, FINE, ELSEWHERE);
+        breakers.failure(GONE, SERVICE_UNAVAILABLE, null);
+        breakers.failure(FINE, null, new ConnectException("Connection refused"));
+        assertEquals(all, breakers.permitted(all));
+        breakers.failure("http://a.example/third.nbm", null, new IOException("Timed out"));
+        assertEquals(State.OPEN, breakers.hostState("a.example"));
+        assertEquals(Collections.singletonList(ELSEWHERE), breakers.permitted(all),
+                "Nothing on a failing host should be polled");
+
+        now.addAndGet(TimeUnit.MINUTES.toMillis(10));
+        assertEquals(State.HALF_OPEN, breakers.hostState("a.example"));
+        assertTrue(breakers.anyPermitted(all));
+        // One probe for the whole host; its other URLs wait for it
+        assertEquals(Arrays.asList(GONE, ELSEWHERE), breakers.permitted(all));
+        assertEquals(State.OPEN, breakers.hostState("a.example"));
+        assertEquals(Collections.singletonList(ELSEWHERE), breakers.permitted(all));
+        assertFalse(breakers.anyPermitted(Arrays.asList(GONE, FINE)));
+
+        // A probe which never reports back is given up on
+        now.addAndGet(CircuitBreakers.PROBE_TIMEOUT_MILLIS);
+        assertEquals(State.HALF_OPEN, breakers.hostState("a.example"));
+        assertEquals(Arrays.asList(GONE, ELSEWHERE), breakers.permitted(all));
+
+        // A failed probe reopens it for twice as long
+        breakers.failure(GONE, SERVICE_UNAVAILABLE, null);
+        now.addAndGet(TimeUnit.MINUTES.toMillis(10));
+        assertEquals(State.OPEN, breakers.hostState("a.example"));
+        now.addAndGet(TimeUnit.MINUTES.toMillis(10));
+        assertEquals(State.HALF_OPEN, breakers.hostState("a.example"));
+
+        assertEquals(Arrays.asList(GONE, ELSEWHERE), breakers.permitted(all));
+        breakers.success(GONE);
+        assertEquals(State.CLOSED, breakers.hostState("a.example"));
+        assertEquals(all, breakers.permitted(all));
+    }
+
+    @Test
+    public void testStatePersisted() throws Exception {
+        CircuitBreakers breakers = breakers();
+        for (int i = 0; i < 3; i++) {
+            breakers.failure(GONE, NOT_FOUND, null);
+        }
+        breakers.failure(ELSEWHERE, NOT_FOUND, null);
+        breakers.save();
+        assertTrue(Files.exists(dir.resolve(CircuitBreakers.STATE_FILE_NAME)));
+
+        CircuitBreakers reloaded = breakers();
+        assertEquals(State.OPEN, reloaded.urlState(GONE));
+        Map<String, Object> snapshot = reloaded.snapshot();
+        @SuppressWarnings("unchecked")
+        Map<String, Map<String, Object>> urls = (Map<String, Map<String, Object>>) snapshot.get("urls");
+        assertEquals("OPEN", urls.get(GONE).get("state"));
+        assertEquals("CLOSED", urls.get(ELSEWHERE).get("state"));
+        assertEquals(1, urls.get(ELSEWHERE).get("consecutiveFailures"));
+        assertFalse(urls.containsKey(FINE));
+    }
+
+    @Test
+    public void testNothingWrittenIfNothingFailed() throws Exception {
+        CircuitBreakers breakers = breakers();
+        breakers.success(FINE);
+        breakers.save();
+        assertFalse(Files.exists(dir.resolve(CircuitBreakers.STATE_FILE_NAME)));
+    }
+
+    private CircuitBreakers breakers() throws IOException {
+        Settings settings = new SettingsBuilder()
+                .add(SETTINGS_KEY_BREAKER_URL_FAILURES, 3)
+                .add(SETTINGS_KEY_BREAKER_HOST_FAILURES, 3)
+                .add(SETTINGS_KEY_BREAKER_BACKOFF_MINUTES, 10)
+                .add(SETTINGS_KEY_BREAKER_MAX_BACKOFF_HOURS, 1)
+                .build();
+        return new CircuitBreakers(set, settings, mapper, logs, now::get);
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        Fixture fx = TestUtils.fixture();
+        logs = fx.logs;
+        mapper = fx.mapper;
+        dir = FileUtils.newTempDir("breakers-");
+        set = new ModuleSet(dir.toFile(), fx.mapperProvider(), fx.statsProvider(), fx.logsProvider());
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        FileUtils.deltree(dir);
+    }
+}
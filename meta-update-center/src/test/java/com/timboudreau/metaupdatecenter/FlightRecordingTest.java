@@ -0,0 +1,131 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.acteur.header.entities.BasicCredentials;
+import com.mastfrog.util.collections.StringObjectMap;
+import com.mastfrog.util.streams.Streams;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_ADMIN_USER;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_PASSWORD;
+import com.timboudreau.metaupdatecenter.testutil.PollCycleWatcher;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_A_v1;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that a recording started, dumped and stopped through
+ * <code>/recording</code> contains the server's own events.
+ *
+ * @author Tim Boudreau
+ */
+public class FlightRecordingTest {
+
+    private static final String PREFIX = "com.timboudreau.metaupdatecenter.";
+    private LaunchedNbmServer server;
+
+    @Test
+    public void testRecording() throws Throwable {
+        assertEquals(Boolean.FALSE, state().get("recording"));
+        assertEquals(409, request("GET", null).getResponseCode());
+
+        HttpURLConnection conn = request("PUT", null);
+        assertEquals(200, conn.getResponseCode());
+        conn.disconnect();
+        assertEquals(Boolean.TRUE, state().get("recording"));
+
+        server.addModuleAndEnsurePresent(MODULE_A_v1);
+        server.clearPollResults();
+        PollCycleWatcher watcher = server.newPollCycleWatcher();
+        server.forcePoll();
+        assertTrue(server.awaitPollOf(MODULE_A_v1.codeNameBase()).isNotModified());
+        watcher.awaitCycleComplete(500);
+        server.get("modules");
+        server.assertBytes(MODULE_A_v1, "download/" + MODULE_A_v1.codeNameBase()
+                + "/" + server.findInCatalog(MODULE_A_v1.codeNameBase()).get("hash") + ".nbm");
+
+        Path file = Files.createTempFile("FlightRecordingTest-", ".jfr");
+        try {
+            conn = request("GET", null);
+            assertEquals(200, conn.getResponseCode());
+            try (InputStream in = conn.getInputStream()) {
+                Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Map<String, RecordedEvent> found = new HashMap<>();
+            Set<String> catalogFormats = new HashSet<>();
+            for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+                String name = e.getEventType().getName();
+                if (name.startsWith(PREFIX)) {
+                    found.putIfAbsent(name.substring(PREFIX.length()), e);
+                }
+                if (name.equals(PREFIX + "CatalogRender")) {
+                    catalogFormats.add(e.getString("format"));
+                    assertTrue(e.getInt("modules") > 0);
+                }
+            }
+            assertTrue(found.keySet().containsAll(Arrays.asList("ModuleAdd", "NbmParse",
+                    "ModulePoll", "CatalogRender", "ModuleDownload")), found.keySet().toString());
+            RecordedEvent poll = found.get("ModulePoll");
+            assertEquals(MODULE_A_v1.codeNameBase(), poll.getString("codeNameBase"));
+            assertEquals(304, poll.getInt("status"));
+            RecordedEvent download = found.get("ModuleDownload");
+            assertEquals(MODULE_A_v1.bytes().length, download.getLong("bytes"));
+            assertNotNull(download.getString("client"));
+            assertEquals(new HashSet<>(Arrays.asList("xml", "json")), catalogFormats);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        conn = request("DELETE", null);
+        assertEquals(200, conn.getResponseCode());
+        conn.disconnect();
+        assertEquals(Boolean.FALSE, state().get("recording"));
+    }
+
+    private Map<String, Object> state() throws IOException {
+        HttpURLConnection conn = request("GET", "state=true");
+        try (InputStream in = conn.getInputStream()) {
+            return new ObjectMapper().readValue(Streams.readUTF8String(in), StringObjectMap.class);
+        }
+    }
+
+    private HttpURLConnection request(String method, String query) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) (query == null ? server.serverUrl("recording")
+                : server.serverUrl("recording", query)).openConnection();
+        conn.setRequestMethod(method);
+        conn.setRequestProperty("Authorization",
+                new BasicCredentials(TEST_ADMIN_USER, TEST_PASSWORD).toString());
+        return conn;
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        assumeTrue(FlightRecordings.isAvailable(), "No flight recorder in this JVM");
+        server = new NbmServerLauncher().setInitialNbms(MODULE_A_v1).launch();
+    }
+
+    @AfterEach
+    public void tearDown() throws Throwable {
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.timboudreau.metaupdatecenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class HashedWheelDebouncerTest {
+
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+
+    @Test
+    public void testRearmPostponesExpiry() {
+        HashedWheelDebouncer<String, String> deb = new HashedWheelDebouncer<>(10_000, clock::get);
+        assertFalse(deb.arm("a", "a1"));
+        clock.addAndGet(6_000);
+        assertTrue(deb.arm("a", "a2"), "Should replace the pending entry");
+        assertEquals(1, deb.size());
+        clock.addAndGet(6_000);
+        assertNull(deb.poll(), "Re-armed entry expired on its original deadline");
+        clock.addAndGet(4_200);
+        assertEquals("a2", deb.poll());
+        assertNull(deb.poll());
+        assertEquals(0, deb.size());
+    }
+
+    @Test
+    public void testManyKeysAndLongStall() {
+        HashedWheelDebouncer<Integer, Integer> deb = new HashedWheelDebouncer<>(1_000, clock::get);
+        for (int i = 0; i < 5_000; i++) {
+            deb.arm(i, i);
+            if (i % 100 == 0) {
+                clock.addAndGet(7);
+            }
+        }
+        assertTrue(deb.cancel(42));
+        assertFalse(deb.cancel(42));
+        assertEquals(4_999, deb.size());
+        // Far longer than one revolution of the wheel
+        clock.addAndGet(60_000);
+        Set<Integer> seen = new HashSet<>();
+        for (Integer i = deb.poll(); i != null; i = deb.poll()) {
+            assertTrue(seen.add(i), "Duplicate " + i);
+        }
+        assertEquals(4_999, seen.size());
+        assertFalse(seen.contains(42));
+        assertEquals(0, deb.size());
+    }
+
+    @Test
+    public void testTakeBlocksUntilDeadline() throws Exception {
+        HashedWheelDebouncer<String, String> deb = new HashedWheelDebouncer<>(200);
+        List<String> got = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        deb.arm("x", "x");
+        deb.arm("y", "y");
+        got.add(deb.take());
+        got.add(deb.take());
+        assertTrue(System.currentTimeMillis() - start >= 200, "Expired early");
+        assertEquals(new HashSet<>(got), new HashSet<>(Arrays.asList("x", "y")));
+    }
+}
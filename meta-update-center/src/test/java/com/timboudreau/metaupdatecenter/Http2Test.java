@@ -0,0 +1,153 @@
+package com.timboudreau.metaupdatecenter;
+
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_HTTP2_ENABLED;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_A_v1;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_B_v1;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class Http2Test {
+
+    private LaunchedNbmServer server;
+    private EventLoopGroup group;
+
+    @Test
+    public void testPriorKnowledgeHttp2() throws Throwable {
+        // HTTP/1.1 still works alongside
+        server.addModuleAndEnsurePresent(MODULE_A_v1);
+        server.addModuleAndEnsurePresent(MODULE_B_v1);
+        Map<String, Object> a = server.findInCatalog(MODULE_A_v1.codeNameBase());
+        Map<String, Object> b = server.findInCatalog(MODULE_B_v1.codeNameBase());
+        assertNotNull(a);
+        assertNotNull(b);
+
+        Channel conn = new Bootstrap().group(group)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast(Http2FrameCodecBuilder.forClient().build());
+                        ch.pipeline().addLast(new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+                    }
+                }).connect("localhost", server.port()).sync().channel();
+        try {
+            FullResponse catalog = get(conn, server.serverUrl("modules").getPath());
+            assertEquals(200, catalog.status);
+            assertTrue(new String(catalog.body, StandardCharsets.UTF_8).contains(MODULE_A_v1.codeNameBase()));
+
+            // Several downloads multiplexed over the same connection
+            CompletableFuture<FullResponse> downloadA = request(conn, server.serverUrl("download/"
+                    + MODULE_A_v1.codeNameBase() + "/" + a.get("hash") + ".nbm").getPath());
+            CompletableFuture<FullResponse> downloadB = request(conn, server.serverUrl("download/"
+                    + MODULE_B_v1.codeNameBase() + "/" + b.get("hash") + ".nbm").getPath());
+            FullResponse ra = downloadA.get(20, TimeUnit.SECONDS);
+            FullResponse rb = downloadB.get(20, TimeUnit.SECONDS);
+            assertEquals(200, ra.status);
+            assertEquals(200, rb.status);
+            assertArrayEquals(MODULE_A_v1.bytes(), ra.body);
+            assertArrayEquals(MODULE_B_v1.bytes(), rb.body);
+            assertTrue(conn.isActive(), "Connection should still be open");
+        } finally {
+            conn.close().sync();
+        }
+    }
+
+    private FullResponse get(Channel conn, String path) throws Exception {
+        return request(conn, path).get(20, TimeUnit.SECONDS);
+    }
+
+    private CompletableFuture<FullResponse> request(Channel conn, String path) throws Exception {
+        CompletableFuture<FullResponse> result = new CompletableFuture<>();
+        Http2StreamChannel stream = new Http2StreamChannelBootstrap(conn)
+                .handler(new ChannelInitializer<Http2StreamChannel>() {
+                    @Override
+                    protected void initChannel(Http2StreamChannel ch) throws Exception {
+                        ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false));
+                        ch.pipeline().addLast(new HttpObjectAggregator(16 * 1024 * 1024));
+                        ch.pipeline().addLast(new SimpleChannelInboundHandler<FullHttpResponse>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, FullHttpResponse msg) {
+                                result.complete(new FullResponse(msg.status().code(),
+                                        ByteBufUtil.getBytes(msg.content())));
+                            }
+
+                            @Override
+                            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                                result.completeExceptionally(cause);
+                            }
+                        });
+                    }
+                }).open().sync().getNow();
+        DefaultFullHttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
+        req.headers().set(HttpHeaderNames.HOST, "localhost:" + server.port());
+        stream.writeAndFlush(req);
+        return result;
+    }
+
+    private static final class FullResponse {
+
+        final int status;
+        final byte[] body;
+
+        FullResponse(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        group = new NioEventLoopGroup(1);
+        server = new NbmServerLauncher()
+                .setInitialNbms(MODULE_A_v1, MODULE_B_v1)
+                .onCreateSettings(s -> s.setBoolean(SETTINGS_KEY_HTTP2_ENABLED, true))
+                .launch();
+    }
+
+    @AfterEach
+    public void tearDown() throws Throwable {
+        try {
+            if (server != null) {
+                server.shutdown();
+            }
+        } finally {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        }
+    }
+}
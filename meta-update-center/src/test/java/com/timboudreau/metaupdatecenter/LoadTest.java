@@ -0,0 +1,63 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.LoadTestHarness;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import static com.timboudreau.metaupdatecenter.testutil.TestUtils.fetchMapValue;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the load test harness briefly so it stays working; run it for real
+ * with, e.g., <code>mvn test -Dtest=LoadTest -Dloadtest.modules=500
+ * -Dloadtest.clients=64 -Dloadtest.seconds=120</code>.
+ *
+ * @author Tim Boudreau
+ */
+public class LoadTest {
+
+    private LaunchedNbmServer server;
+
+    @Test
+    public void testLoad() throws Throwable {
+        Path resultFile = Paths.get(System.getProperty("loadtest.result", "target/loadtest-result.json"));
+        Files.deleteIfExists(resultFile);
+        Map<String, Object> result = new LoadTestHarness()
+                .modules(Integer.getInteger("loadtest.modules", 20))
+                .clients(Integer.getInteger("loadtest.clients", 4))
+                .duration(Duration.ofSeconds(Long.getLong("loadtest.seconds", 2L)))
+                .seed(Long.getLong("loadtest.seed", 1L))
+                .resultFile(resultFile)
+                .run(server);
+        assertTrue(Files.exists(resultFile), "No result file written to " + resultFile);
+        assertEquals(0L, result.get("errors"), result.toString());
+        for (String op : new String[]{"catalog", "download", "home-page"}) {
+            long count = ((Number) fetchMapValue("operations." + op + ".requests", result)).longValue();
+            assertTrue(count > 0, "No " + op + " requests made: " + result);
+        }
+        assertTrue(((Number) fetchMapValue("operations.catalog.notModified", result)).longValue() > 0,
+                "Catalog polls were never conditional: " + result);
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        server = new NbmServerLauncher()
+                .onCreateSettings(LoadTestHarness::configure)
+                .launch();
+    }
+
+    @AfterEach
+    public void tearDown() throws Throwable {
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.netty.http.client.ResponseFuture;
+import com.mastfrog.settings.Settings;
+import com.mastfrog.settings.SettingsBuilder;
+import com.mastfrog.util.file.FileUtils;
+import com.timboudreau.metaupdatecenter.NbmDownloader.DownloadHandler;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_POLL_RACE_SOURCES;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_POLL_SOURCE_TIMEOUT_SECONDS;
+import com.timboudreau.metaupdatecenter.testutil.TestUtils;
+import com.timboudreau.metaupdatecenter.testutil.TestUtils.Fixture;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class MirrorDownloaderTest {
+
+    private static final String PRIMARY = "http://primary.example/a.nbm";
+    private static final String MIRROR_1 = "http://mirror1.example/a.nbm";
+    private static final String MIRROR_2 = "http://mirror2.example/a.nbm";
+    private static final byte[] BODY = "pretend this is an nbm".getBytes(StandardCharsets.UTF_8);
+    private final Map<String, Consumer<DownloadHandler>> behaviors = new ConcurrentHashMap<>();
+    private final List<String> requested = new CopyOnWriteArrayList<>();
+    private Path dir;
+    private ModuleSet set;
+    private ObjectMapper mapper;
+    private Logs logs;
+    private ScheduledExecutorService pool;
+    private CircuitBreakers breakers;
+
+    @Test
+    public void testFailsOverToMirror() throws Throwable {
+        behaviors.put(PRIMARY, h -> h.onResponse(HttpResponseStatus.SERVICE_UNAVAILABLE, EmptyHttpHeaders.INSTANCE));
+        behaviors.put(MIRROR_1, MirrorDownloaderTest::serve);
+        MirrorDownloader dl = downloader(false, 60);
+        Result result = fetch(dl, item(PRIMARY, MIRROR_1));
+        assertEquals(HttpResponseStatus.OK, result.status);
+        assertEquals(PRIMARY, result.url, "Module should still be attributed to its from URL");
+        assertEquals(Arrays.asList(PRIMARY, MIRROR_1), requested);
+        assertEquals(1, dl.stats(PRIMARY).consecutiveFailures);
+        assertEquals(1, dl.stats(MIRROR_1).successes);
+        assertTrue(dl.stats(MIRROR_1).latencyMillis >= 0);
+
+        // Once the mirror has a measured latency and the primary does not,
+        // the mirror goes first and the primary is not bothered
+        assertEquals(Arrays.asList(MIRROR_1, PRIMARY), dl.order(Arrays.asList(PRIMARY, MIRROR_1)));
+        fetch(dl, item(PRIMARY, MIRROR_1));
+        assertEquals(Collections.singletonList(MIRROR_1), requested);
+        assertEquals(2, dl.stats(MIRROR_1).successes);
+
+        // and the stats survive a restart
+        dl.save();
+        MirrorDownloader reloaded = downloader(false, 60);
+        assertEquals(1, reloaded.stats(PRIMARY).failures);
+        assertEquals(2, reloaded.stats(MIRROR_1).successes);
+        assertEquals(Arrays.asList(MIRROR_1, PRIMARY), reloaded.order(Arrays.asList(PRIMARY, MIRROR_1)));
+    }
+
+    @Test
+    public void testBodyWithWrongChecksumRejected() throws Throwable {
+        behaviors.put(PRIMARY, h -> {
+            HttpHeaders headers = new DefaultHttpHeaders().add("X-Checksum-Sha1", "0000000000000000000000000000000000000000");
+            serve(h, headers);
+        });
+        String sha1 = sha1Hex(BODY);
+        behaviors.put(MIRROR_1, h -> serve(h, new DefaultHttpHeaders().add("X-Checksum-Sha1", sha1)));
+        MirrorDownloader dl = downloader(false, 60);
+        Result result = fetch(dl, item(PRIMARY, MIRROR_1));
+        assertEquals(HttpResponseStatus.OK, result.status);
+        assertEquals(1, dl.stats(PRIMARY).failures);
+        assertEquals(1, dl.stats(MIRROR_1).successes);
+    }
+
+    @Test
+    public void testAllSourcesFailing() throws Throwable {
+        behaviors.put(PRIMARY, h -> h.onResponse(HttpResponseStatus.NOT_FOUND, EmptyHttpHeaders.INSTANCE));
+        behaviors.put(MIRROR_1, h -> h.onError(new java.io.IOException("Connection refused")));
+        behaviors.put(MIRROR_2, h -> h.onResponse(HttpResponseStatus.BAD_GATEWAY, EmptyHttpHeaders.INSTANCE));
+        Result result = fetch(downloader(false, 60), item(PRIMARY, MIRROR_1, MIRROR_2));
+        assertEquals(HttpResponseStatus.BAD_GATEWAY, result.status, "Should see the last failure");
+        assertEquals(3, requested.size());
+    }
+
+    @Test
+    public void testNotModifiedIsAnAnswer() throws Throwable {
+        behaviors.put(PRIMARY, h -> h.onResponse(HttpResponseStatus.NOT_MODIFIED, EmptyHttpHeaders.INSTANCE));
+        behaviors.put(MIRROR_1, MirrorDownloaderTest::serve);
+        Result result = fetch(downloader(false, 60), item(PRIMARY, MIRROR_1));
+        assertEquals(HttpResponseStatus.NOT_MODIFIED, result.status);
+        assertEquals(Collections.singletonList(PRIMARY), requested, "Mirror should not be tried");
+    }
+
+    @Test
+    public void testHungSourceTimesOut() throws Throwable {
+        behaviors.put(PRIMARY, h -> {
+            // never answers
+        });
+        behaviors.put(MIRROR_1, MirrorDownloaderTest::serve);
+        MirrorDownloader dl = downloader(false, 1);
+        Result result = fetch(dl, item(PRIMARY, MIRROR_1));
+        assertEquals(HttpResponseStatus.OK, result.status);
+        assertEquals(1, dl.stats(PRIMARY).failures);
+        assertEquals(1, dl.stats(MIRROR_1).successes);
+    }
+
+    @Test
+    public void testSlowBodyNotTimedOut() throws Throwable {
+        behaviors.put(PRIMARY, h -> {
+            if (h.onResponse(HttpResponseStatus.OK, EmptyHttpHeaders.INSTANCE)) {
+                try {
+                    Thread.sleep(1500);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                h.onModuleDownload(null, new ByteBufInputStream(Unpooled.wrappedBuffer(BODY)), "hash", "ignored");
+            }
+        });
+        behaviors.put(MIRROR_1, MirrorDownloaderTest::serve);
+        MirrorDownloader dl = downloader(false, 1);
+        Result result = fetch(dl, item(PRIMARY, MIRROR_1));
+        assertEquals(HttpResponseStatus.OK, result.status);
+        assertEquals(Collections.singletonList(PRIMARY), requested, "Mirror should not be tried");
+        assertEquals(1, dl.stats(PRIMARY).successes);
+
+        // With nowhere to fail over to, no deadline is scheduled at all
+        behaviors.put(PRIMARY, MirrorDownloaderTest::serve);
+        fetch(dl, item(PRIMARY));
+        assertTrue(((ScheduledThreadPoolExecutor) pool).getQueue().isEmpty());
+    }
+
+    @Test
+    public void testRace() throws Throwable {
+        behaviors.put(PRIMARY, h -> {
+            // never answers - the race should not wait for it
+        });
+        behaviors.put(MIRROR_1, MirrorDownloaderTest::serve);
+        MirrorDownloader dl = downloader(true, 60);
+        long start = System.currentTimeMillis();
+        Result result = fetch(dl, item(PRIMARY, MIRROR_1));
+        assertEquals(HttpResponseStatus.OK, result.status);
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        assertEquals(2, requested.size(), "Both sources should be started: " + requested);
+        assertEquals(1, dl.stats(MIRROR_1).successes);
+    }
+
+    @Test
+    public void testNoRoomToIngestIsNotTheSourcesFault() throws Throwable {
+        behaviors.put(PRIMARY, h -> {
+            h.onResponse(HttpResponseStatus.OK, EmptyHttpHeaders.INSTANCE);
+            h.onError(new RejectedExecutionException("blocking I/O pool full"));
+        });
+        behaviors.put(MIRROR_1, MirrorDownloaderTest::serve);
+        MirrorDownloader dl = downloader(false, 60);
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> fetch(dl, item(PRIMARY, MIRROR_1)));
+        assertTrue(ex.getCause() instanceof RejectedExecutionException, ex.getCause().toString());
+        assertEquals(Collections.singletonList(PRIMARY), requested, "Mirror should not be tried");
+        assertNull(dl.stats(PRIMARY));
+        assertEquals(Collections.emptyMap(), breakers.snapshot().get("urls"));
+        assertEquals(Collections.emptyMap(), breakers.snapshot().get("hosts"));
+    }
+
+    private static void serve(DownloadHandler h) {
+        serve(h, EmptyHttpHeaders.INSTANCE);
+    }
+
+    private static void serve(DownloadHandler h, HttpHeaders headers) {
+        if (h.onResponse(HttpResponseStatus.OK, headers)) {
+            h.onModuleDownload(null, new ByteBufInputStream(Unpooled.wrappedBuffer(BODY)), "hash", "ignored");
+        }
+    }
+
+    private static String sha1Hex(byte[] bytes) throws Exception {
+        return UploadPipelineDecorator.hex(MessageDigest.getInstance("SHA-1").digest(bytes));
+    }
+
+    private static ModuleItem item(String from, String... mirrors) {
+        return new ModuleItem("a", "hash", Collections.emptyMap(), ZonedDateTime.now(), false,
+                null, from, Arrays.asList(mirrors));
+    }
+
+    private Result fetch(MirrorDownloader dl, ModuleItem item) throws Exception {
+        requested.clear();
+        CompletableFuture<Result> result = new CompletableFuture<>();
+        dl.download(item, null, new DownloadHandler() {
+            HttpResponseStatus status;
+
+            @Override
+            public boolean onResponse(HttpResponseStatus status, HttpHeaders headers) {
+                this.status = status;
+                if (!HttpResponseStatus.OK.equals(status)) {
+                    result.complete(new Result(status, null));
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            public void onModuleDownload(InfoFile module, InputStream bytes, String hash, String url) {
+                result.complete(new Result(status, url));
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        Result r = result.get(20, TimeUnit.SECONDS);
+        assertNotNull(r);
+        return r;
+    }
+
+    private MirrorDownloader downloader(boolean race, int timeoutSeconds) throws Exception {
+        Settings settings = new SettingsBuilder()
+                .add(SETTINGS_KEY_POLL_RACE_SOURCES, race)
+                .add(SETTINGS_KEY_POLL_SOURCE_TIMEOUT_SECONDS, timeoutSeconds)
+                .build();
+        NbmDownloader fake = new NbmDownloader(null, null, logs) {
+            @Override
+            public ResponseFuture download(ZonedDateTime ifModifiedSince, String url, DownloadHandler callback) {
+                requested.add(url);
+                Consumer<DownloadHandler> behavior = behaviors.get(url);
+                pool.execute(() -> behavior.accept(callback));
+                return null;
+            }
+        };
+        breakers = new CircuitBreakers(set, settings, mapper, logs);
+        return new MirrorDownloader(fake, breakers, set, settings, mapper, pool, logs);
+    }
+
+    private static final class Result {
+
+        final HttpResponseStatus status;
+        final String url;
+
+        Result(HttpResponseStatus status, String url) {
+            this.status = status;
+            this.url = url;
+        }
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        Fixture fx = TestUtils.fixture();
+        logs = fx.logs;
+        mapper = fx.mapper;
+        dir = FileUtils.newTempDir("mirrors-");
+        set = new ModuleSet(dir.toFile(), fx.mapperProvider(), fx.statsProvider(), fx.logsProvider());
+        pool = Executors.newScheduledThreadPool(4);
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+        FileUtils.deltree(dir);
+    }
+}
@@ -0,0 +1,83 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.timboudreau.metaupdatecenter.testutil.TestUtils;
+import com.timboudreau.metaupdatecenter.testutil.TestUtils.Fixture;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ModuleChangesTest {
+
+    private ModuleSet set;
+    private InfoFile info;
+    private ObjectMapper mapper;
+
+    @Test
+    public void testChangesSince() throws Exception {
+        long initial = set.generation();
+        CatalogChanges none = set.changesSince(initial);
+        assertFalse(none.isFull());
+        assertTrue(none.getModules().isEmpty());
+        assertEquals(initial, none.getGeneration());
+
+        add("hash-1");
+        long afterFirst = set.generation();
+        assertTrue(afterFirst > initial, "Generation did not increase");
+
+        CatalogChanges first = set.changesSince(initial);
+        assertFalse(first.isFull(), first.toString());
+        assertEquals(1, first.getModules().size());
+        assertEquals("hash-1", first.getModules().get(0).getHash());
+        assertTrue(set.changesSince(afterFirst).getModules().isEmpty());
+
+        add("hash-2");
+        CatalogChanges second = set.changesSince(initial);
+        assertFalse(second.isFull());
+        assertEquals(1, second.getModules().size(), "Replaced module should "
+                + "only be reported once: " + second.getModules());
+        assertEquals("hash-2", second.getModules().get(0).getHash());
+        assertEquals("hash-2", set.changesSince(afterFirst).getModules().get(0).getHash());
+
+        CatalogChanges tooOld = set.changesSince(initial - 1);
+        assertTrue(tooOld.isFull());
+        assertEquals(set.toList().size(), tooOld.getModules().size());
+
+        assertTrue(set.changesSince(set.generation() + 1).isFull(),
+                "Generation from the future should get the full catalog");
+
+        CatalogChanges roundTripped = mapper.readValue(mapper.writeValueAsString(second), CatalogChanges.class);
+        assertEquals(second.getGeneration(), roundTripped.getGeneration());
+        assertEquals("hash-2", roundTripped.getModules().get(0).getHash());
+
+        long beforeScan = set.generation();
+        set.scan();
+        assertTrue(set.generation() > beforeScan);
+        assertTrue(set.changesSince(beforeScan).isFull(), "Rescan should invalidate history");
+    }
+
+    private void add(String hash) throws Exception {
+        try (InputStream nbmIn = ModuleChangesTest.class.getResourceAsStream("org-netbeans-modules-fisheye.nbm")) {
+            assertNotNull(set.add(info, nbmIn, "http://example.com/fisheye.nbm", hash, false));
+        }
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        Fixture fx = TestUtils.fixture();
+        mapper = fx.mapper;
+        File dir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+        set = new ModuleSet(dir, fx.mapperProvider(), fx.statsProvider(), fx.logsProvider());
+        info = TestUtils.infoFile(ModuleChangesTest.class, "info.xml");
+    }
+}
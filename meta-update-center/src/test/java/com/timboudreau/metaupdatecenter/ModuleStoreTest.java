@@ -0,0 +1,118 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.mastfrog.util.file.FileUtils;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ModuleStoreTest {
+
+    private static final String CNB = "com.foo.bar";
+    private Path dir;
+
+    @Test
+    public void testDirectoryStore() throws Exception {
+        testStore(new DirectoryModuleStore(dir));
+        // The layout the server has always used
+        assertTrue(Files.exists(dir.resolve(CNB).resolve("abc.nbm")));
+        assertTrue(Files.exists(dir.resolve(CNB).resolve("abc.json")));
+        assertFalse(Files.exists(dir.resolve(CNB).resolve("abc.json.tmp")));
+        assertTrue(Files.exists(dir.resolve("state.json")));
+    }
+
+    static void testStore(ModuleStore store) throws IOException {
+        byte[] nbm = new byte[150_000];
+        new Random(23).nextBytes(nbm);
+        assertNull(store.blob(CNB, "abc"));
+        assertNull(store.record(CNB, "abc"));
+        assertNull(store.document("state.json"));
+        assertTrue(store.records(CNB).isEmpty());
+
+        assertEquals(nbm.length, store.putBlob(CNB, "abc", new ByteArrayInputStream(nbm), 1_000_000_000_000L));
+        assertFalse(store.contains(CNB, "abc"), "Visible before it was published");
+        assertTrue(store.records(CNB).isEmpty(), "Visible before it was published");
+        store.publish(CNB, "abc", utf8("{\"hash\":\"abc\"}"));
+        assertTrue(store.contains(CNB, "abc"));
+        assertArrayEquals(utf8("{\"hash\":\"abc\"}"), store.record(CNB, "abc"));
+
+        ModuleStore.Blob blob = store.blob(CNB, "abc");
+        assertNotNull(blob);
+        assertEquals(nbm.length, blob.size());
+        assertEquals(1_000_000_000_000L, blob.lastModified());
+        assertArrayEquals(nbm, read(blob));
+        assertArrayEquals(nbm, read(blob), "Should be readable more than once");
+
+        Map<String, Long> stamps = store.stamps();
+        assertEquals(1, stamps.size(), stamps.toString());
+        assertTrue(stamps.containsKey(CNB));
+
+        byte[] second = Arrays.copyOf(nbm, 1000);
+        store.putBlob(CNB, "def", new ByteArrayInputStream(second), 0);
+        store.publish(CNB, "def", utf8("{\"hash\":\"def\"}"));
+        assertArrayEquals(second, read(store.blob(CNB, "def")));
+        List<byte[]> records = store.records(CNB);
+        assertEquals(2, records.size());
+
+        store.putBlob(CNB, "ghi", new ByteArrayInputStream(second), 0);
+        store.discard(CNB, "ghi");
+        assertFalse(store.contains(CNB, "ghi"));
+        assertNull(store.blob(CNB, "ghi"));
+        assertEquals(2, store.records(CNB).size());
+
+        store.putDocument("state.json", utf8("{\"a\":1}"));
+        store.putDocument("state.json", utf8("{\"a\":2}"));
+        assertArrayEquals(utf8("{\"a\":2}"), store.document("state.json"));
+        assertNotEquals(null, store.stamps().get(CNB));
+    }
+
+    static byte[] read(ModuleStore.Blob blob) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) blob.size() + 1);
+        try (ReadableByteChannel ch = blob.open()) {
+            while (ch.read(buf) >= 0) {
+                // read to the end
+            }
+        }
+        buf.flip();
+        byte[] result = new byte[buf.remaining()];
+        buf.get(result);
+        return result;
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @BeforeEach
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("ModuleStoreTest");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        if (dir != null && Files.exists(dir)) {
+            FileUtils.deltree(dir);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.acteur.header.entities.BasicCredentials;
+import com.mastfrog.settings.SettingsBuilder;
+import com.mastfrog.util.collections.StringObjectMap;
+import com.mastfrog.util.streams.Streams;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_POLL_TIMINGS_CYCLES;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_ADMIN_USER;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_PASSWORD;
+import com.timboudreau.metaupdatecenter.testutil.PollCycleWatcher;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_A_v1;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.time.ZonedDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class PollTimingsTest {
+
+    @Test
+    public void testPercentile() {
+        long[] vals = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+        assertEquals(5, PollTimings.percentile(vals, 50));
+        assertEquals(9, PollTimings.percentile(vals, 90));
+        assertEquals(10, PollTimings.percentile(vals, 99));
+        assertEquals(1, PollTimings.percentile(new long[]{1}, 99));
+        assertEquals(-1, PollTimings.percentile(new long[0], 50));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCyclesAndSlowestUpstreams() throws Exception {
+        PollTimings timings = new PollTimings(new SettingsBuilder()
+                .add(SETTINGS_KEY_POLL_TIMINGS_CYCLES, 2).build());
+        ModuleItem fast = item("fast", "http://fast.example/fast.nbm");
+        ModuleItem slow = item("slow", "http://slow.example/slow.nbm");
+        ModuleItem gone = item("gone", "http://fast.example/gone.nbm");
+        for (int run = 0; run < 3; run++) {
+            timings.onPollCycleStarted(run, 3);
+            timings.onAttemptDownload(fast);
+            timings.onAttemptDownload(slow);
+            timings.onAttemptDownload(gone);
+            timings.onDownloadStatus(gone, NOT_FOUND);
+            timings.onHeadersReceived(fast, fast.getFrom());
+            timings.onDownloadStatus(fast, OK);
+            timings.onNewVersionDownloaded(fast, null, fast.getFrom());
+            timings.onIngested(fast, 1000, 10);
+            Thread.sleep(25);
+            timings.onHeadersReceived(slow, "http://mirror.example/slow.nbm");
+            timings.onDownloadStatus(slow, OK);
+            timings.onNewVersionDownloaded(slow, null, slow.getFrom());
+            timings.onIngested(slow, 5000, 10);
+            timings.onPollCycleCompleted(null);
+        }
+        Map<String, Object> snap = timings.snapshot(true);
+        List<Map<String, Object>> cycles = (List<Map<String, Object>>) snap.get("cycles");
+        assertEquals(2, cycles.size(), "Only the configured number of cycles should be kept");
+        Map<String, Object> newest = cycles.get(0);
+        assertEquals(2, newest.get("run"));
+        assertEquals(true, newest.get("complete"));
+        assertEquals(3, newest.get("finished"));
+        assertEquals(1, newest.get("failed"));
+        assertEquals(6000L, newest.get("bytes"));
+        Map<String, Object> total = (Map<String, Object>) newest.get("totalMillis");
+        assertEquals(3, total.get("count"));
+        assertTrue(((Long) total.get("max")) >= 25, total.toString());
+        assertEquals(3, ((List<?>) newest.get("details")).size());
+
+        List<Map<String, Object>> slowest = (List<Map<String, Object>>) snap.get("slowestUpstreams");
+        assertEquals(3, slowest.size(), slowest.toString());
+        assertEquals("http://mirror.example/slow.nbm", slowest.get(0).get("url"),
+                "Should be attributed to the source which actually answered");
+        assertEquals("mirror.example", slowest.get(0).get("host"));
+        assertEquals(2, slowest.get(0).get("samples"));
+        assertFalse(timings.snapshot(false).toString().contains("details"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testOverlappingCyclesKeepTheirOwnTimings() throws Exception {
+        PollTimings timings = new PollTimings(new SettingsBuilder().build());
+        ModuleItem late = item("late", "http://slow.example/late.nbm");
+        ModuleItem other = item("other", "http://fast.example/other.nbm");
+        timings.onPollCycleStarted(0, 1);
+        timings.onAttemptDownload(late);
+        // The next cycle begins while the first's download is still running
+        timings.onPollCycleStarted(1, 2);
+        timings.onAttemptDownload(other);
+        timings.onHeadersReceived(late, late.getFrom());
+        timings.onDownloadStatus(late, OK);
+        timings.onNewVersionDownloaded(late, null, late.getFrom());
+        timings.onIngested(late, 1000, 10);
+        timings.onPollCycleCompleted(0, null);
+
+        List<Map<String, Object>> cycles = (List<Map<String, Object>>) timings.snapshot(false).get("cycles");
+        Map<String, Object> second = cycles.get(0);
+        Map<String, Object> first = cycles.get(1);
+        assertEquals(0, first.get("run"));
+        assertEquals(true, first.get("complete"));
+        assertEquals(1, first.get("finished"));
+        assertEquals(1000L, first.get("bytes"));
+        assertEquals(1, second.get("run"));
+        assertEquals(false, second.get("complete"));
+        assertEquals(1, second.get("attempted"));
+        assertEquals(0, second.get("finished"));
+        assertEquals(0L, second.get("bytes"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testServedByServer() throws Throwable {
+        LaunchedNbmServer server = new NbmServerLauncher().setInitialNbms(MODULE_A_v1).launch();
+        try {
+            assertNotNull(server.addModuleAndEnsurePresent(MODULE_A_v1));
+            server.clearPollResults();
+            PollCycleWatcher watcher = server.newPollCycleWatcher();
+            server.forcePoll();
+            assertTrue(server.awaitPollOf(MODULE_A_v1.codeNameBase()).isNotModified());
+            watcher.awaitCycleComplete(500);
+
+            HttpURLConnection conn = (HttpURLConnection) server.serverUrl("poll/timings", "modules=true").openConnection();
+            try {
+                conn.setRequestProperty("Authorization",
+                        new BasicCredentials(TEST_ADMIN_USER, TEST_PASSWORD).toString());
+                assertEquals(200, conn.getResponseCode());
+                Map<String, Object> result;
+                try (InputStream in = conn.getInputStream()) {
+                    result = new ObjectMapper().readValue(Streams.readUTF8String(in), StringObjectMap.class);
+                }
+                List<Map<String, Object>> cycles = (List<Map<String, Object>>) result.get("cycles");
+                assertFalse(cycles.isEmpty(), result.toString());
+                Map<String, Object> statuses = (Map<String, Object>) cycles.get(0).get("statuses");
+                assertEquals(1, statuses.get("304"), result.toString());
+                List<Map<String, Object>> slowest = (List<Map<String, Object>>) result.get("slowestUpstreams");
+                assertEquals(server.moduleSourceURL(MODULE_A_v1), slowest.get(0).get("url"));
+            } finally {
+                conn.disconnect();
+            }
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCycleWithNothingToPollCompletes() throws Throwable {
+        LaunchedNbmServer server = new NbmServerLauncher().setInitialNbms(MODULE_A_v1).launch();
+        try {
+            // Nothing in the catalog, so nothing is attempted
+            server.forcePoll();
+            PollTimings timings = server.getServerObject(PollTimings.class);
+            List<Map<String, Object>> cycles = (List<Map<String, Object>>) timings.snapshot(false).get("cycles");
+            assertEquals(1, cycles.size(), cycles.toString());
+            assertEquals(0, cycles.get(0).get("attempted"));
+            assertEquals(true, cycles.get(0).get("complete"));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static ModuleItem item(String cnb, String from) {
+        return new ModuleItem(cnb, cnb, Collections.emptyMap(), ZonedDateTime.now(), false,
+                null, from, null);
+    }
+}
@@ -0,0 +1,164 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.mastfrog.acteur.header.entities.BasicCredentials;
+import com.mastfrog.util.file.FileUtils;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_NBM_DIR;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_REPLICATION_INTERVAL_SECONDS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_REPLICATION_PRIMARY;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_ADMIN_USER;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_PASSWORD;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_A_v1;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class ReplicationTest {
+
+    private static final String PRIMARY_BASE_PATH = "primary";
+    private LaunchedNbmServer primary;
+    private LaunchedNbmServer replica;
+
+    @Test
+    public void testReplicaPullsModulesFromPrimary() throws Throwable {
+        Map<String, Object> added = primary.addModuleAndEnsurePresent(MODULE_A_v1);
+        assertNotNull(added);
+        Map<String, Object> onPrimary = primary.findInCatalog(MODULE_A_v1.codeNameBase());
+        assertNotNull(onPrimary);
+
+        Map<String, Object> onReplica = null;
+        for (int i = 0; i < 100 && onReplica == null; i++) {
+            Thread.sleep(100);
+            onReplica = replica.findInCatalog(MODULE_A_v1.codeNameBase());
+        }
+        assertNotNull(onReplica, "Module never replicated");
+        assertEquals(onPrimary.get("hash"), onReplica.get("hash"));
+        assertEquals(onPrimary.get("from"), onReplica.get("from"));
+
+        replica.assertBytes(MODULE_A_v1, "download/" + MODULE_A_v1.codeNameBase()
+                + "/" + onReplica.get("hash") + ".nbm");
+
+        Replicator replicator = replica.getServerObject(Replicator.class);
+        assertTrue(replicator.isFollower());
+        assertTrue(replicator.lastSyncedGeneration() > 0);
+        assertFalse(replica.getServerObject(Poller.class).pollNow(),
+                "Replica should not poll");
+
+        IOException ex = assertThrows(IOException.class,
+                () -> replica.putUrlToServe(primary.nbmServerUrl("nbms/whatever.nbm").toString()));
+        assertTrue(ex.getMessage().contains("read-only"), ex.getMessage());
+    }
+
+    @Test
+    public void testReplicaKeepsMirrorsAndResumesAfterRestart() throws Throwable {
+        List<String> mirrors = Arrays.asList("http://mirror1.example/a.nbm", "http://mirror2.example/a.nbm");
+        addWithMirrors(primary.moduleSourceURL(MODULE_A_v1), mirrors);
+        Path dir = FileUtils.newTempDir("replica-");
+        try {
+            LaunchedNbmServer first = launchReplica(dir);
+            long synced;
+            try {
+                ModuleItem item = null;
+                for (int i = 0; i < 100 && item == null; i++) {
+                    Thread.sleep(100);
+                    item = find(first, MODULE_A_v1.codeNameBase());
+                }
+                assertNotNull(item, "Module never replicated");
+                assertEquals(mirrors, item.getMirrors(), "Mirrors should be replicated");
+                synced = first.getServerObject(Replicator.class).lastSyncedGeneration();
+                assertTrue(synced > 0);
+                assertTrue(Files.exists(dir.resolve(Replicator.CURSOR_FILE_NAME)));
+            } finally {
+                first.shutdown();
+            }
+            LaunchedNbmServer second = launchReplica(dir);
+            try {
+                assertEquals(synced, second.getServerObject(Replicator.class).lastSyncedGeneration(),
+                        "Restarted replica should resume from the saved generation");
+                assertEquals(mirrors, find(second, MODULE_A_v1.codeNameBase()).getMirrors());
+            } finally {
+                second.shutdown();
+            }
+        } finally {
+            FileUtils.deltree(dir);
+        }
+    }
+
+    private LaunchedNbmServer launchReplica(Path dir) throws Exception {
+        String primaryUrl = "http://localhost:" + primary.port() + "/" + PRIMARY_BASE_PATH;
+        return new NbmServerLauncher()
+                .onCreateSettings(s -> {
+                    s.setString(SETTINGS_KEY_NBM_DIR, dir.toString());
+                    s.setString(SETTINGS_KEY_REPLICATION_PRIMARY, primaryUrl);
+                    s.setInt(SETTINGS_KEY_REPLICATION_INTERVAL_SECONDS, 1);
+                })
+                .launch();
+    }
+
+    private static ModuleItem find(LaunchedNbmServer server, String cnb) {
+        for (ModuleItem item : server.getServerObject(ModuleSet.class).toList()) {
+            if (cnb.equals(item.getCodeNameBase())) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    private void addWithMirrors(String url, List<String> mirrors) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) primary.nbmServerUrl("add", "url="
+                + URLEncoder.encode(url, "UTF-8") + "&mirrors="
+                + URLEncoder.encode(String.join(",", mirrors), "UTF-8")).openConnection();
+        try {
+            conn.setRequestProperty("Authorization",
+                    new BasicCredentials(TEST_ADMIN_USER, TEST_PASSWORD).toString());
+            assertEquals(200, conn.getResponseCode());
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        primary = new NbmServerLauncher(PRIMARY_BASE_PATH)
+                .setInitialNbms(MODULE_A_v1)
+                .launch();
+        String primaryUrl = "http://localhost:" + primary.port() + "/" + PRIMARY_BASE_PATH;
+        replica = new NbmServerLauncher()
+                .onCreateSettings(s -> {
+                    s.setString(SETTINGS_KEY_REPLICATION_PRIMARY, primaryUrl);
+                    s.setInt(SETTINGS_KEY_REPLICATION_INTERVAL_SECONDS, 1);
+                })
+                .launch();
+    }
+
+    @AfterEach
+    public void tearDown() throws Throwable {
+        try {
+            if (replica != null) {
+                replica.shutdown();
+            }
+        } finally {
+            if (primary != null) {
+                primary.shutdown();
+            }
+        }
+    }
+}
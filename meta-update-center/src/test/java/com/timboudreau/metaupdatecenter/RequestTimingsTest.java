@@ -0,0 +1,142 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.acteur.header.entities.BasicCredentials;
+import com.mastfrog.util.collections.StringObjectMap;
+import com.mastfrog.util.streams.Streams;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_REQUEST_TIMINGS_SAMPLE_RATE;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_SLOW_REQUEST_MILLIS;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_ADMIN_USER;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_PASSWORD;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_A_v1;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that requests are timed through each acteur and through writing the
+ * response, with every request counted as slow and sampled.
+ *
+ * @author Tim Boudreau
+ */
+public class RequestTimingsTest {
+
+    private LaunchedNbmServer server;
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testDownloadAndCatalogAreTimed() throws Throwable {
+        server.addModuleAndEnsurePresent(MODULE_A_v1);
+        String downloadPath = "/download/" + MODULE_A_v1.codeNameBase()
+                + "/" + server.findInCatalog(MODULE_A_v1.codeNameBase()).get("hash") + ".nbm";
+        server.get("modules");
+        server.assertBytes(MODULE_A_v1, downloadPath.substring(1));
+
+        Map<String, Object> result = timings();
+        Map<String, Object> routes = (Map<String, Object>) result.get("routes");
+        Map<String, Object> download = (Map<String, Object>) routes.get("DownloadActeur");
+        assertNotNull(download, routes.toString());
+        assertEquals(1, download.get("requests"));
+        assertEquals(1, download.get("slow"));
+        assertEquals(1, download.get("samples"));
+        assertTrue(((Map<String, Object>) download.get("meanActeurMicros")).keySet().containsAll(
+                Arrays.asList("FindModuleItem", "CheckIfNoneMatchHeader",
+                        "CheckIfModifiedSinceHeader", "DownloadActeur")), download.toString());
+        assertEquals(1, ((Map<String, Object>) download.get("histogram")).values().stream()
+                .mapToInt(v -> (Integer) v).sum(), download.toString());
+
+        Map<String, Object> catalog = (Map<String, Object>) routes.get("ModuleCatalogPage");
+        assertNotNull(catalog, routes.toString());
+        assertTrue(((Map<String, Object>) catalog.get("meanActeurMicros")).keySet().containsAll(
+                Arrays.asList("SetupETag", "ModuleListSender")), catalog.toString());
+
+        Map<String, Object> slowDownload = null;
+        for (Map<String, Object> slow : (List<Map<String, Object>>) result.get("recentSlow")) {
+            if (downloadPath.equals(slow.get("path"))) {
+                slowDownload = slow;
+            }
+        }
+        assertNotNull(slowDownload, result.toString());
+        assertEquals("DownloadActeur", slowDownload.get("route"));
+        assertEquals("GET", slowDownload.get("method"));
+        assertEquals(200, slowDownload.get("status"));
+        assertEquals(MODULE_A_v1.bytes().length, ((Number) slowDownload.get("bytes")).intValue());
+        assertTrue((Integer) slowDownload.get("writes") > 0, slowDownload.toString());
+        assertTrue(((Number) slowDownload.get("timeToLastByteMillis")).longValue()
+                >= ((Number) slowDownload.get("timeToHeadersMillis")).longValue(), slowDownload.toString());
+        List<Map<String, Object>> chain = (List<Map<String, Object>>) slowDownload.get("acteurs");
+        assertEquals("DownloadActeur", chain.get(chain.size() - 1).get("acteur"), chain.toString());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRouteKeepsEverySampleAsItGrows() {
+        RequestTimings.Route route = new RequestTimings.Route();
+        // Grows from 16 slots to 32, then to 64
+        for (int i = 1; i <= 40; i++) {
+            route.sample(i, i, 64);
+        }
+        Map<String, Object> grown = route.describe();
+        assertEquals(40, grown.get("samples"));
+        assertEquals(percentiles(20, 36, 40, 40), grown.get("totalMicros"));
+        assertEquals(percentiles(20, 36, 40, 40), grown.get("timeToHeadersMicros"));
+
+        // Full, so the oldest are replaced, leaving 37 to 100
+        for (int i = 41; i <= 100; i++) {
+            route.sample(i, i, 64);
+        }
+        Map<String, Object> wrapped = route.describe();
+        assertEquals(64, wrapped.get("samples"));
+        assertEquals(percentiles(68, 94, 100, 100), wrapped.get("totalMicros"));
+    }
+
+    private static Map<String, Object> percentiles(long p50, long p90, long p99, long max) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("p50", p50);
+        result.put("p90", p90);
+        result.put("p99", p99);
+        result.put("max", max);
+        return result;
+    }
+
+    private Map<String, Object> timings() throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) server.serverUrl("requests/timings").openConnection();
+        try {
+            conn.setRequestProperty("Authorization",
+                    new BasicCredentials(TEST_ADMIN_USER, TEST_PASSWORD).toString());
+            assertEquals(200, conn.getResponseCode());
+            try (InputStream in = conn.getInputStream()) {
+                return new ObjectMapper().readValue(Streams.readUTF8String(in), StringObjectMap.class);
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        server = new NbmServerLauncher().setInitialNbms(MODULE_A_v1)
+                .onCreateSettings(settings -> {
+                    settings.setInt(SETTINGS_KEY_SLOW_REQUEST_MILLIS, 0);
+                    settings.setDouble(SETTINGS_KEY_REQUEST_TIMINGS_SAMPLE_RATE, 1);
+                }).launch();
+    }
+
+    @AfterEach
+    public void tearDown() throws Throwable {
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.bunyan.java.v2.LoggingModule;
+import com.mastfrog.util.file.FileUtils;
+import static com.timboudreau.metaupdatecenter.ModuleStoreTest.read;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_STORAGE_ENGINE;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.STORAGE_ENGINE_SEGMENTS;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_A_v1;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SegmentModuleStoreTest {
+
+    private static final String CNB = "com.foo.bar";
+    private static final long SEGMENT_SIZE = 64 * 1024;
+    private Path dir;
+    private Logs logs;
+
+    @Test
+    public void testContract() throws Exception {
+        ModuleStoreTest.testStore(open(5));
+        assertTrue(Files.exists(dir.resolve(SegmentModuleStore.SEGMENTS_DIR)));
+        assertFalse(Files.exists(dir.resolve(CNB)), "Should not create per-module directories");
+    }
+
+    @Test
+    public void testReopenUsesIndexAndReplaysTail() throws Exception {
+        SegmentModuleStore store = open(5);
+        byte[][] nbms = new byte[4][];
+        for (int i = 0; i < nbms.length; i++) {
+            // Each is bigger than a segment, so the index is saved after each
+            nbms[i] = put(store, "m" + i, "h" + i, 70_000);
+        }
+        // And one in the tail written since
+        byte[] tail = put(store, "tail", "t", 1000);
+        store.close();
+
+        SegmentModuleStore reopened = open(5);
+        for (int i = 0; i < nbms.length; i++) {
+            assertArrayEquals(nbms[i], read(reopened.blob("m" + i, "h" + i)));
+            assertArrayEquals(record("h" + i), reopened.record("m" + i, "h" + i));
+        }
+        assertArrayEquals(tail, read(reopened.blob("tail", "t")));
+        assertEquals(5, reopened.stamps().size());
+        reopened.close();
+
+        // And without the index, by replaying everything
+        Files.delete(dir.resolve(SegmentModuleStore.SEGMENTS_DIR).resolve(SegmentModuleStore.INDEX_FILE));
+        SegmentModuleStore replayed = open(5);
+        assertEquals(reopened.stamps(), replayed.stamps());
+        assertArrayEquals(tail, read(replayed.blob("tail", "t")));
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws Exception {
+        SegmentModuleStore store = open(5);
+        byte[] first = put(store, CNB, "a", 1000);
+        put(store, CNB, "b", 1000);
+        store.putBlob(CNB, "unpublished", new ByteArrayInputStream(new byte[100]), 0);
+        store.close();
+
+        Path segment = newestSegment();
+        long size = Files.size(segment);
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            // Lose the unpublished blob and the end of b's record
+            ch.truncate(size - 200);
+        }
+        SegmentModuleStore reopened = open(5);
+        assertTrue(reopened.contains(CNB, "a"));
+        assertFalse(reopened.contains(CNB, "b"), "Torn record should not be visible");
+        assertFalse(reopened.contains(CNB, "unpublished"));
+        assertArrayEquals(first, read(reopened.blob(CNB, "a")));
+        assertTrue(Files.size(segment) < size - 200, "Torn entry should be truncated");
+
+        byte[] third = put(reopened, CNB, "c", 1000);
+        reopened.close();
+        SegmentModuleStore again = open(5);
+        assertArrayEquals(third, read(again.blob(CNB, "c")));
+        assertEquals(2, again.records(CNB).size());
+    }
+
+    @Test
+    public void testSupersededVersionsCompacted() throws Exception {
+        SegmentModuleStore store = open(2);
+        byte[] latest = null;
+        for (int i = 0; i < 6; i++) {
+            latest = put(store, CNB, "v" + i, 40_000);
+        }
+        byte[] other = put(store, "com.other", "x", 40_000);
+        assertEquals(2, store.records(CNB).size(), "Only two versions should be retained");
+        assertNull(store.blob(CNB, "v0"));
+        assertTrue(store.contains(CNB, "v4"));
+        ModuleStore.Blob held = store.blob(CNB, "v5");
+        long before = segmentCount();
+        assertTrue(before > 2, "Should have rolled");
+
+        assertTrue(store.compact() > 0);
+        assertTrue(segmentCount() < before, segmentCount() + " of " + before);
+        assertArrayEquals(latest, read(held), "Moved blob should still be readable");
+        assertArrayEquals(other, read(store.blob("com.other", "x")));
+        assertArrayEquals(record("v4"), store.record(CNB, "v4"));
+        Map<String, Long> stamps = store.stamps();
+        store.close();
+
+        SegmentModuleStore reopened = open(2);
+        assertEquals(stamps, reopened.stamps(), "Compaction should not change stamps");
+        assertArrayEquals(latest, read(reopened.blob(CNB, "v5")));
+        assertTrue(reopened.contains(CNB, "v4"));
+        assertFalse(reopened.contains(CNB, "v3"));
+    }
+
+    @Test
+    public void testDirectoryLayoutImported() throws Exception {
+        DirectoryModuleStore old = new DirectoryModuleStore(dir);
+        byte[][] versions = new byte[3][];
+        long[] modified = {1_000_000, 3_000_000, 2_000_000};
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = new byte[5000];
+            new Random(i).nextBytes(versions[i]);
+            old.putBlob(CNB, "v" + i, new ByteArrayInputStream(versions[i]), modified[i]);
+            old.publish(CNB, "v" + i, record("v" + i));
+        }
+        byte[] other = put(old, "com.other", "x", 1000);
+        // An NBM whose record was never written is not a module
+        old.putBlob("com.other", "partial", new ByteArrayInputStream(new byte[10]), 0);
+
+        SegmentModuleStore store = open(2);
+        assertFalse(Files.exists(dir.resolve(SegmentModuleStore.SEGMENTS_DIR)
+                .resolve(SegmentModuleStore.IMPORTING_FILE)));
+        // Imported oldest first, so the two newest are the ones retained
+        assertFalse(store.contains(CNB, "v0"));
+        assertArrayEquals(versions[1], read(store.blob(CNB, "v1")));
+        assertArrayEquals(versions[2], read(store.blob(CNB, "v2")));
+        assertEquals(modified[1], store.blob(CNB, "v1").lastModified());
+        assertArrayEquals(record("v1"), store.record(CNB, "v1"));
+        assertArrayEquals(other, read(store.blob("com.other", "x")));
+        assertFalse(store.contains("com.other", "partial"));
+        assertEquals(2, store.stamps().size());
+        assertTrue(old.contains(CNB, "v0"), "Originals should be left alone");
+        Map<String, Long> stamps = store.stamps();
+        store.close();
+
+        // Only done once
+        SegmentModuleStore reopened = open(2);
+        assertEquals(stamps, reopened.stamps());
+        assertEquals(2, reopened.records(CNB).size());
+    }
+
+    @Test
+    public void testServedFromSegments() throws Throwable {
+        LaunchedNbmServer server = new NbmServerLauncher().setInitialNbms(MODULE_A_v1)
+                .onCreateSettings(s -> s.setString(SETTINGS_KEY_STORAGE_ENGINE, STORAGE_ENGINE_SEGMENTS))
+                .launch();
+        try {
+            assertNotNull(server.addModuleAndEnsurePresent(MODULE_A_v1));
+            Map<String, Object> info = server.findInCatalog(MODULE_A_v1.codeNameBase());
+            server.assertBytes(MODULE_A_v1, "download/" + MODULE_A_v1.codeNameBase() + "/" + info.get("hash") + ".nbm");
+            assertTrue(Files.exists(server.nbmsDir().resolve(SegmentModuleStore.SEGMENTS_DIR)));
+            assertFalse(Files.exists(server.nbmsDir().resolve(MODULE_A_v1.codeNameBase())));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private byte[] put(ModuleStore store, String cnb, String hash, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        new Random(hash.hashCode()).nextBytes(bytes);
+        store.putBlob(cnb, hash, new ByteArrayInputStream(bytes), 0);
+        store.publish(cnb, hash, record(hash));
+        return bytes;
+    }
+
+    private static byte[] record(String hash) {
+        return ("{\"hash\":\"" + hash + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private SegmentModuleStore open(int retain) {
+        // Compaction is run explicitly by the tests
+        return new SegmentModuleStore(dir, SEGMENT_SIZE, retain, r -> {
+        }, logs);
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> str = Files.list(dir.resolve(SegmentModuleStore.SEGMENTS_DIR))) {
+            return str.filter(p -> p.getFileName().toString().endsWith(".log")).count();
+        }
+    }
+
+    private Path newestSegment() throws IOException {
+        try (Stream<Path> str = Files.list(dir.resolve(SegmentModuleStore.SEGMENTS_DIR))) {
+            return str.filter(p -> p.getFileName().toString().endsWith(".log"))
+                    .sorted().reduce((a, b) -> b).get();
+        }
+    }
+
+    @BeforeEach
+    public void setup() throws IOException {
+        Dependencies deps = new Dependencies(new LoggingModule().bindLogger("x"));
+        logs = deps.getInstance(Key.get(Logs.class, Names.named("x")));
+        dir = FileUtils.newTempDir("segments-");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        FileUtils.deltree(dir);
+    }
+}
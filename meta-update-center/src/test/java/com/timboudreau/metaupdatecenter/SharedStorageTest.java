@@ -0,0 +1,155 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.bunyan.java.v2.Logs;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_CLUSTER_ENABLED;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_CLUSTER_LEASE_SECONDS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_NBM_DIR;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import com.timboudreau.metaupdatecenter.testutil.TestUtils;
+import com.timboudreau.metaupdatecenter.testutil.TestUtils.Fixture;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class SharedStorageTest {
+
+    private Fixture fx;
+    private File dir;
+    private Logs logs;
+    private ObjectMapper mapper;
+    private InfoFile info;
+
+    @Test
+    public void testOnlyOneNodeHoldsTheLease() throws Exception {
+        Duration leaseDuration = Duration.ofMillis(300);
+        PollLease a = new PollLease(dir.toPath(), "a", leaseDuration, mapper, logs, true);
+        PollLease b = new PollLease(dir.toPath(), "b", leaseDuration, mapper, logs, true);
+        assertFalse(a.isLeader());
+        assertTrue(a.renew());
+        assertFalse(b.renew());
+        assertTrue(a.isLeader());
+        assertFalse(b.isLeader());
+        long firstToken = a.token();
+        a.checkFence();
+        assertThrows(IOException.class, b::checkFence);
+        assertTrue(a.renew(), "Holder should be able to extend its lease");
+        assertEquals(firstToken, a.token());
+
+        Thread.sleep(leaseDuration.toMillis() + 50);
+        assertFalse(a.isLeader());
+        assertTrue(b.renew(), "Expired lease should be up for grabs");
+        assertTrue(b.token() > firstToken, "Fencing token should increase");
+        assertThrows(IOException.class, a::checkFence);
+        assertFalse(a.renew());
+
+        b.release();
+        assertFalse(b.isLeader());
+        assertTrue(a.renew(), "Released lease should be available immediately");
+        assertTrue(a.token() > firstToken + 1);
+
+        PollLease disabled = new PollLease(dir.toPath(), "c", leaseDuration, mapper, logs, false);
+        assertTrue(disabled.isLeader());
+        disabled.checkFence();
+    }
+
+    @Test
+    public void testFollowerRefreshesFromSharedDirectory() throws Exception {
+        PollLease leaderLease = new PollLease(dir.toPath(), "leader", Duration.ofMinutes(1), mapper, logs, true);
+        PollLease followerLease = new PollLease(dir.toPath(), "follower", Duration.ofMinutes(1), mapper, logs, true);
+        ModuleSet leader = newSet(leaderLease);
+        ModuleSet follower = newSet(followerLease);
+        leader.scan();
+        follower.scan();
+        assertTrue(leaderLease.renew());
+        assertFalse(followerLease.renew());
+
+        assertThrows(IOException.class, () -> add(follower, "from-follower"),
+                "Node without the lease must not write");
+
+        long followerGeneration = follower.generation();
+        assertNotNull(add(leader, "hash-1"));
+        assertEquals(1, follower.refresh());
+        assertEquals("hash-1", follower.toList().get(0).getHash());
+        assertEquals(1, follower.changesSince(followerGeneration).getModules().size());
+        assertEquals(0, follower.refresh(), "Nothing changed");
+
+        Thread.sleep(20);
+        assertNotNull(add(leader, "hash-2"));
+        assertEquals(1, follower.refresh());
+        assertEquals(1, follower.size());
+        assertEquals("hash-2", follower.toList().get(0).getHash());
+    }
+
+    @Test
+    public void testTickleWaitsForTheLease() throws Throwable {
+        PollLease other = new PollLease(dir.toPath(), "other", Duration.ofMinutes(1), mapper, logs, true);
+        assertTrue(other.renew());
+        LaunchedNbmServer server = new NbmServerLauncher()
+                .onCreateSettings(s -> {
+                    s.setString(SETTINGS_KEY_NBM_DIR, dir.getAbsolutePath());
+                    s.setBoolean(SETTINGS_KEY_CLUSTER_ENABLED, true);
+                    s.setString(SETTINGS_KEY_CLUSTER_LEASE_SECONDS, "3");
+                })
+                .launch();
+        try {
+            Poller poller = server.getServerObject(Poller.class);
+            PollLease lease = server.getServerObject(PollLease.class);
+            PollTimings timings = server.getServerObject(PollTimings.class);
+            assertFalse(lease.isLeader());
+            assertFalse(poller.pollNow(), "Non-leader should not accept a tickle");
+            assertEquals(0, cycles(timings));
+
+            other.release();
+            for (int i = 0; i < 100 && !lease.isLeader(); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(lease.isLeader(), "Should pick up the released lease");
+            assertTrue(poller.pollNow(), "Earlier refusal should not leave the poller stuck");
+            for (int i = 0; i < 100 && cycles(timings) == 0; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, cycles(timings), "Tickle should have run a poll cycle");
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static int cycles(PollTimings timings) {
+        return ((List<?>) timings.snapshot(false).get("cycles")).size();
+    }
+
+    private ModuleItem add(ModuleSet set, String hash) throws Exception {
+        try (InputStream nbmIn = SharedStorageTest.class.getResourceAsStream("org-netbeans-modules-fisheye.nbm")) {
+            return set.add(info, nbmIn, "http://example.com/fisheye.nbm", hash, false);
+        }
+    }
+
+    private ModuleSet newSet(PollLease lease) throws IOException {
+        return new ModuleSet(dir, fx.mapperProvider(), fx.statsProvider(), fx.logsProvider(), () -> lease);
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        fx = TestUtils.fixture();
+        logs = fx.logs;
+        mapper = fx.mapper;
+        dir = Files.createTempDirectory(getClass().getSimpleName()).toFile();
+        info = TestUtils.infoFile(SharedStorageTest.class, "info.xml");
+    }
+}
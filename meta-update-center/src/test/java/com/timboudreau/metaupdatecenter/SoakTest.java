@@ -0,0 +1,69 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.LoadTestHarness;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import com.timboudreau.metaupdatecenter.testutil.SoakTestHarness;
+import static com.timboudreau.metaupdatecenter.testutil.TestUtils.fetchMapValue;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the soak test harness briefly so it stays working; soak the server
+ * for real with, e.g., <code>mvn test -Dtest=SoakTest -Dsoak.cycles=5000
+ * -Dsoak.sampleEvery=50 -Dsoak.modules=50</code>, ideally with a small
+ * <code>-Xmx</code> in <code>argLine</code>.
+ *
+ * @author Tim Boudreau
+ */
+public class SoakTest {
+
+    private LaunchedNbmServer server;
+
+    @Test
+    public void testSoak() throws Throwable {
+        Path resultFile = Paths.get(System.getProperty("soak.result", "target/soak-result.json"));
+        Files.deleteIfExists(resultFile);
+        Map<String, Object> result = new SoakTestHarness()
+                .cycles(Integer.getInteger("soak.cycles", 40))
+                .sampleEvery(Integer.getInteger("soak.sampleEvery", 4))
+                .ingestEvery(Integer.getInteger("soak.ingestEvery", 5))
+                .modules(Integer.getInteger("soak.modules", 8))
+                .downloaders(Integer.getInteger("soak.downloaders", 2))
+                .seed(Long.getLong("soak.seed", 1L))
+                .resultFile(resultFile)
+                .run(server);
+        assertTrue(Files.exists(resultFile), "No result file written to " + resultFile);
+        assertEquals(0, result.get("leaks"), "Buffers leaked: " + result.get("leakReports"));
+        assertEquals(0L, result.get("pollFailures"), "Polls failed: " + result.get("failures"));
+        assertEquals(0L, fetchMapValue("requests.errors", result), "Requests failed: " + result);
+        assertTrue(((Number) fetchMapValue("requests.count", result)).longValue() > 0,
+                "No downloads made: " + result);
+        assertTrue(((Number) result.get("ingested")).longValue() > 0,
+                "No republished module was ingested: " + result);
+        assertTrue(((List<?>) result.get("trending")).isEmpty(),
+                "Resource use trends upward: " + result.get("trending") + " in " + result.get("trends"));
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        server = new NbmServerLauncher()
+                .onCreateSettings(LoadTestHarness::configure)
+                .launch();
+    }
+
+    @AfterEach
+    public void tearDown() throws Throwable {
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+}
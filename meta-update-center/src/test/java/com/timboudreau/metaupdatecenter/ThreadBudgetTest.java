@@ -0,0 +1,84 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.google.inject.Key;
+import com.google.inject.name.Names;
+import com.mastfrog.acteur.server.EventLoopFactory;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.GUICE_BINDING_POLLER_THREAD_POOL;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_BLOCKING_THREADS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_DOWNLOAD_THREADS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_HTTP_CLIENT_SHARE_EVENT_LOOP;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TRANSPORT;
+import com.timboudreau.metaupdatecenter.UpdateCenterServer.NbmInfoModule.HttpClientProvider;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_A_v1;
+import io.netty.channel.epoll.Epoll;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the HTTP client can run on the server's event loops, that the
+ * shared blocking pool is sized by <code>blocking.threads</code>, and that
+ * the thread budget reports both.
+ *
+ * @author Tim Boudreau
+ */
+public class ThreadBudgetTest {
+
+    @Test
+    public void testClientSharesServerEventLoop() throws Throwable {
+        LaunchedNbmServer server = new NbmServerLauncher().setInitialNbms(MODULE_A_v1)
+                .onCreateSettings(settings -> {
+                    settings.setBoolean(SETTINGS_KEY_HTTP_CLIENT_SHARE_EVENT_LOOP, true);
+                    settings.setInt(SETTINGS_KEY_BLOCKING_THREADS, 2);
+                }).launch();
+        try {
+            HttpClientProvider client = server.getServerObject(HttpClientProvider.class);
+            assertTrue(client.sharesServerEventLoop());
+            // Downloading from upstream goes through the shared loops
+            server.addModuleAndEnsurePresent(MODULE_A_v1);
+            server.forcePoll().awaitPollOf(MODULE_A_v1.codeNameBase());
+
+            ScheduledExecutorService pool = server.injector().getInstance(
+                    Key.get(ScheduledExecutorService.class, Names.named(GUICE_BINDING_POLLER_THREAD_POOL)));
+            assertEquals(2, ((ThreadPoolExecutor) pool).getCorePoolSize());
+
+            Map<String, Object> budget = server.getServerObject(ThreadBudget.class).describe();
+            assertEquals("workers", budget.get("httpClientThreads"), budget.toString());
+            assertEquals(2, budget.get("blockingThreads"), budget.toString());
+            assertEquals("nio", budget.get("transport"), budget.toString());
+            assertTrue((Integer) budget.get("liveThreads") > 0, budget.toString());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testClientKeepsItsOwnLoopsOffNio() throws Throwable {
+        LaunchedNbmServer server = new NbmServerLauncher().setInitialNbms(MODULE_A_v1)
+                .onCreateSettings(settings -> {
+                    settings.setBoolean(SETTINGS_KEY_HTTP_CLIENT_SHARE_EVENT_LOOP, true);
+                    settings.setInt(SETTINGS_KEY_DOWNLOAD_THREADS, 2);
+                    settings.setString(SETTINGS_KEY_TRANSPORT, "epoll");
+                }).launch();
+        try {
+            HttpClientProvider client = server.getServerObject(HttpClientProvider.class);
+            boolean epoll = ((TransportEventLoopFactory) server.getServerObject(EventLoopFactory.class))
+                    .transport() == Transport.EPOLL;
+            assertEquals(Epoll.isAvailable(), epoll);
+            if (epoll) {
+                // The client can only be given an NIO group
+                assertFalse(client.sharesServerEventLoop());
+                assertEquals(2, server.getServerObject(ThreadBudget.class).describe().get("httpClientThreads"));
+            }
+            server.addModuleAndEnsurePresent(MODULE_A_v1);
+        } finally {
+            server.shutdown();
+        }
+    }
+}
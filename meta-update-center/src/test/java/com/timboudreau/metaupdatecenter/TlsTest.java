@@ -0,0 +1,181 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.mastfrog.util.file.FileUtils;
+import com.mastfrog.util.streams.Streams;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_HTTP2_ENABLED;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TLS_ENABLED;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TLS_ENGINE;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TLS_KEYSTORE_FILE;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TLS_KEY_PASSWORD;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class TlsTest {
+
+    private static final String PASSWORD = "changeit";
+    private static final Pattern DISTRIBUTION = Pattern.compile("distribution=\"([^\"]+)\"");
+    private Path dir;
+    private Path keyStore;
+    private LaunchedNbmServer server;
+
+    @Test
+    public void testTls() throws Throwable {
+        Response catalog = get("modules");
+        assertEquals(200, catalog.status);
+        assertTrue(catalog.peer.contains("CN=first"), catalog.peer);
+        Matcher m = DISTRIBUTION.matcher(catalog.body);
+        assertTrue(m.find(), catalog.body);
+        String download = m.group(1);
+        assertTrue(download.startsWith("https://"), "Catalog URLs should be https: " + download);
+
+        Response nbm = get(new URL(download).getPath().substring(1));
+        assertEquals(200, nbm.status);
+        assertTrue(nbm.bytes.length > 0);
+
+        // Replace the certificate; new connections should get the new one
+        Path second = dir.resolve("second.p12");
+        keytool(second, "second");
+        Files.copy(second, keyStore, StandardCopyOption.REPLACE_EXISTING);
+        Files.setLastModifiedTime(keyStore, FileTime.fromMillis(System.currentTimeMillis() + 5000));
+        assertTrue(server.getServerObject(ServerTls.class).reloadIfChanged());
+        Response after = get("modules");
+        assertEquals(200, after.status);
+        assertTrue(after.peer.contains("CN=second"), after.peer);
+
+        // ALPN offers h2 when HTTP/2 is enabled
+        SSLContext ctx = trustAll();
+        try (SSLSocket sock = (SSLSocket) ctx.getSocketFactory().createSocket("localhost", server.port())) {
+            SSLParameters params = sock.getSSLParameters();
+            params.setApplicationProtocols(new String[]{"h2", "http/1.1"});
+            sock.setSSLParameters(params);
+            sock.startHandshake();
+            assertEquals("h2", sock.getApplicationProtocol());
+        }
+    }
+
+    private Response get(String path) throws Exception {
+        URL url = new URL("https://localhost:" + server.port() + "/" + path);
+        HttpsURLConnection conn = (HttpsURLConnection) url.openConnection();
+        // A new socket factory for each request, so connections are not reused
+        conn.setSSLSocketFactory(trustAll().getSocketFactory());
+        conn.setHostnameVerifier((host, session) -> true);
+        conn.setConnectTimeout(1500);
+        conn.setReadTimeout(10000);
+        try {
+            int status = conn.getResponseCode();
+            String peer = ((X509Certificate) conn.getServerCertificates()[0]).getSubjectX500Principal().getName();
+            byte[] bytes;
+            try (InputStream in = conn.getInputStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                Streams.copy(in, out, 8192);
+                bytes = out.toByteArray();
+            }
+            return new Response(status, bytes, peer);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static SSLContext trustAll() throws Exception {
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        }}, new SecureRandom());
+        return ctx;
+    }
+
+    private static void keytool(Path file, String cn) throws IOException, InterruptedException {
+        Path keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool");
+        Process proc = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", "server",
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "2", "-dname", "CN=" + cn,
+                "-storetype", "PKCS12", "-keystore", file.toString(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true).start();
+        String output = Streams.readUTF8String(proc.getInputStream());
+        assertTrue(proc.waitFor(60, TimeUnit.SECONDS), "keytool hung");
+        assertEquals(0, proc.exitValue(), output);
+    }
+
+    private static final class Response {
+
+        final int status;
+        final byte[] bytes;
+        final String body;
+        final String peer;
+
+        Response(int status, byte[] bytes, String peer) {
+            this.status = status;
+            this.bytes = bytes;
+            this.body = new String(bytes, StandardCharsets.UTF_8);
+            this.peer = peer;
+        }
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        dir = FileUtils.newTempDir("tls-");
+        keyStore = dir.resolve("server.p12");
+        keytool(keyStore, "first");
+        server = new NbmServerLauncher()
+                .onCreateSettings(s -> {
+                    s.setBoolean(SETTINGS_KEY_TLS_ENABLED, true);
+                    s.setString(SETTINGS_KEY_TLS_ENGINE, "jdk");
+                    s.setString(SETTINGS_KEY_TLS_KEYSTORE_FILE, keyStore.toString());
+                    s.setString(SETTINGS_KEY_TLS_KEY_PASSWORD, PASSWORD);
+                    s.setBoolean(SETTINGS_KEY_HTTP2_ENABLED, true);
+                })
+                .launch();
+    }
+
+    @AfterEach
+    public void tearDown() throws Throwable {
+        try {
+            if (server != null) {
+                server.shutdown();
+            }
+        } finally {
+            FileUtils.deltree(dir);
+        }
+    }
+}
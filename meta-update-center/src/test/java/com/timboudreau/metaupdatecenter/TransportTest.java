@@ -0,0 +1,59 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.mastfrog.acteur.server.EventLoopFactory;
+import com.mastfrog.util.preconditions.ConfigurationError;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_TRANSPORT;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_A_v1;
+import io.netty.channel.epoll.Epoll;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the server runs on the transport it is asked for, or falls back
+ * to one which is available.
+ *
+ * @author Tim Boudreau
+ */
+public class TransportTest {
+
+    @Test
+    public void testEpollOrFallback() throws Throwable {
+        assertServes("epoll", Epoll.isAvailable() ? Transport.EPOLL : Transport.NIO);
+    }
+
+    @Test
+    public void testIoUringFallsBack() throws Throwable {
+        // The io_uring incubator library is not a dependency
+        Transport used = assertServes("io_uring", null);
+        assertNotEquals(Transport.IO_URING, used);
+        assertEquals(Epoll.isAvailable() ? Transport.EPOLL : Transport.NIO, used);
+    }
+
+    @Test
+    public void testUnknownTransport() {
+        assertEquals(Transport.NIO, Transport.forName("NIO", SETTINGS_KEY_TRANSPORT));
+        assertThrows(ConfigurationError.class, () -> Transport.forName("kqueue", SETTINGS_KEY_TRANSPORT));
+    }
+
+    private Transport assertServes(String transport, Transport expected) throws Throwable {
+        LaunchedNbmServer server = new NbmServerLauncher().setInitialNbms(MODULE_A_v1)
+                .onCreateSettings(settings -> settings.setString(SETTINGS_KEY_TRANSPORT, transport))
+                .launch();
+        try {
+            Transport used = ((TransportEventLoopFactory) server.getServerObject(EventLoopFactory.class)).transport();
+            if (expected != null) {
+                assertEquals(expected, used);
+            }
+            server.addModuleAndEnsurePresent(MODULE_A_v1);
+            server.assertBytes(MODULE_A_v1, "download/" + MODULE_A_v1.codeNameBase()
+                    + "/" + server.findInCatalog(MODULE_A_v1.codeNameBase()).get("hash") + ".nbm");
+            return used;
+        } finally {
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.mastfrog.acteur.header.entities.BasicCredentials;
+import static com.mastfrog.acteur.server.ServerModule.MAX_CONTENT_LENGTH;
+import com.mastfrog.util.streams.Streams;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.UPLOAD_URL_PREFIX;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_ADMIN_USER;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_PASSWORD;
+import com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs;
+import com.timboudreau.metaupdatecenter.testutil.TestUtils;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_A_v1;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_B_v1;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class UploadTest {
+
+    private LaunchedNbmServer server;
+
+    @Test
+    public void testUpload() throws Throwable {
+        // Chunked, and larger than the server will aggregate, to be sure the
+        // body is streamed rather than buffered
+        Response first = upload(MODULE_A_v1.bytes(), null, true, true);
+        assertEquals(201, first.status, first.body);
+        Map<String, Object> info = TestUtils.extractModuleInfo(first.body);
+        assertEquals(MODULE_A_v1.codeNameBase(), info.get("codenamebase"));
+
+        Map<String, Object> inCatalog = server.findInCatalog(MODULE_A_v1.codeNameBase());
+        assertNotNull(inCatalog, "Uploaded module not in catalog");
+        assertEquals(UPLOAD_URL_PREFIX + MODULE_A_v1.codeNameBase() + ".nbm", inCatalog.get("from"));
+        server.assertBytes(MODULE_A_v1, "download/" + MODULE_A_v1.codeNameBase()
+                + "/" + inCatalog.get("hash") + ".nbm");
+
+        // The hash must match the one computed for the same file downloaded
+        // by URL, or the same module would be stored twice
+        assertNull(server.putUrlToServe(server.moduleSourceURL(MODULE_A_v1)),
+                "Module added by URL after upload should be a duplicate");
+        Response again = upload(MODULE_A_v1.bytes(), null, false, true);
+        assertEquals(200, again.status, again.body);
+        assertTrue(again.body.contains("I already have that module"), again.body);
+
+        Response verified = upload(MODULE_B_v1.bytes(), sha1(MODULE_B_v1), false, true);
+        assertEquals(201, verified.status, verified.body);
+        assertNotNull(server.findInCatalog(MODULE_B_v1.codeNameBase()));
+
+        assertNoTempFiles();
+    }
+
+    @Test
+    public void testBadUploadsRejected() throws Throwable {
+        Response unauthenticated = upload(MODULE_A_v1.bytes(), null, true, false);
+        assertEquals(401, unauthenticated.status, unauthenticated.body);
+
+        Response wrongHash = upload(MODULE_A_v1.bytes(), sha1(MODULE_B_v1), false, true);
+        assertEquals(400, wrongHash.status, wrongHash.body);
+
+        Response notAnNbm = upload("This is not a zip file".getBytes(StandardCharsets.UTF_8), null, false, true);
+        assertEquals(400, notAnNbm.status, notAnNbm.body);
+
+        assertNull(server.findInCatalog(MODULE_A_v1.codeNameBase()));
+        assertNoTempFiles();
+    }
+
+    @Test
+    public void testUploadRefusedWhileDiskPoolSaturated() throws Throwable {
+        BlockingIO io = server.getServerObject(BlockingIO.class);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocker = () -> {
+            try {
+                release.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        try {
+            // Fill every thread and the whole queue
+            for (;;) {
+                try {
+                    io.execute(blocker);
+                } catch (RejectedExecutionException ex) {
+                    break;
+                }
+            }
+            Response refused = upload(MODULE_A_v1.bytes(), null, true, true);
+            assertEquals(503, refused.status, refused.body);
+        } finally {
+            release.countDown();
+        }
+        Response accepted = upload(MODULE_A_v1.bytes(), null, true, true);
+        assertEquals(201, accepted.status, accepted.body);
+        assertNoTempFiles();
+    }
+
+    private void assertNoTempFiles() throws IOException {
+        try (Stream<Path> files = Files.list(server.nbmsDir())) {
+            assertFalse(files.anyMatch(p -> p.getFileName().toString().startsWith(".upload-")),
+                    "Temporary upload files left behind");
+        }
+    }
+
+    private static String sha1(TestProjectNBMs nbm) throws Exception {
+        return UploadPipelineDecorator.hex(MessageDigest.getInstance("SHA-1").digest(nbm.bytes()));
+    }
+
+    private Response upload(byte[] body, String sha1, boolean chunked, boolean authenticate) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) server.serverUrl("upload",
+                sha1 == null ? null : "sha1=" + sha1).openConnection();
+        try {
+            conn.setRequestMethod("PUT");
+            conn.setDoOutput(true);
+            if (authenticate) {
+                conn.setRequestProperty("Authorization",
+                        new BasicCredentials(TEST_ADMIN_USER, TEST_PASSWORD).toString());
+            }
+            conn.setRequestProperty("Content-Type", "application/octet-stream");
+            if (chunked) {
+                conn.setChunkedStreamingMode(1024);
+            } else {
+                conn.setFixedLengthStreamingMode(body.length);
+            }
+            conn.setConnectTimeout(1500);
+            conn.setReadTimeout(10000);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(body);
+            } catch (IOException ex) {
+                // Rejected before the body was sent
+            }
+            int status = conn.getResponseCode();
+            InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+            String text = "";
+            if (in != null) {
+                try {
+                    text = Streams.readUTF8String(in);
+                } finally {
+                    in.close();
+                }
+            }
+            return new Response(status, text);
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static final class Response {
+
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        server = new NbmServerLauncher()
+                .setInitialNbms(MODULE_A_v1, MODULE_B_v1)
+                .onCreateSettings(s -> s.setInt(MAX_CONTENT_LENGTH, 1024))
+                .launch();
+    }
+
+    @AfterEach
+    public void tearDown() throws Throwable {
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.mastfrog.util.streams.Streams;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import com.timboudreau.metaupdatecenter.testutil.PollCycleWatcher;
+import com.timboudreau.metaupdatecenter.testutil.PollResult;
+import com.timboudreau.metaupdatecenter.testutil.SyntheticNbms;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_A_v1;
+import com.timboudreau.metaupdatecenter.testutil.UpstreamFaults;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.time.Duration;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the origin server really misbehaves as configured, and that
+ * polling recovers from it.
+ *
+ * @author Tim Boudreau
+ */
+public class UpstreamFaultsTest {
+
+    private LaunchedNbmServer server;
+    private UpstreamFaults faults;
+
+    @Test
+    public void testStatusFaults() throws Throwable {
+        String url = server.moduleSourceURL(MODULE_A_v1);
+        faults.fault(MODULE_A_v1.urlName()).serverErrors(2);
+        assertEquals(503, status(url));
+        assertEquals(503, status(url));
+        assertEquals(200, status(url));
+        assertEquals(3, faults.fault(MODULE_A_v1.urlName()).requests());
+
+        faults.clear().fault(UpstreamFaults.ALL).rateLimit(1, Duration.ofMinutes(1));
+        assertEquals(200, status(url));
+        HttpURLConnection conn = open(url);
+        try {
+            assertEquals(429, conn.getResponseCode());
+            assertNotNull(conn.getHeaderField("Retry-After"));
+        } finally {
+            conn.disconnect();
+        }
+
+        faults.clear();
+        conn = open(url);
+        try {
+            assertEquals(200, conn.getResponseCode());
+            assertNotNull(conn.getHeaderField("Last-Modified"));
+        } finally {
+            conn.disconnect();
+        }
+        faults.fault(MODULE_A_v1.urlName()).omitLastModified();
+        conn = open(url);
+        try {
+            assertEquals(200, conn.getResponseCode());
+            assertNull(conn.getHeaderField("Last-Modified"));
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    @Test
+    public void testSlowAndBrokenBodies() throws Throwable {
+        byte[] big = SyntheticNbms.generate("org.faults.big", "1.0", 100_000, new Random(1));
+        server.syntheticNbms().put("big.nbm", big);
+        String bigUrl = server.syntheticSourceURL("big.nbm");
+        String smallUrl = server.moduleSourceURL(MODULE_A_v1);
+
+        faults.fault("big.nbm").bandwidth(200_000);
+        long start = System.nanoTime();
+        assertArrayEquals(big, body(bigUrl));
+        assertTrue(elapsedMillis(start) >= 400, "Bandwidth cap not applied: " + elapsedMillis(start));
+
+        faults.clear().fault(MODULE_A_v1.urlName()).latency(Duration.ofMillis(300));
+        start = System.nanoTime();
+        assertArrayEquals(MODULE_A_v1.bytes(), body(smallUrl));
+        assertTrue(elapsedMillis(start) >= 300, "Latency not applied: " + elapsedMillis(start));
+
+        faults.clear().fault(MODULE_A_v1.urlName()).drip(500, Duration.ofMillis(20));
+        start = System.nanoTime();
+        assertArrayEquals(MODULE_A_v1.bytes(), body(smallUrl));
+        assertTrue(elapsedMillis(start) >= 100, "Drip not applied: " + elapsedMillis(start));
+
+        faults.clear().fault("big.nbm").resetAfter(10_000);
+        assertThrows(IOException.class, () -> body(bigUrl));
+        faults.clear().fault("big.nbm").resetAfter(0);
+        assertThrows(IOException.class, () -> body(bigUrl));
+        faults.clear();
+        assertArrayEquals(big, body(bigUrl));
+    }
+
+    @Test
+    public void testPollingRecovers() throws Throwable {
+        server.addModuleAndEnsurePresent(MODULE_A_v1);
+        String cnb = MODULE_A_v1.codeNameBase();
+
+        faults.fault(MODULE_A_v1.urlName()).serverErrors(1);
+        PollResult res = poll(cnb);
+        assertFalse(res.isSuccess(), "Poll should have failed: " + res);
+        assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, res.status());
+
+        faults.clear().fault(MODULE_A_v1.urlName())
+                .latency(Duration.ofMillis(200))
+                .drip(256, Duration.ofMillis(5))
+                .omitLastModified();
+        res = poll(cnb);
+        assertTrue(res.isSuccess() || res.isNotModified(), "Slow poll failed: " + res);
+        assertNotNull(server.findInCatalog(cnb));
+    }
+
+    private PollResult poll(String cnb) throws Throwable {
+        server.clearPollResults();
+        PollCycleWatcher watcher = server.newPollCycleWatcher();
+        server.forcePoll();
+        PollResult result = server.awaitPollOf(cnb);
+        watcher.awaitCycleComplete(5000);
+        return result;
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    private static HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(2000);
+        conn.setReadTimeout(10000);
+        return conn;
+    }
+
+    private static int status(String url) throws IOException {
+        HttpURLConnection conn = open(url);
+        try {
+            return conn.getResponseCode();
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static byte[] body(String url) throws IOException {
+        HttpURLConnection conn = open(url);
+        try (InputStream in = conn.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Streams.copy(in, out, 512);
+            return out.toByteArray();
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        server = new NbmServerLauncher()
+                .setInitialNbms(MODULE_A_v1)
+                .launch();
+        faults = server.upstreamFaults();
+    }
+
+    @AfterEach
+    public void tearDown() throws Throwable {
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.timboudreau.metaupdatecenter;
+
+import com.mastfrog.util.file.FileUtils;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_FILE_NOTIFICATION_PROCESS_DELAY_SECONDS;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_WATCH_DIR;
+import com.timboudreau.metaupdatecenter.testutil.LaunchedNbmServer;
+import com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher;
+import com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_A_v1;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_A_v2;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_B_v1;
+import static com.timboudreau.metaupdatecenter.testutil.TestProjectNBMs.MODULE_B_v2;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Tim Boudreau
+ */
+public class WatchDirTest {
+
+    private Path watchDir;
+    private LaunchedNbmServer server;
+
+    @Test
+    public void testWatchDirIngest() throws Throwable {
+        ModuleSet set = server.getServerObject(ModuleSet.class);
+        WatchState state = server.getServerObject(WatchDir.class).state();
+        awaitState(state, "a.nbm");
+        awaitState(state, "b.nbm");
+        assertTrue(awaitState(state, "broken.nbm").failed);
+        Map<String, Object> a = server.findInCatalog(MODULE_A_v1.codeNameBase());
+        Map<String, Object> b = server.findInCatalog(MODULE_B_v1.codeNameBase());
+        assertNotNull(a, "Module A not published");
+        assertNotNull(b, "Module B not published");
+        server.assertBytes(MODULE_A_v1, "download/" + MODULE_A_v1.codeNameBase() + "/" + a.get("hash") + ".nbm");
+        assertFalse(state.get(watchDir.resolve("a.nbm")).failed);
+        assertEquals(a.get("hash"), state.get(watchDir.resolve("a.nbm")).hash);
+        CatalogChanges lastGeneration = set.changesSince(set.generation() - 1);
+        assertFalse(lastGeneration.isFull());
+        assertEquals(2, lastGeneration.getModules().size(),
+                "Both modules should be published as one batch: " + lastGeneration);
+
+        Map<String, Integer> depths = server.getServerObject(WatchDir.class).queueDepths();
+        assertEquals(4, depths.size(), depths.toString());
+        for (Map.Entry<String, Integer> e : depths.entrySet()) {
+            assertEquals(0, e.getValue().intValue(), "Stage " + e.getKey() + " not drained: " + depths);
+        }
+
+        // The sidecar written by older versions is imported rather than
+        // the file being ingested again
+        assertFalse(Files.exists(watchDir.resolve("legacy.nbm.processed")), "Sidecar not removed");
+        WatchState.Entry legacy = state.get(watchDir.resolve("legacy.nbm"));
+        assertNotNull(legacy, "Legacy sidecar not imported");
+        assertFalse(legacy.failed);
+        assertTrue(Files.exists(state.file()));
+
+        // Directories created after startup are watched too
+        Path nested = Files.createDirectories(watchDir.resolve("sub").resolve("deeper"));
+        copy(MODULE_A_v2, "sub/deeper/a2.nbm");
+        // With no delay, the file may be seen and fail half-written; the
+        // events from the rest of the write cause it to be retried
+        WatchState.Entry a2 = awaitState(state, "sub/deeper/a2.nbm", true);
+        assertNotNull(a2.hash);
+        assertEquals(a2.hash, server.findInCatalog(MODULE_A_v2.codeNameBase()).get("hash"),
+                "Module from nested directory not published");
+        assertTrue(Files.isDirectory(nested));
+    }
+
+    @Test
+    public void testCompactKeepsFilesRecordedDuringTheScan() throws Throwable {
+        Path dir = FileUtils.newTempDir("watch-state-");
+        try {
+            Path scanned = Files.write(dir.resolve("scanned.nbm"), new byte[1]);
+            Path late = Files.write(dir.resolve("late.nbm"), new byte[2]);
+            Path gone = dir.resolve("gone.nbm");
+            WatchState st = new WatchState(dir);
+            st.processed(scanned, 1, 1, "a");
+            st.processed(gone, 3, 3, "c");
+            // Arrived after the walk passed it, so not in the scanned set
+            st.processed(late, 2, 2, "b");
+            st.compact(Collections.singleton(scanned));
+            st.close();
+
+            WatchState reopened = new WatchState(dir);
+            assertNotNull(reopened.get(scanned));
+            assertNotNull(reopened.get(late), "Entry recorded during the scan was dropped");
+            assertNull(reopened.get(gone));
+        } finally {
+            FileUtils.deltree(dir);
+        }
+    }
+
+    private WatchState.Entry awaitState(WatchState state, String relativePath) throws InterruptedException {
+        return awaitState(state, relativePath, false);
+    }
+
+    private WatchState.Entry awaitState(WatchState state, String relativePath, boolean success) throws InterruptedException {
+        Path path = watchDir.resolve(relativePath);
+        long start = System.currentTimeMillis();
+        WatchState.Entry result;
+        while ((result = state.get(path)) == null || (success && result.failed)) {
+            assertTrue(System.currentTimeMillis() - start < 20000, relativePath + " not processed in 20 seconds");
+            Thread.sleep(50);
+        }
+        return result;
+    }
+
+    private void copy(TestProjectNBMs nbm, String name) throws Exception {
+        Files.write(watchDir.resolve(name), nbm.bytes());
+    }
+
+    @BeforeEach
+    public void setup() throws Exception {
+        watchDir = FileUtils.newTempDir("watch-dir-");
+        copy(MODULE_A_v1, "a.nbm");
+        copy(MODULE_B_v1, "b.nbm");
+        Files.write(watchDir.resolve("broken.nbm"), "Not a zip file".getBytes(StandardCharsets.UTF_8));
+        copy(MODULE_B_v2, "legacy.nbm");
+        Files.createFile(watchDir.resolve("legacy.nbm.processed"));
+        server = new NbmServerLauncher()
+                .onCreateSettings(s -> {
+                    s.setString(SETTINGS_KEY_WATCH_DIR, watchDir.toString());
+                    s.setInt(SETTINGS_KEY_FILE_NOTIFICATION_PROCESS_DELAY_SECONDS, 0);
+                })
+                .launch();
+    }
+
+    @AfterEach
+    public void tearDown() throws Throwable {
+        try {
+            if (server != null) {
+                server.shutdown();
+            }
+        } finally {
+            FileUtils.deltree(watchDir);
+        }
+    }
+}
@@ -12,6 +12,7 @@ import com.mastfrog.acteur.ImplicitBindings;
 import com.mastfrog.acteur.Page;
 import com.mastfrog.acteur.bunyan.ActeurBunyanModule;
 import com.mastfrog.acteur.headers.Headers;
+import com.mastfrog.acteur.server.PipelineDecorator;
 import com.mastfrog.acteur.server.ServerModule;
 import static com.mastfrog.acteur.server.ServerModule.HTTP_COMPRESSION;
 import static com.mastfrog.acteur.server.ServerModule.PORT;
@@ -28,17 +29,23 @@ import com.mastfrog.util.net.PortFinder;
 import com.mastfrog.util.thread.OneThreadLatch;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
 import static io.netty.util.CharsetUtil.UTF_8;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.util.EnumSet;
 import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
@@ -46,7 +53,8 @@ import static org.junit.jupiter.api.Assertions.assertSame;
 /**
  * A server which serves the NBM files from the adjacent test projects, so the
  * instance of meta update server we are testing can download them from
- * somewhere.
+ * somewhere - optionally misbehaving in the ways configured in
+ * {@link UpstreamFaults}.
  *
  * @author Tim Boudreau
  */
@@ -57,6 +65,7 @@ final class DummyNbmsServer extends Application {
     DummyNbmsServer(EnumSet<TestProjectNBMs> nbmsServed) {
         this.nbmsServed = nbmsServed;
         add(DownloadPage.class);
+        add(SyntheticDownloadPage.class);
     }
 
     // Intentionally don't use annotations so we don't gum up
@@ -78,6 +87,9 @@ final class DummyNbmsServer extends Application {
                 .add(binder -> {
                     binder.bind(new TypeLiteral<EnumSet<TestProjectNBMs>>() {
                     }).toInstance(nbmsServed);
+                    binder.bind(SyntheticNbms.class).toInstance(new SyntheticNbms());
+                    binder.bind(UpstreamFaults.class).toInstance(new UpstreamFaults());
+                    binder.bind(PipelineDecorator.class).to(KeepAliveTimeout.class);
                     binder.install(new ServerModule<>(DummyNbmsServer.class));
                 }).build();
         Server server = deps.getInstance(Server.class);
@@ -130,6 +142,8 @@ final class DummyNbmsServer extends Application {
         DownloadPage(ActeurFactory f) {
             add(f.globPathMatch("nbms/*.nbm"));
             add(CheckExistsActeur.class);
+            add(LatencyActeur.class);
+            add(FaultActeur.class);
             add(DlHeadersActeur.class);
             add(com.mastfrog.acteur.CheckIfModifiedSinceHeader.class);
             add(com.mastfrog.acteur.CheckIfNoneMatchHeader.class);
@@ -137,6 +151,110 @@ final class DummyNbmsServer extends Application {
         }
     }
 
+    static final class SyntheticDownloadPage extends Page {
+
+        @Inject
+        SyntheticDownloadPage(ActeurFactory f) {
+            add(f.globPathMatch("synthetic/*.nbm"));
+            add(LatencyActeur.class);
+            add(FaultActeur.class);
+            add(SyntheticDownloadActeur.class);
+        }
+    }
+
+    /**
+     * Delays the response if the fault for the requested file says to.
+     */
+    static final class LatencyActeur extends Acteur {
+
+        @Inject
+        LatencyActeur(UpstreamFaults faults, Path path, HttpEvent evt) {
+            long latency = faults.forName(path.lastElement().toString()).latencyMillis();
+            if (latency <= 0) {
+                next();
+                return;
+            }
+            CompletableFuture<Void> delay = new CompletableFuture<>();
+            evt.channel().eventLoop().schedule(() -> delay.complete(null), latency, TimeUnit.MILLISECONDS);
+            continueAfter(delay);
+        }
+    }
+
+    /**
+     * Resets the connection, fails or rate-limits the request if the fault
+     * for the requested file says to.
+     */
+    static final class FaultActeur extends Acteur {
+
+        @Inject
+        FaultActeur(UpstreamFaults faults, Path path, HttpEvent evt) {
+            UpstreamFaults.Fault fault = faults.forName(path.lastElement().toString());
+            switch (fault.onRequest()) {
+                case RESET:
+                    UpstreamFaults.reset(evt.channel());
+                    reply(HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                    break;
+                case ERROR:
+                    reply(fault.errorStatus(), "Injected failure\n");
+                    break;
+                case RATE_LIMITED:
+                    add(Headers.RETRY_AFTER, Duration.ofSeconds(fault.retryAfterSeconds()));
+                    reply(HttpResponseStatus.TOO_MANY_REQUESTS, "Slow down\n");
+                    break;
+                default:
+                    next();
+            }
+        }
+    }
+
+    /**
+     * Sends an NBM's bytes, slowly or partially if the fault for it says to.
+     */
+    abstract static class NbmBodyActeur extends Acteur {
+
+        void sendBody(byte[] bytes, UpstreamFaults.Fault fault, ByteBufAllocator alloc) {
+            if (fault.shapesBody()) {
+                setChunked(true);
+                ok();
+                setResponseBodyWriter(fault.bodyWriter(bytes));
+            } else {
+                add(Headers.CONTENT_LENGTH, (long) bytes.length);
+                ByteBuf buf = alloc.ioBuffer(bytes.length);
+                buf.writeBytes(bytes);
+                buf.touch("dummy-download-nbm");
+                ok(buf);
+            }
+        }
+    }
+
+    static final class SyntheticDownloadActeur extends NbmBodyActeur {
+
+        private static final ZonedDateTime SYNTHETIC_LAST_MODIFIED
+                = ZonedDateTime.parse("2020-01-01T00:00:00Z");
+
+        @Inject
+        SyntheticDownloadActeur(SyntheticNbms synthetic, UpstreamFaults faults, Path path, HttpEvent evt, ByteBufAllocator alloc) {
+            String file = path.lastElement().toString();
+            UpstreamFaults.Fault fault = faults.forName(file);
+            byte[] bytes = synthetic.get(file);
+            if (bytes == null) {
+                notFound();
+                return;
+            }
+            add(Headers.ETAG, '"' + file + '"');
+            if (!fault.isOmitLastModified()) {
+                add(Headers.LAST_MODIFIED, SYNTHETIC_LAST_MODIFIED);
+            }
+            add(Headers.CONTENT_TYPE, MimeType.OCTET_STREAM);
+            if (evt.method().is(HttpMethod.HEAD)) {
+                add(Headers.CONTENT_LENGTH, (long) bytes.length);
+                ok();
+            } else {
+                sendBody(bytes, fault, alloc);
+            }
+        }
+    }
+
     static final class CheckExistsActeur extends Acteur {
 
         @Inject
@@ -168,9 +286,11 @@ final class DummyNbmsServer extends Application {
     static final class DlHeadersActeur extends Acteur {
 
         @Inject
-        DlHeadersActeur(TestProjectNBMs target, HttpEvent evt) {
+        DlHeadersActeur(TestProjectNBMs target, HttpEvent evt, UpstreamFaults faults) {
             add(Headers.ETAG, target.name());
-            add(Headers.LAST_MODIFIED, target.lastModified());
+            if (!faults.forName(target.urlName()).isOmitLastModified()) {
+                add(Headers.LAST_MODIFIED, target.lastModified());
+            }
             add(Headers.CONTENT_TYPE, MimeType.OCTET_STREAM);
             add(Headers.stringHeader("x-module-rev"), "" + target.rev());
             add(Headers.stringHeader("x-module-id"), "" + target.name());
@@ -195,20 +315,15 @@ final class DummyNbmsServer extends Application {
         assertSame(found, expected);
     }
 
-    static class DownloadActeur extends Acteur {
+    static class DownloadActeur extends NbmBodyActeur {
 
         @Inject
-        DownloadActeur(TestProjectNBMs target, HttpEvent evt, ByteBufAllocator alloc) throws IOException, URISyntaxException {
+        DownloadActeur(TestProjectNBMs target, HttpEvent evt, ByteBufAllocator alloc, UpstreamFaults faults) throws IOException, URISyntaxException {
             if (evt.method().is(HttpMethod.HEAD)) {
                 ok();
                 add(Headers.stringHeader("x-content-length"), "" + target.length());
             } else {
-                add(Headers.CONTENT_LENGTH, target.length());
-                byte[] bytes = target.bytes();
-                ByteBuf buf = alloc.ioBuffer(bytes.length);
-                buf.writeBytes(bytes);
-                buf.touch("dummy-download-nbm");
-                ok(buf);
+                sendBody(target.bytes(), faults.forName(target.urlName()), alloc);
             }
             evt.channel().closeFuture().addListener(f -> {
                 if (f.cause() == null) {
@@ -220,4 +335,30 @@ final class DummyNbmsServer extends Application {
             });
         }
     }
+
+    /**
+     * Closes connections which have been quiet for a few seconds, as real
+     * web servers do; the HttpClient the server polls with never closes a
+     * connection itself, so without this every poll would leave one open
+     * for the life of the test.
+     */
+    static final class KeepAliveTimeout implements PipelineDecorator {
+
+        private static final int KEEP_ALIVE_SECONDS = 5;
+
+        @Override
+        public void onCreatePipeline(ChannelPipeline pipeline) {
+            // do nothing
+        }
+
+        @Override
+        public void onPipelineInitialized(ChannelPipeline pipeline) {
+            pipeline.addFirst("keepAlive", new IdleStateHandler(0, 0, KEEP_ALIVE_SECONDS) {
+                @Override
+                protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent evt) {
+                    ctx.close();
+                }
+            });
+        }
+    }
 }
@@ -55,8 +55,10 @@ public final class LaunchedNbmServer {
     private final PollInterceptor interceptor;
     private final ThrowingRunnable onShutdown;
     private final EnumSet<TestProjectNBMs> nbmsServedByOriginServer;
+    private final SyntheticNbms synthetic;
+    private final UpstreamFaults faults;
 
-    LaunchedNbmServer(String basePath, int port, int serverPort, Path nbmsDir, LaunchInfo info, PollInterceptor interceptor, ThrowingRunnable onShutdown, EnumSet<TestProjectNBMs> nbmsServedByOriginServer) {
+    LaunchedNbmServer(String basePath, int port, int serverPort, Path nbmsDir, LaunchInfo info, PollInterceptor interceptor, ThrowingRunnable onShutdown, EnumSet<TestProjectNBMs> nbmsServedByOriginServer, SyntheticNbms synthetic, UpstreamFaults faults) {
         utils = new TestUtils(basePath);
         this.port = port;
         this.serverPort = serverPort;
@@ -65,6 +67,8 @@ public final class LaunchedNbmServer {
         this.interceptor = interceptor;
         this.onShutdown = onShutdown;
         this.nbmsServedByOriginServer = nbmsServedByOriginServer;
+        this.synthetic = synthetic;
+        this.faults = faults;
     }
 
     public int port() {
@@ -171,6 +175,25 @@ public final class LaunchedNbmServer {
         return utils.moduleSourceURL(serverPort, nbm);
     }
 
+    /**
+     * Generated NBMs the origin server will serve, in addition to the test
+     * projects'.
+     */
+    public SyntheticNbms syntheticNbms() {
+        return synthetic;
+    }
+
+    /**
+     * Misbehavior the origin server should inject.
+     */
+    public UpstreamFaults upstreamFaults() {
+        return faults;
+    }
+
+    public String syntheticSourceURL(String name) {
+        return "http://localhost:" + serverPort + "/synthetic/" + name;
+    }
+
     public Map<String, Object> addModuleAndEnsurePresent(TestProjectNBMs nbm) throws Throwable {
         return utils.addModuleAndEnsurePresent(port, serverPort, nbm);
     }
@@ -0,0 +1,530 @@
+package com.timboudreau.metaupdatecenter.testutil;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mastfrog.acteur.header.entities.BasicCredentials;
+import com.mastfrog.settings.MutableSettings;
+import com.mastfrog.util.collections.StringObjectMap;
+import com.mastfrog.util.streams.Streams;
+import static com.mastfrog.giulius.bunyan.java.v2.LoggingModule.SETTINGS_KEY_LOG_LEVEL;
+import static com.mastfrog.giulius.bunyan.java.v2.LoggingModule.SETTINGS_KEY_LOG_TO_CONSOLE;
+import static com.timboudreau.metaupdatecenter.UpdateCenterServer.SETTINGS_KEY_HTTP_LOG_ENABLED;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_ADMIN_USER;
+import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_PASSWORD;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.internal.PlatformDependent;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * End-to-end load test: generates a population of synthetic NBMs, registers
+ * them with a launched server through its bulk-add API, then runs a number of
+ * simulated NetBeans clients against it for a fixed time. Each client, in a
+ * closed loop, polls the catalog conditionally (sending back the ETag it last
+ * saw, as the IDE does), downloads a random NBM or loads the home page.
+ * <p>
+ * The result - throughput, latency percentiles per operation, bytes
+ * allocated by the JVM while running, and the high-water marks of direct
+ * memory - is returned as a map and optionally written as JSON. Everything,
+ * including the upstream server the NBMs are fetched from, runs on localhost
+ * in this JVM, so allocation is reported both in total and excluding the
+ * client threads.
+ *
+ * @author Tim Boudreau
+ */
+public final class LoadTestHarness {
+
+    public enum Operation {
+        CATALOG(60),
+        DOWNLOAD(30),
+        HOME_PAGE(10);
+        private final int weight;
+
+        Operation(int weight) {
+            this.weight = weight;
+        }
+
+        static Operation pick(Random rnd) {
+            int val = rnd.nextInt(100);
+            for (Operation op : values()) {
+                if (val < op.weight) {
+                    return op;
+                }
+                val -= op.weight;
+            }
+            return CATALOG;
+        }
+
+        String key() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    private static final int TIMEOUT_MS = 30000;
+    private static final long SAMPLE_INTERVAL_MILLIS = 20;
+    private int modules = 25;
+    private int clients = 8;
+    private Duration duration = Duration.ofSeconds(5);
+    private long seed = 1;
+    private Path resultFile;
+
+    public LoadTestHarness modules(int modules) {
+        this.modules = modules;
+        return this;
+    }
+
+    public LoadTestHarness clients(int clients) {
+        this.clients = clients;
+        return this;
+    }
+
+    public LoadTestHarness duration(Duration duration) {
+        this.duration = duration;
+        return this;
+    }
+
+    public LoadTestHarness seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public LoadTestHarness resultFile(Path resultFile) {
+        this.resultFile = resultFile;
+        return this;
+    }
+
+    /**
+     * Settings for the launched server so that logging does not dominate the
+     * measurements; pass to NbmServerLauncher.onCreateSettings().
+     */
+    public static void configure(MutableSettings settings) {
+        settings.setString(SETTINGS_KEY_LOG_LEVEL, "warn");
+        settings.setString(SETTINGS_KEY_LOG_TO_CONSOLE, "false");
+        settings.setString(SETTINGS_KEY_HTTP_LOG_ENABLED, "false");
+    }
+
+    public Map<String, Object> run(LaunchedNbmServer server) throws Throwable {
+        List<String> names = server.syntheticNbms().populate(modules, seed);
+        register(server, names);
+        List<String> downloads = new ArrayList<>(names.size());
+        for (Map<String, Object> m : server.getCatalog()) {
+            downloads.add("download/" + m.get("codeNameBase") + "/" + m.get("hash") + ".nbm");
+        }
+        // The launcher turns on paranoid leak detection, which records a
+        // stack trace for every buffer and would swamp what we measure
+        ResourceLeakDetector.Level oldLevel = ResourceLeakDetector.getLevel();
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.DISABLED);
+        ExecutorService threads = Executors.newFixedThreadPool(clients);
+        ScheduledExecutorService sampling = Executors.newSingleThreadScheduledExecutor();
+        try {
+            Sampler sampler = new Sampler();
+            sampling.scheduleAtFixedRate(sampler, 0, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            long start = System.nanoTime();
+            long deadline = start + duration.toNanos();
+            List<Future<Client>> futures = new ArrayList<>(clients);
+            for (int i = 0; i < clients; i++) {
+                Client client = new Client(server, downloads, new Random(seed + i), sampler);
+                futures.add(threads.submit(() -> client.run(deadline)));
+            }
+            List<Client> done = new ArrayList<>(clients);
+            for (Future<Client> f : futures) {
+                done.add(f.get());
+            }
+            long elapsed = System.nanoTime() - start;
+            sampling.shutdown();
+            sampling.awaitTermination(1, TimeUnit.SECONDS);
+            sampler.run();
+            Map<String, Object> result = result(server, done, sampler, elapsed);
+            if (resultFile != null) {
+                if (resultFile.getParent() != null) {
+                    Files.createDirectories(resultFile.getParent());
+                }
+                Files.write(resultFile, new ObjectMapper().writerWithDefaultPrettyPrinter()
+                        .writeValueAsBytes(result));
+            }
+            return result;
+        } finally {
+            threads.shutdownNow();
+            sampling.shutdownNow();
+            ResourceLeakDetector.setLevel(oldLevel);
+        }
+    }
+
+    /**
+     * Register synthetic NBMs with the server through its bulk-add API,
+     * failing if any of them is not published.
+     */
+    static void register(LaunchedNbmServer server, List<String> names) throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (String name : names) {
+            body.append(server.syntheticSourceURL(name)).append('\n');
+        }
+        HttpURLConnection conn = (HttpURLConnection) server.serverUrl("add/bulk").openConnection();
+        try {
+            conn.setRequestMethod("PUT");
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Authorization",
+                    new BasicCredentials(TEST_ADMIN_USER, TEST_PASSWORD).toString());
+            conn.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+            conn.setConnectTimeout(TIMEOUT_MS);
+            conn.setReadTimeout(TIMEOUT_MS * 4);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(body.toString().getBytes(UTF_8));
+            }
+            String response;
+            try (InputStream in = conn.getInputStream()) {
+                response = Streams.readUTF8String(in);
+            }
+            String[] lines = response.trim().split("\n");
+            Map<String, Object> summary = new ObjectMapper().readValue(lines[lines.length - 1],
+                    StringObjectMap.class);
+            List<?> published = (List<?>) summary.get("published");
+            if (published == null || published.size() != names.size()) {
+                throw new IOException("Registered " + (published == null ? 0 : published.size())
+                        + " of " + names.size() + " synthetic modules: " + response);
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private Map<String, Object> result(LaunchedNbmServer server, List<Client> done, Sampler sampler, long elapsedNanos) {
+        double seconds = elapsedNanos / 1_000_000_000D;
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("modules", modules);
+        config.put("clients", clients);
+        config.put("durationMillis", duration.toMillis());
+        config.put("seed", seed);
+
+        List<Integer> sizes = server.syntheticNbms().sizes();
+        long totalSize = 0;
+        for (int size : sizes) {
+            totalSize += size;
+        }
+        Map<String, Object> population = new LinkedHashMap<>();
+        population.put("count", sizes.size());
+        population.put("totalBytes", totalSize);
+        population.put("minBytes", sizes.isEmpty() ? 0 : sizes.get(0));
+        population.put("medianBytes", sizes.isEmpty() ? 0 : sizes.get(sizes.size() / 2));
+        population.put("maxBytes", sizes.isEmpty() ? 0 : sizes.get(sizes.size() - 1));
+
+        long requests = 0;
+        long errors = 0;
+        Map<String, Object> operations = new LinkedHashMap<>();
+        for (Operation op : Operation.values()) {
+            long count = 0;
+            long opErrors = 0;
+            long notModified = 0;
+            long bytes = 0;
+            List<long[]> latencies = new ArrayList<>(done.size());
+            for (Client c : done) {
+                Client.Counts counts = c.counts.get(op);
+                count += counts.count;
+                opErrors += counts.errors;
+                notModified += counts.notModified;
+                bytes += counts.bytes;
+                latencies.add(counts.latencies());
+            }
+            requests += count;
+            errors += opErrors;
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("requests", count);
+            m.put("errors", opErrors);
+            if (op == Operation.CATALOG) {
+                m.put("notModified", notModified);
+            }
+            m.put("bytes", bytes);
+            m.put("requestsPerSecond", count / seconds);
+            m.put("latencyMicros", percentiles(latencies));
+            operations.put(op.key(), m);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("config", config);
+        result.put("population", population);
+        result.put("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        result.put("requests", requests);
+        result.put("errors", errors);
+        result.put("requestsPerSecond", requests / seconds);
+        result.put("operations", operations);
+        result.put("allocation", sampler.allocation(seconds));
+        result.put("directMemory", sampler.directMemory());
+        result.put("gc", sampler.gc());
+        return result;
+    }
+
+    static Map<String, Object> percentiles(List<long[]> all) {
+        int total = 0;
+        for (long[] l : all) {
+            total += l.length;
+        }
+        long[] merged = new long[total];
+        int pos = 0;
+        for (long[] l : all) {
+            System.arraycopy(l, 0, merged, pos, l.length);
+            pos += l.length;
+        }
+        Arrays.sort(merged);
+        Map<String, Object> result = new LinkedHashMap<>();
+        if (merged.length == 0) {
+            return result;
+        }
+        long sum = 0;
+        for (long l : merged) {
+            sum += l;
+        }
+        result.put("mean", TimeUnit.NANOSECONDS.toMicros(sum / merged.length));
+        result.put("p50", percentile(merged, 0.5));
+        result.put("p90", percentile(merged, 0.9));
+        result.put("p99", percentile(merged, 0.99));
+        result.put("p999", percentile(merged, 0.999));
+        result.put("max", TimeUnit.NANOSECONDS.toMicros(merged[merged.length - 1]));
+        return result;
+    }
+
+    private static long percentile(long[] sorted, double pct) {
+        int ix = (int) Math.ceil(pct * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, Math.min(sorted.length - 1, ix))]);
+    }
+
+    /**
+     * One simulated IDE; run by a single thread, so its counters need no
+     * synchronization.
+     */
+    private static final class Client {
+
+        private final LaunchedNbmServer server;
+        private final List<String> downloads;
+        private final Random rnd;
+        private final Sampler sampler;
+        private final Map<Operation, Counts> counts = new EnumMap<>(Operation.class);
+        private final byte[] buffer = new byte[16384];
+        private String catalogEtag;
+
+        Client(LaunchedNbmServer server, List<String> downloads, Random rnd, Sampler sampler) {
+            this.server = server;
+            this.downloads = downloads;
+            this.rnd = rnd;
+            this.sampler = sampler;
+            for (Operation op : Operation.values()) {
+                counts.put(op, new Counts());
+            }
+        }
+
+        Client run(long deadline) {
+            sampler.clientThreads.add(Thread.currentThread().getId());
+            while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+                Operation op = Operation.pick(rnd);
+                Counts c = counts.get(op);
+                long start = System.nanoTime();
+                try {
+                    switch (op) {
+                        case CATALOG:
+                            request(c, "modules", true);
+                            break;
+                        case DOWNLOAD:
+                            request(c, downloads.get(rnd.nextInt(downloads.size())), false);
+                            break;
+                        default:
+                            request(c, "", false);
+                    }
+                } catch (IOException ex) {
+                    c.errors++;
+                }
+                c.record(System.nanoTime() - start);
+            }
+            return this;
+        }
+
+        private void request(Counts c, String path, boolean conditional) throws IOException {
+            URL url = server.serverUrl(path);
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setConnectTimeout(TIMEOUT_MS);
+            conn.setReadTimeout(TIMEOUT_MS);
+            conn.setRequestProperty("Accept-Encoding", "gzip");
+            conn.setRequestProperty("User-Agent", "NetBeans/LoadTest");
+            if (conditional && catalogEtag != null) {
+                conn.setRequestProperty("If-None-Match", catalogEtag);
+            }
+            int status = conn.getResponseCode();
+            if (status >= 400) {
+                c.errors++;
+                drain(conn.getErrorStream());
+                return;
+            }
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                c.notModified++;
+            } else if (conditional) {
+                catalogEtag = conn.getHeaderField("ETag");
+            }
+            c.bytes += drain(conn.getInputStream());
+        }
+
+        private long drain(InputStream in) throws IOException {
+            if (in == null) {
+                return 0;
+            }
+            long result = 0;
+            try (InputStream stream = in) {
+                for (int read; (read = stream.read(buffer)) > 0;) {
+                    result += read;
+                }
+            }
+            return result;
+        }
+
+        static final class Counts {
+
+            long count;
+            long errors;
+            long notModified;
+            long bytes;
+            private long[] latencies = new long[1024];
+
+            void record(long nanos) {
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, latencies.length * 2);
+                }
+                latencies[(int) count++] = nanos;
+            }
+
+            long[] latencies() {
+                return Arrays.copyOf(latencies, (int) count);
+            }
+        }
+    }
+
+    /**
+     * Periodically samples direct memory use and per-thread allocation, so
+     * short-lived peaks and threads that exit during the run are seen.
+     */
+    private static final class Sampler implements Runnable {
+
+        private final Set<Long> clientThreads = ConcurrentHashMap.newKeySet();
+        private final Map<Long, Long> firstAllocated = new HashMap<>();
+        private final Map<Long, Long> lastAllocated = new HashMap<>();
+        private final BufferPoolMXBean directPool;
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final long directBaseline;
+        private final long nettyDirectBaseline;
+        private final long gcCountBaseline;
+        private final long gcMillisBaseline;
+        private long directHighWater;
+        private long nettyDirectHighWater;
+        private long pooledDirectHighWater;
+        private boolean baselineTaken;
+
+        Sampler() {
+            BufferPoolMXBean direct = null;
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if ("direct".equals(pool.getName())) {
+                    direct = pool;
+                }
+            }
+            directPool = direct;
+            directBaseline = directHighWater = directUsed();
+            nettyDirectBaseline = nettyDirectHighWater = PlatformDependent.usedDirectMemory();
+            long[] gc = gcTotals();
+            gcCountBaseline = gc[0];
+            gcMillisBaseline = gc[1];
+        }
+
+        private long directUsed() {
+            return directPool == null ? -1 : directPool.getMemoryUsed();
+        }
+
+        private static long[] gcTotals() {
+            long[] result = new long[2];
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                result[0] += Math.max(0, gc.getCollectionCount());
+                result[1] += Math.max(0, gc.getCollectionTime());
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized void run() {
+            directHighWater = Math.max(directHighWater, directUsed());
+            nettyDirectHighWater = Math.max(nettyDirectHighWater, PlatformDependent.usedDirectMemory());
+            pooledDirectHighWater = Math.max(pooledDirectHighWater,
+                    PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory());
+            if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+                return;
+            }
+            long[] ids = threads.getAllThreadIds();
+            long[] allocated = ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (allocated[i] < 0) {
+                    continue;
+                }
+                // Threads which already exist at the first sample count from
+                // there; threads started later count from zero
+                firstAllocated.putIfAbsent(ids[i], baselineTaken ? 0 : allocated[i]);
+                lastAllocated.put(ids[i], allocated[i]);
+            }
+            baselineTaken = true;
+        }
+
+        synchronized Map<String, Object> allocation(double seconds) {
+            long total = 0;
+            long server = 0;
+            for (Map.Entry<Long, Long> e : lastAllocated.entrySet()) {
+                long bytes = e.getValue() - firstAllocated.get(e.getKey());
+                total += bytes;
+                if (!clientThreads.contains(e.getKey())) {
+                    server += bytes;
+                }
+            }
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("bytes", total);
+            result.put("bytesPerSecond", total / seconds);
+            result.put("serverBytes", server);
+            result.put("serverBytesPerSecond", server / seconds);
+            return result;
+        }
+
+        synchronized Map<String, Object> directMemory() {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("jvmBaselineBytes", directBaseline);
+            result.put("jvmHighWaterBytes", directHighWater);
+            result.put("nettyBaselineBytes", nettyDirectBaseline);
+            // -1 unless netty is tracking its own direct allocations
+            result.put("nettyHighWaterBytes", nettyDirectHighWater);
+            result.put("pooledAllocatorHighWaterBytes", pooledDirectHighWater);
+            return result;
+        }
+
+        Map<String, Object> gc() {
+            long[] gc = gcTotals();
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("collections", gc[0] - gcCountBaseline);
+            result.put("millis", gc[1] - gcMillisBaseline);
+            return result;
+        }
+    }
+}
@@ -26,6 +26,7 @@ package com.timboudreau.metaupdatecenter.testutil;
 import com.google.inject.Binder;
 import com.google.inject.Scopes;
 import com.google.inject.TypeLiteral;
+import com.google.inject.util.Modules;
 import com.mastfrog.acteur.auth.AuthenticateBasicActeur;
 import com.mastfrog.acteur.debug.Probe;
 import static com.mastfrog.acteur.server.ServerModule.HTTP_COMPRESSION;
@@ -77,6 +78,8 @@ public final class NbmServerLauncher {
     private final String basePath;
     private final ThrowingRunnable onShutdown = ThrowingRunnable.oneShot(true);
     private EnumSet<TestProjectNBMs> nbmSet;
+    private SyntheticNbms synthetic;
+    private UpstreamFaults faults;
     private LaunchInfo info;
     private PollInterceptor interceptor = new PollInterceptor();
     private boolean instrumentEventLoop;
@@ -135,6 +138,8 @@ public final class NbmServerLauncher {
             onShutdown.andAlways(deps::shutdown);
             server.start();
             this.nbmSet = nbmSet;
+            this.synthetic = deps.getInstance(SyntheticNbms.class);
+            this.faults = deps.getInstance(UpstreamFaults.class);
         });
 
         MutableSettings settings = new SettingsBuilder(SETTINGS_NAMESPACE)
@@ -149,7 +154,7 @@ public final class NbmServerLauncher {
                 .add("productionMode", "true")
                 .add(SETTINGS_KEY_ASYNC_LOGGING, "false")
                 .add(HTTP_COMPRESSION, "true")
-                .add(MAX_CONTENT_LENGTH, "384")
+                .add(MAX_CONTENT_LENGTH, UpdateCenterServer.DEFAULT_MAX_CONTENT_LENGTH)
                 .add("admin.user.name", TEST_ADMIN_USER)
                 .add(SETTINGS_KEY_PASSWORD, TEST_PASSWORD)
                 .add(SETTINGS_KEY_PASSWORD_SALT, "9020zksldalep")
@@ -178,7 +183,7 @@ public final class NbmServerLauncher {
         nbmSet.addAll(initialNbms);
 //        nbmSet.add(MODULE_A_v1);
         return new LaunchedNbmServer(basePath, port, serverPort, nbmsDir, info,
-                interceptor, onShutdown, nbmSet);
+                interceptor, onShutdown, nbmSet, synthetic, faults);
     }
 
     private void setLaunchInfo(LaunchInfo info) {
@@ -198,16 +203,17 @@ public final class NbmServerLauncher {
 
     private com.google.inject.Module createModule(File file) {
         return (Binder binder) -> {
-            UpdateCenterServer.NbmInfoModule m = new UpdateCenterServer.NbmInfoModule(file);
+            com.google.inject.Module m = new UpdateCenterServer.NbmInfoModule(file);
+            if (instrumentEventLoop) {
+                // Replaces the request timing probe the module binds
+                m = Modules.override(m).with(b -> b.bind(Probe.class).toInstance(new ProbeImpl().get()));
+            }
             binder.install(m);
             binder.bind(new TypeLiteral<Consumer<LaunchInfo>>() {
             }).toInstance(this::setLaunchInfo);
             binder.bind(LaunchInfo.class).asEagerSingleton();
 
             binder.bind(Poller.PollerProbe.class).toInstance(interceptor);
-            if (instrumentEventLoop) {
-                binder.bind(Probe.class).toInstance(new ProbeImpl().get());
-            }
             if (instrumentAuthentication) {
                 binder.bind(AuthenticateBasicActeur.AuthenticationDecorator.class)
                         .to(AuthLoggingDecorator.class).in(Scopes.SINGLETON);
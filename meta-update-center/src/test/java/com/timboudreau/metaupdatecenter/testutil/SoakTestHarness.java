@@ -0,0 +1,495 @@
+package com.timboudreau.metaupdatecenter.testutil;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Soak test: runs many poll cycles against a launched server, republishing
+ * a synthetic module every few cycles so that it is downloaded and ingested
+ * again, while a few clients download NBMs and load the home page
+ * continuously. Every few cycles it forces garbage collection and samples
+ * heap use after GC, the server's ByteBuf allocator, JVM direct memory and
+ * the thread count.
+ * <p>
+ * The production server runs for months in a small heap, so what matters is
+ * not how much any of those is, but whether it grows: once the first quarter
+ * of the samples (warm-up) is discarded, a least-squares line is fitted to
+ * each metric, and the metric is reported as trending if the growth that line
+ * predicts over the run exceeds a small allowance. Netty's leak detector is
+ * run at PARANOID level for the whole run and its reports - which include the
+ * touch() hints recorded on leaked buffers - are captured and returned.
+ *
+ * @author Tim Boudreau
+ */
+public final class SoakTestHarness {
+
+    private static final int TIMEOUT_MS = 30000;
+    private static final long HEAP_ALLOWANCE = 4 * 1024 * 1024;
+    private static final double HEAP_TOLERANCE = 0.1;
+    private static final long ACTIVE_ALLOCATIONS_ALLOWANCE = 512;
+    /**
+     * Request worker pools grow on demand to their limits, so a new peak in
+     * concurrency late in a run adds a few threads without anything leaking.
+     */
+    private static final long THREADS_ALLOWANCE = 10;
+    private static final int MAX_LEAK_REPORTS = 10;
+    private int cycles = 40;
+    private int sampleEvery = 4;
+    private int ingestEvery = 5;
+    private int modules = 8;
+    private int downloaders = 2;
+    private long seed = 1;
+    private Path resultFile;
+
+    public SoakTestHarness cycles(int cycles) {
+        this.cycles = cycles;
+        return this;
+    }
+
+    /**
+     * Take a sample every this many poll cycles.
+     */
+    public SoakTestHarness sampleEvery(int sampleEvery) {
+        this.sampleEvery = Math.max(1, sampleEvery);
+        return this;
+    }
+
+    /**
+     * Republish one synthetic module with a new version every this many
+     * poll cycles, so the next poll ingests it.
+     */
+    public SoakTestHarness ingestEvery(int ingestEvery) {
+        this.ingestEvery = Math.max(1, ingestEvery);
+        return this;
+    }
+
+    public SoakTestHarness modules(int modules) {
+        this.modules = modules;
+        return this;
+    }
+
+    public SoakTestHarness downloaders(int downloaders) {
+        this.downloaders = downloaders;
+        return this;
+    }
+
+    public SoakTestHarness seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public SoakTestHarness resultFile(Path resultFile) {
+        this.resultFile = resultFile;
+        return this;
+    }
+
+    public Map<String, Object> run(LaunchedNbmServer server) throws Throwable {
+        Random rnd = new Random(seed);
+        List<String> names = server.syntheticNbms().populate(modules, seed);
+        LoadTestHarness.register(server, names);
+        ByteBufAllocator alloc = server.getServerObject(ByteBufAllocator.class);
+
+        ResourceLeakDetector.Level oldLevel = ResourceLeakDetector.getLevel();
+        ResourceLeakDetector.setLevel(ResourceLeakDetector.Level.PARANOID);
+        LeakReports leaks = new LeakReports();
+        Logger leakLogger = Logger.getLogger(ResourceLeakDetector.class.getName());
+        leakLogger.addHandler(leaks);
+
+        Downloads downloads = new Downloads(server);
+        downloads.refresh();
+        ExecutorService threads = Executors.newFixedThreadPool(Math.max(1, downloaders));
+        List<Map<String, Object>> samples = new ArrayList<>();
+        long pollFailures = 0;
+        long ingested = 0;
+        List<String> failures = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < downloaders; i++) {
+                Random clientRandom = new Random(seed + i + 1);
+                threads.submit(() -> downloads.run(clientRandom));
+            }
+            String republished = null;
+            for (int cycle = 1; cycle <= cycles; cycle++) {
+                if (cycle % ingestEvery == 0) {
+                    republished = names.get((cycle / ingestEvery) % names.size());
+                    String cnb = codeNameBase(republished);
+                    server.syntheticNbms().put(republished, SyntheticNbms.generate(cnb,
+                            "2." + cycle, SyntheticNbms.payloadSize(rnd), rnd));
+                }
+                server.clearPollResults();
+                PollCycleWatcher watcher = server.newPollCycleWatcher();
+                server.forcePoll();
+                if (!awaitCycle(watcher)) {
+                    pollFailures++;
+                    addFailure(failures, "Cycle " + cycle + " did not complete in " + TIMEOUT_MS + "ms");
+                }
+                for (String name : names) {
+                    String cnb = codeNameBase(name);
+                    try {
+                        PollResult res = server.awaitPollOf(cnb);
+                        if (!res.isSuccess() && !res.isNotModified()) {
+                            pollFailures++;
+                            addFailure(failures, "Cycle " + cycle + ": " + res);
+                        } else if (name.equals(republished) && res.module() != null) {
+                            ingested++;
+                        }
+                    } catch (Throwable t) {
+                        pollFailures++;
+                        addFailure(failures, "Cycle " + cycle + " " + cnb + ": " + t);
+                    }
+                }
+                if (republished != null) {
+                    downloads.refresh();
+                    republished = null;
+                }
+                if (cycle % sampleEvery == 0) {
+                    samples.add(sample(cycle, start, alloc));
+                }
+            }
+        } finally {
+            downloads.stop();
+            threads.shutdown();
+            threads.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            // Let anything leaked by the last requests be collected and
+            // reported before the level is put back
+            sample(cycles, start, alloc);
+            leakLogger.removeHandler(leaks);
+            ResourceLeakDetector.setLevel(oldLevel);
+        }
+        Map<String, Object> result = result(samples, alloc, leaks, downloads,
+                pollFailures, ingested, failures, System.nanoTime() - start);
+        if (resultFile != null) {
+            if (resultFile.getParent() != null) {
+                Files.createDirectories(resultFile.getParent());
+            }
+            Files.write(resultFile, new ObjectMapper().writerWithDefaultPrettyPrinter()
+                    .writeValueAsBytes(result));
+        }
+        return result;
+    }
+
+    private static String codeNameBase(String fileName) {
+        return fileName.substring(0, fileName.length() - ".nbm".length()).replace('-', '.');
+    }
+
+    private static void addFailure(List<String> failures, String failure) {
+        if (failures.size() < MAX_LEAK_REPORTS) {
+            failures.add(failure);
+        }
+    }
+
+    private static boolean awaitCycle(PollCycleWatcher watcher) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!watcher.awaitCycleComplete(50)) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private Map<String, Object> sample(int cycle, long start, ByteBufAllocator alloc) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        // The leak detector only reports collected buffers when it is asked
+        // to track a new one
+        alloc.directBuffer(1).release();
+        alloc.heapBuffer(1).release();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("cycle", cycle);
+        result.put("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        result.put("heapAfterGc", heapAfterGc());
+        if (alloc instanceof ByteBufAllocatorMetricProvider) {
+            ByteBufAllocatorMetric metric = ((ByteBufAllocatorMetricProvider) alloc).metric();
+            result.put("allocatorDirect", metric.usedDirectMemory());
+            result.put("allocatorHeap", metric.usedHeapMemory());
+        }
+        if (alloc instanceof PooledByteBufAllocator) {
+            result.put("activeAllocations", activeAllocations((PooledByteBufAllocator) alloc));
+        }
+        result.put("jvmDirect", jvmDirect());
+        result.put("threads", (long) ManagementFactory.getThreadMXBean().getThreadCount());
+        return result;
+    }
+
+    private static long heapAfterGc() {
+        long result = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                if (usage != null) {
+                    result += usage.getUsed();
+                }
+            }
+        }
+        return result;
+    }
+
+    private static long activeAllocations(PooledByteBufAllocator alloc) {
+        long result = 0;
+        for (PoolArenaMetric arena : alloc.metric().directArenas()) {
+            result += arena.numActiveAllocations();
+        }
+        for (PoolArenaMetric arena : alloc.metric().heapArenas()) {
+            result += arena.numActiveAllocations();
+        }
+        return result;
+    }
+
+    private static long jvmDirect() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return -1;
+    }
+
+    private Map<String, Object> result(List<Map<String, Object>> samples, ByteBufAllocator alloc,
+            LeakReports leaks, Downloads downloads, long pollFailures, long ingested,
+            List<String> failures, long elapsedNanos) {
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("cycles", cycles);
+        config.put("sampleEvery", sampleEvery);
+        config.put("ingestEvery", ingestEvery);
+        config.put("modules", modules);
+        config.put("downloaders", downloaders);
+        config.put("seed", seed);
+        config.put("allocator", alloc.getClass().getName());
+
+        // A pooled allocator grows a chunk at a time, so allow a couple
+        long chunk = alloc instanceof PooledByteBufAllocator
+                ? ((PooledByteBufAllocator) alloc).metric().chunkSize()
+                : 16 * 1024 * 1024;
+        Map<String, Object> trends = new LinkedHashMap<>();
+        List<String> trending = new ArrayList<>();
+        trend("heapAfterGc", HEAP_ALLOWANCE, HEAP_TOLERANCE, samples, trends, trending);
+        trend("allocatorDirect", 2 * chunk, 0, samples, trends, trending);
+        trend("allocatorHeap", 2 * chunk, 0, samples, trends, trending);
+        trend("activeAllocations", ACTIVE_ALLOCATIONS_ALLOWANCE, 0, samples, trends, trending);
+        trend("jvmDirect", 2 * chunk, 0, samples, trends, trending);
+        trend("threads", THREADS_ALLOWANCE, 0, samples, trends, trending);
+
+        Map<String, Object> requests = new LinkedHashMap<>();
+        requests.put("count", downloads.requests.get());
+        requests.put("errors", downloads.errors.get());
+        requests.put("stale", downloads.stale.get());
+        requests.put("bytes", downloads.bytes.get());
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("config", config);
+        result.put("elapsedMillis", TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        result.put("pollFailures", pollFailures);
+        result.put("ingested", ingested);
+        result.put("failures", failures);
+        result.put("requests", requests);
+        result.put("leaks", leaks.count());
+        result.put("leakReports", leaks.reports());
+        result.put("trending", trending);
+        result.put("trends", trends);
+        result.put("samples", samples);
+        return result;
+    }
+
+    private static void trend(String key, long allowance, double tolerance,
+            List<Map<String, Object>> samples, Map<String, Object> trends, List<String> trending) {
+        List<Long> values = new ArrayList<>(samples.size());
+        for (Map<String, Object> sample : samples) {
+            Object val = sample.get(key);
+            if (val instanceof Long && (Long) val >= 0) {
+                values.add((Long) val);
+            }
+        }
+        // Skip warm-up: caches, pools and JIT-compiled code settle early
+        List<Long> measured = values.subList(Math.max(1, values.size() / 4), Math.max(1, values.size()));
+        if (measured.size() < 3) {
+            return;
+        }
+        double growth = growth(measured);
+        double mean = 0;
+        for (long v : measured) {
+            mean += v;
+        }
+        mean /= measured.size();
+        double limit = Math.max(allowance, mean * tolerance);
+        Map<String, Object> t = new LinkedHashMap<>();
+        t.put("first", measured.get(0));
+        t.put("last", measured.get(measured.size() - 1));
+        t.put("min", Collections.min(measured));
+        t.put("max", Collections.max(measured));
+        t.put("fittedGrowth", (long) growth);
+        t.put("limit", (long) limit);
+        trends.put(key, t);
+        if (growth > limit) {
+            trending.add(key);
+        }
+    }
+
+    /**
+     * The growth over the whole series predicted by a least-squares line
+     * fitted to it.
+     */
+    static double growth(List<Long> values) {
+        int n = values.size();
+        double meanX = (n - 1) / 2D;
+        double meanY = 0;
+        for (long v : values) {
+            meanY += v;
+        }
+        meanY /= n;
+        double num = 0;
+        double den = 0;
+        for (int i = 0; i < n; i++) {
+            num += (i - meanX) * (values.get(i) - meanY);
+            den += (i - meanX) * (i - meanX);
+        }
+        return den == 0 ? 0 : (num / den) * (n - 1);
+    }
+
+    /**
+     * Collects the reports Netty's leak detector logs; with no SLF4J on the
+     * classpath Netty logs through java.util.logging.
+     */
+    private static final class LeakReports extends Handler {
+
+        private final List<String> reports = new ArrayList<>();
+        private int count;
+
+        @Override
+        public synchronized void publish(LogRecord record) {
+            String msg = record.getMessage();
+            if (record.getLevel().intValue() >= Level.SEVERE.intValue() && msg != null && msg.contains("LEAK")) {
+                count++;
+                if (reports.size() < MAX_LEAK_REPORTS) {
+                    reports.add(msg);
+                }
+            }
+        }
+
+        synchronized int count() {
+            return count;
+        }
+
+        synchronized List<String> reports() {
+            return new ArrayList<>(reports);
+        }
+
+        @Override
+        public void flush() {
+            // do nothing
+        }
+
+        @Override
+        public void close() {
+            // do nothing
+        }
+    }
+
+    /**
+     * Clients downloading NBMs listed in the catalog, and occasionally the
+     * home page, until stopped. A download of a version replaced since the
+     * catalog was last read is counted as stale rather than as an error.
+     */
+    private static final class Downloads {
+
+        private final LaunchedNbmServer server;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong stale = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile List<String> paths = Collections.emptyList();
+        private volatile boolean stopped;
+
+        Downloads(LaunchedNbmServer server) {
+            this.server = server;
+        }
+
+        void refresh() throws Throwable {
+            List<String> result = new ArrayList<>();
+            for (Map<String, Object> m : server.getCatalog()) {
+                result.add("download/" + m.get("codeNameBase") + "/" + m.get("hash") + ".nbm");
+            }
+            paths = result;
+        }
+
+        void stop() {
+            stopped = true;
+        }
+
+        void run(Random rnd) {
+            byte[] buffer = new byte[16384];
+            while (!stopped) {
+                List<String> current = paths;
+                boolean homePage = current.isEmpty() || rnd.nextInt(10) == 0;
+                String path = homePage ? "" : current.get(rnd.nextInt(current.size()));
+                requests.incrementAndGet();
+                try {
+                    HttpURLConnection conn = (HttpURLConnection) server.serverUrl(path).openConnection();
+                    try {
+                        conn.setConnectTimeout(TIMEOUT_MS);
+                        conn.setReadTimeout(TIMEOUT_MS);
+                        int status = conn.getResponseCode();
+                        if (status == HttpURLConnection.HTTP_NOT_FOUND && !homePage) {
+                            stale.incrementAndGet();
+                            drain(conn.getErrorStream(), buffer);
+                        } else if (status >= 400) {
+                            errors.incrementAndGet();
+                            drain(conn.getErrorStream(), buffer);
+                        } else {
+                            bytes.addAndGet(drain(conn.getInputStream(), buffer));
+                        }
+                    } finally {
+                        conn.disconnect();
+                    }
+                } catch (IOException ex) {
+                    errors.incrementAndGet();
+                }
+            }
+        }
+
+        private static long drain(InputStream in, byte[] buffer) throws IOException {
+            if (in == null) {
+                return 0;
+            }
+            long result = 0;
+            try (InputStream stream = in) {
+                for (int read; (read = stream.read(buffer)) > 0;) {
+                    result += read;
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.timboudreau.metaupdatecenter.testutil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Generated NBMs, served by DummyNbmsServer under <code>/synthetic/</code>,
+ * for tests which need more modules than the four test projects provide.
+ * Each contains an Info/info.xml and a module JAR of random (so,
+ * incompressible, like a real compressed JAR) bytes; sizes are drawn from a
+ * log-normal distribution, which is roughly what a real catalog looks like -
+ * most modules are tens of kilobytes, a few are megabytes.
+ *
+ * @author Tim Boudreau
+ */
+public final class SyntheticNbms {
+
+    private static final int MEDIAN_PAYLOAD_BYTES = 48 * 1024;
+    private static final double SIGMA = 1.1;
+    private static final int MIN_PAYLOAD_BYTES = 2 * 1024;
+    private static final int MAX_PAYLOAD_BYTES = 4 * 1024 * 1024;
+    private final Map<String, byte[]> nbms = new ConcurrentHashMap<>();
+
+    /**
+     * Generate and serve a population of modules.
+     *
+     * @param count The number of modules
+     * @param seed The random seed, so runs are repeatable
+     * @return The file names they are served under, in order
+     */
+    public List<String> populate(int count, long seed) throws IOException {
+        Random rnd = new Random(seed);
+        List<String> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String cnb = "org.synthetic.module" + i;
+            String name = cnb.replace('.', '-') + ".nbm";
+            nbms.put(name, generate(cnb, "1." + i, payloadSize(rnd), rnd));
+            result.add(name);
+        }
+        return result;
+    }
+
+    /**
+     * Serve a single NBM under a given name, replacing any existing one.
+     */
+    public SyntheticNbms put(String name, byte[] nbm) {
+        nbms.put(name, nbm);
+        return this;
+    }
+
+    byte[] get(String name) {
+        return nbms.get(name);
+    }
+
+    public List<Integer> sizes() {
+        List<Integer> result = new ArrayList<>(nbms.size());
+        for (byte[] b : nbms.values()) {
+            result.add(b.length);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    static int payloadSize(Random rnd) {
+        double size = MEDIAN_PAYLOAD_BYTES * Math.exp(SIGMA * rnd.nextGaussian());
+        return (int) Math.max(MIN_PAYLOAD_BYTES, Math.min(MAX_PAYLOAD_BYTES, size));
+    }
+
+    /**
+     * Create the bytes of an NBM which the server will accept.
+     *
+     * @param cnb The code name base
+     * @param specVersion The specification version
+     * @param payloadBytes The size of the module JAR inside it
+     * @param rnd Source of the JAR's content
+     * @return An NBM
+     */
+    public static byte[] generate(String cnb, String specVersion, int payloadBytes, Random rnd) throws IOException {
+        String fileBase = cnb.replace('.', '-');
+        byte[] payload = new byte[payloadBytes];
+        rnd.nextBytes(payload);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payloadBytes + 2048);
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.setLevel(Deflater.BEST_SPEED);
+            zip.putNextEntry(new ZipEntry("Info/info.xml"));
+            zip.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<!DOCTYPE module PUBLIC \"-//NetBeans//DTD Autoupdate Module Info 2.4//EN\" "
+                    + "\"http://www.netbeans.org/dtds/autoupdate-info-2_4.dtd\">\n"
+                    + "<module codenamebase=\"" + cnb + "\" distribution=\"" + fileBase + ".nbm\" "
+                    + "downloadsize=\"0\" license=\"SYNTHETIC\" moduleauthor=\"Load Test\" "
+                    + "needsrestart=\"false\" releasedate=\"2020/01/01\" targetcluster=\"synthetic\">\n"
+                    + "    <manifest OpenIDE-Module=\"" + cnb + "\" "
+                    + "OpenIDE-Module-Display-Category=\"Synthetic\" "
+                    + "OpenIDE-Module-Implementation-Version=\"" + specVersion + "\" "
+                    + "OpenIDE-Module-Long-Description=\"A generated module of " + payloadBytes + " bytes\" "
+                    + "OpenIDE-Module-Name=\"Synthetic " + cnb + "\" "
+                    + "OpenIDE-Module-Short-Description=\"A generated module\" "
+                    + "OpenIDE-Module-Specification-Version=\"" + specVersion + "\"/>\n"
+                    + "    <license name=\"SYNTHETIC\">MIT - https://opensource.org/licenses/MIT</license>\n"
+                    + "</module>\n").getBytes(UTF_8));
+            zip.closeEntry();
+            zip.putNextEntry(new ZipEntry("netbeans/modules/" + fileBase + ".jar"));
+            zip.write(payload);
+            zip.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -25,10 +25,23 @@ package com.timboudreau.metaupdatecenter.testutil;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import com.google.inject.name.Names;
+import com.google.inject.util.Providers;
 import com.mastfrog.acteur.header.entities.BasicCredentials;
+import com.mastfrog.acteur.util.RequestID;
+import com.mastfrog.bunyan.java.v2.Logs;
+import com.mastfrog.giulius.Dependencies;
+import com.mastfrog.giulius.bunyan.java.v2.LoggingModule;
+import com.mastfrog.jackson.JacksonModule;
+import com.mastfrog.jackson.configuration.DurationSerializationMode;
+import com.mastfrog.jackson.configuration.TimeSerializationMode;
 import com.mastfrog.util.collections.StringObjectMap;
 import com.mastfrog.util.streams.Streams;
 import static com.mastfrog.util.streams.Streams.readUTF8String;
+import com.timboudreau.metaupdatecenter.InfoFile;
+import com.timboudreau.metaupdatecenter.Stats;
 import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_ADMIN_USER;
 import static com.timboudreau.metaupdatecenter.testutil.NbmServerLauncher.TEST_PASSWORD;
 import java.io.ByteArrayOutputStream;
@@ -43,11 +56,14 @@ import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
 import org.junit.jupiter.api.Assertions;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
+import org.w3c.dom.Document;
 
 /**
  * Common utils for fetching from the servers.
@@ -288,11 +304,69 @@ public class TestUtils {
         }
     }
 
-    static Map<String, Object> extractModuleInfo(String putResponse) throws JsonProcessingException {
+    public static Map<String, Object> extractModuleInfo(String putResponse) throws JsonProcessingException {
         int ix = putResponse.lastIndexOf("Metadata:");
         assertTrue(ix >= 0, "Did not find metadata info in response '" + putResponse + "'");
         String json = putResponse.substring(ix + "Metadata:".length() + 1);
         ObjectMapper mapper = new ObjectMapper();
         return mapper.readValue(json, StringObjectMap.class);
     }
+
+    /**
+     * Parse an Info/info.xml test resource the way NbmDownloader does.
+     *
+     * @param relativeTo The class the resource is next to
+     * @param resource The resource name
+     * @return An InfoFile
+     */
+    public static InfoFile infoFile(Class<?> relativeTo, String resource) throws Exception {
+        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+        dbFactory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+        try (InputStream xml = relativeTo.getResourceAsStream(resource)) {
+            assertNotNull(xml, "No " + resource + " next to " + relativeTo.getName());
+            Document doc = dBuilder.parse(xml);
+            doc.getDocumentElement().normalize();
+            return new InfoFile(doc);
+        }
+    }
+
+    /**
+     * Loggers, an ObjectMapper and Stats set up as the server sets them up,
+     * for tests which build a ModuleSet and friends by hand rather than
+     * launching a server.
+     *
+     * @return A fixture
+     */
+    public static Fixture fixture() throws IOException {
+        return new Fixture();
+    }
+
+    public static final class Fixture {
+
+        public final Logs logs;
+        public final ObjectMapper mapper;
+        private final Stats stats;
+
+        Fixture() throws IOException {
+            Dependencies deps = new Dependencies(new LoggingModule().bindLogger("x"), new JacksonModule()
+                    .withJavaTimeSerializationMode(TimeSerializationMode.TIME_AS_EPOCH_MILLIS,
+                            DurationSerializationMode.DURATION_AS_MILLIS));
+            logs = deps.getInstance(Key.get(Logs.class, Names.named("x")));
+            mapper = deps.getInstance(ObjectMapper.class);
+            stats = new Stats(logs, logs, logs, Providers.of(new RequestID.Factory().next()));
+        }
+
+        public Provider<ObjectMapper> mapperProvider() {
+            return Providers.of(mapper);
+        }
+
+        public Provider<Stats> statsProvider() {
+            return Providers.of(stats);
+        }
+
+        public Provider<Logs> logsProvider() {
+            return Providers.of(logs);
+        }
+    }
 }
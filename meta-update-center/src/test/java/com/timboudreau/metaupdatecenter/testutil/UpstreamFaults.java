@@ -0,0 +1,283 @@
+package com.timboudreau.metaupdatecenter.testutil;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelOption;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Misbehavior for DummyNbmsServer to inject, per served file name, so the
+ * poller and downloader can be tested and measured against the sort of
+ * upstream a CI server on a busy host really is: slow to answer, slow to
+ * send, dropping connections, failing in bursts, rate limiting, or omitting
+ * the headers conditional requests depend on.
+ * <p>
+ * Faults apply to both the test project NBMs under <code>/nbms/</code> and
+ * synthetic ones under <code>/synthetic/</code>, keyed by the last element of
+ * the URL path; a fault registered under <code>*</code> applies to any file
+ * which has none of its own.
+ *
+ * @author Tim Boudreau
+ */
+public final class UpstreamFaults {
+
+    public static final String ALL = "*";
+    private static final Fault NONE = new Fault();
+    private final Map<String, Fault> faults = new ConcurrentHashMap<>();
+
+    /**
+     * Get the fault for a file name, creating it if necessary, to configure.
+     *
+     * @param name A file name such as <code>first-test-module.nbm</code>, or
+     * {@link #ALL}
+     * @return A fault
+     */
+    public Fault fault(String name) {
+        return faults.computeIfAbsent(name, n -> new Fault());
+    }
+
+    public UpstreamFaults clear() {
+        faults.clear();
+        return this;
+    }
+
+    Fault forName(String name) {
+        Fault result = faults.get(name);
+        if (result == null) {
+            result = faults.get(ALL);
+        }
+        return result == null ? NONE : result;
+    }
+
+    /**
+     * What the server should do with one request.
+     */
+    enum Outcome {
+        SERVE,
+        RESET,
+        ERROR,
+        RATE_LIMITED
+    }
+
+    public static final class Fault {
+
+        private long latencyMillis;
+        private int bytesPerSecond;
+        private int dripBytes;
+        private long dripIntervalMillis;
+        private long resetAfterBytes = -1;
+        private int errorsRemaining;
+        private HttpResponseStatus errorStatus = HttpResponseStatus.SERVICE_UNAVAILABLE;
+        private int rateLimitRequests;
+        private long rateLimitWindowMillis;
+        private long windowStart;
+        private int windowCount;
+        private boolean omitLastModified;
+        private int requests;
+
+        /**
+         * Wait before responding at all.
+         */
+        public synchronized Fault latency(Duration latency) {
+            latencyMillis = latency.toMillis();
+            return this;
+        }
+
+        /**
+         * Send bodies no faster than this.
+         */
+        public synchronized Fault bandwidth(int bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * Send bodies a few bytes at a time with pauses between - the
+         * pathological slow sender which never quite times out.
+         */
+        public synchronized Fault drip(int bytes, Duration interval) {
+            dripBytes = bytes;
+            dripIntervalMillis = interval.toMillis();
+            return this;
+        }
+
+        /**
+         * Reset the connection once this many bytes of the body have been
+         * sent; 0 resets it without sending a response at all.
+         */
+        public synchronized Fault resetAfter(long bytes) {
+            resetAfterBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Fail the next <code>count</code> requests with a 503.
+         */
+        public Fault serverErrors(int count) {
+            return serverErrors(count, HttpResponseStatus.SERVICE_UNAVAILABLE);
+        }
+
+        /**
+         * Fail the next <code>count</code> requests with the given status.
+         */
+        public synchronized Fault serverErrors(int count, HttpResponseStatus status) {
+            errorsRemaining = count;
+            errorStatus = status;
+            return this;
+        }
+
+        /**
+         * Answer 429 Too Many Requests, with a Retry-After header, to
+         * requests beyond <code>requests</code> in any window of the given
+         * length.
+         */
+        public synchronized Fault rateLimit(int requests, Duration window) {
+            rateLimitRequests = requests;
+            rateLimitWindowMillis = window.toMillis();
+            windowStart = 0;
+            windowCount = 0;
+            return this;
+        }
+
+        /**
+         * Send no Last-Modified header, so If-Modified-Since cannot be
+         * used.
+         */
+        public synchronized Fault omitLastModified() {
+            omitLastModified = true;
+            return this;
+        }
+
+        /**
+         * The number of requests for this file seen so far.
+         */
+        public synchronized int requests() {
+            return requests;
+        }
+
+        synchronized long latencyMillis() {
+            return latencyMillis;
+        }
+
+        synchronized boolean isOmitLastModified() {
+            return omitLastModified;
+        }
+
+        synchronized HttpResponseStatus errorStatus() {
+            return errorStatus;
+        }
+
+        synchronized long retryAfterSeconds() {
+            long remaining = windowStart + rateLimitWindowMillis - System.currentTimeMillis();
+            return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(remaining + 999));
+        }
+
+        synchronized Outcome onRequest() {
+            requests++;
+            if (resetAfterBytes == 0) {
+                return Outcome.RESET;
+            }
+            if (errorsRemaining > 0) {
+                errorsRemaining--;
+                return Outcome.ERROR;
+            }
+            if (rateLimitRequests > 0) {
+                long now = System.currentTimeMillis();
+                if (now - windowStart >= rateLimitWindowMillis) {
+                    windowStart = now;
+                    windowCount = 0;
+                }
+                if (++windowCount > rateLimitRequests) {
+                    return Outcome.RATE_LIMITED;
+                }
+            }
+            return Outcome.SERVE;
+        }
+
+        synchronized boolean shapesBody() {
+            return bytesPerSecond > 0 || dripBytes > 0 || resetAfterBytes > 0;
+        }
+
+        /**
+         * Creates the listener which writes a body slowly, or partially, once
+         * the response headers have been sent.
+         */
+        synchronized ChannelFutureListener bodyWriter(byte[] body) {
+            int chunk;
+            long interval;
+            if (dripBytes > 0) {
+                chunk = dripBytes;
+                interval = dripIntervalMillis;
+            } else if (bytesPerSecond > 0) {
+                // Ten writes a second
+                chunk = Math.max(1, bytesPerSecond / 10);
+                interval = 100;
+            } else {
+                chunk = 8192;
+                interval = 0;
+            }
+            return new ShapedBody(body, chunk, interval, resetAfterBytes);
+        }
+    }
+
+    static void reset(Channel channel) {
+        // Zero linger makes close() send a RST rather than a FIN
+        channel.config().setOption(ChannelOption.SO_LINGER, 0);
+        channel.close();
+    }
+
+    private static final class ShapedBody implements ChannelFutureListener {
+
+        private final byte[] body;
+        private final int chunk;
+        private final long intervalMillis;
+        private final long resetAfter;
+        private int sent;
+
+        ShapedBody(byte[] body, int chunk, long intervalMillis, long resetAfter) {
+            this.body = body;
+            this.chunk = chunk;
+            this.intervalMillis = intervalMillis;
+            this.resetAfter = resetAfter;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture f) throws Exception {
+            Channel channel = f.channel();
+            if (f.cause() != null || !channel.isOpen()) {
+                return;
+            }
+            if (sent > 0 && intervalMillis > 0) {
+                channel.eventLoop().schedule(() -> writeNext(channel), intervalMillis, TimeUnit.MILLISECONDS);
+            } else {
+                writeNext(channel);
+            }
+        }
+
+        private void writeNext(Channel channel) {
+            if (resetAfter > 0 && sent >= resetAfter) {
+                reset(channel);
+                return;
+            }
+            if (sent >= body.length) {
+                channel.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+                return;
+            }
+            int length = Math.min(chunk, body.length - sent);
+            if (resetAfter > 0) {
+                length = (int) Math.min(length, resetAfter - sent);
+            }
+            DefaultHttpContent content = new DefaultHttpContent(Unpooled.wrappedBuffer(body, sent, length));
+            sent += length;
+            channel.writeAndFlush(content).addListener(this);
+        }
+    }
+}